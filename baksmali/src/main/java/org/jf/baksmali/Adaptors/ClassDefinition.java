@@ -32,7 +32,10 @@ import org.jf.baksmali.BaksmaliOptions;
 import org.jf.baksmali.formatter.BaksmaliFormatter;
 import org.jf.baksmali.formatter.BaksmaliWriter;
 import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
@@ -72,29 +75,22 @@ public class ClassDefinition {
         for (Method method: classDef.getDirectMethods()) {
             if (method.getName().equals("<clinit>")) {
                 MethodImplementation impl = method.getImplementation();
-                if (impl != null) {
+                if (impl instanceof DexBackedMethodImplementation) {
+                    // scan the instructions in place, and only create reference objects for the static puts
+                    InstructionCursor cursor = ((DexBackedMethodImplementation)impl).getInstructionCursor();
+                    while (cursor.next()) {
+                        Opcode opcode = cursor.getOpcode();
+                        if (opcode != null && isStaticPut(opcode)) {
+                            addFieldSetInStaticConstructor(classDef, (FieldReference)cursor.getReference(),
+                                    fieldsSetInStaticConstructor);
+                        }
+                    }
+                } else if (impl != null) {
                     for (Instruction instruction: impl.getInstructions()) {
-                        switch (instruction.getOpcode()) {
-                            case SPUT:
-                            case SPUT_BOOLEAN:
-                            case SPUT_BYTE:
-                            case SPUT_CHAR:
-                            case SPUT_OBJECT:
-                            case SPUT_SHORT:
-                            case SPUT_WIDE: {
-                                Instruction21c ins = (Instruction21c)instruction;
-                                FieldReference fieldRef = (FieldReference)ins.getReference();
-                                try {
-                                    fieldRef.validateReference();
-                                    if (fieldRef.getDefiningClass().equals((classDef.getType()))) {
-                                        fieldsSetInStaticConstructor.add(
-                                                formatter.getShortFieldDescriptor(fieldRef));
-                                    }
-                                } catch (Reference.InvalidReferenceException ex) {
-                                    // Just ignore for now. We'll deal with it when processing the instruction
-                                }
-                                break;
-                            }
+                        if (isStaticPut(instruction.getOpcode())) {
+                            Instruction21c ins = (Instruction21c)instruction;
+                            addFieldSetInStaticConstructor(classDef, (FieldReference)ins.getReference(),
+                                    fieldsSetInStaticConstructor);
                         }
                     }
                 }
@@ -103,6 +99,33 @@ public class ClassDefinition {
         return fieldsSetInStaticConstructor;
     }
 
+    private static boolean isStaticPut(@Nonnull Opcode opcode) {
+        switch (opcode) {
+            case SPUT:
+            case SPUT_BOOLEAN:
+            case SPUT_BYTE:
+            case SPUT_CHAR:
+            case SPUT_OBJECT:
+            case SPUT_SHORT:
+            case SPUT_WIDE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void addFieldSetInStaticConstructor(@Nonnull ClassDef classDef, @Nonnull FieldReference fieldRef,
+                                                @Nonnull HashSet<String> fieldsSetInStaticConstructor) {
+        try {
+            fieldRef.validateReference();
+            if (fieldRef.getDefiningClass().equals((classDef.getType()))) {
+                fieldsSetInStaticConstructor.add(formatter.getShortFieldDescriptor(fieldRef));
+            }
+        } catch (Reference.InvalidReferenceException ex) {
+            // Just ignore for now. We'll deal with it when processing the instruction
+        }
+    }
+
     public void writeTo(BaksmaliWriter writer) throws IOException {
         writeClass(writer);
         writeSuper(writer);
@@ -37,6 +37,8 @@ import org.jf.dexlib2.*;
 import org.jf.dexlib2.analysis.AnalysisException;
 import org.jf.dexlib2.analysis.AnalyzedInstruction;
 import org.jf.dexlib2.analysis.MethodAnalyzer;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.debug.DebugItem;
 import org.jf.dexlib2.iface.instruction.Instruction;
@@ -379,6 +381,17 @@ public class MethodDefinition {
     }
 
     private boolean needsAnalyzed() {
+        if (methodImpl instanceof DexBackedMethodImplementation) {
+            InstructionCursor cursor = ((DexBackedMethodImplementation)methodImpl).getInstructionCursor();
+            while (cursor.next()) {
+                Opcode opcode = cursor.getOpcode();
+                if (opcode != null && opcode.odexOnly()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         for (Instruction instruction: methodImpl.getInstructions()) {
             if (instruction.getOpcode().odexOnly()) {
                 return true;
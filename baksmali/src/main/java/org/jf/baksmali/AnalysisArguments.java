@@ -34,19 +34,28 @@ package org.jf.baksmali;
 import com.beust.jcommander.Parameter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.jf.dexlib2.VersionMap;
+import org.jf.dexlib2.analysis.ClassLayoutCache;
 import org.jf.dexlib2.analysis.ClassPath;
 import org.jf.dexlib2.analysis.ClassPathResolver;
+import org.jf.dexlib2.analysis.ClassProvider;
+import org.jf.dexlib2.analysis.DexClassProvider;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.OatFile;
+import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.MultiDexContainer;
 import org.jf.util.jcommander.ColonParameterSplitter;
 import org.jf.util.jcommander.ExtendedParameter;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.jf.dexlib2.analysis.ClassPath.NOT_SPECIFIED;
 
@@ -74,6 +83,16 @@ public class AnalysisArguments {
     @ExtendedParameter(argumentNames = "dir")
     public List<String> classPathDirectories = null;
 
+    @Parameter(names = {"--layout-cache"},
+            description = "A file to use as a persistent cache of the vtables and field offsets of the classes in " +
+                    "the bootclasspath and classpath. The cache is created if it doesn't exist, and is ignored and " +
+                    "recreated if the classpath files or the api level don't match the ones it was created for.")
+    @ExtendedParameter(argumentNames = "file")
+    public String layoutCacheFile = null;
+
+    @Nullable private ClassLayoutCache.Key layoutCacheKey = null;
+    @Nullable private List<ClassProvider> layoutCacheProviders = null;
+
     public static class CheckPackagePrivateArgument {
         @Parameter(names = {"--check-package-private-access", "--package-private", "--checkpp", "--pp"},
                 description = "Use the package-private access check when calculating vtable indexes. This is enabled " +
@@ -94,6 +113,47 @@ public class AnalysisArguments {
                                              @Nonnull MultiDexContainer.DexEntry<? extends DexBackedDexFile> dexEntry,
                                              boolean checkPackagePrivateAccess, int oatVersion)
             throws IOException {
+        return loadClassPath(dexFileDir, dexEntry, checkPackagePrivateAccess, oatVersion, true);
+    }
+
+    /**
+     * Loads a ClassPath containing only the bootclasspath and classpath entries for the given dex entry, without the
+     * dex files from the entry's container.
+     *
+     * This is intended to be loaded once and shared between all the entries of a container, with a cheap layer for
+     * each entry from {@link #layerClassPathForDexEntry}.
+     */
+    @Nonnull
+    public ClassPath loadSharedClassPathForDexFile(
+            @Nonnull File dexFileDir, @Nonnull MultiDexContainer.DexEntry<? extends DexBackedDexFile> dexEntry,
+            boolean checkPackagePrivateAccess) throws IOException {
+        return loadClassPath(dexFileDir, dexEntry, checkPackagePrivateAccess, NOT_SPECIFIED, false);
+    }
+
+    /**
+     * Creates a ClassPath for the given dex entry, layered on top of a ClassPath from
+     * {@link #loadSharedClassPathForDexFile}. The layer contains the dex files from the entry's container, the same
+     * as the ClassPath from {@link #loadClassPathForDexFile}.
+     */
+    @Nonnull
+    public ClassPath layerClassPathForDexEntry(@Nonnull ClassPath sharedClassPath,
+                                               @Nonnull MultiDexContainer.DexEntry<? extends DexBackedDexFile> dexEntry)
+            throws IOException {
+        MultiDexContainer<? extends DexBackedDexFile> container = dexEntry.getContainer();
+        List<ClassProvider> classProviders = Lists.newArrayList();
+        for (String entryName: container.getDexEntryNames()) {
+            MultiDexContainer.DexEntry<? extends DexBackedDexFile> entry = container.getEntry(entryName);
+            assert entry != null;
+            classProviders.add(new DexClassProvider(entry.getDexFile()));
+        }
+        return new ClassPath(sharedClassPath, classProviders);
+    }
+
+    @Nonnull
+    private ClassPath loadClassPath(@Nonnull File dexFileDir,
+                                    @Nonnull MultiDexContainer.DexEntry<? extends DexBackedDexFile> dexEntry,
+                                    boolean checkPackagePrivateAccess, int oatVersion, boolean includeContainer)
+            throws IOException {
         ClassPathResolver resolver;
 
         MultiDexContainer<? extends DexBackedDexFile> container = dexEntry.getContainer();
@@ -143,6 +203,93 @@ public class AnalysisArguments {
         if (oatVersion == 0 && container instanceof OatFile) {
             oatVersion = ((OatFile) container).getOatVersion();
         }
-        return new ClassPath(resolver.getResolvedClassProviders(), checkPackagePrivateAccess, oatVersion);
+        ClassPath loadedClassPath = new ClassPath(includeContainer ? resolver.getResolvedClassProviders() :
+                resolver.getResolvedClassPathProviders(), checkPackagePrivateAccess, oatVersion);
+
+        if (layoutCacheFile != null) {
+            layoutCacheKey = new ClassLayoutCache.Key(resolver.getResolvedClassPathFiles(),
+                    dexEntry.getDexFile().getOpcodes().api, oatVersion, checkPackagePrivateAccess);
+            layoutCacheProviders = resolver.getResolvedClassPathProviders();
+            loadedClassPath.setLayoutCache(ClassLayoutCache.load(new File(layoutCacheFile), layoutCacheKey));
+        }
+        return loadedClassPath;
+    }
+
+    /**
+     * Updates the layout cache file with the layouts of any classpath classes that were loaded by the given ClassPath
+     * and that weren't already in the cache.
+     *
+     * This does nothing if --layout-cache wasn't specified. A failure to write the cache is reported as a warning.
+     *
+     * @param classPath A ClassPath that was previously returned by loadClassPathForDexFile or
+     *                  loadSharedClassPathForDexFile
+     */
+    public void saveLayoutCache(@Nonnull ClassPath classPath) {
+        if (layoutCacheFile == null || layoutCacheKey == null || layoutCacheProviders == null) {
+            return;
+        }
+
+        ClassLayoutCache layoutCache = classPath.getLayoutCache();
+        Set<String> types = Sets.newLinkedHashSet();
+        if (layoutCache != null) {
+            types.addAll(layoutCache.getTypes());
+        }
+        int cachedCount = types.size();
+
+        Map<String, Boolean> classPathOnly = Maps.newHashMap();
+        for (String type: ImmutableList.copyOf(classPath.getCachedTypes())) {
+            if (type.charAt(0) == 'L' && !types.contains(type) &&
+                    isLayoutFromClassPathOnly(classPath, type, classPathOnly)) {
+                types.add(type);
+            }
+        }
+
+        // rewrite the cache if it was only matched by the contents of the classpath files, so that the stamp in its key
+        // is updated
+        if (types.size() > cachedCount || (layoutCache != null && layoutCache.isStampOutdated())) {
+            try {
+                ClassLayoutCache.save(new File(layoutCacheFile), layoutCacheKey, classPath, types);
+            } catch (IOException ex) {
+                System.err.println(String.format("Warning: could not write layout cache %s: %s", layoutCacheFile,
+                        ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Checks whether the layout of the given class depends only on classes from the bootclasspath and classpath
+     * entries, and not on any classes from the dex file being analyzed.
+     */
+    private boolean isLayoutFromClassPathOnly(@Nonnull ClassPath classPath, @Nonnull String type,
+                                              @Nonnull Map<String, Boolean> memo) {
+        Boolean result = memo.get(type);
+        if (result != null) {
+            return result;
+        }
+        // guard against cycles in malformed class hierarchies
+        memo.put(type, false);
+
+        ClassDef classDef = null;
+        for (ClassProvider provider: layoutCacheProviders) {
+            classDef = provider.getClassDef(type);
+            if (classDef != null) {
+                break;
+            }
+        }
+
+        result = classDef != null;
+        if (result && classDef.getSuperclass() != null) {
+            result = isLayoutFromClassPathOnly(classPath, classDef.getSuperclass(), memo);
+        }
+        if (result) {
+            for (String iface: classDef.getInterfaces()) {
+                if (!isLayoutFromClassPathOnly(classPath, iface, memo)) {
+                    result = false;
+                    break;
+                }
+            }
+        }
+        memo.put(type, result);
+        return result;
     }
 }
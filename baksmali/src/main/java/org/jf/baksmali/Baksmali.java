@@ -32,76 +32,270 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import org.jf.baksmali.Adaptors.ClassDefinition;
 import org.jf.baksmali.formatter.BaksmaliWriter;
+import org.jf.baksmali.output.DirectoryOutputSink;
+import org.jf.baksmali.output.OutputSink;
+import org.jf.baksmali.output.TarOutputSink;
+import org.jf.baksmali.output.ZipOutputSink;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
-import org.jf.util.ClassFileNameHandler;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.util.TaskScheduler;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.*;
 
 public class Baksmali {
+    // the estimated cost of a method implementation whose code size can't be read directly
+    private static final int DEFAULT_IMPLEMENTATION_COST = 32;
+
     public static boolean disassembleDexFile(DexFile dexFile, File outputDir, int jobs, final BaksmaliOptions options) {
         return disassembleDexFile(dexFile, outputDir, jobs, options, null);
     }
 
     public static boolean disassembleDexFile(DexFile dexFile, File outputDir, int jobs, final BaksmaliOptions options,
                                              @Nullable List<String> classes) {
+        return disassembleDexFile(dexFile, new DirectoryOutputSink(outputDir), jobs, options, classes);
+    }
+
+    /**
+     * Disassembles a dex file into the given OutputSink.
+     *
+     * The sink is not closed by this method.
+     *
+     * @return true if all classes were disassembled successfully
+     */
+    public static boolean disassembleDexFile(DexFile dexFile, final OutputSink outputSink, int jobs,
+                                             final BaksmaliOptions options, @Nullable List<String> classes) {
+        return disassembleClasses(getClassesToDisassemble(dexFile, classes), outputSink, jobs, options) == null;
+    }
 
+    /**
+     * Disassembles several dex files at once, e.g. all of the dex files in an apk or oat file.
+     *
+     * The classes from all of the dex files are disassembled by a single pool of worker threads, largest first, so
+     * that the threads are kept busy until the very end, rather than waiting on the largest class of each dex file in
+     * turn. The sinks are not closed by this method.
+     *
+     * @return true if all classes were disassembled successfully
+     */
+    public static boolean disassembleDexFiles(@Nonnull List<DisassemblyJob> disassemblyJobs, int jobs) {
+        List<ClassTask> tasks = Lists.newArrayList();
+        boolean printTaskStatistics = false;
+        for (DisassemblyJob job: disassemblyJobs) {
+            for (ClassDef classDef: getClassesToDisassemble(job.dexFile, job.classes)) {
+                tasks.add(new ClassTask(classDef, job.outputSink, job.options));
+            }
+            printTaskStatistics |= job.options.printTaskStatistics;
+        }
+        return disassembleClasses(tasks, jobs, printTaskStatistics).isEmpty();
+    }
+
+    /**
+     * A dex file to disassemble with {@link #disassembleDexFiles}, along with where and how to disassemble it.
+     */
+    public static class DisassemblyJob {
+        @Nonnull public final DexFile dexFile;
+        @Nonnull public final OutputSink outputSink;
+        @Nonnull public final BaksmaliOptions options;
+        @Nullable public final List<String> classes;
+
+        /**
+         * @param classes If not null, only the classes in this list are disassembled
+         */
+        public DisassemblyJob(@Nonnull DexFile dexFile, @Nonnull OutputSink outputSink,
+                              @Nonnull BaksmaliOptions options, @Nullable List<String> classes) {
+            this.dexFile = dexFile;
+            this.outputSink = outputSink;
+            this.options = options;
+            this.classes = classes;
+        }
+    }
+
+    @Nonnull
+    private static List<ClassDef> getClassesToDisassemble(@Nonnull DexFile dexFile, @Nullable List<String> classes) {
         //sort the classes, so that if we're on a case-insensitive file system and need to handle classes with file
         //name collisions, then we'll use the same name for each class, if the dex file goes through multiple
         //baksmali/smali cycles for some reason. If a class with a colliding name is added or removed, the filenames
         //may still change of course
         List<? extends ClassDef> classDefs = Ordering.natural().sortedCopy(dexFile.getClasses());
 
-        final ClassFileNameHandler fileNameHandler = new ClassFileNameHandler(outputDir, ".smali");
-
-        ExecutorService executor = Executors.newFixedThreadPool(jobs);
-        List<Future<Boolean>> tasks = Lists.newArrayList();
-
         Set<String> classSet = null;
         if (classes != null) {
             classSet = new HashSet<String>(classes);
         }
 
-        for (final ClassDef classDef: classDefs) {
-            if (classSet != null && !classSet.contains(classDef.getType())) {
-                continue;
+        List<ClassDef> filteredClassDefs = Lists.newArrayList();
+        for (ClassDef classDef: classDefs) {
+            if (classSet == null || classSet.contains(classDef.getType())) {
+                filteredClassDefs.add(classDef);
             }
-            tasks.add(executor.submit(new Callable<Boolean>() {
-                @Override public Boolean call() throws Exception {
-                    return disassembleClass(classDef, fileNameHandler, options);
+        }
+        return filteredClassDefs;
+    }
+
+    /**
+     * Disassembles a dex file into a directory, optionally skipping any classes that haven't changed since a previous
+     * incremental disassembly into the same directory.
+     *
+     * In incremental mode, a manifest with a hash of each class is stored in the output directory. A class is only
+     * disassembled again if its hash or the relevant options changed since the previous run, and the output for any
+     * class that has been removed from the dex file is deleted. See {@link IncrementalDisassembler}.
+     *
+     * @return true if all classes were disassembled successfully
+     */
+    public static boolean disassembleDexFile(DexFile dexFile, File outputDir, int jobs, final BaksmaliOptions options,
+                                             @Nullable List<String> classes, boolean incremental) {
+        if (!incremental) {
+            return disassembleDexFile(dexFile, outputDir, jobs, options, classes);
+        }
+        return new IncrementalDisassembler(dexFile, outputDir, jobs, options).disassemble(classes);
+    }
+
+    /**
+     * Disassembles the given classes using a pool of worker threads.
+     *
+     * The largest classes are disassembled first, so that a few large classes don't hold up the end of the run. See
+     * {@link TaskScheduler}.
+     *
+     * @return null if all classes were disassembled successfully, or otherwise the set of classes that failed
+     */
+    @Nullable
+    static Set<String> disassembleClasses(List<? extends ClassDef> classDefs, final OutputSink outputSink, int jobs,
+                                          final BaksmaliOptions options) {
+        List<ClassTask> tasks = Lists.newArrayListWithCapacity(classDefs.size());
+        for (ClassDef classDef: classDefs) {
+            tasks.add(new ClassTask(classDef, outputSink, options));
+        }
+
+        List<ClassTask> failedTasks = disassembleClasses(tasks, jobs, options.printTaskStatistics);
+        if (failedTasks.isEmpty()) {
+            return null;
+        }
+        Set<String> failedClasses = new HashSet<String>();
+        for (ClassTask task: failedTasks) {
+            failedClasses.add(task.classDef.getType());
+        }
+        return failedClasses;
+    }
+
+    private static class ClassTask {
+        @Nonnull public final ClassDef classDef;
+        @Nonnull public final OutputSink outputSink;
+        @Nonnull public final BaksmaliOptions options;
+
+        public ClassTask(@Nonnull ClassDef classDef, @Nonnull OutputSink outputSink,
+                         @Nonnull BaksmaliOptions options) {
+            this.classDef = classDef;
+            this.outputSink = outputSink;
+            this.options = options;
+        }
+    }
+
+    /**
+     * @return The tasks whose class failed to disassemble
+     */
+    @Nonnull
+    private static List<ClassTask> disassembleClasses(@Nonnull List<ClassTask> tasks, int jobs,
+                                                      boolean printTaskStatistics) {
+        final List<ClassTask> failedTasks = Lists.newArrayList();
+
+        // the classes are no longer disassembled in order, so assign the file names up front, to keep the names
+        // consistent for classes whose names collide on a case-insensitive file system. This only assigns the names
+        // in memory. The files themselves are created by the worker threads.
+        List<ClassTask> scheduledTasks = Lists.newArrayListWithCapacity(tasks.size());
+        for (ClassTask task: tasks) {
+            String classDescriptor = task.classDef.getType();
+            if (task.outputSink instanceof DirectoryOutputSink && isValidClassDescriptor(classDescriptor)) {
+                try {
+                    ((DirectoryOutputSink)task.outputSink).getClassFile(classDescriptor);
+                } catch (Exception ex) {
+                    System.err.println("\n\nError occurred while creating file for class " + classDescriptor);
+                    ex.printStackTrace();
+                    failedTasks.add(task);
+                    continue;
                 }
-            }));
+            }
+            scheduledTasks.add(task);
         }
 
-        boolean errorOccurred = false;
-        try {
-            for (Future<Boolean> task: tasks) {
-                while(true) {
-                    try {
-                        if (!task.get()) {
-                            errorOccurred = true;
-                        }
-                    } catch (InterruptedException ex) {
-                        continue;
-                    } catch (ExecutionException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    break;
+        TaskScheduler.TaskStatistics statistics = new TaskScheduler<ClassTask, Boolean>(jobs) {
+            @Override protected long estimateCost(@Nonnull ClassTask task) {
+                return estimateClassCost(task.classDef);
+            }
+
+            @Override protected Boolean process(@Nonnull ClassTask task) {
+                return disassembleClass(task.classDef, task.outputSink, task.options);
+            }
+
+            @Override protected void handleResult(@Nonnull ClassTask task, Boolean result) {
+                if (!result) {
+                    failedTasks.add(task);
                 }
             }
-        } finally {
-            executor.shutdown();
+
+            @Nonnull @Override protected String getName(@Nonnull ClassTask task) {
+                return task.classDef.getType();
+            }
+        }.run(scheduledTasks);
+
+        if (printTaskStatistics) {
+            statistics.print(System.err);
+        }
+        return failedTasks;
+    }
+
+    /**
+     * Estimates the relative cost of disassembling the given class, based on the size of its code.
+     *
+     * Only the size from the code item header is used, so no instructions are read. Implementations that aren't dex
+     * backed are given a fixed cost.
+     */
+    static long estimateClassCost(@Nonnull ClassDef classDef) {
+        long cost = 1;
+        for (Method method: classDef.getMethods()) {
+            cost++;
+            MethodImplementation implementation = method.getImplementation();
+            if (implementation instanceof DexBackedMethodImplementation) {
+                cost += ((DexBackedMethodImplementation)implementation).getInstructionsSize();
+            } else if (implementation != null) {
+                cost += DEFAULT_IMPLEMENTATION_COST;
+            }
+        }
+        return cost;
+    }
+
+    private static boolean isValidClassDescriptor(@Nonnull String classDescriptor) {
+        return classDescriptor.charAt(0) == 'L' && classDescriptor.charAt(classDescriptor.length()-1) == ';';
+    }
+
+    /**
+     * Creates an OutputSink for the given output path. A path ending in .zip or .jar results in a zip file, a path
+     * ending in .tar results in a tar file, and anything else is treated as a directory.
+     */
+    public static OutputSink createOutputSink(File output) throws IOException {
+        String name = output.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip") || name.endsWith(".jar")) {
+            return new ZipOutputSink(output);
+        } else if (name.endsWith(".tar")) {
+            return new TarOutputSink(output);
+        }
+
+        if (!output.exists()) {
+            if (!output.mkdirs()) {
+                throw new IOException("Can't create the output directory " + output);
+            }
         }
-        return !errorOccurred;
+        return new DirectoryOutputSink(output);
     }
 
-    private static boolean disassembleClass(ClassDef classDef, ClassFileNameHandler fileNameHandler,
-                                            BaksmaliOptions options) {
+    private static boolean disassembleClass(ClassDef classDef, OutputSink outputSink, BaksmaliOptions options) {
         /**
          * The path for the disassembly file is based on the package name
          * The class descriptor will look something like:
@@ -112,70 +306,37 @@ public class Baksmali {
         String classDescriptor = classDef.getType();
 
         //validate that the descriptor is formatted like we expect
-        if (classDescriptor.charAt(0) != 'L' ||
-                classDescriptor.charAt(classDescriptor.length()-1) != ';') {
+        if (!isValidClassDescriptor(classDescriptor)) {
             System.err.println("Unrecognized class descriptor - " + classDescriptor + " - skipping class");
             return false;
         }
 
-        File smaliFile = null;
-        try {
-            smaliFile = fileNameHandler.getUniqueFilenameForClass(classDescriptor);
-        } catch (IOException ex) {
-            System.err.println("\n\nError occurred while creating file for class " + classDescriptor);
-            ex.printStackTrace();
-            return false;
-        }
-
         //create and initialize the top level string template
         ClassDefinition classDefinition = new ClassDefinition(options, classDef);
 
         //write the disassembly
-        BaksmaliWriter writer = null;
-        try
-        {
-            File smaliParent = smaliFile.getParentFile();
-            if (!smaliParent.exists()) {
-                if (!smaliParent.mkdirs()) {
-                    // check again, it's likely it was created in a different thread
-                    if (!smaliParent.exists()) {
-                        System.err.println("Unable to create directory " + smaliParent.toString() + " - skipping class");
-                        return false;
-                    }
-                }
-            }
-
-            if (!smaliFile.exists()){
-                if (!smaliFile.createNewFile()) {
-                    System.err.println("Unable to create file " + smaliFile.toString() + " - skipping class");
-                    return false;
-                }
-            }
-
-            BufferedWriter bufWriter = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(smaliFile), "UTF8"));
-
-            writer = new BaksmaliWriter(
-                    bufWriter,
+        ByteArrayOutputStream smaliBytes = new ByteArrayOutputStream();
+        try {
+            BaksmaliWriter writer = new BaksmaliWriter(
+                    new BufferedWriter(new OutputStreamWriter(smaliBytes, "UTF8")),
                     options.implicitReferences ? classDef.getType() : null);
-            classDefinition.writeTo(writer);
+            try {
+                classDefinition.writeTo(writer);
+            } finally {
+                writer.close();
+            }
         } catch (Exception ex) {
             System.err.println("\n\nError occurred while disassembling class " + classDescriptor.replace('/', '.') + " - skipping class");
             ex.printStackTrace();
-            // noinspection ResultOfMethodCallIgnored
-            smaliFile.delete();
             return false;
         }
-        finally
-        {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (Throwable ex) {
-                    System.err.println("\n\nError occurred while closing file " + smaliFile.toString());
-                    ex.printStackTrace();
-                }
-            }
+
+        try {
+            outputSink.writeClass(classDescriptor, smaliBytes.toByteArray());
+        } catch (IOException ex) {
+            System.err.println("\n\nError occurred while writing class " + classDescriptor.replace('/', '.'));
+            ex.printStackTrace();
+            return false;
         }
         return true;
     }
@@ -77,6 +77,11 @@ public class BaksmaliOptions {
     public ClassPath classPath = null;
     public SyntheticAccessorResolver syntheticAccessorResolver = null;
 
+    /**
+     * If true, the per-class latency statistics are printed to stderr after disassembling
+     */
+    public boolean printTaskStatistics = false;
+
     /**
      * Load the resource ids from a set of public.xml files.
      *
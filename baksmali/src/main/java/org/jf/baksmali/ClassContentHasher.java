@@ -0,0 +1,340 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Sets;
+import org.jf.dexlib2.HiddenApiRestriction;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.formatter.DexFormatter;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.debug.*;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.util.SyntheticAccessorResolver;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Calculates a hash of everything in a class that can affect its disassembly.
+ *
+ * The raw bytes of a class in a dex file can't be hashed directly, because they contain indexes into the string,
+ * type, field and method pools, and those indexes shift whenever anything is added to or removed from the pools.
+ * Instead, this hashes the class contents with all references resolved.
+ *
+ * A ClassContentHasher is not thread safe.
+ */
+public class ClassContentHasher {
+    @Nonnull private final MessageDigest digest;
+    @Nonnull private final byte[] buffer = new byte[8];
+    @Nonnull private final Set<String> accessorClasses = Sets.newHashSet();
+
+    public ClassContentHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Hashes the given class.
+     *
+     * This also collects the other classes that contain possible synthetic accessor methods that are called by this
+     * class. See {@link #getAccessorClasses()}.
+     *
+     * @return The hash of the class
+     */
+    @Nonnull
+    public byte[] hashClass(@Nonnull ClassDef classDef) {
+        digest.reset();
+        accessorClasses.clear();
+
+        putString(classDef.getType());
+        putInt(classDef.getAccessFlags());
+        putString(classDef.getSuperclass());
+        putInt(classDef.getInterfaces().size());
+        for (String iface: classDef.getInterfaces()) {
+            putString(iface);
+        }
+        putString(classDef.getSourceFile());
+        putAnnotations(classDef.getAnnotations());
+
+        putFields(classDef.getStaticFields());
+        putFields(classDef.getInstanceFields());
+        putMethods(classDef.getDirectMethods());
+        putMethods(classDef.getVirtualMethods());
+
+        accessorClasses.remove(classDef.getType());
+        return digest.digest();
+    }
+
+    /**
+     * @return The other classes that define a possible synthetic accessor method called by the most recently hashed
+     * class. The disassembly of a call to a synthetic accessor includes a comment that depends on the accessor's
+     * implementation.
+     */
+    @Nonnull
+    public Set<String> getAccessorClasses() {
+        return accessorClasses;
+    }
+
+    private void putFields(@Nonnull Iterable<? extends Field> fields) {
+        for (Field field: fields) {
+            putInt(1);
+            putString(field.getName());
+            putString(field.getType());
+            putInt(field.getAccessFlags());
+            putEncodedValue(field.getInitialValue());
+            putAnnotations(field.getAnnotations());
+            putHiddenApiRestrictions(field.getHiddenApiRestrictions());
+        }
+        putInt(0);
+    }
+
+    private void putMethods(@Nonnull Iterable<? extends Method> methods) {
+        for (Method method: methods) {
+            putInt(1);
+            putString(method.getName());
+            putString(method.getReturnType());
+            putInt(method.getAccessFlags());
+            for (MethodParameter parameter: method.getParameters()) {
+                putInt(1);
+                putString(parameter.getType());
+                putString(parameter.getName());
+                putAnnotations(parameter.getAnnotations());
+            }
+            putInt(0);
+            putAnnotations(method.getAnnotations());
+            putHiddenApiRestrictions(method.getHiddenApiRestrictions());
+            putImplementation(method.getImplementation());
+        }
+        putInt(0);
+    }
+
+    private void putImplementation(@Nullable MethodImplementation implementation) {
+        if (implementation == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(implementation.getRegisterCount());
+
+        for (Instruction instruction: implementation.getInstructions()) {
+            putInt(1);
+            putInstruction(instruction);
+        }
+        putInt(0);
+
+        for (TryBlock<? extends ExceptionHandler> tryBlock: implementation.getTryBlocks()) {
+            putInt(1);
+            putInt(tryBlock.getStartCodeAddress());
+            putInt(tryBlock.getCodeUnitCount());
+            for (ExceptionHandler handler: tryBlock.getExceptionHandlers()) {
+                putInt(1);
+                putString(handler.getExceptionType());
+                putInt(handler.getHandlerCodeAddress());
+            }
+            putInt(0);
+        }
+        putInt(0);
+
+        for (DebugItem debugItem: implementation.getDebugItems()) {
+            putInt(debugItem.getDebugItemType());
+            putInt(debugItem.getCodeAddress());
+            if (debugItem instanceof LineNumber) {
+                putInt(((LineNumber)debugItem).getLineNumber());
+            } else if (debugItem instanceof SetSourceFile) {
+                putString(((SetSourceFile)debugItem).getSourceFile());
+            } else if (debugItem instanceof StartLocal) {
+                putInt(((StartLocal)debugItem).getRegister());
+            } else if (debugItem instanceof EndLocal) {
+                putInt(((EndLocal)debugItem).getRegister());
+            } else if (debugItem instanceof RestartLocal) {
+                putInt(((RestartLocal)debugItem).getRegister());
+            }
+            if (debugItem instanceof LocalInfo) {
+                LocalInfo localInfo = (LocalInfo)debugItem;
+                putString(localInfo.getName());
+                putString(localInfo.getType());
+                putString(localInfo.getSignature());
+            }
+        }
+        putInt(-1);
+    }
+
+    private void putInstruction(@Nonnull Instruction instruction) {
+        Opcode opcode = instruction.getOpcode();
+        putString(opcode.name);
+        putInt(instruction.getCodeUnits());
+
+        if (instruction instanceof OneRegisterInstruction) {
+            putInt(((OneRegisterInstruction)instruction).getRegisterA());
+        }
+        if (instruction instanceof TwoRegisterInstruction) {
+            putInt(((TwoRegisterInstruction)instruction).getRegisterB());
+        }
+        if (instruction instanceof ThreeRegisterInstruction) {
+            putInt(((ThreeRegisterInstruction)instruction).getRegisterC());
+        }
+        if (instruction instanceof FiveRegisterInstruction) {
+            FiveRegisterInstruction fiveRegisterInstruction = (FiveRegisterInstruction)instruction;
+            putInt(fiveRegisterInstruction.getRegisterCount());
+            putInt(fiveRegisterInstruction.getRegisterC());
+            putInt(fiveRegisterInstruction.getRegisterD());
+            putInt(fiveRegisterInstruction.getRegisterE());
+            putInt(fiveRegisterInstruction.getRegisterF());
+            putInt(fiveRegisterInstruction.getRegisterG());
+        }
+        if (instruction instanceof RegisterRangeInstruction) {
+            RegisterRangeInstruction rangeInstruction = (RegisterRangeInstruction)instruction;
+            putInt(rangeInstruction.getRegisterCount());
+            putInt(rangeInstruction.getStartRegister());
+        }
+        if (instruction instanceof WideLiteralInstruction) {
+            putLong(((WideLiteralInstruction)instruction).getWideLiteral());
+        }
+        if (instruction instanceof OffsetInstruction) {
+            putInt(((OffsetInstruction)instruction).getCodeOffset());
+        }
+        if (instruction instanceof ReferenceInstruction) {
+            ReferenceInstruction referenceInstruction = (ReferenceInstruction)instruction;
+            putReference(referenceInstruction.getReferenceType(), referenceInstruction.getReference());
+
+            if ((opcode == Opcode.INVOKE_STATIC || opcode == Opcode.INVOKE_STATIC_RANGE) &&
+                    referenceInstruction.getReference() instanceof MethodReference) {
+                MethodReference methodReference = (MethodReference)referenceInstruction.getReference();
+                if (SyntheticAccessorResolver.looksLikeSyntheticAccessor(methodReference.getName())) {
+                    accessorClasses.add(methodReference.getDefiningClass());
+                }
+            }
+        }
+        if (instruction instanceof DualReferenceInstruction) {
+            DualReferenceInstruction dualReferenceInstruction = (DualReferenceInstruction)instruction;
+            putReference(dualReferenceInstruction.getReferenceType2(), dualReferenceInstruction.getReference2());
+        }
+        if (instruction instanceof VerificationErrorInstruction) {
+            putInt(((VerificationErrorInstruction)instruction).getVerificationError());
+        }
+        if (instruction instanceof FieldOffsetInstruction) {
+            putInt(((FieldOffsetInstruction)instruction).getFieldOffset());
+        }
+        if (instruction instanceof InlineIndexInstruction) {
+            putInt(((InlineIndexInstruction)instruction).getInlineIndex());
+        }
+        if (instruction instanceof VtableIndexInstruction) {
+            putInt(((VtableIndexInstruction)instruction).getVtableIndex());
+        }
+        if (instruction instanceof SwitchPayload) {
+            for (SwitchElement switchElement: ((SwitchPayload)instruction).getSwitchElements()) {
+                putInt(1);
+                putInt(switchElement.getKey());
+                putInt(switchElement.getOffset());
+            }
+            putInt(0);
+        }
+        if (instruction instanceof ArrayPayload) {
+            ArrayPayload arrayPayload = (ArrayPayload)instruction;
+            putInt(arrayPayload.getElementWidth());
+            putInt(arrayPayload.getArrayElements().size());
+            for (Number element: arrayPayload.getArrayElements()) {
+                putLong(element.longValue());
+            }
+        }
+    }
+
+    private void putReference(int referenceType, @Nonnull Reference reference) {
+        putInt(referenceType);
+        putString(DexFormatter.INSTANCE.getReference(reference));
+    }
+
+    private void putAnnotations(@Nonnull Collection<? extends Annotation> annotations) {
+        putInt(annotations.size());
+        for (Annotation annotation: annotations) {
+            putInt(annotation.getVisibility());
+            putString(annotation.getType());
+            putInt(annotation.getElements().size());
+            for (AnnotationElement element: annotation.getElements()) {
+                putString(element.getName());
+                putEncodedValue(element.getValue());
+            }
+        }
+    }
+
+    private void putHiddenApiRestrictions(@Nonnull Set<HiddenApiRestriction> restrictions) {
+        putInt(restrictions.size());
+        for (HiddenApiRestriction restriction: restrictions) {
+            putInt(restriction.ordinal());
+        }
+    }
+
+    private void putEncodedValue(@Nullable EncodedValue encodedValue) {
+        if (encodedValue == null) {
+            putString(null);
+        } else {
+            putString(DexFormatter.INSTANCE.getEncodedValue(encodedValue));
+        }
+    }
+
+    private void putString(@Nullable CharSequence string) {
+        if (string == null) {
+            putInt(-1);
+            return;
+        }
+        int length = string.length();
+        putInt(length);
+        for (int i=0; i<length; i++) {
+            char c = string.charAt(i);
+            digest.update((byte)(c >> 8));
+            digest.update((byte)c);
+        }
+    }
+
+    private void putInt(int value) {
+        buffer[0] = (byte)(value >> 24);
+        buffer[1] = (byte)(value >> 16);
+        buffer[2] = (byte)(value >> 8);
+        buffer[3] = (byte)value;
+        digest.update(buffer, 0, 4);
+    }
+
+    private void putLong(long value) {
+        putInt((int)(value >> 32));
+        putInt((int)value);
+    }
+}
@@ -38,11 +38,13 @@ import com.google.common.collect.Lists;
 import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.util.StringCache;
 import org.jf.dexlib2.iface.MultiDexContainer;
 import org.jf.util.jcommander.Command;
 import org.jf.util.jcommander.ExtendedParameter;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -58,6 +60,11 @@ public abstract class DexInputCommand extends Command {
     @ExtendedParameter(argumentNames = "api")
     public int apiLevel = -1;
 
+    @Parameter(names = {"--mmap"},
+            description = "Memory map the input file instead of reading it into memory. This applies to dex and oat " +
+                    "files, and to dex entries that are stored uncompressed in an apk.")
+    public boolean mapInputFile = false;
+
     @Parameter(description = "A dex/apk/oat/odex file. For apk or oat files that contain multiple dex " +
             "files, you can specify the specific entry to use as if the apk/oat file was a directory. " +
             "e.g. \"app.apk/classes2.dex\". For more information, see \"baksmali help input\".")
@@ -109,17 +116,7 @@ public abstract class DexInputCommand extends Command {
      * @param input The name of a dex, apk, odex or oat file/entry.
      */
     protected void loadDexFile(@Nonnull String input) {
-        File file = new File(input);
-
-        while (file != null && !file.exists()) {
-            file = file.getParentFile();
-        }
-
-        if (file == null || !file.exists() || file.isDirectory()) {
-            System.err.println("Can't find file: " + input);
-            System.exit(1);
-        }
-
+        File file = findInputFile(input);
         inputFile = file;
 
         String dexEntryName = null;
@@ -127,10 +124,7 @@ public abstract class DexInputCommand extends Command {
             dexEntryName = input.substring(file.getPath().length() + 1);
         }
 
-        Opcodes opcodes = null;
-        if (apiLevel != -1) {
-            opcodes = Opcodes.forApi(apiLevel);
-        }
+        Opcodes opcodes = getOpcodes();
 
         if (!Strings.isNullOrEmpty(dexEntryName)) {
             boolean exactMatch = false;
@@ -142,27 +136,24 @@ public abstract class DexInputCommand extends Command {
             inputEntry = dexEntryName;
 
             try {
-                dexEntry = DexFileFactory.loadDexEntry(file, dexEntryName, exactMatch, opcodes);
-                dexFile = dexEntry.getDexFile();
+                dexEntry = DexFileFactory.loadDexEntry(file, dexEntryName, exactMatch, opcodes, mapInputFile);
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
         } else {
             try {
                 MultiDexContainer<? extends DexBackedDexFile> container =
-                        DexFileFactory.loadDexContainer(file, opcodes);
+                        DexFileFactory.loadDexContainer(file, opcodes, mapInputFile);
 
                 if (container.getDexEntryNames().size() == 1) {
                     dexEntry = container.getEntry(container.getDexEntryNames().get(0));
                     assert dexEntry != null;
-                    dexFile = dexEntry.getDexFile();
                 } else if (container.getDexEntryNames().size() > 1) {
                     dexEntry = container.getEntry("classes.dex");
                     if (dexEntry == null) {
                         dexEntry = container.getEntry(container.getDexEntryNames().get(0));
                     }
                     assert dexEntry != null;
-                    dexFile = dexEntry.getDexFile();
                 } else {
                     throw new RuntimeException(String.format("\"%s\" has no dex files", input));
                 }
@@ -170,5 +161,78 @@ public abstract class DexInputCommand extends Command {
                 throw new RuntimeException(ex);
             }
         }
+
+        setDexEntry(dexEntry);
+    }
+
+    /**
+     * Loads all of the dex files in a dex/apk/oat/odex file, using the given number of threads to load them.
+     *
+     * Unlike loadDexFile, the input can't refer to a specific entry within the file. This sets inputFile, but not
+     * dexEntry or dexFile. Use setDexEntry to select one of the returned entries.
+     *
+     * @param input The name of a dex, apk, odex or oat file
+     * @param jobs The number of threads to use
+     * @return All of the dex entries in the file, in the order they appear in the file
+     */
+    @Nonnull
+    protected List<? extends MultiDexContainer.DexEntry<? extends DexBackedDexFile>> loadAllDexEntries(
+            @Nonnull String input, int jobs) {
+        File file = findInputFile(input);
+        if (!file.getPath().equals(new File(input).getPath())) {
+            System.err.println("Can't find file: " + input);
+            System.exit(1);
+        }
+        inputFile = file;
+
+        List<? extends MultiDexContainer.DexEntry<? extends DexBackedDexFile>> entries;
+        try {
+            entries = DexFileFactory.loadAllDexEntries(
+                    DexFileFactory.loadDexContainer(file, getOpcodes(), mapInputFile), jobs);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (entries.isEmpty()) {
+            throw new RuntimeException(String.format("\"%s\" has no dex files", input));
+        }
+        return entries;
+    }
+
+    /**
+     * Sets dexEntry and dexFile to the given entry, and its dex file.
+     */
+    protected void setDexEntry(@Nonnull MultiDexContainer.DexEntry<? extends DexBackedDexFile> dexEntry) {
+        this.dexEntry = dexEntry;
+        this.dexFile = dexEntry.getDexFile();
+
+        // The same strings and types tend to be looked up many times while processing a dex file
+        dexFile.setStringCache(StringCache.create(dexFile.getStringSection().size()));
+    }
+
+    /**
+     * Finds the file that the given input refers to. This is either the input itself, or the closest parent path that
+     * exists, if the input refers to an entry within a container file.
+     */
+    @Nonnull
+    private static File findInputFile(@Nonnull String input) {
+        File file = new File(input);
+
+        while (file != null && !file.exists()) {
+            file = file.getParentFile();
+        }
+
+        if (file == null || !file.exists() || file.isDirectory()) {
+            System.err.println("Can't find file: " + input);
+            System.exit(1);
+        }
+        return file;
+    }
+
+    @Nullable
+    private Opcodes getOpcodes() {
+        if (apiLevel != -1) {
+            return Opcodes.forApi(apiLevel);
+        }
+        return null;
     }
 }
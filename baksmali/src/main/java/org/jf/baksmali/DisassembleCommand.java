@@ -36,8 +36,16 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.validators.PositiveInteger;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.jf.baksmali.output.ArchiveOutputSink;
+import org.jf.baksmali.output.DirectoryOutputSink;
+import org.jf.baksmali.output.OutputSink;
+import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.MultiDexContainer;
 import org.jf.dexlib2.util.SyntheticAccessorResolver;
 import org.jf.util.ConsoleUtil;
 import org.jf.util.StringWrapper;
@@ -46,10 +54,13 @@ import org.jf.util.jcommander.ExtendedParameters;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 @Parameters(commandDescription = "Disassembles a dex file.")
 @ExtendedParameters(
@@ -106,7 +117,9 @@ public class DisassembleCommand extends DexInputCommand {
     private boolean normalizeVirtualMethods = false;
 
     @Parameter(names = {"-o", "--output"},
-            description = "The directory to write the disassembled files to.")
+            description = "The directory to write the disassembled files to. If the path ends with .zip or .jar, " +
+                    "the disassembled files are written into a single zip file instead. If it ends with .tar, they " +
+                    "are written into a single tar file.")
     @ExtendedParameter(argumentNames = "dir")
     private String outputDir = "out";
 
@@ -137,11 +150,36 @@ public class DisassembleCommand extends DexInputCommand {
             description = "Allows odex opcodes to be disassembled, even if the result won't be able to be reassembled.")
     private boolean allowOdex = false;
 
+    @Parameter(names = "--incremental",
+            description = "Only disassemble the classes that have changed since the last incremental disassembly " +
+                    "into the same output directory, and delete the output for any classes that were removed. This " +
+                    "has no effect when register info or deodexing is used. Only supported when the output is a " +
+                    "directory.")
+    private boolean incremental = false;
+
+    @Parameter(names = "--task-stats",
+            description = "Print statistics about how long each class took to disassemble, including the slowest " +
+                    "classes.")
+    private boolean printTaskStatistics = false;
+
+    @Parameter(names = {"--all-entries", "--all"},
+            description = "Disassemble every dex file in an apk or oat file, rather than just one. The dex files are " +
+                    "loaded and disassembled concurrently, and each one is written to a separate subdirectory of " +
+                    "the output, based on its entry name. e.g. classes2.dex is written to out/classes2. This " +
+                    "can't be used with --incremental.")
+    private boolean allEntries = false;
+
     @Parameter(names = "--classes",
             description = "A comma separated list of classes. Only disassemble these classes")
     @ExtendedParameter(argumentNames = "classes")
     private List<String> classes = null;
 
+    /**
+     * When disassembling all the entries of a container, this is the bootclasspath that is shared by the ClassPath
+     * of each entry.
+     */
+    @Nullable private ClassPath sharedClassPath = null;
+
     public DisassembleCommand(@Nonnull List<JCommander> commandAncestors) {
         super(commandAncestors);
     }
@@ -159,6 +197,10 @@ public class DisassembleCommand extends DexInputCommand {
         }
 
         String input = inputList.get(0);
+        if (allEntries) {
+            disassembleAllEntries(input);
+            return;
+        }
         loadDexFile(input);
 
         if (showDeodexWarning() && dexFile.supportsOptimizedOpcodes()) {
@@ -168,21 +210,162 @@ public class DisassembleCommand extends DexInputCommand {
                     ConsoleUtil.getConsoleWidth());
         }
 
-        File outputDirectoryFile = new File(outputDir);
-        if (!outputDirectoryFile.exists()) {
-            if (!outputDirectoryFile.mkdirs()) {
-                System.err.println("Can't create the output directory " + outputDir);
-                System.exit(-1);
-            }
+        OutputSink outputSink;
+        try {
+            outputSink = Baksmali.createOutputSink(new File(outputDir));
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(-1);
+            return;
+        }
+
+        if (incremental && !(outputSink instanceof DirectoryOutputSink)) {
+            System.err.println("--incremental is only supported when the output is a directory");
+            System.exit(-1);
+            return;
         }
 
         if (analysisArguments.classPathDirectories == null || analysisArguments.classPathDirectories.isEmpty()) {
             analysisArguments.classPathDirectories = Lists.newArrayList(inputFile.getAbsoluteFile().getParent());
         }
 
-        if (!Baksmali.disassembleDexFile(dexFile, outputDirectoryFile, jobs, getOptions(), classes)) {
+        BaksmaliOptions options = getOptions();
+        boolean success;
+        if (incremental) {
+            success = new IncrementalDisassembler(dexFile, (DirectoryOutputSink)outputSink, jobs, options)
+                    .disassemble(classes);
+        } else {
+            success = Baksmali.disassembleDexFile(dexFile, outputSink, jobs, options, classes);
+        }
+        try {
+            outputSink.close();
+        } catch (IOException ex) {
+            System.err.println("Error occurred while closing the output " + outputDir);
+            ex.printStackTrace(System.err);
+            success = false;
+        }
+        if (!success) {
             System.exit(-1);
         }
+
+        if (options.classPath != null) {
+            analysisArguments.saveLayoutCache(options.classPath);
+        }
+    }
+
+    private void disassembleAllEntries(@Nonnull String input) {
+        if (incremental) {
+            System.err.println("--incremental can't be used with --all-entries");
+            System.exit(-1);
+            return;
+        }
+
+        List<? extends MultiDexContainer.DexEntry<? extends DexBackedDexFile>> entries =
+                loadAllDexEntries(input, jobs);
+
+        OutputSink outputSink;
+        try {
+            outputSink = Baksmali.createOutputSink(new File(outputDir));
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(-1);
+            return;
+        }
+
+        if (analysisArguments.classPathDirectories == null || analysisArguments.classPathDirectories.isEmpty()) {
+            analysisArguments.classPathDirectories = Lists.newArrayList(inputFile.getAbsoluteFile().getParent());
+        }
+
+        if (needsClassPath() && !entries.isEmpty()) {
+            // load the bootclasspath once, rather than once per entry. Each entry gets its own layer on top of it
+            setDexEntry(entries.get(0));
+            try {
+                sharedClassPath = analysisArguments.loadSharedClassPathForDexFile(
+                        inputFile.getAbsoluteFile().getParentFile(), dexEntry, shouldCheckPackagePrivateAccess());
+            } catch (Exception ex) {
+                System.err.println("\n\nError occurred while loading class path files. Aborting.");
+                ex.printStackTrace(System.err);
+                System.exit(-1);
+                return;
+            }
+        }
+
+        List<Baksmali.DisassemblyJob> disassemblyJobs = Lists.newArrayList();
+        Set<String> entryDirectories = Sets.newHashSet();
+        boolean warned = false;
+        for (MultiDexContainer.DexEntry<? extends DexBackedDexFile> entry: entries) {
+            setDexEntry(entry);
+
+            if (!warned && showDeodexWarning() && dexFile.supportsOptimizedOpcodes()) {
+                StringWrapper.printWrappedString(System.err,
+                        "Warning: You are disassembling an odex/oat file without deodexing it. You won't be able " +
+                                "to re-assemble the results unless you deodex it. See \"baksmali help deodex\"",
+                        ConsoleUtil.getConsoleWidth());
+                warned = true;
+            }
+
+            String directory = getEntryDirectory(entry.getEntryName(), entryDirectories);
+            OutputSink entrySink;
+            if (outputSink instanceof ArchiveOutputSink) {
+                entrySink = ((ArchiveOutputSink)outputSink).getDirectorySink(directory);
+            } else {
+                entrySink = new DirectoryOutputSink(new File(outputDir, directory));
+            }
+
+            disassemblyJobs.add(new Baksmali.DisassemblyJob(dexFile, entrySink, getOptions(), classes));
+        }
+
+        boolean success = Baksmali.disassembleDexFiles(disassemblyJobs, jobs);
+        try {
+            outputSink.close();
+        } catch (IOException ex) {
+            System.err.println("Error occurred while closing the output " + outputDir);
+            ex.printStackTrace(System.err);
+            success = false;
+        }
+        if (!success) {
+            System.exit(-1);
+        }
+
+        // the bootclasspath classes used by every entry are all loaded through the shared class path
+        if (sharedClassPath != null) {
+            analysisArguments.saveLayoutCache(sharedClassPath);
+        }
+    }
+
+    /**
+     * Gets the output subdirectory for the dex entry with the given name.
+     *
+     * e.g. "classes2.dex" is written to "classes2", and "/system/framework/framework.jar:classes2.dex" in an oat file
+     * is written to "system/framework/framework.jar/classes2".
+     *
+     * @param usedDirectories The directories that have already been used for other entries. The returned directory is
+     *                        added to this set.
+     */
+    @Nonnull
+    static String getEntryDirectory(@Nonnull String entryName, @Nonnull Set<String> usedDirectories) {
+        if (entryName.toLowerCase(Locale.ROOT).endsWith(".dex")) {
+            entryName = entryName.substring(0, entryName.length() - 4);
+        }
+
+        List<String> components = Lists.newArrayList();
+        for (String component: entryName.split("[/\\\\:]")) {
+            // don't let an entry name escape the output directory
+            if (component.isEmpty() || component.equals(".") || component.equals("..")) {
+                continue;
+            }
+            components.add(component.replaceAll("[<>\"|?*]", "_"));
+        }
+        if (components.isEmpty()) {
+            components.add("classes");
+        }
+
+        String directory = Joiner.on('/').join(components);
+        String uniqueDirectory = directory;
+        for (int i=2; !usedDirectories.add(uniqueDirectory); i++) {
+            uniqueDirectory = directory + "_" + i;
+        }
+        return uniqueDirectory;
     }
 
     protected boolean needsClassPath() {
@@ -206,8 +389,12 @@ public class DisassembleCommand extends DexInputCommand {
 
         if (needsClassPath()) {
             try {
-                options.classPath = analysisArguments.loadClassPathForDexFile(
-                        inputFile.getAbsoluteFile().getParentFile(), dexEntry, shouldCheckPackagePrivateAccess());
+                if (sharedClassPath != null) {
+                    options.classPath = analysisArguments.layerClassPathForDexEntry(sharedClassPath, dexEntry);
+                } else {
+                    options.classPath = analysisArguments.loadClassPathForDexFile(
+                            inputFile.getAbsoluteFile().getParentFile(), dexEntry, shouldCheckPackagePrivateAccess());
+                }
             } catch (Exception ex) {
                 System.err.println("\n\nError occurred while loading class path files. Aborting.");
                 ex.printStackTrace(System.err);
@@ -254,6 +441,7 @@ public class DisassembleCommand extends DexInputCommand {
         options.accessorComments = accessorComments;
         options.implicitReferences = implicitReferences;
         options.normalizeVirtualMethods = normalizeVirtualMethods;
+        options.printTaskStatistics = printTaskStatistics;
 
         options.registerInfo = 0;
 
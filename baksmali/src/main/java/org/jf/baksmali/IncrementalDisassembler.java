@@ -0,0 +1,490 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import org.jf.baksmali.output.DirectoryOutputSink;
+import org.jf.baksmali.output.OutputSink;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.util.TaskScheduler;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Disassembles a dex file into a directory, only regenerating the classes that changed since the previous run.
+ *
+ * A manifest is kept in the output directory, containing a hash of the options that affect the output, and a hash
+ * and output path for each class. On the next run, a class is skipped if its hash and output path are unchanged and
+ * its output file still exists. The hashes are calculated by {@link ClassContentHasher}.
+ *
+ * When a ClassPath is used (for register info or deodexing), the output of a class depends on other classes in ways
+ * that aren't tracked, so every class is regenerated.
+ */
+public class IncrementalDisassembler {
+    public static final String MANIFEST_NAME = ".baksmali-manifest";
+    private static final String MANIFEST_HEADER = "baksmali-manifest 1";
+
+    @Nonnull private final DexFile dexFile;
+    @Nonnull private final DirectoryOutputSink directorySink;
+    @Nonnull private final File outputDir;
+    private final int jobs;
+    @Nonnull private final BaksmaliOptions options;
+
+    private int skippedClassCount = 0;
+    private int disassembledClassCount = 0;
+    private int deletedClassCount = 0;
+
+    public IncrementalDisassembler(@Nonnull DexFile dexFile, @Nonnull File outputDir, int jobs,
+                                   @Nonnull BaksmaliOptions options) {
+        this(dexFile, new DirectoryOutputSink(outputDir), jobs, options);
+    }
+
+    public IncrementalDisassembler(@Nonnull DexFile dexFile, @Nonnull DirectoryOutputSink directorySink, int jobs,
+                                   @Nonnull BaksmaliOptions options) {
+        this.dexFile = dexFile;
+        this.directorySink = directorySink;
+        this.outputDir = directorySink.getOutputDir();
+        this.jobs = jobs;
+        this.options = options;
+    }
+
+    /**
+     * @param classes If not null, only these classes are disassembled
+     * @return true if all classes were disassembled successfully
+     */
+    public boolean disassemble(@Nullable List<String> classes) {
+        List<? extends ClassDef> classDefs = Ordering.natural().sortedCopy(dexFile.getClasses());
+        Map<String, ClassDef> dexClasses = Maps.newHashMap();
+        for (ClassDef classDef: classDefs) {
+            dexClasses.put(classDef.getType(), classDef);
+        }
+        Set<String> dexTypes = dexClasses.keySet();
+
+        File manifestFile = new File(outputDir, MANIFEST_NAME);
+        Manifest oldManifest = Manifest.load(manifestFile);
+        String optionsHash = getOptionsHash(options);
+        boolean optionsChanged = !optionsHash.equals(oldManifest.optionsHash);
+        boolean canSkip = !optionsChanged && options.classPath == null;
+
+        Manifest newManifest = new Manifest(optionsHash);
+        if (!optionsChanged) {
+            // keep the entries for any classes that weren't requested this time, as long as they're still present
+            for (Map.Entry<String, ManifestEntry> entry: oldManifest.entries.entrySet()) {
+                if (dexTypes.contains(entry.getKey())) {
+                    newManifest.entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        Set<String> classSet = null;
+        List<ClassDef> selectedClasses = Lists.newArrayList(classDefs);
+        if (classes != null) {
+            classSet = new HashSet<String>(classes);
+            selectedClasses.clear();
+            for (ClassDef classDef: classDefs) {
+                if (classSet.contains(classDef.getType())) {
+                    selectedClasses.add(classDef);
+                }
+            }
+        }
+        // only the classes that might be disassembled need to be hashed
+        Map<String, String> classHashes = hashClasses(selectedClasses, dexClasses);
+
+        Set<String> assignedPaths = Sets.newHashSet();
+        final Map<String, String> classPaths = Maps.newHashMap();
+        List<ClassDef> classesToDisassemble = Lists.newArrayList();
+        boolean errorOccurred = false;
+
+        // assign file names for all classes up front and in a fixed order, so that each class gets a consistent name
+        // regardless of which classes are skipped
+        for (ClassDef classDef: classDefs) {
+            String type = classDef.getType();
+            if (classSet != null && !classSet.contains(type)) {
+                continue;
+            }
+            String path;
+            try {
+                path = getRelativePath(directorySink.getClassFile(type));
+            } catch (Exception ex) {
+                System.err.println("\n\nError occurred while creating file for class " + type);
+                ex.printStackTrace();
+                newManifest.entries.remove(type);
+                errorOccurred = true;
+                continue;
+            }
+            assignedPaths.add(path);
+            classPaths.put(type, path);
+
+            String hash = classHashes.get(type);
+            ManifestEntry oldEntry = oldManifest.entries.get(type);
+            if (canSkip && hash != null && oldEntry != null && oldEntry.hash.equals(hash) &&
+                    oldEntry.path.equals(path) && new File(outputDir, path).length() > 0) {
+                skippedClassCount++;
+            } else {
+                newManifest.entries.remove(type);
+                classesToDisassemble.add(classDef);
+            }
+        }
+
+        // delete the output for any class that was removed, or that was moved to a different file
+        for (Map.Entry<String, ManifestEntry> entry: oldManifest.entries.entrySet()) {
+            String path = entry.getValue().path;
+            if (!assignedPaths.contains(path) && (!dexTypes.contains(entry.getKey()) ||
+                    classPaths.containsKey(entry.getKey()))) {
+                File file = new File(outputDir, path);
+                if (file.exists() && file.delete()) {
+                    deletedClassCount++;
+                }
+            }
+        }
+
+        final Manifest manifest = newManifest;
+        final Map<String, String> hashes = classHashes;
+        Set<String> failedClasses = Baksmali.disassembleClasses(classesToDisassemble, new OutputSink() {
+            @Override public void writeClass(@Nonnull String classType, @Nonnull byte[] contents)
+                    throws IOException {
+                directorySink.writeClass(classType, contents);
+                String hash = hashes.get(classType);
+                if (hash != null) {
+                    synchronized (manifest) {
+                        manifest.entries.put(classType, new ManifestEntry(hash, classPaths.get(classType)));
+                    }
+                }
+            }
+
+            @Override public void close() {
+            }
+        }, jobs, options);
+
+        if (failedClasses != null) {
+            errorOccurred = true;
+            for (String failedClass: failedClasses) {
+                manifest.entries.remove(failedClass);
+                // the file was already created when its name was assigned
+                // noinspection ResultOfMethodCallIgnored
+                new File(outputDir, classPaths.get(failedClass)).delete();
+            }
+        }
+        disassembledClassCount = classesToDisassemble.size() - (failedClasses == null ? 0 : failedClasses.size());
+
+        try {
+            manifest.save(manifestFile);
+        } catch (IOException ex) {
+            System.err.println("\n\nError occurred while writing " + manifestFile);
+            ex.printStackTrace();
+            errorOccurred = true;
+        }
+        return !errorOccurred;
+    }
+
+    /**
+     * @return The number of classes that were skipped during the last call to disassemble, because they hadn't changed
+     */
+    public int getSkippedClassCount() {
+        return skippedClassCount;
+    }
+
+    /**
+     * @return The number of classes that were successfully disassembled during the last call to disassemble
+     */
+    public int getDisassembledClassCount() {
+        return disassembledClassCount;
+    }
+
+    /**
+     * @return The number of output files that were deleted during the last call to disassemble, for classes that
+     * were removed
+     */
+    public int getDeletedClassCount() {
+        return deletedClassCount;
+    }
+
+    @Nonnull
+    private String getRelativePath(@Nonnull File file) throws IOException {
+        String basePath = outputDir.getCanonicalPath() + File.separatorChar;
+        String path = file.getCanonicalPath();
+        if (!path.startsWith(basePath)) {
+            throw new IOException(String.format("%s is not in %s", file, outputDir));
+        }
+        return path.substring(basePath.length()).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Hashes the given classes, in parallel.
+     *
+     * If accessor comments are enabled, a class's hash also covers the classes containing the synthetic accessors
+     * that it calls, so those classes are hashed as well, even if they weren't given.
+     *
+     * @param classDefs The classes to hash
+     * @param dexClasses All the classes in the dex file, by type
+     * @return A map of class type to hex encoded hash, for the given classes. A class whose hash couldn't be
+     * calculated is not included.
+     */
+    @Nonnull
+    private Map<String, String> hashClasses(@Nonnull List<? extends ClassDef> classDefs,
+                                            @Nonnull Map<String, ClassDef> dexClasses) {
+        final ThreadLocal<ClassContentHasher> hashers = new ThreadLocal<ClassContentHasher>() {
+            @Override protected ClassContentHasher initialValue() {
+                return new ClassContentHasher();
+            }
+        };
+
+        Map<String, byte[]> ownHashes = Maps.newHashMap();
+        Map<String, Set<String>> accessorClasses = Maps.newHashMap();
+        computeOwnHashes(hashers, classDefs, ownHashes, accessorClasses);
+
+        if (options.accessorComments) {
+            List<ClassDef> otherClasses = Lists.newArrayList();
+            Set<String> otherTypes = Sets.newHashSet();
+            for (Set<String> accessors: accessorClasses.values()) {
+                for (String accessorClass: accessors) {
+                    ClassDef classDef = dexClasses.get(accessorClass);
+                    if (classDef != null && !ownHashes.containsKey(accessorClass) &&
+                            otherTypes.add(accessorClass)) {
+                        otherClasses.add(classDef);
+                    }
+                }
+            }
+            computeOwnHashes(hashers, otherClasses, ownHashes, null);
+        }
+
+        Map<String, String> classHashes = Maps.newHashMap();
+        MessageDigest digest = newDigest();
+        for (Map.Entry<String, Set<String>> entry: accessorClasses.entrySet()) {
+            byte[] hash = ownHashes.get(entry.getKey());
+            if (options.accessorComments) {
+                Set<String> accessors = entry.getValue();
+                if (!accessors.isEmpty()) {
+                    digest.reset();
+                    digest.update(hash);
+                    for (String accessorClass: accessors) {
+                        byte[] accessorHash = ownHashes.get(accessorClass);
+                        if (accessorHash != null) {
+                            digest.update(accessorHash);
+                        }
+                    }
+                    hash = digest.digest();
+                }
+            }
+            classHashes.put(entry.getKey(), BaseEncoding.base16().lowerCase().encode(hash));
+        }
+        return classHashes;
+    }
+
+    /**
+     * Calculates the hash of each of the given classes, not including their accessor classes.
+     *
+     * @param ownHashes The map to add the hashes to
+     * @param accessorClasses If not null, the map to add the accessor classes used by each class to
+     */
+    private void computeOwnHashes(@Nonnull final ThreadLocal<ClassContentHasher> hashers,
+                                  @Nonnull List<? extends ClassDef> classDefs,
+                                  @Nonnull final Map<String, byte[]> ownHashes,
+                                  @Nullable final Map<String, Set<String>> accessorClasses) {
+        new TaskScheduler<ClassDef, ClassHash>(jobs) {
+            @Override protected long estimateCost(@Nonnull ClassDef classDef) {
+                return Baksmali.estimateClassCost(classDef);
+            }
+
+            @Override protected ClassHash process(@Nonnull ClassDef classDef) {
+                ClassContentHasher hasher = hashers.get();
+                try {
+                    byte[] hash = hasher.hashClass(classDef);
+                    return new ClassHash(hash, new TreeSet<String>(hasher.getAccessorClasses()));
+                } catch (Exception ex) {
+                    // the class will always be disassembled, which will report the error
+                    return null;
+                }
+            }
+
+            @Override protected void handleResult(@Nonnull ClassDef classDef, ClassHash result) {
+                if (result != null) {
+                    ownHashes.put(classDef.getType(), result.hash);
+                    if (accessorClasses != null) {
+                        accessorClasses.put(classDef.getType(), result.accessorClasses);
+                    }
+                }
+            }
+
+            @Nonnull @Override protected String getName(@Nonnull ClassDef classDef) {
+                return classDef.getType();
+            }
+        }.run(classDefs);
+    }
+
+    /**
+     * The hash of a single class, not including its accessor classes, and the accessor classes that it uses
+     */
+    private static class ClassHash {
+        @Nonnull public final byte[] hash;
+        @Nonnull public final Set<String> accessorClasses;
+
+        public ClassHash(@Nonnull byte[] hash, @Nonnull Set<String> accessorClasses) {
+            this.hash = hash;
+            this.accessorClasses = accessorClasses;
+        }
+    }
+
+    /**
+     * Calculates a hash of the options that affect the output of any class.
+     */
+    @Nonnull
+    static String getOptionsHash(@Nonnull BaksmaliOptions options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Main.VERSION).append('\n');
+        sb.append(options.apiLevel).append('\n');
+        sb.append(options.parameterRegisters).append('\n');
+        sb.append(options.localsDirective).append('\n');
+        sb.append(options.sequentialLabels).append('\n');
+        sb.append(options.debugInfo).append('\n');
+        sb.append(options.codeOffsets).append('\n');
+        sb.append(options.accessorComments).append('\n');
+        sb.append(options.syntheticAccessorResolver != null).append('\n');
+        sb.append(options.allowOdex).append('\n');
+        sb.append(options.deodex).append('\n');
+        sb.append(options.implicitReferences).append('\n');
+        sb.append(options.normalizeVirtualMethods).append('\n');
+        sb.append(options.registerInfo).append('\n');
+        sb.append(options.inlineResolver != null).append('\n');
+        sb.append(options.classPath != null).append('\n');
+        for (Map.Entry<Integer, String> entry: new TreeMap<Integer, String>(options.resourceIds).entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+
+        MessageDigest digest = newDigest();
+        try {
+            return BaseEncoding.base16().lowerCase().encode(digest.digest(sb.toString().getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Nonnull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static class ManifestEntry {
+        @Nonnull public final String hash;
+        @Nonnull public final String path;
+
+        public ManifestEntry(@Nonnull String hash, @Nonnull String path) {
+            this.hash = hash;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The manifest is a text file. The first line is a header, the second is the options hash, and each following
+     * line is a tab-separated class type, class hash and output path, relative to the output directory.
+     */
+    private static class Manifest {
+        @Nullable public final String optionsHash;
+        @Nonnull public final Map<String, ManifestEntry> entries = Maps.newTreeMap();
+
+        public Manifest(@Nullable String optionsHash) {
+            this.optionsHash = optionsHash;
+        }
+
+        @Nonnull
+        public static Manifest load(@Nonnull File file) {
+            if (!file.exists()) {
+                return new Manifest(null);
+            }
+
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                try {
+                    if (!MANIFEST_HEADER.equals(reader.readLine())) {
+                        return new Manifest(null);
+                    }
+                    Manifest manifest = new Manifest(reader.readLine());
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] parts = line.split("\t", 3);
+                        if (parts.length != 3) {
+                            // a corrupt manifest. Just start over
+                            return new Manifest(null);
+                        }
+                        manifest.entries.put(parts[0], new ManifestEntry(parts[1], parts[2]));
+                    }
+                    return manifest;
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException ex) {
+                return new Manifest(null);
+            }
+        }
+
+        public void save(@Nonnull File file) throws IOException {
+            File tempFile = new File(file.getPath() + ".tmp");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            try {
+                writer.write(MANIFEST_HEADER);
+                writer.write('\n');
+                writer.write(optionsHash == null ? "" : optionsHash);
+                writer.write('\n');
+                for (Map.Entry<String, ManifestEntry> entry: entries.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue().hash);
+                    writer.write('\t');
+                    writer.write(entry.getValue().path);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                if (!file.delete() || !tempFile.renameTo(file)) {
+                    throw new IOException(String.format("Could not rename %s to %s", tempFile, file));
+                }
+            }
+        }
+    }
+}
@@ -94,6 +94,7 @@ public class ListFieldOffsetsCommand extends DexInputCommand {
                 System.out.write("\n".getBytes());
             }
             System.out.close();
+            analysisArguments.saveLayoutCache(options.classPath);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -103,14 +103,14 @@ public class ListVtablesCommand extends DexInputCommand {
                 for (String cls: classes) {
                     listClassVtable((ClassProto)options.classPath.getClass(cls));
                 }
-                return;
-            }
-
-            for (ClassDef classDef : dexFile.getClasses()) {
-                if (!AccessFlags.INTERFACE.isSet(classDef.getAccessFlags())) {
-                    listClassVtable((ClassProto)options.classPath.getClass(classDef));
+            } else {
+                for (ClassDef classDef : dexFile.getClasses()) {
+                    if (!AccessFlags.INTERFACE.isSet(classDef.getAccessFlags())) {
+                        listClassVtable((ClassProto)options.classPath.getClass(classDef));
+                    }
                 }
             }
+            analysisArguments.saveLayoutCache(options.classPath);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
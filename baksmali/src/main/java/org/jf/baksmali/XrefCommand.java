@@ -0,0 +1,258 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
+import com.google.common.collect.Lists;
+import org.jf.baksmali.formatter.BaksmaliFormatter;
+import org.jf.dexlib2.dexbacked.util.XrefIndex;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.jcommander.ExtendedParameter;
+import org.jf.util.jcommander.ExtendedParameters;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@Parameters(commandDescription = "Lists the code that references a method, field, type or string.")
+@ExtendedParameters(
+        commandName = "xref")
+public class XrefCommand extends DexInputCommand {
+    private static final Pattern METHOD_PATTERN = Pattern.compile("(.+?)->([^(]+)\\(([^)]*)\\)(.+)");
+    private static final Pattern FIELD_PATTERN = Pattern.compile("(.+?)->([^:]+):(.+)");
+
+    @Parameter(names = {"-h", "-?", "--help"}, help = true,
+            description = "Show usage information")
+    private boolean help;
+
+    @Parameter(names = {"-j", "--jobs"},
+            description = "The number of threads to use when building the index. Defaults to the number of cores " +
+                    "available.",
+            validateWith = PositiveInteger.class)
+    @ExtendedParameter(argumentNames = "n")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"-m", "--method"},
+            description = "List the code that invokes the given method, e.g. \"Lfoo/Bar;->baz(I)V\". May be " +
+                    "specified multiple times.")
+    @ExtendedParameter(argumentNames = "method")
+    private List<String> methods = Lists.newArrayList();
+
+    @Parameter(names = {"-f", "--field"},
+            description = "List the code that reads or writes the given field, e.g. \"Lfoo/Bar;->baz:I\". May be " +
+                    "specified multiple times.")
+    @ExtendedParameter(argumentNames = "field")
+    private List<String> fields = Lists.newArrayList();
+
+    @Parameter(names = {"-t", "--type"},
+            description = "List the code that uses the given type, e.g. with new-instance, check-cast or " +
+                    "const-class. May be specified multiple times.")
+    @ExtendedParameter(argumentNames = "type")
+    private List<String> types = Lists.newArrayList();
+
+    @Parameter(names = {"-s", "--string"},
+            description = "List the code that uses the given string. May be specified multiple times.")
+    @ExtendedParameter(argumentNames = "string")
+    private List<String> strings = Lists.newArrayList();
+
+    @Parameter(names = "--index",
+            description = "A file to store the cross-reference index in. Defaults to the input file's name with " +
+                    "\".xref\" appended, alongside the input file, e.g. \"classes.dex.xref\". If the file already " +
+                    "contains an index for the same dex file, it is used instead of scanning the dex file again. " +
+                    "Otherwise, the index is built and saved to the file.")
+    @ExtendedParameter(argumentNames = "file")
+    private String indexFile = null;
+
+    public XrefCommand(@Nonnull List<JCommander> commandAncestors) {
+        super(commandAncestors);
+    }
+
+    @Override public void run() {
+        if (help || inputList == null || inputList.isEmpty()) {
+            usage();
+            return;
+        }
+
+        if (inputList.size() > 1) {
+            System.err.println("Too many files specified");
+            usage();
+            return;
+        }
+
+        if (methods.isEmpty() && fields.isEmpty() && types.isEmpty() && strings.isEmpty()) {
+            System.err.println("At least one method, field, type or string must be specified");
+            usage();
+            return;
+        }
+
+        String input = inputList.get(0);
+        loadDexFile(input);
+
+        XrefIndex index = loadIndex();
+
+        boolean printHeaders = methods.size() + fields.size() + types.size() + strings.size() > 1;
+        for (String method: methods) {
+            MethodReference methodReference = parseMethod(method);
+            if (methodReference == null) {
+                System.err.println("Invalid method: " + method);
+                System.exit(-1);
+            }
+            printHeader(printHeaders, method);
+            printSites(null, index.getMethodCalls(methodReference));
+        }
+        for (String field: fields) {
+            FieldReference fieldReference = parseField(field);
+            if (fieldReference == null) {
+                System.err.println("Invalid field: " + field);
+                System.exit(-1);
+            }
+            printHeader(printHeaders, field);
+            printSites("read", index.getFieldReads(fieldReference));
+            printSites("write", index.getFieldWrites(fieldReference));
+        }
+        for (String type: types) {
+            printHeader(printHeaders, type);
+            printSites(null, index.getTypeUses(type));
+        }
+        for (String string: strings) {
+            printHeader(printHeaders, string);
+            printSites(null, index.getStringUses(string));
+        }
+    }
+
+    @Nonnull
+    private XrefIndex loadIndex() {
+        File file;
+        if (indexFile != null) {
+            file = new File(indexFile);
+        } else {
+            file = XrefIndex.getIndexFile(inputFile);
+        }
+
+        if (file.exists()) {
+            try {
+                XrefIndex index = XrefIndex.readFrom(dexFile, file);
+                if (index != null) {
+                    return index;
+                }
+            } catch (IOException ex) {
+                System.err.println(String.format("Warning: could not read index %s: %s. Rebuilding it.", file,
+                        ex.getMessage()));
+            } catch (ExceptionWithContext ex) {
+                System.err.println(String.format("Warning: index %s is corrupt. Rebuilding it.", file));
+            }
+        }
+
+        // the index is still usable for this run, even if it can't be saved
+        XrefIndex index = XrefIndex.build(dexFile, jobs);
+        try {
+            index.writeTo(file);
+        } catch (IOException ex) {
+            System.err.println(String.format("Warning: could not write index %s: %s", file, ex.getMessage()));
+        }
+        return index;
+    }
+
+    private static void printHeader(boolean printHeaders, @Nonnull String query) {
+        if (printHeaders) {
+            System.out.println("# " + query);
+        }
+    }
+
+    private static void printSites(@Nullable String prefix, @Nonnull List<XrefIndex.Site> sites) {
+        BaksmaliFormatter formatter = new BaksmaliFormatter();
+        for (XrefIndex.Site site: sites) {
+            String line = String.format("%s @0x%x", formatter.getMethodDescriptor(site.method), site.codeOffset);
+            if (prefix != null) {
+                line = prefix + " " + line;
+            }
+            System.out.println(line);
+        }
+    }
+
+    @Nullable
+    static MethodReference parseMethod(@Nonnull String method) {
+        Matcher m = METHOD_PATTERN.matcher(method);
+        if (!m.matches()) {
+            return null;
+        }
+        List<String> parameterTypes = splitParameterTypes(m.group(3));
+        if (parameterTypes == null) {
+            return null;
+        }
+        return new ImmutableMethodReference(m.group(1), m.group(2), parameterTypes, m.group(4));
+    }
+
+    @Nullable
+    static FieldReference parseField(@Nonnull String field) {
+        Matcher m = FIELD_PATTERN.matcher(field);
+        if (!m.matches()) {
+            return null;
+        }
+        return new ImmutableFieldReference(m.group(1), m.group(2), m.group(3));
+    }
+
+    @Nullable
+    private static List<String> splitParameterTypes(@Nonnull String parameters) {
+        List<String> parameterTypes = Lists.newArrayList();
+        int i = 0;
+        while (i < parameters.length()) {
+            int start = i;
+            while (i < parameters.length() && parameters.charAt(i) == '[') {
+                i++;
+            }
+            if (i == parameters.length()) {
+                return null;
+            }
+            if (parameters.charAt(i) == 'L') {
+                i = parameters.indexOf(';', i);
+                if (i < 0) {
+                    return null;
+                }
+            }
+            i++;
+            parameterTypes.add(parameters.substring(start, i));
+        }
+        return parameterTypes;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali.output;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * A base class for OutputSinks that write all classes into a single archive file.
+ *
+ * Classes are written as they arrive, so the order of the entries depends on the order that the worker threads finish
+ * their classes. Each entry is first prepared on the worker thread that disassembled the class, e.g. compressed, and
+ * only the write of the prepared entry to the archive is serialized.
+ */
+public abstract class ArchiveOutputSink implements OutputSink {
+    /**
+     * Entries are given a fixed modification time, so that the contents of the archive don't depend on when it was
+     * created. The order of the entries still depends on the order that the classes finish, so with more than one
+     * worker thread, disassembling the same dex file twice can result in archives with the entries in different orders.
+     */
+    protected static final long ENTRY_TIME = 1262304000000L; // 2010-01-01T00:00:00Z
+
+    private boolean closed = false;
+
+    @Override public final void writeClass(@Nonnull String classType, @Nonnull byte[] contents) throws IOException {
+        writeEntryIfOpen(prepareEntry(getEntryName(classType), contents));
+    }
+
+    /**
+     * Gets an OutputSink that writes classes into the given directory within this archive. For example, with a
+     * directory of "classes2", Lorg/jf/Foo; is written to classes2/org/jf/Foo.smali
+     *
+     * Closing the returned sink has no effect. This sink must still be closed once all classes have been written.
+     */
+    @Nonnull
+    public OutputSink getDirectorySink(@Nonnull final String directory) {
+        return new OutputSink() {
+            @Override public void writeClass(@Nonnull String classType, @Nonnull byte[] contents)
+                    throws IOException {
+                writeEntryIfOpen(prepareEntry(directory + "/" + getEntryName(classType), contents));
+            }
+
+            @Override public void close() {
+            }
+        };
+    }
+
+    private synchronized void writeEntryIfOpen(@Nonnull Entry entry) throws IOException {
+        if (closed) {
+            throw new IOException("This output sink has already been closed");
+        }
+        writeEntry(entry);
+    }
+
+    @Override public final synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            finish();
+        }
+    }
+
+    /**
+     * Gets the path within the archive for the given class. For example, Lorg/jf/Foo; is written to org/jf/Foo.smali
+     */
+    @Nonnull
+    public static String getEntryName(@Nonnull String classType) {
+        return classType.substring(1, classType.length() - 1) + ".smali";
+    }
+
+    /**
+     * Prepares an entry to be written to the archive. This is called on the worker thread that disassembled the class,
+     * without holding the lock on this object, so it is where any expensive per-entry work should be done.
+     */
+    @Nonnull
+    protected Entry prepareEntry(@Nonnull String name, @Nonnull byte[] contents) throws IOException {
+        return new Entry(name, contents);
+    }
+
+    /**
+     * Writes a single entry that was returned by prepareEntry to the archive. This is only called while holding the
+     * lock on this object.
+     */
+    protected abstract void writeEntry(@Nonnull Entry entry) throws IOException;
+
+    /**
+     * Writes any trailing data and closes the archive.
+     */
+    protected abstract void finish() throws IOException;
+
+    protected static class Entry {
+        @Nonnull public final String name;
+        @Nonnull public final byte[] contents;
+
+        public Entry(@Nonnull String name, @Nonnull byte[] contents) {
+            this.name = name;
+            this.contents = contents;
+        }
+    }
+}
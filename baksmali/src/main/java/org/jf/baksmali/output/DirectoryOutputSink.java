@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali.output;
+
+import com.google.common.collect.Maps;
+import org.jf.util.ClassFileNameHandler;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An OutputSink that writes each class to a separate .smali file in a directory tree based on the package name.
+ *
+ * Class names that would collide on a case-insensitive file system, or that are too long for a file name, are
+ * handled by {@link ClassFileNameHandler}.
+ */
+public class DirectoryOutputSink implements OutputSink {
+    @Nonnull private final File outputDir;
+    @Nonnull private final ClassFileNameHandler fileNameHandler;
+    @Nonnull private final ConcurrentMap<String, File> classFiles = Maps.newConcurrentMap();
+
+    public DirectoryOutputSink(@Nonnull File outputDir) {
+        this.outputDir = outputDir;
+        this.fileNameHandler = new ClassFileNameHandler(outputDir, ".smali");
+    }
+
+    @Nonnull
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    /**
+     * Gets the file that the given class will be written to.
+     *
+     * The file name for a class is assigned the first time it's requested, and depends on which other class names
+     * have already been assigned, in the case of names that collide on a case-insensitive file system. Requesting the
+     * files for all classes up front, in a fixed order, ensures that each class gets a consistent file name.
+     */
+    @Nonnull
+    public File getClassFile(@Nonnull String classType) throws IOException {
+        File smaliFile = classFiles.get(classType);
+        if (smaliFile == null) {
+            // a class is normally only requested by a single thread, so there's no need to worry about racing here
+            smaliFile = fileNameHandler.getUniqueFilenameForClass(classType);
+            classFiles.put(classType, smaliFile);
+        }
+        return smaliFile;
+    }
+
+    @Override public void writeClass(@Nonnull String classType, @Nonnull byte[] contents) throws IOException {
+        File smaliFile = getClassFile(classType);
+
+        File smaliParent = smaliFile.getParentFile();
+        if (!smaliParent.exists()) {
+            if (!smaliParent.mkdirs()) {
+                // check again, it's likely it was created in a different thread
+                if (!smaliParent.exists()) {
+                    throw new IOException("Unable to create directory " + smaliParent.toString());
+                }
+            }
+        }
+
+        OutputStream outputStream = new FileOutputStream(smaliFile);
+        try {
+            outputStream.write(contents);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Override public void close() {
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali.output;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * An OutputSink that writes all classes into a single uncompressed tar file.
+ *
+ * Entries use the POSIX ustar format. Entries with names that don't fit in a ustar header are preceded by a pax
+ * extended header containing the full name.
+ */
+public class TarOutputSink extends ArchiveOutputSink {
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Nonnull private final OutputStream outputStream;
+    private int paxHeaderCount = 0;
+
+    public TarOutputSink(@Nonnull File tarFile) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(tarFile)));
+    }
+
+    public TarOutputSink(@Nonnull OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    @Override protected void writeEntry(@Nonnull Entry entry) throws IOException {
+        byte[] nameBytes = entry.name.getBytes(UTF8);
+        byte[] contents = entry.contents;
+
+        byte[] header;
+        int split = findPrefixSplit(nameBytes);
+        if (split < 0) {
+            writePaxHeader(nameBytes);
+            String shortName = String.format("PaxNamed.%d.smali", paxHeaderCount);
+            header = buildHeader(new byte[0], shortName.getBytes(UTF8), contents.length, TYPE_FILE);
+        } else if (split == 0) {
+            header = buildHeader(new byte[0], nameBytes, contents.length, TYPE_FILE);
+        } else {
+            byte[] prefix = new byte[split];
+            System.arraycopy(nameBytes, 0, prefix, 0, split);
+            byte[] suffix = new byte[nameBytes.length - split - 1];
+            System.arraycopy(nameBytes, split + 1, suffix, 0, suffix.length);
+            header = buildHeader(prefix, suffix, contents.length, TYPE_FILE);
+        }
+
+        outputStream.write(header);
+        writePadded(contents);
+    }
+
+    /**
+     * Finds where to split a name between the prefix and name fields of a ustar header.
+     *
+     * @return 0 if the name fits in the name field by itself, the index of the '/' to split at if the name must be
+     * split, or -1 if the name can't be stored in a ustar header
+     */
+    private static int findPrefixSplit(@Nonnull byte[] nameBytes) {
+        if (nameBytes.length <= NAME_LENGTH) {
+            return 0;
+        }
+        for (int i = nameBytes.length - NAME_LENGTH - 1; i < nameBytes.length && i <= PREFIX_LENGTH; i++) {
+            if (i > 0 && nameBytes[i] == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writePaxHeader(@Nonnull byte[] nameBytes) throws IOException {
+        // a pax record is "<length> path=<name>\n", where length includes the length field itself
+        int recordLength = nameBytes.length + " path=\n".length();
+        int lengthDigits = Integer.toString(recordLength).length();
+        if (Integer.toString(recordLength + lengthDigits).length() != lengthDigits) {
+            lengthDigits++;
+        }
+        recordLength += lengthDigits;
+
+        byte[] record = new byte[recordLength];
+        byte[] recordPrefix = (recordLength + " path=").getBytes(UTF8);
+        System.arraycopy(recordPrefix, 0, record, 0, recordPrefix.length);
+        System.arraycopy(nameBytes, 0, record, recordPrefix.length, nameBytes.length);
+        record[recordLength - 1] = '\n';
+
+        paxHeaderCount++;
+        byte[] headerName = String.format("PaxHeaders/%d", paxHeaderCount).getBytes(UTF8);
+        outputStream.write(buildHeader(new byte[0], headerName, record.length, TYPE_PAX_HEADER));
+        writePadded(record);
+    }
+
+    @Nonnull
+    private static byte[] buildHeader(@Nonnull byte[] prefix, @Nonnull byte[] name, long size, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        writeOctal(header, 100, 8, 0644); // mode
+        writeOctal(header, 108, 8, 0); // uid
+        writeOctal(header, 116, 8, 0); // gid
+        writeOctal(header, 124, 12, size);
+        writeOctal(header, 136, 12, ENTRY_TIME / 1000);
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(UTF8), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        // the checksum is calculated with the checksum field filled with spaces
+        for (int i=148; i<156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b: header) {
+            checksum += b & 0xff;
+        }
+        writeOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Writes a zero-padded, null-terminated octal number into a header field
+     */
+    private static void writeOctal(@Nonnull byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        if (octal.length() > digits) {
+            throw new IllegalArgumentException("Value too large for tar header field: " + value);
+        }
+        for (int i=0; i<digits - octal.length(); i++) {
+            header[offset + i] = '0';
+        }
+        for (int i=0; i<octal.length(); i++) {
+            header[offset + digits - octal.length() + i] = (byte)octal.charAt(i);
+        }
+        header[offset + digits] = 0;
+    }
+
+    private void writePadded(@Nonnull byte[] data) throws IOException {
+        outputStream.write(data);
+        int remainder = data.length % BLOCK_SIZE;
+        if (remainder != 0) {
+            outputStream.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    @Override protected void finish() throws IOException {
+        try {
+            // a tar file ends with two zero blocks
+            outputStream.write(new byte[BLOCK_SIZE * 2]);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali.output;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputSink that writes all classes into a single zip or jar file.
+ *
+ * Each entry is deflated by the worker thread that disassembled the class, before taking the lock, so that the
+ * compression happens in parallel. The already compressed entries are then written to the archive directly, rather
+ * than through a ZipOutputStream, which would compress each entry while holding the lock.
+ */
+public class ZipOutputSink extends ArchiveOutputSink {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int METHOD_DEFLATED = 8;
+
+    // ENTRY_TIME, as an MS-DOS date and time
+    private static final int DOS_DATE = ((2010 - 1980) << 9) | (1 << 5) | 1;
+    private static final int DOS_TIME = 0;
+
+    @Nonnull private final OutputStream outputStream;
+    @Nonnull private final List<CentralEntry> centralEntries = Lists.newArrayList();
+    private long offset = 0;
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    public ZipOutputSink(@Nonnull File zipFile) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(zipFile)));
+    }
+
+    public ZipOutputSink(@Nonnull OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Sets the compression level for subsequent entries. See {@link Deflater#setLevel(int)}.
+     */
+    public void setLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    @Nonnull @Override
+    protected Entry prepareEntry(@Nonnull String name, @Nonnull byte[] contents) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(contents.length / 4 + 64);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        return new DeflatedEntry(name, compressed.toByteArray(), contents.length, (int)crc.getValue());
+    }
+
+    @Override protected void writeEntry(@Nonnull Entry entry) throws IOException {
+        DeflatedEntry deflatedEntry = (DeflatedEntry)entry;
+        byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+        centralEntries.add(new CentralEntry(nameBytes, deflatedEntry, offset));
+
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(UTF8_FLAG);
+        writeShort(METHOD_DEFLATED);
+        writeShort(DOS_TIME);
+        writeShort(DOS_DATE);
+        writeInt(deflatedEntry.crc);
+        writeInt(deflatedEntry.contents.length);
+        writeInt(deflatedEntry.uncompressedSize);
+        writeShort(nameBytes.length);
+        writeShort(0);
+        write(nameBytes);
+        write(deflatedEntry.contents);
+    }
+
+    @Override protected void finish() throws IOException {
+        try {
+            long centralOffset = offset;
+            for (CentralEntry entry: centralEntries) {
+                boolean zip64 = entry.offset >= 0xFFFFFFFFL;
+
+                writeInt(CENTRAL_HEADER_SIGNATURE);
+                writeShort(zip64 ? ZIP64_VERSION : VERSION);
+                writeShort(zip64 ? ZIP64_VERSION : VERSION);
+                writeShort(UTF8_FLAG);
+                writeShort(METHOD_DEFLATED);
+                writeShort(DOS_TIME);
+                writeShort(DOS_DATE);
+                writeInt(entry.crc);
+                writeInt(entry.compressedSize);
+                writeInt(entry.uncompressedSize);
+                writeShort(entry.name.length);
+                writeShort(zip64 ? 12 : 0);
+                writeShort(0); // comment length
+                writeShort(0); // disk number
+                writeShort(0); // internal attributes
+                writeInt(0); // external attributes
+                writeInt(zip64 ? 0xFFFFFFFF : (int)entry.offset);
+                write(entry.name);
+                if (zip64) {
+                    writeShort(ZIP64_EXTRA_ID);
+                    writeShort(8);
+                    writeLong(entry.offset);
+                }
+            }
+            long centralSize = offset - centralOffset;
+            long entryCount = centralEntries.size();
+
+            boolean zip64 = entryCount >= 0xFFFF || centralOffset >= 0xFFFFFFFFL || centralSize >= 0xFFFFFFFFL;
+            if (zip64) {
+                long zip64EndOffset = offset;
+                writeInt(ZIP64_END_SIGNATURE);
+                writeLong(44); // the size of the rest of this record
+                writeShort(ZIP64_VERSION);
+                writeShort(ZIP64_VERSION);
+                writeInt(0); // disk number
+                writeInt(0); // disk with the central directory
+                writeLong(entryCount);
+                writeLong(entryCount);
+                writeLong(centralSize);
+                writeLong(centralOffset);
+
+                writeInt(ZIP64_LOCATOR_SIGNATURE);
+                writeInt(0); // disk with the zip64 end record
+                writeLong(zip64EndOffset);
+                writeInt(1); // total number of disks
+            }
+
+            writeInt(END_SIGNATURE);
+            writeShort(0); // disk number
+            writeShort(0); // disk with the central directory
+            writeShort(zip64 ? 0xFFFF : (int)entryCount);
+            writeShort(zip64 ? 0xFFFF : (int)entryCount);
+            writeInt(zip64 ? 0xFFFFFFFF : (int)centralSize);
+            writeInt(zip64 ? 0xFFFFFFFF : (int)centralOffset);
+            writeShort(0); // comment length
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private void write(@Nonnull byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+        offset += bytes.length;
+    }
+
+    private void writeShort(int value) throws IOException {
+        outputStream.write(value);
+        outputStream.write(value >>> 8);
+        offset += 2;
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value);
+        writeShort(value >>> 16);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int)value);
+        writeInt((int)(value >>> 32));
+    }
+
+    private static class DeflatedEntry extends Entry {
+        public final int uncompressedSize;
+        public final int crc;
+
+        public DeflatedEntry(@Nonnull String name, @Nonnull byte[] compressedContents, int uncompressedSize,
+                             int crc) {
+            super(name, compressedContents);
+            this.uncompressedSize = uncompressedSize;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * The information about an entry that is needed for the central directory, once the entry itself is written
+     */
+    private static class CentralEntry {
+        @Nonnull public final byte[] name;
+        public final int compressedSize;
+        public final int uncompressedSize;
+        public final int crc;
+        public final long offset;
+
+        public CentralEntry(@Nonnull byte[] name, @Nonnull DeflatedEntry entry, long offset) {
+            this.name = name;
+            this.compressedSize = entry.contents.length;
+            this.uncompressedSize = entry.uncompressedSize;
+            this.crc = entry.crc;
+            this.offset = offset;
+        }
+    }
+}
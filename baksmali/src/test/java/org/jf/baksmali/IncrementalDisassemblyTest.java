@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class IncrementalDisassemblyTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MARKER = "# not regenerated\n";
+
+    private File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(outputDir);
+    }
+
+    private static ClassDef makeClass(String type, String sourceFile) {
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, sourceFile,
+                null, null, null);
+    }
+
+    private static DexFile makeDexFile(ClassDef... classDefs) {
+        return new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.copyOf(classDefs));
+    }
+
+    private IncrementalDisassembler disassemble(DexFile dexFile, BaksmaliOptions options) {
+        IncrementalDisassembler disassembler = new IncrementalDisassembler(dexFile, outputDir, 2, options);
+        Assert.assertTrue(disassembler.disassemble(null));
+        return disassembler;
+    }
+
+    private File getFile(String name) {
+        return new File(outputDir, name);
+    }
+
+    private void mark(String name) throws IOException {
+        Files.write(MARKER, getFile(name), UTF8);
+    }
+
+    private boolean isMarked(String name) throws IOException {
+        return Files.toString(getFile(name), UTF8).equals(MARKER);
+    }
+
+    @Test
+    public void testUnchangedClassesAreSkipped() throws IOException {
+        DexFile dexFile = makeDexFile(makeClass("Lorg/jf/One;", "One.java"), makeClass("Lorg/jf/Two;", "Two.java"));
+
+        IncrementalDisassembler disassembler = disassemble(dexFile, new BaksmaliOptions());
+        Assert.assertEquals(2, disassembler.getDisassembledClassCount());
+        Assert.assertEquals(0, disassembler.getSkippedClassCount());
+        Assert.assertTrue(getFile(IncrementalDisassembler.MANIFEST_NAME).exists());
+
+        mark("org/jf/One.smali");
+        mark("org/jf/Two.smali");
+
+        disassembler = disassemble(dexFile, new BaksmaliOptions());
+        Assert.assertEquals(0, disassembler.getDisassembledClassCount());
+        Assert.assertEquals(2, disassembler.getSkippedClassCount());
+        Assert.assertTrue(isMarked("org/jf/One.smali"));
+        Assert.assertTrue(isMarked("org/jf/Two.smali"));
+    }
+
+    @Test
+    public void testChangedClassIsRegenerated() throws IOException {
+        disassemble(makeDexFile(makeClass("Lorg/jf/One;", "One.java"), makeClass("Lorg/jf/Two;", "Two.java")),
+                new BaksmaliOptions());
+        mark("org/jf/One.smali");
+        mark("org/jf/Two.smali");
+
+        IncrementalDisassembler disassembler = disassemble(
+                makeDexFile(makeClass("Lorg/jf/One;", "One.java"), makeClass("Lorg/jf/Two;", "Changed.java")),
+                new BaksmaliOptions());
+        Assert.assertEquals(1, disassembler.getDisassembledClassCount());
+        Assert.assertEquals(1, disassembler.getSkippedClassCount());
+        Assert.assertTrue(isMarked("org/jf/One.smali"));
+        Assert.assertTrue(Files.toString(getFile("org/jf/Two.smali"), UTF8).contains("Changed.java"));
+    }
+
+    @Test
+    public void testOnlySelectedClassesAreHashed() {
+        final AtomicBoolean otherClassRead = new AtomicBoolean(false);
+        ClassDef otherClass = new ImmutableClassDef("Lorg/jf/Two;", AccessFlags.PUBLIC.getValue(),
+                "Ljava/lang/Object;", null, "Two.java", null, null, null) {
+            @Override public String getSourceFile() {
+                otherClassRead.set(true);
+                return super.getSourceFile();
+            }
+        };
+
+        IncrementalDisassembler disassembler = new IncrementalDisassembler(
+                makeDexFile(makeClass("Lorg/jf/One;", "One.java"), otherClass), outputDir, 2, new BaksmaliOptions());
+        Assert.assertTrue(disassembler.disassemble(ImmutableList.of("Lorg/jf/One;")));
+        Assert.assertEquals(1, disassembler.getDisassembledClassCount());
+        Assert.assertTrue(getFile("org/jf/One.smali").exists());
+        Assert.assertFalse(getFile("org/jf/Two.smali").exists());
+        Assert.assertFalse(otherClassRead.get());
+    }
+
+    @Test
+    public void testMissingOutputIsRegenerated() throws IOException {
+        DexFile dexFile = makeDexFile(makeClass("Lorg/jf/One;", "One.java"));
+        disassemble(dexFile, new BaksmaliOptions());
+        Assert.assertTrue(getFile("org/jf/One.smali").delete());
+
+        IncrementalDisassembler disassembler = disassemble(dexFile, new BaksmaliOptions());
+        Assert.assertEquals(1, disassembler.getDisassembledClassCount());
+        Assert.assertTrue(getFile("org/jf/One.smali").length() > 0);
+    }
+
+    @Test
+    public void testRemovedClassIsDeleted() throws IOException {
+        disassemble(makeDexFile(makeClass("Lorg/jf/One;", "One.java"), makeClass("Lorg/jf/Two;", "Two.java")),
+                new BaksmaliOptions());
+
+        IncrementalDisassembler disassembler = disassemble(makeDexFile(makeClass("Lorg/jf/One;", "One.java")),
+                new BaksmaliOptions());
+        Assert.assertEquals(1, disassembler.getDeletedClassCount());
+        Assert.assertTrue(getFile("org/jf/One.smali").exists());
+        Assert.assertFalse(getFile("org/jf/Two.smali").exists());
+    }
+
+    @Test
+    public void testChangedOptionsRegenerateEverything() throws IOException {
+        DexFile dexFile = makeDexFile(makeClass("Lorg/jf/One;", "One.java"), makeClass("Lorg/jf/Two;", "Two.java"));
+        disassemble(dexFile, new BaksmaliOptions());
+        mark("org/jf/One.smali");
+
+        BaksmaliOptions options = new BaksmaliOptions();
+        options.debugInfo = false;
+        IncrementalDisassembler disassembler = disassemble(dexFile, options);
+        Assert.assertEquals(2, disassembler.getDisassembledClassCount());
+        Assert.assertEquals(0, disassembler.getSkippedClassCount());
+        Assert.assertFalse(isMarked("org/jf/One.smali"));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.baksmali.output.DirectoryOutputSink;
+import org.jf.baksmali.output.ZipOutputSink;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class MultiDexDisassemblyTest {
+    @Test
+    public void testEntryDirectory() {
+        Set<String> used = Sets.newHashSet();
+        Assert.assertEquals("classes", DisassembleCommand.getEntryDirectory("classes.dex", used));
+        Assert.assertEquals("classes2", DisassembleCommand.getEntryDirectory("classes2.dex", used));
+        Assert.assertEquals("system/framework/framework.jar/classes2",
+                DisassembleCommand.getEntryDirectory("/system/framework/framework.jar:classes2.dex", used));
+        Assert.assertEquals("system/framework/framework.jar",
+                DisassembleCommand.getEntryDirectory("/system/framework/framework.jar", used));
+        Assert.assertEquals("evil", DisassembleCommand.getEntryDirectory("../../evil.dex", used));
+        Assert.assertEquals("a_b", DisassembleCommand.getEntryDirectory("a?b.dex", used));
+        // a name that collides with a previous entry gets a unique directory
+        Assert.assertEquals("classes_2", DisassembleCommand.getEntryDirectory("/classes.dex", used));
+    }
+
+    @Test
+    public void testDisassembleDexFilesToDirectories() throws IOException {
+        File outputDir = Files.createTempDir();
+        try {
+            List<Baksmali.DisassemblyJob> jobs = Lists.newArrayList();
+            jobs.add(new Baksmali.DisassemblyJob(makeDexFile("Lorg/jf/One;", "Lorg/jf/Two;"),
+                    new DirectoryOutputSink(new File(outputDir, "classes")), new BaksmaliOptions(), null));
+            jobs.add(new Baksmali.DisassemblyJob(makeDexFile("Lorg/jf/Three;", "Lorg/jf/Four;"),
+                    new DirectoryOutputSink(new File(outputDir, "classes2")), new BaksmaliOptions(),
+                    ImmutableList.of("Lorg/jf/Three;")));
+            Assert.assertTrue(Baksmali.disassembleDexFiles(jobs, 3));
+
+            Assert.assertTrue(new File(outputDir, "classes/org/jf/One.smali").exists());
+            Assert.assertTrue(new File(outputDir, "classes/org/jf/Two.smali").exists());
+            Assert.assertTrue(new File(outputDir, "classes2/org/jf/Three.smali").exists());
+            Assert.assertFalse(new File(outputDir, "classes2/org/jf/Four.smali").exists());
+        } finally {
+            deleteRecursively(outputDir);
+        }
+    }
+
+    @Test
+    public void testInvalidClassNameIsSkipped() throws IOException {
+        File outputDir = Files.createTempDir();
+        try {
+            // a class whose name can't be turned into a file name only fails that class, not the whole run
+            List<Baksmali.DisassemblyJob> jobs = Lists.newArrayList();
+            jobs.add(new Baksmali.DisassemblyJob(makeDexFile("Lorg//Bad;", "Lorg/jf/One;"),
+                    new DirectoryOutputSink(outputDir), new BaksmaliOptions(), null));
+            Assert.assertFalse(Baksmali.disassembleDexFiles(jobs, 2));
+
+            Assert.assertTrue(new File(outputDir, "org/jf/One.smali").exists());
+        } finally {
+            deleteRecursively(outputDir);
+        }
+    }
+
+    @Test
+    public void testDisassembleDexFilesToArchive() throws IOException {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        ZipOutputSink sink = new ZipOutputSink(zipBytes);
+
+        List<Baksmali.DisassemblyJob> jobs = Lists.newArrayList();
+        jobs.add(new Baksmali.DisassemblyJob(makeDexFile("Lorg/jf/One;"), sink.getDirectorySink("classes"),
+                new BaksmaliOptions(), null));
+        jobs.add(new Baksmali.DisassemblyJob(makeDexFile("Lorg/jf/One;"), sink.getDirectorySink("classes2"),
+                new BaksmaliOptions(), null));
+        Assert.assertTrue(Baksmali.disassembleDexFiles(jobs, 2));
+        sink.close();
+
+        Set<String> names = Sets.newHashSet();
+        ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(zipBytes.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zipStream.getNextEntry()) != null) {
+            names.add(entry.getName());
+            ByteStreams.toByteArray(zipStream);
+        }
+        Assert.assertEquals(Sets.newHashSet("classes/org/jf/One.smali", "classes2/org/jf/One.smali"), names);
+    }
+
+    private static DexFile makeDexFile(String... classTypes) {
+        ImmutableList.Builder<ClassDef> classDefs = ImmutableList.builder();
+        for (String classType: classTypes) {
+            classDefs.add(new ImmutableClassDef(classType, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null,
+                    null, null, null, null));
+        }
+        return new ImmutableDexFile(Opcodes.getDefault(), classDefs.build());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.google.common.collect.ImmutableList;
+import junit.framework.Assert;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.junit.Test;
+
+public class XrefCommandTest {
+    @Test
+    public void testParseMethod() {
+        Assert.assertEquals(new ImmutableMethodReference("Lfoo/Bar;", "baz", null, "V"),
+                XrefCommand.parseMethod("Lfoo/Bar;->baz()V"));
+        Assert.assertEquals(new ImmutableMethodReference("Lfoo/Bar;", "<init>",
+                        ImmutableList.of("I", "[[Ljava/lang/String;", "J", "[Z"), "Ljava/lang/Object;"),
+                XrefCommand.parseMethod("Lfoo/Bar;-><init>(I[[Ljava/lang/String;J[Z)Ljava/lang/Object;"));
+        Assert.assertEquals(new ImmutableMethodReference("[I", "clone", null, "Ljava/lang/Object;"),
+                XrefCommand.parseMethod("[I->clone()Ljava/lang/Object;"));
+
+        Assert.assertNull(XrefCommand.parseMethod("Lfoo/Bar;->baz"));
+        Assert.assertNull(XrefCommand.parseMethod("Lfoo/Bar;->baz(Ljava/lang/String)V"));
+        Assert.assertNull(XrefCommand.parseMethod("Lfoo/Bar;->baz(I[)V"));
+    }
+
+    @Test
+    public void testParseField() {
+        FieldReference expected = new ImmutableFieldReference("Lfoo/Bar;", "baz", "[Ljava/lang/String;");
+        Assert.assertEquals(expected, XrefCommand.parseField("Lfoo/Bar;->baz:[Ljava/lang/String;"));
+
+        Assert.assertNull(XrefCommand.parseField("Lfoo/Bar;->baz"));
+        Assert.assertNull(XrefCommand.parseField("Lfoo/Bar;baz:I"));
+    }
+}
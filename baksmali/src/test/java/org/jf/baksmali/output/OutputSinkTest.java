@@ -0,0 +1,233 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali.output;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.baksmali.Baksmali;
+import org.jf.baksmali.BaksmaliOptions;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class OutputSinkTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String LONG_PACKAGE =
+            "Lorg/jf/some/very/long/package/name/that/is/used/to/make/sure/that/long/names/are/handled/correctly/";
+
+    private static final String[] CLASS_TYPES = new String[] {
+            "Lorg/jf/One;",
+            "Lorg/jf/Two;",
+            // doesn't fit in the name field of a tar header, so it has to be split into the prefix field
+            LONG_PACKAGE + "Three;",
+            // doesn't fit in a ustar header at all, so it needs a pax header
+            LONG_PACKAGE + LONG_PACKAGE.substring(1) + "Four;"
+    };
+
+    private static DexFile makeDexFile() {
+        ImmutableList.Builder<ClassDef> classDefs = ImmutableList.builder();
+        for (String classType: CLASS_TYPES) {
+            classDefs.add(new ImmutableClassDef(classType, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null,
+                    null, null, null, null));
+        }
+        return new ImmutableDexFile(Opcodes.getDefault(), classDefs.build());
+    }
+
+    private static void verifyEntries(Map<String, String> entries) {
+        Assert.assertEquals(CLASS_TYPES.length, entries.size());
+        for (String classType: CLASS_TYPES) {
+            String contents = entries.get(ArchiveOutputSink.getEntryName(classType));
+            Assert.assertNotNull(classType, contents);
+            Assert.assertTrue(contents.startsWith(".class public " + classType));
+        }
+    }
+
+    @Test
+    public void testZipOutputSink() throws IOException {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        ZipOutputSink sink = new ZipOutputSink(zipBytes);
+        Assert.assertTrue(Baksmali.disassembleDexFile(makeDexFile(), sink, 4, new BaksmaliOptions(), null));
+        sink.close();
+
+        Map<String, String> entries = Maps.newHashMap();
+        ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(zipBytes.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zipStream.getNextEntry()) != null) {
+            entries.put(entry.getName(), new String(ByteStreams.toByteArray(zipStream), UTF8));
+        }
+        verifyEntries(entries);
+    }
+
+    @Test
+    public void testZipCentralDirectory() throws IOException {
+        File zipFile = File.createTempFile("output", ".zip");
+        try {
+            ZipOutputSink sink = new ZipOutputSink(zipFile);
+            sink.setLevel(1);
+            Assert.assertTrue(Baksmali.disassembleDexFile(makeDexFile(), sink, 4, new BaksmaliOptions(), null));
+            sink.close();
+
+            // ZipFile reads the entries through the central directory, rather than the local headers
+            Map<String, String> entries = Maps.newHashMap();
+            ZipFile zip = new ZipFile(zipFile);
+            try {
+                Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry entry = zipEntries.nextElement();
+                    entries.put(entry.getName(), new String(ByteStreams.toByteArray(zip.getInputStream(entry)), UTF8));
+                }
+            } finally {
+                zip.close();
+            }
+            verifyEntries(entries);
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    @Test
+    public void testTarOutputSink() throws IOException {
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        TarOutputSink sink = new TarOutputSink(tarBytes);
+        Assert.assertTrue(Baksmali.disassembleDexFile(makeDexFile(), sink, 4, new BaksmaliOptions(), null));
+        sink.close();
+
+        byte[] tar = tarBytes.toByteArray();
+        Assert.assertEquals(0, tar.length % 512);
+
+        Map<String, String> entries = Maps.newHashMap();
+        String paxName = null;
+        int offset = 0;
+        while (tar[offset] != 0) {
+            String name = readString(tar, offset, 100);
+            String prefix = readString(tar, offset + 345, 155);
+            int size = Integer.parseInt(readString(tar, offset + 124, 12), 8);
+            byte type = tar[offset + 156];
+            Assert.assertEquals("ustar", readString(tar, offset + 257, 6));
+
+            long checksum = 0;
+            for (int i=0; i<512; i++) {
+                checksum += (i >= 148 && i < 156) ? ' ' : tar[offset + i] & 0xff;
+            }
+            Assert.assertEquals(checksum, Integer.parseInt(readString(tar, offset + 148, 8), 8));
+
+            String contents = new String(tar, offset + 512, size, UTF8);
+            if (type == 'x') {
+                Assert.assertTrue(contents.endsWith("\n"));
+                String record = contents.substring(0, contents.length() - 1);
+                int space = record.indexOf(' ');
+                Assert.assertEquals(contents.getBytes(UTF8).length, Integer.parseInt(record.substring(0, space)));
+                Assert.assertTrue(record.substring(space + 1).startsWith("path="));
+                paxName = record.substring(space + 1 + "path=".length());
+            } else {
+                Assert.assertEquals('0', type);
+                if (paxName != null) {
+                    name = paxName;
+                    paxName = null;
+                } else if (prefix.length() > 0) {
+                    name = prefix + "/" + name;
+                }
+                entries.put(name, contents);
+            }
+            offset += 512 + ((size + 511) / 512) * 512;
+        }
+
+        // the archive ends with two empty blocks
+        Assert.assertEquals(tar.length, offset + 1024);
+        verifyEntries(entries);
+    }
+
+    @Test
+    public void testCreateOutputSink() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            File zipFile = new File(tempDir, "out.jar");
+            OutputSink sink = Baksmali.createOutputSink(zipFile);
+            Assert.assertTrue(sink instanceof ZipOutputSink);
+            sink.close();
+            Assert.assertTrue(zipFile.exists());
+
+            File tarFile = new File(tempDir, "out.tar");
+            sink = Baksmali.createOutputSink(tarFile);
+            Assert.assertTrue(sink instanceof TarOutputSink);
+            sink.close();
+            Assert.assertEquals(1024, tarFile.length());
+
+            File outputDir = new File(tempDir, "out");
+            sink = Baksmali.createOutputSink(outputDir);
+            Assert.assertTrue(sink instanceof DirectoryOutputSink);
+            Assert.assertTrue(Baksmali.disassembleDexFile(makeDexFile(), sink, 1, new BaksmaliOptions(), null));
+            sink.close();
+            Assert.assertTrue(new File(outputDir, "org/jf/One.smali").exists());
+        } finally {
+            deleteRecursively(tempDir);
+        }
+    }
+
+    private static String readString(byte[] buf, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buf[end] != 0) {
+            end++;
+        }
+        return new String(buf, offset, end - offset, UTF8).trim();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.benchmarks;
+
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedField;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for reading a dex file with DexBackedDexFile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DexBackedDexFileBenchmark {
+    @Param({"2000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int methodsPerClass;
+
+    private byte[] dexBytes;
+    private DexBackedDexFile dexFile;
+    private int[] stringIndexes;
+    private int[] typeIndexes;
+    private String[] classTypes;
+
+    @Setup
+    public void setUp() throws IOException {
+        dexBytes = SyntheticDexGenerator.writeDexFile(
+                SyntheticDexGenerator.generateDexFile(classCount, methodsPerClass));
+        dexFile = new DexBackedDexFile(SyntheticDexGenerator.OPCODES, dexBytes);
+
+        // look up the strings and types in a random order, rather than sequentially
+        Random random = new Random(1234);
+        stringIndexes = new int[dexFile.getStringSection().size()];
+        for (int i=0; i<stringIndexes.length; i++) {
+            stringIndexes[i] = random.nextInt(stringIndexes.length);
+        }
+        typeIndexes = new int[dexFile.getTypeSection().size()];
+        for (int i=0; i<typeIndexes.length; i++) {
+            typeIndexes[i] = random.nextInt(typeIndexes.length);
+        }
+        classTypes = new String[classCount];
+        for (int i=0; i<classTypes.length; i++) {
+            classTypes[i] = SyntheticDexGenerator.getClassType(random.nextInt(classCount));
+        }
+    }
+
+    /**
+     * Visits every class, field, method and instruction, including the references, like a typical consumer
+     */
+    @Benchmark
+    public void traverse(Blackhole blackhole) {
+        // use a new instance each time, so that nothing is cached between iterations
+        DexBackedDexFile dexFile = new DexBackedDexFile(SyntheticDexGenerator.OPCODES, dexBytes);
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            blackhole.consume(classDef.getType());
+            blackhole.consume(classDef.getSuperclass());
+            for (DexBackedField field: classDef.getFields()) {
+                blackhole.consume(field.getName());
+                blackhole.consume(field.getType());
+            }
+            for (DexBackedMethod method: classDef.getMethods()) {
+                blackhole.consume(method.getName());
+                blackhole.consume(method.getParameterTypes());
+                DexBackedMethodImplementation implementation = method.getImplementation();
+                if (implementation != null) {
+                    for (Instruction instruction: implementation.getInstructions()) {
+                        if (instruction instanceof ReferenceInstruction) {
+                            blackhole.consume(((ReferenceInstruction)instruction).getReference());
+                        } else {
+                            blackhole.consume(instruction);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void readStrings(Blackhole blackhole) {
+        List<String> strings = dexFile.getStringSection();
+        for (int index: stringIndexes) {
+            blackhole.consume(strings.get(index));
+        }
+    }
+
+    @Benchmark
+    public void readTypes(Blackhole blackhole) {
+        List<String> types = dexFile.getTypeSection();
+        for (int index: typeIndexes) {
+            blackhole.consume(types.get(index));
+        }
+    }
+
+    /**
+     * Looks up classes by type, using a new instance each time so that the lookup index is built each time
+     */
+    @Benchmark
+    public void findClassDef(Blackhole blackhole) {
+        DexBackedDexFile dexFile = new DexBackedDexFile(SyntheticDexGenerator.OPCODES, dexBytes);
+        for (String type: classTypes) {
+            blackhole.consume(dexFile.findClassDef(type));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.benchmarks;
+
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for writing dex files with DexPool and DexBuilder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DexWriterBenchmark {
+    @Param({"2000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int methodsPerClass;
+
+    @Param({"1", "4"})
+    public int writeThreads;
+
+    private DexFile immutableDexFile;
+    private DexBackedDexFile dexBackedDexFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        immutableDexFile = SyntheticDexGenerator.generateDexFile(classCount, methodsPerClass);
+        dexBackedDexFile = new DexBackedDexFile(SyntheticDexGenerator.OPCODES,
+                SyntheticDexGenerator.writeDexFile(immutableDexFile));
+    }
+
+    private byte[] writeDexPool(DexFile dexFile) throws IOException {
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.setWriteThreads(writeThreads);
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        return dataStore.getBuffer();
+    }
+
+    /**
+     * Interns and writes classes from an in-memory DexFile
+     */
+    @Benchmark
+    public byte[] dexPoolFromImmutable() throws IOException {
+        return writeDexPool(immutableDexFile);
+    }
+
+    /**
+     * Interns and writes the classes from an existing dex file, as when rewriting a dex file
+     */
+    @Benchmark
+    public byte[] dexPoolFromDexBacked() throws IOException {
+        return writeDexPool(dexBackedDexFile);
+    }
+
+    /**
+     * Builds and writes the classes with DexBuilder, as smali does
+     */
+    @Benchmark
+    public byte[] dexBuilder() throws IOException {
+        DexBuilder dexBuilder = SyntheticDexGenerator.generateDexBuilder(classCount, methodsPerClass);
+        dexBuilder.setWriteThreads(writeThreads);
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        return dataStore.getBuffer();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.benchmarks;
+
+import com.google.common.io.Files;
+import org.jf.baksmali.Baksmali;
+import org.jf.baksmali.BaksmaliOptions;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.util.SyntheticAccessorResolver;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end benchmarks for disassembling a dex file with baksmali, and assembling the result with smali.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"1000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int methodsPerClass;
+
+    @Param({"1", "4"})
+    public int jobs;
+
+    private File tempDir;
+    private DexBackedDexFile dexFile;
+    private File smaliDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        dexFile = SyntheticDexGenerator.generateDexBackedDexFile(classCount, methodsPerClass);
+
+        // the input for the smali benchmark
+        smaliDir = new File(tempDir, "input");
+        if (!Baksmali.disassembleDexFile(dexFile, smaliDir, jobs, makeBaksmaliOptions())) {
+            throw new IllegalStateException("Error while disassembling the smali input");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        deleteRecursively(tempDir);
+    }
+
+    private BaksmaliOptions makeBaksmaliOptions() {
+        BaksmaliOptions options = new BaksmaliOptions();
+        options.apiLevel = SyntheticDexGenerator.OPCODES.api;
+        options.syntheticAccessorResolver = new SyntheticAccessorResolver(dexFile.getOpcodes(), dexFile.getClasses());
+        return options;
+    }
+
+    @Benchmark
+    public void baksmali() {
+        if (!Baksmali.disassembleDexFile(dexFile, new File(tempDir, "baksmali"), jobs, makeBaksmaliOptions())) {
+            throw new IllegalStateException("Error while disassembling");
+        }
+    }
+
+    @Benchmark
+    public void smali() throws IOException {
+        SmaliOptions options = new SmaliOptions();
+        options.apiLevel = SyntheticDexGenerator.OPCODES.api;
+        options.jobs = jobs;
+        options.outputDexFile = new File(tempDir, "out.dex").getPath();
+        if (!Smali.assemble(options, smaliDir.getPath())) {
+            throw new IllegalStateException("Error while assembling");
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
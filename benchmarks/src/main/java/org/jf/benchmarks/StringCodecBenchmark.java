@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.benchmarks;
+
+import org.jf.dexlib2.writer.DexDataWriter;
+import org.jf.util.Utf8Utils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for decoding and encoding the modified utf-8 strings in a dex file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringCodecBenchmark {
+    @Param({"10000"})
+    public int stringCount;
+
+    /**
+     * The fraction of the strings that contain a non-ascii character
+     */
+    @Param({"0", "0.02", "0.5"})
+    public double nonAsciiFraction;
+
+    private String[] strings;
+    private byte[] encoded;
+    private int[] offsets;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1234);
+        strings = new String[stringCount];
+        for (int i=0; i<stringCount; i++) {
+            StringBuilder sb = new StringBuilder("Lcom/example/package");
+            sb.append(random.nextInt(100)).append("/Class").append(i);
+            if (random.nextDouble() < nonAsciiFraction) {
+                sb.append('\u00e9').append('\u4e2d');
+            }
+            sb.append(';');
+            strings[i] = sb.toString();
+        }
+
+        offsets = new int[stringCount];
+        byte[] buf = new byte[stringCount * 128];
+        int offset = 0;
+        for (int i=0; i<stringCount; i++) {
+            offsets[i] = offset;
+            offset = Utf8Utils.encodeString(strings[i], buf, offset);
+        }
+        encoded = buf;
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        int[] readLength = new int[1];
+        for (int i=0; i<stringCount; i++) {
+            blackhole.consume(Utf8Utils.utf8BytesWithUtf16LengthToString(
+                    encoded, offsets[i], strings[i].length(), readLength));
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) throws IOException {
+        DexDataWriter writer = new DexDataWriter(new NullOutputStream(), 0);
+        for (String string: strings) {
+            writer.writeString(string);
+        }
+        writer.flush();
+        blackhole.consume(writer.getPosition());
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override public void write(int b) {
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.HiddenApiRestriction;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Generates synthetic classes for the benchmarks, so that they don't depend on any external input.
+ *
+ * Each class has a static and an instance field, and a number of methods that call each other, with a mix of
+ * string, field and method references, branches, try blocks and debug info. Every 10th class extends
+ * java.lang.Object, and the others extend the previous class, so that there are non-trivial class hierarchies.
+ */
+public class SyntheticDexGenerator {
+    public static final Opcodes OPCODES = Opcodes.forApi(28);
+
+    private static final int METHOD_REGISTERS = 4;
+
+    private interface ReferenceInterner {
+        @Nonnull Reference intern(@Nonnull Reference reference);
+    }
+
+    private static final ReferenceInterner IMMUTABLE_REFERENCES = new ReferenceInterner() {
+        @Nonnull @Override public Reference intern(@Nonnull Reference reference) {
+            return reference;
+        }
+    };
+
+    @Nonnull
+    public static String getClassType(int classIndex) {
+        return "Lorg/jf/synthetic/Class" + classIndex + ";";
+    }
+
+    @Nonnull
+    private static String getSuperclass(int classIndex) {
+        return classIndex % 10 == 0 ? "Ljava/lang/Object;" : getClassType(classIndex - 1);
+    }
+
+    @Nonnull
+    private static List<MethodParameter> getParameters() {
+        return ImmutableList.<MethodParameter>of(new ImmutableMethodParameter("I", null, "value"));
+    }
+
+    /**
+     * Generates a dex file with the given number of classes and methods per class.
+     */
+    @Nonnull
+    public static DexFile generateDexFile(int classCount, int methodsPerClass) {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<classCount; i++) {
+            String type = getClassType(i);
+
+            List<Field> fields = ImmutableList.<Field>of(
+                    new ImmutableField(type, "name", "Ljava/lang/String;",
+                            AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(),
+                            new ImmutableStringEncodedValue("Class" + i), null, null),
+                    new ImmutableField(type, "count", "I", AccessFlags.PRIVATE.getValue(), null, null, null));
+
+            List<Method> methods = Lists.newArrayList();
+            for (int j=0; j<methodsPerClass; j++) {
+                methods.add(new ImmutableMethod(type, "method" + j, getParameters(), "I",
+                        AccessFlags.PUBLIC.getValue(), null, null,
+                        generateMethodImplementation(IMMUTABLE_REFERENCES, i, j, methodsPerClass)));
+            }
+
+            classDefs.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), getSuperclass(i), null,
+                    "Class" + i + ".java", null, fields, methods));
+        }
+        return new ImmutableDexFile(OPCODES, classDefs);
+    }
+
+    /**
+     * Generates the same classes as generateDexFile, directly into a DexBuilder, the same way smali does.
+     */
+    @Nonnull
+    public static DexBuilder generateDexBuilder(int classCount, int methodsPerClass) {
+        final DexBuilder dexBuilder = new DexBuilder(OPCODES);
+        ReferenceInterner interner = new ReferenceInterner() {
+            @Nonnull @Override public Reference intern(@Nonnull Reference reference) {
+                return dexBuilder.internReference(reference);
+            }
+        };
+
+        for (int i=0; i<classCount; i++) {
+            String type = getClassType(i);
+
+            List<BuilderField> fields = ImmutableList.of(
+                    dexBuilder.internField(type, "name", "Ljava/lang/String;",
+                            AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(),
+                            new ImmutableStringEncodedValue("Class" + i), ImmutableSet.of(),
+                            ImmutableSet.<HiddenApiRestriction>of()),
+                    dexBuilder.internField(type, "count", "I", AccessFlags.PRIVATE.getValue(), null,
+                            ImmutableSet.of(), ImmutableSet.<HiddenApiRestriction>of()));
+
+            List<BuilderMethod> methods = Lists.newArrayList();
+            for (int j=0; j<methodsPerClass; j++) {
+                methods.add(dexBuilder.internMethod(type, "method" + j, getParameters(), "I",
+                        AccessFlags.PUBLIC.getValue(), ImmutableSet.of(), ImmutableSet.<HiddenApiRestriction>of(),
+                        generateMethodImplementation(interner, i, j, methodsPerClass)));
+            }
+
+            dexBuilder.internClassDef(type, AccessFlags.PUBLIC.getValue(), getSuperclass(i), null,
+                    "Class" + i + ".java", ImmutableSet.of(), fields, methods);
+        }
+        return dexBuilder;
+    }
+
+    /**
+     * Writes the given dex file to a byte array.
+     */
+    @Nonnull
+    public static byte[] writeDexFile(@Nonnull DexFile dexFile) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, dexFile);
+        return dataStore.getData();
+    }
+
+    /**
+     * Generates and writes a dex file with the given number of classes and methods per class, and loads it back as a
+     * DexBackedDexFile.
+     */
+    @Nonnull
+    public static DexBackedDexFile generateDexBackedDexFile(int classCount, int methodsPerClass) throws IOException {
+        return new DexBackedDexFile(OPCODES, writeDexFile(generateDexFile(classCount, methodsPerClass)));
+    }
+
+    /**
+     * Generates a single method with a large number of basic blocks, including backwards branches, which is
+     * expensive to analyze.
+     *
+     * @param blockCount The number of basic blocks in the method
+     */
+    @Nonnull
+    public static Method generateLargeMethod(int blockCount) {
+        String type = getClassType(0);
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(METHOD_REGISTERS);
+        Reference method = new ImmutableMethodReference(type, "method0", ImmutableList.of("I"), "I");
+
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 1, 0));
+        for (int k=0; k<blockCount; k++) {
+            builder.addLabel("block" + k);
+            builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, (k % 8) - 4));
+            builder.addInstruction(new BuilderInstruction22b(Opcode.ADD_INT_LIT8, 1, 1, 1));
+            builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 0, builder.getLabel("block" + (k + 1))));
+            builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 2, 1, 0, 0, 0, method));
+            builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_RESULT, 1));
+            if (k % 4 == 3) {
+                builder.addInstruction(new BuilderInstruction21t(Opcode.IF_NEZ, 1,
+                        builder.getLabel("block" + (k / 2))));
+            }
+        }
+        builder.addLabel("block" + blockCount);
+        builder.addInstruction(new BuilderInstruction11x(Opcode.RETURN, 1));
+
+        return new ImmutableMethod(type, "largeMethod", getParameters(), "I", AccessFlags.PUBLIC.getValue(), null,
+                null, builder.getMethodImplementation());
+    }
+
+    @Nonnull
+    private static MethodImplementation generateMethodImplementation(@Nonnull ReferenceInterner interner,
+                                                                     int classIndex, int methodIndex,
+                                                                     int methodsPerClass) {
+        String type = getClassType(classIndex);
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(METHOD_REGISTERS);
+        // v0 and v1 are locals, v2 is this and v3 is the int parameter
+
+        builder.addLineNumber(methodIndex * 10 + 1);
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                interner.intern(new ImmutableStringReference("string_" + classIndex + "_" + methodIndex))));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 1, 0, 0, 0, 0, 0,
+                interner.intern(new ImmutableMethodReference("Ljava/lang/String;", "length",
+                        ImmutableList.<String>of(), "I"))));
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_RESULT, 1));
+        builder.addInstruction(new BuilderInstruction12x(Opcode.ADD_INT_2ADDR, 1, 3));
+        builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 1, builder.getLabel("skip")));
+
+        builder.addLineNumber(methodIndex * 10 + 2);
+        builder.addLabel("tryStart");
+        builder.addInstruction(new BuilderInstruction21c(Opcode.SGET_OBJECT, 0,
+                interner.intern(new ImmutableFieldReference(type, "name", "Ljava/lang/String;"))));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 2, 1, 0, 0, 0,
+                interner.intern(new ImmutableMethodReference(type, "method" + ((methodIndex + 1) % methodsPerClass),
+                        ImmutableList.of("I"), "I"))));
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_RESULT, 1));
+        builder.addLabel("tryEnd");
+
+        builder.addLabel("skip");
+        builder.addInstruction(new BuilderInstruction11x(Opcode.RETURN, 1));
+
+        Label handler = builder.addLabel("handler");
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 0));
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 1, 0));
+        builder.addInstruction(new BuilderInstruction11x(Opcode.RETURN, 1));
+
+        builder.addCatch((TypeReference)interner.intern(new ImmutableTypeReference("Ljava/lang/Exception;")),
+                builder.getLabel("tryStart"), builder.getLabel("tryEnd"), handler);
+
+        return builder.getMethodImplementation();
+    }
+}
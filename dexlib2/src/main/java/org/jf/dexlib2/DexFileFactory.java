@@ -39,6 +39,7 @@ import com.google.common.io.Files;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.NotADexFile;
 import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
+import org.jf.dexlib2.dexbacked.DexBuffer;
 import org.jf.dexlib2.dexbacked.OatFile;
 import org.jf.dexlib2.dexbacked.OatFile.NotAnOatFileException;
 import org.jf.dexlib2.dexbacked.OatFile.VdexProvider;
@@ -46,13 +47,16 @@ import org.jf.dexlib2.dexbacked.ZipDexContainer;
 import org.jf.dexlib2.dexbacked.ZipDexContainer.NotAZipFileException;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.MultiDexContainer;
+import org.jf.dexlib2.util.DexUtil;
 import org.jf.dexlib2.writer.pool.DexPool;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.*;
 
 public final class DexFileFactory {
 
@@ -79,12 +83,31 @@ public final class DexFileFactory {
      */
     @Nonnull
     public static DexBackedDexFile loadDexFile(@Nonnull File file, @Nullable Opcodes opcodes) throws IOException {
+        return loadDexFile(file, opcodes, false);
+    }
+
+    /**
+     * Loads a dex/apk/odex/oat file.
+     *
+     * This is the same as {@link #loadDexFile(File, Opcodes)}, except that it can optionally memory map the file
+     * instead of reading it onto the heap. Mapping is supported for dex and oat files (and their vdex files), and for
+     * dex entries that are stored uncompressed in a zip file. Odex files and compressed zip entries are always read
+     * onto the heap.
+     *
+     * @param file The file to open
+     * @param opcodes The set of opcodes to use
+     * @param mapFile Whether to memory map the file, where possible
+     * @return A DexBackedDexFile for the given file
+     */
+    @Nonnull
+    public static DexBackedDexFile loadDexFile(@Nonnull File file, @Nullable Opcodes opcodes, boolean mapFile)
+            throws IOException {
         if (!file.exists()) {
             throw new DexFileNotFoundException("%s does not exist", file.getName());
         }
 
         try {
-            ZipDexContainer container = new ZipDexContainer(file, opcodes);
+            ZipDexContainer container = new ZipDexContainer(file, opcodes, mapFile);
             return new DexEntryFinder(file.getPath(), container).findEntry("classes.dex", true).getDexFile();
         } catch (NotAZipFileException ex) {
             // eat it and continue
@@ -93,7 +116,7 @@ public final class DexFileFactory {
         InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
         try {
             try {
-                return DexBackedDexFile.fromInputStream(opcodes, inputStream);
+                return loadRawDexFile(file, opcodes, inputStream, mapFile);
             } catch (DexBackedDexFile.NotADexFile ex) {
                 // just eat it
             }
@@ -109,7 +132,7 @@ public final class DexFileFactory {
 
             OatFile oatFile = null;
             try {
-                oatFile = OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
+                oatFile = loadOatFile(file, inputStream, mapFile);
             } catch (NotAnOatFileException ex) {
                 // just eat it
             }
@@ -179,12 +202,29 @@ public final class DexFileFactory {
             @Nonnull String dexEntry,
             boolean exactMatch,
             @Nullable Opcodes opcodes) throws IOException {
+        return loadDexEntry(file, dexEntry, exactMatch, opcodes, false);
+    }
+
+    /**
+     * Loads a dex entry from a container format (zip/oat)
+     *
+     * This is the same as {@link #loadDexEntry(File, String, boolean, Opcodes)}, except that it can optionally
+     * memory map the container, instead of reading it onto the heap.
+     *
+     * @param mapFile Whether to memory map the container file, where possible
+     */
+    public static MultiDexContainer.DexEntry<? extends DexBackedDexFile> loadDexEntry(
+            @Nonnull File file,
+            @Nonnull String dexEntry,
+            boolean exactMatch,
+            @Nullable Opcodes opcodes,
+            boolean mapFile) throws IOException {
         if (!file.exists()) {
             throw new DexFileNotFoundException("Container file %s does not exist", file.getName());
         }
 
         try {
-            ZipDexContainer container = new ZipDexContainer(file, opcodes);
+            ZipDexContainer container = new ZipDexContainer(file, opcodes, mapFile);
             return new DexEntryFinder(file.getPath(), container).findEntry(dexEntry, exactMatch);
         } catch (NotAZipFileException ex) {
             // eat it and continue
@@ -194,7 +234,7 @@ public final class DexFileFactory {
         try {
             OatFile oatFile = null;
             try {
-                oatFile = OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
+                oatFile = loadOatFile(file, inputStream, mapFile);
             } catch (NotAnOatFileException ex) {
                 // just eat it
             }
@@ -233,11 +273,24 @@ public final class DexFileFactory {
      */
     public static MultiDexContainer<? extends DexBackedDexFile> loadDexContainer(
             @Nonnull File file, @Nullable final Opcodes opcodes) throws IOException {
+        return loadDexContainer(file, opcodes, false);
+    }
+
+    /**
+     * Loads a file containing 1 or more dex files
+     *
+     * This is the same as {@link #loadDexContainer(File, Opcodes)}, except that it can optionally memory map the
+     * file, instead of reading it onto the heap.
+     *
+     * @param mapFile Whether to memory map the file, where possible
+     */
+    public static MultiDexContainer<? extends DexBackedDexFile> loadDexContainer(
+            @Nonnull File file, @Nullable final Opcodes opcodes, boolean mapFile) throws IOException {
         if (!file.exists()) {
             throw new DexFileNotFoundException("%s does not exist", file.getName());
         }
 
-        ZipDexContainer zipDexContainer = new ZipDexContainer(file, opcodes);
+        ZipDexContainer zipDexContainer = new ZipDexContainer(file, opcodes, mapFile);
         if (zipDexContainer.isZipFile()) {
             return zipDexContainer;
         }
@@ -245,7 +298,7 @@ public final class DexFileFactory {
         InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
         try {
             try {
-                DexBackedDexFile dexFile = DexBackedDexFile.fromInputStream(opcodes, inputStream);
+                DexBackedDexFile dexFile = loadRawDexFile(file, opcodes, inputStream, mapFile);
                 return new SingletonMultiDexContainer(file.getPath(), dexFile);
             } catch (DexBackedDexFile.NotADexFile ex) {
                 // just eat it
@@ -263,7 +316,7 @@ public final class DexFileFactory {
 
             OatFile oatFile = null;
             try {
-                oatFile = OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
+                oatFile = loadOatFile(file, inputStream, mapFile);
             } catch (NotAnOatFileException ex) {
                 // just eat it
             }
@@ -282,6 +335,98 @@ public final class DexFileFactory {
         throw new UnsupportedFileTypeException("%s is not an apk, dex, odex or oat file.", file.getPath());
     }
 
+    /**
+     * Loads all of the dex entries in the given container, using a pool of threads.
+     *
+     * Loading an entry from a zip file involves reading and inflating it, so loading the entries of an apk with many
+     * dex files concurrently is significantly faster than loading them one at a time.
+     *
+     * @param container The container to load the entries from
+     * @param jobs The number of threads to use
+     * @return The dex entries, in the same order as the names returned by getDexEntryNames()
+     * @throws InterruptedIOException If the calling thread is interrupted while waiting for the entries to load. The
+     * thread's interrupt status is preserved.
+     */
+    @Nonnull
+    public static <T extends DexFile> List<MultiDexContainer.DexEntry<T>> loadAllDexEntries(
+            @Nonnull final MultiDexContainer<T> container, int jobs) throws IOException {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("jobs must be positive");
+        }
+
+        List<String> entryNames = container.getDexEntryNames();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, entryNames.size())));
+        try {
+            List<Future<MultiDexContainer.DexEntry<T>>> tasks = Lists.newArrayListWithCapacity(entryNames.size());
+            for (final String entryName: entryNames) {
+                tasks.add(executor.submit(new Callable<MultiDexContainer.DexEntry<T>>() {
+                    @Override public MultiDexContainer.DexEntry<T> call() throws IOException {
+                        MultiDexContainer.DexEntry<T> entry = container.getEntry(entryName);
+                        if (entry == null) {
+                            throw new DexFileNotFoundException("Could not find dex entry %s", entryName);
+                        }
+                        return entry;
+                    }
+                }));
+            }
+
+            List<MultiDexContainer.DexEntry<T>> entries = Lists.newArrayListWithCapacity(tasks.size());
+            for (Future<MultiDexContainer.DexEntry<T>> task: tasks) {
+                entries.add(getLoadedEntry(task));
+            }
+            return entries;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Nonnull
+    private static <T extends DexFile> MultiDexContainer.DexEntry<T> getLoadedEntry(
+            @Nonnull Future<MultiDexContainer.DexEntry<T>> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedException =
+                    new InterruptedIOException("Interrupted while loading dex entries");
+            interruptedException.initCause(ex);
+            throw interruptedException;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Nonnull
+    private static DexBackedDexFile loadRawDexFile(@Nonnull File file, @Nullable Opcodes opcodes,
+                                                   @Nonnull InputStream inputStream, boolean mapFile)
+            throws IOException {
+        if (mapFile) {
+            // this resets the stream, and throws NotADexFile if it's not a dex file
+            DexUtil.verifyDexHeader(inputStream);
+            return DexBackedDexFile.fromMappedFile(opcodes, file);
+        }
+        return DexBackedDexFile.fromInputStream(opcodes, inputStream);
+    }
+
+    @Nonnull
+    private static OatFile loadOatFile(@Nonnull File file, @Nonnull InputStream inputStream, boolean mapFile)
+            throws IOException {
+        if (mapFile) {
+            return OatFile.fromMappedFile(file, new FilenameVdexProvider(file, true));
+        }
+        return OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
+    }
+
     /**
      * Writes a DexFile out to disk
      *
@@ -491,33 +636,58 @@ public final class DexFileFactory {
 
     public static class FilenameVdexProvider implements VdexProvider {
         private final File vdexFile;
+        private final boolean mapFile;
 
         @Nullable
         private byte[] buf = null;
         private boolean loadedVdex = false;
 
+        @Nullable
+        private ByteBuffer mappedBuf = null;
+        private boolean mappedVdex = false;
+
         public FilenameVdexProvider(File oatFile) {
+            this(oatFile, false);
+        }
+
+        /**
+         * @param oatFile The oat file to find the vdex file for
+         * @param mapFile If true, {@link #getVdexBuffer()} will memory map the vdex file, instead of reading it onto
+         *                the heap
+         */
+        public FilenameVdexProvider(File oatFile, boolean mapFile) {
             File oatParent = oatFile.getAbsoluteFile().getParentFile();
             String baseName = Files.getNameWithoutExtension(oatFile.getAbsolutePath());
             vdexFile = new File(oatParent, baseName + ".vdex");
+            this.mapFile = mapFile;
+        }
+
+        @Nullable
+        private File findVdexFile() {
+            File candidateFile = vdexFile;
+
+            if (!candidateFile.exists()) {
+                // On api 28, for framework files, the vdex file in the architecture-specific directory is just a
+                // symlink to a common vdex file in the framework directory. When loop-mounting a system image, that
+                // symlink won't resolve because it uses an absolute path. As a workaround, we'll just search upward
+                // one directory to see if it's there.
+                File parentDirectory = candidateFile.getParentFile().getParentFile();
+                if (parentDirectory != null) {
+                    candidateFile = new File(parentDirectory, vdexFile.getName());
+                }
+            }
+
+            if (candidateFile.exists()) {
+                return candidateFile;
+            }
+            return null;
         }
 
         @Nullable @Override public byte[] getVdex() {
             if (!loadedVdex) {
-                File candidateFile = vdexFile;
-
-                if (!candidateFile.exists()) {
-                    // On api 28, for framework files, the vdex file in the architecture-specific directory is just a
-                    // symlink to a common vdex file in the framework directory. When loop-mounting a system image, that
-                    // symlink won't resolve because it uses an absolute path. As a workaround, we'll just search upward
-                    // one directory to see if it's there.
-                    File parentDirectory = candidateFile.getParentFile().getParentFile();
-                    if (parentDirectory != null) {
-                        candidateFile = new File(parentDirectory, vdexFile.getName());
-                    }
-                }
+                File candidateFile = findVdexFile();
 
-                if (candidateFile.exists()) {
+                if (candidateFile != null) {
                     try {
                         buf = ByteStreams.toByteArray(new FileInputStream(candidateFile));
                     } catch (FileNotFoundException e) {
@@ -531,5 +701,29 @@ public final class DexFileFactory {
 
             return buf;
         }
+
+        @Nullable @Override public ByteBuffer getVdexBuffer() {
+            if (!mapFile) {
+                byte[] vdex = getVdex();
+                return vdex == null ? null : ByteBuffer.wrap(vdex);
+            }
+
+            if (!mappedVdex) {
+                File candidateFile = findVdexFile();
+
+                if (candidateFile != null) {
+                    try {
+                        mappedBuf = DexBuffer.mapFile(candidateFile);
+                    } catch (FileNotFoundException e) {
+                        mappedBuf = null;
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                mappedVdex = true;
+            }
+
+            return mappedBuf;
+        }
     }
 }
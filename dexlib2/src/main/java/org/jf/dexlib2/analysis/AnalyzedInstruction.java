@@ -32,6 +32,7 @@
 package org.jf.dexlib2.analysis;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.Opcode;
@@ -64,17 +65,23 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
      */
     protected final int instructionIndex;
 
+    private static final AnalyzedInstruction[] NO_INSTRUCTIONS = new AnalyzedInstruction[0];
+
     /**
-     * Instructions that can pass on execution to this one during normal execution
+     * Instructions that can pass on execution to this one during normal execution, sorted by instruction index. Only
+     * the first predecessorCount entries are valid.
      */
     @Nonnull
-    protected final TreeSet<AnalyzedInstruction> predecessors = new TreeSet<AnalyzedInstruction>();
+    protected AnalyzedInstruction[] predecessors = NO_INSTRUCTIONS;
+    protected int predecessorCount = 0;
 
     /**
-     * Instructions that can execution could pass on to next during normal execution
+     * Instructions that can execution could pass on to next during normal execution. Only the first successorCount
+     * entries are valid.
      */
     @Nonnull
-    protected final LinkedList<AnalyzedInstruction> successors = new LinkedList<AnalyzedInstruction>();
+    protected AnalyzedInstruction[] successors = NO_INSTRUCTIONS;
+    protected int successorCount = 0;
 
     /**
      * This contains the register types *before* the instruction has executed
@@ -83,7 +90,8 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     protected final RegisterType[] preRegisterMap;
 
     /**
-     * This contains the register types *after* the instruction has executed
+     * This contains the register types *after* the instruction has executed. For an instruction that can never change
+     * the type of any register, this is the same array as preRegisterMap.
      */
     @Nonnull
     protected final RegisterType[] postRegisterMap;
@@ -106,25 +114,49 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
         this.instruction = instruction;
         this.originalInstruction = instruction;
         this.instructionIndex = instructionIndex;
-        this.postRegisterMap = new RegisterType[registerCount];
         this.preRegisterMap = new RegisterType[registerCount];
-        RegisterType unknown = RegisterType.getRegisterType(RegisterType.UNKNOWN, null);
-        for (int i=0; i<registerCount; i++) {
-            preRegisterMap[i] = unknown;
-            postRegisterMap[i] = unknown;
+        Arrays.fill(preRegisterMap, RegisterType.getRegisterType(RegisterType.UNKNOWN, null));
+        if (instructionIndex >= 0 && neverSetsRegisters(instruction.getOpcode())) {
+            this.postRegisterMap = preRegisterMap;
+        } else {
+            this.postRegisterMap = preRegisterMap.clone();
         }
     }
 
+    /**
+     * Determines if an instruction with the given opcode can never change the type of a register. The pre- and
+     * post-instruction register types for such an instruction are always the same, so they can share a single array.
+     *
+     * This must be kept in sync with setsRegister.
+     */
+    private static boolean neverSetsRegisters(@Nonnull Opcode opcode) {
+        return !opcode.setsRegister() &&
+                !opcode.canInitializeReference() &&
+                !opcode.odexOnly() &&
+                opcode != Opcode.IF_EQZ &&
+                opcode != Opcode.IF_NEZ;
+    }
+
     public int getInstructionIndex() {
         return instructionIndex;
     }
 
     public int getPredecessorCount() {
-        return predecessors.size();
+        return predecessorCount;
     }
 
     public SortedSet<AnalyzedInstruction> getPredecessors() {
-        return Collections.unmodifiableSortedSet(predecessors);
+        return ImmutableSortedSet.copyOf(Arrays.asList(predecessors).subList(0, predecessorCount));
+    }
+
+    /**
+     * @return The predecessor with the lowest instruction index. This must only be called if there is at least one
+     * predecessor
+     */
+    @Nonnull
+    protected AnalyzedInstruction getFirstPredecessor() {
+        assert predecessorCount > 0;
+        return predecessors[0];
     }
 
     public RegisterType getPredecessorRegisterType(@Nonnull AnalyzedInstruction predecessor, int registerNumber) {
@@ -139,11 +171,33 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     }
 
     protected boolean addPredecessor(AnalyzedInstruction predecessor) {
-        return predecessors.add(predecessor);
+        int insertionPoint;
+        if (predecessorCount == 0 || predecessors[predecessorCount-1].instructionIndex < predecessor.instructionIndex) {
+            // predecessors are usually discovered in order, so check for the common case first
+            insertionPoint = predecessorCount;
+        } else {
+            insertionPoint = Arrays.binarySearch(predecessors, 0, predecessorCount, predecessor);
+            if (insertionPoint >= 0) {
+                return false;
+            }
+            insertionPoint = -(insertionPoint + 1);
+        }
+
+        if (predecessorCount == predecessors.length) {
+            predecessors = Arrays.copyOf(predecessors, Math.max(1, predecessorCount * 2));
+        }
+        System.arraycopy(predecessors, insertionPoint, predecessors, insertionPoint + 1,
+                predecessorCount - insertionPoint);
+        predecessors[insertionPoint] = predecessor;
+        predecessorCount++;
+        return true;
     }
 
     protected void addSuccessor(AnalyzedInstruction successor) {
-        successors.add(successor);
+        if (successorCount == successors.length) {
+            successors = Arrays.copyOf(successors, Math.max(1, successorCount * 2));
+        }
+        successors[successorCount++] = successor;
     }
 
     protected void setDeodexedInstruction(Instruction instruction) {
@@ -158,7 +212,19 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
 
     @Nonnull
     public List<AnalyzedInstruction> getSuccessors() {
-        return Collections.unmodifiableList(successors);
+        return Collections.unmodifiableList(Arrays.asList(successors).subList(0, successorCount));
+    }
+
+    public int getSuccessorCount() {
+        return successorCount;
+    }
+
+    @Nonnull
+    public AnalyzedInstruction getSuccessor(int index) {
+        if (index >= successorCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        return successors[index];
     }
 
     @Nonnull
@@ -186,10 +252,10 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     public boolean isBeginningInstruction() {
         //if this instruction has no predecessors, it is either the fake "StartOfMethod" instruction or it is an
         //unreachable instruction.
-        if (predecessors.size() == 0) {
+        if (predecessorCount == 0) {
             return false;
         }
-        return predecessors.first().instructionIndex == -1;
+        return predecessors[0].instructionIndex == -1;
     }
 
     /*
@@ -241,7 +307,8 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     @Nonnull
     protected RegisterType getMergedPreRegisterTypeFromPredecessors(int registerNumber) {
         RegisterType mergedRegisterType = null;
-        for (AnalyzedInstruction predecessor: predecessors) {
+        for (int i=0; i<predecessorCount; i++) {
+            AnalyzedInstruction predecessor = predecessors[i];
             RegisterType predecessorRegisterType = getPredecessorRegisterType(predecessor, registerNumber);
             if (predecessorRegisterType != null) {
                 if (mergedRegisterType == null) {
@@ -301,11 +368,13 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
             return false;
         }
 
+        // postRegisterMap may be the same array as preRegisterMap, so grab the old post-instruction type first
+        RegisterType oldPostRegisterType = postRegisterMap[registerNumber];
         preRegisterMap[registerNumber] = mergedType;
         verifiedInstructions.clear(instructionIndex);
 
         if (!setsRegister(registerNumber)) {
-            if (!postRegisterMap[registerNumber].equals(mergedType)) {
+            if (!oldPostRegisterType.equals(mergedType)) {
                 postRegisterMap[registerNumber] = mergedType;
                 return true;
             }
@@ -391,7 +460,7 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                 getPredecessorCount() == 1 &&
                 (instruction.getOpcode() == Opcode.IF_EQZ || instruction.getOpcode() == Opcode.IF_NEZ)) {
 
-            AnalyzedInstruction prevInstruction = predecessors.first();
+            AnalyzedInstruction prevInstruction = predecessors[0];
             if (prevInstruction.instruction.getOpcode() == Opcode.INSTANCE_OF &&
                     MethodAnalyzer.canPropagateTypeAfterInstanceOf(
                             prevInstruction, this, methodAnalyzer.getClassPath())) {
@@ -412,7 +481,8 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
 
                     RegisterType newType = null;
 
-                    for (AnalyzedInstruction prevPrevAnalyzedInstruction : prevInstruction.predecessors) {
+                    for (int i=0; i<prevInstruction.predecessorCount; i++) {
+                        AnalyzedInstruction prevPrevAnalyzedInstruction = prevInstruction.predecessors[i];
                         Opcode opcode = prevPrevAnalyzedInstruction.instruction.getOpcode();
                         if (opcode == Opcode.MOVE_OBJECT || opcode == Opcode.MOVE_OBJECT_16 ||
                                 opcode == Opcode.MOVE_OBJECT_FROM16) {
@@ -546,7 +616,7 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                 getPredecessorCount() == 1 &&
                 (instruction.getOpcode() == Opcode.IF_EQZ || instruction.getOpcode() == Opcode.IF_NEZ)) {
 
-            AnalyzedInstruction prevInstruction = predecessors.first();
+            AnalyzedInstruction prevInstruction = predecessors[0];
             if (prevInstruction.instruction.getOpcode() == Opcode.INSTANCE_OF &&
                     MethodAnalyzer.canPropagateTypeAfterInstanceOf(
                             prevInstruction, this, methodAnalyzer.getClassPath())) {
@@ -564,7 +634,8 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
 
                     RegisterType newType = null;
 
-                    for (AnalyzedInstruction prevPrevAnalyzedInstruction : prevInstruction.predecessors) {
+                    for (int i=0; i<prevInstruction.predecessorCount; i++) {
+                        AnalyzedInstruction prevPrevAnalyzedInstruction = prevInstruction.predecessors[i];
                         Opcode opcode = prevPrevAnalyzedInstruction.instruction.getOpcode();
                         if (opcode == Opcode.MOVE_OBJECT || opcode == Opcode.MOVE_OBJECT_16 ||
                                 opcode == Opcode.MOVE_OBJECT_FROM16) {
@@ -66,6 +66,23 @@ public class ArrayProto implements TypeProto {
     }
 
     @Override public String toString() { return getType(); }
+
+    // A ClassPath may evict and later reload a class, so two protos for the same type in the same ClassPath are equal
+    @Override public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ArrayProto)) {
+            return false;
+        }
+        ArrayProto other = (ArrayProto)o;
+        return classPath == other.classPath && dimensions == other.dimensions &&
+                elementType.equals(other.elementType);
+    }
+
+    @Override public int hashCode() {
+        return 31 * dimensions + elementType.hashCode();
+    }
     @Nonnull @Override public ClassPath getClassPath() { return classPath; }
     @Nonnull @Override public String getType() { return makeArrayType(elementType, dimensions); }
     public int getDimensions() { return dimensions; }
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.SparseArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent cache of the vtables and instance field offsets of a set of classes.
+ *
+ * Calculating the vtables and field offsets for the classes in a full bootclasspath is fairly expensive, and the result
+ * is the same every time for a given bootclasspath. A ClassLayoutCache can be saved to a file after the layouts have
+ * been calculated once, and then loaded and attached to a ClassPath with {@link ClassPath#setLayoutCache}, so that
+ * later runs can use the saved layouts instead of recalculating them.
+ *
+ * A cache file is identified by a {@link Key}, which identifies everything that could affect the layouts. A cache file
+ * with a different key is ignored.
+ *
+ * The file is read into memory when it is loaded, but the strings and the layout for each individual class aren't
+ * decoded until they're actually needed.
+ */
+public class ClassLayoutCache {
+    private static final int MAGIC = 0x64786c63; // "dxlc"
+    private static final int VERSION = 2;
+
+    @Nonnull private final byte[] buf;
+    private final int stringOffsetsStart;
+    private final int stringDataStart;
+    // decoded lazily. Strings are immutable, so racing threads decoding the same string is harmless
+    @Nonnull private final String[] strings;
+    @Nonnull private final Map<String, Integer> classOffsets;
+    private final boolean stampOutdated;
+
+    private ClassLayoutCache(@Nonnull byte[] buf, int stringCount, int stringOffsetsStart, int stringDataStart,
+                             int classCount, boolean stampOutdated) {
+        this.buf = buf;
+        this.stringOffsetsStart = stringOffsetsStart;
+        this.stringDataStart = stringDataStart;
+        this.strings = new String[stringCount];
+        this.classOffsets = Maps.newHashMapWithExpectedSize(classCount);
+        this.stampOutdated = stampOutdated;
+    }
+
+    /**
+     * Identifies the inputs that the cached layouts were calculated from.
+     *
+     * A key is matched using a stamp made from the path, size and modification time of each file. If the stamp doesn't
+     * match, e.g. because the files were copied or touched, the key falls back to comparing a hash of the contents of
+     * the files, which is only calculated when it's needed.
+     */
+    public static class Key {
+        @Nonnull private final List<File> files;
+        @Nonnull private final String params;
+        @Nonnull private final String stamp;
+        @Nullable private String contentHash;
+
+        /**
+         * @param files The files that the classes are loaded from, in classpath order
+         * @param apiLevel The api level that is being used
+         * @param oatVersion The oat version of the ClassPath, or ClassPath.NOT_ART
+         * @param checkPackagePrivateAccess Whether the ClassPath checks package private access
+         */
+        public Key(@Nonnull Iterable<File> files, int apiLevel, int oatVersion, boolean checkPackagePrivateAccess) {
+            this.files = ImmutableList.copyOf(files);
+            this.params = String.format("%d:%d:%b", apiLevel, oatVersion, checkPackagePrivateAccess);
+
+            MessageDigest md = newDigest();
+            for (File file: this.files) {
+                md.update(String.format("%s:%d:%d\n", file.getAbsolutePath(), file.length(), file.lastModified())
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            this.stamp = formatKey(md);
+        }
+
+        /**
+         * @return A key based on the path, size and modification time of each file
+         */
+        @Nonnull
+        public String getStamp() {
+            return stamp;
+        }
+
+        /**
+         * @return A key based on the name and contents of each file. This reads all of the files the first time it's
+         * called.
+         */
+        @Nonnull
+        public String getContentHash() throws IOException {
+            if (contentHash == null) {
+                MessageDigest md = newDigest();
+                byte[] buffer = new byte[64 * 1024];
+                for (File file: files) {
+                    md.update(file.getName().getBytes(StandardCharsets.UTF_8));
+                    InputStream input = new FileInputStream(file);
+                    try {
+                        int bytesRead = input.read(buffer);
+                        while (bytesRead >= 0) {
+                            md.update(buffer, 0, bytesRead);
+                            bytesRead = input.read(buffer);
+                        }
+                    } finally {
+                        input.close();
+                    }
+                }
+                contentHash = formatKey(md);
+            }
+            return contentHash;
+        }
+
+        @Nonnull
+        private String formatKey(@Nonnull MessageDigest md) {
+            return BaseEncoding.base16().lowerCase().encode(md.digest()) + ":" + params;
+        }
+
+        @Nonnull
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Loads a previously saved cache.
+     *
+     * @param file The cache file to load
+     * @param key The expected key of the cache file
+     * @return The loaded cache, or null if the file doesn't exist, isn't a valid cache file, or has a different key
+     */
+    @Nullable
+    public static ClassLayoutCache load(@Nonnull File file, @Nonnull Key key) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] buf = Files.toByteArray(file);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(buf));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            boolean stampOutdated = !input.readUTF().equals(key.getStamp());
+            String contentHash = input.readUTF();
+            if (stampOutdated && !contentHash.equals(key.getContentHash())) {
+                return null;
+            }
+
+            int stringCount = input.readInt();
+            int stringDataSize = input.readInt();
+            int stringOffsetsStart = buf.length - input.available();
+            int stringDataStart = stringOffsetsStart + stringCount * 4;
+            if (input.skipBytes(stringCount * 4 + stringDataSize) != stringCount * 4 + stringDataSize) {
+                return null;
+            }
+
+            int classCount = input.readInt();
+            ClassLayoutCache layoutCache = new ClassLayoutCache(buf, stringCount, stringOffsetsStart,
+                    stringDataStart, classCount, stampOutdated);
+            int position = buf.length - input.available();
+            for (int i=0; i<classCount; i++) {
+                String type = layoutCache.getString(input.readInt());
+                int length = input.readInt();
+                position += 8;
+                layoutCache.classOffsets.put(type, position);
+                if (input.skipBytes(length) != length) {
+                    return null;
+                }
+                position += length;
+            }
+            return layoutCache;
+        } catch (EOFException ex) {
+            return null;
+        } catch (IndexOutOfBoundsException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the layouts of the given classes to a file.
+     *
+     * Any class whose layout can't be fully resolved is skipped. The file is written to a temporary file and then
+     * renamed, so that a concurrent reader never sees a partially written file.
+     *
+     * @param file The cache file to write
+     * @param key The key for the cache
+     * @param classPath The ClassPath to get the layouts from
+     * @param types The types of the classes to include in the cache
+     * @return The number of classes that were written
+     */
+    public static int save(@Nonnull File file, @Nonnull Key key, @Nonnull ClassPath classPath,
+                           @Nonnull Iterable<String> types) throws IOException {
+        Map<String, Integer> stringIndexes = Maps.newHashMap();
+        List<String> strings = Lists.newArrayList();
+        ByteArrayOutputStream classData = new ByteArrayOutputStream();
+        DataOutputStream classOutput = new DataOutputStream(classData);
+        int classCount = 0;
+
+        Set<String> seenTypes = Sets.newHashSet();
+        for (String type: types) {
+            if (!seenTypes.add(type) || type.charAt(0) != 'L') {
+                continue;
+            }
+
+            ByteArrayOutputStream recordData = new ByteArrayOutputStream();
+            DataOutputStream recordOutput = new DataOutputStream(recordData);
+            try {
+                ClassProto classProto = (ClassProto)classPath.getClass(type);
+                List<Method> vtable = classProto.getVtable();
+                SparseArray<FieldReference> fields = classProto.getInstanceFields();
+                if (!classProto.isLayoutFullyResolved()) {
+                    continue;
+                }
+
+                recordOutput.writeInt(vtable.size());
+                for (Method method: vtable) {
+                    recordOutput.writeInt(internString(stringIndexes, strings, method.getDefiningClass()));
+                    recordOutput.writeInt(internString(stringIndexes, strings, method.getName()));
+                    recordOutput.writeInt(internString(stringIndexes, strings, method.getReturnType()));
+                    recordOutput.writeInt(method.getAccessFlags());
+                    List<? extends CharSequence> parameterTypes = method.getParameterTypes();
+                    recordOutput.writeInt(parameterTypes.size());
+                    for (CharSequence parameterType: parameterTypes) {
+                        recordOutput.writeInt(internString(stringIndexes, strings, parameterType.toString()));
+                    }
+                }
+
+                recordOutput.writeInt(fields.size());
+                for (int i=0; i<fields.size(); i++) {
+                    FieldReference field = fields.valueAt(i);
+                    recordOutput.writeInt(fields.keyAt(i));
+                    recordOutput.writeInt(internString(stringIndexes, strings, field.getDefiningClass()));
+                    recordOutput.writeInt(internString(stringIndexes, strings, field.getName()));
+                    recordOutput.writeInt(internString(stringIndexes, strings, field.getType()));
+                }
+            } catch (UnresolvedClassException ex) {
+                continue;
+            }
+
+            recordOutput.close();
+            classOutput.writeInt(internString(stringIndexes, strings, type));
+            classOutput.writeInt(recordData.size());
+            recordData.writeTo(classOutput);
+            classCount++;
+        }
+        classOutput.close();
+
+        // the strings are written separately from the offset table, so that they can be decoded individually
+        int[] stringOffsets = new int[strings.size()];
+        ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        DataOutputStream stringOutput = new DataOutputStream(stringData);
+        for (int i=0; i<stringOffsets.length; i++) {
+            stringOffsets[i] = stringData.size();
+            stringOutput.writeUTF(strings.get(i));
+        }
+        stringOutput.close();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(key.getStamp());
+            output.writeUTF(key.getContentHash());
+            output.writeInt(strings.size());
+            output.writeInt(stringData.size());
+            for (int offset: stringOffsets) {
+                output.writeInt(offset);
+            }
+            stringData.writeTo(output);
+            output.writeInt(classCount);
+            classData.writeTo(output);
+        } finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException(String.format("Could not rename %s to %s", tempFile, file));
+            }
+        }
+        return classCount;
+    }
+
+    private static int internString(@Nonnull Map<String, Integer> stringIndexes, @Nonnull List<String> strings,
+                                    @Nonnull String string) {
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndexes.put(string, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return Whether this cache was matched by the contents of the files rather than by their stamp. If so, it should
+     * be saved again so that the stamp is updated and the contents don't need to be hashed next time.
+     */
+    public boolean isStampOutdated() {
+        return stampOutdated;
+    }
+
+    /**
+     * @return The number of classes in this cache
+     */
+    public int getClassCount() {
+        return classOffsets.size();
+    }
+
+    /**
+     * @return The types of the classes in this cache
+     */
+    @Nonnull
+    public Set<String> getTypes() {
+        return Collections.unmodifiableSet(classOffsets.keySet());
+    }
+
+    public boolean containsClass(@Nonnull String type) {
+        return classOffsets.containsKey(type);
+    }
+
+    /**
+     * @param type The type of the class to get the vtable of
+     * @return The cached vtable for the given class, or null if the class isn't in this cache
+     */
+    @Nullable
+    public List<Method> getVtable(@Nonnull String type) {
+        DataInputStream input = openClass(type);
+        if (input == null) {
+            return null;
+        }
+
+        try {
+            return readVtable(input);
+        } catch (IOException ex) {
+            throw new ExceptionWithContext(ex, "Error while reading cached layout for %s", type);
+        }
+    }
+
+    /**
+     * @param type The type of the class to get the instance fields of
+     * @return The cached instance fields for the given class, keyed by field offset, or null if the class isn't in
+     * this cache
+     */
+    @Nullable
+    public SparseArray<FieldReference> getInstanceFields(@Nonnull String type) {
+        DataInputStream input = openClass(type);
+        if (input == null) {
+            return null;
+        }
+
+        try {
+            // skip over the vtable
+            readVtable(input);
+
+            int fieldCount = input.readInt();
+            SparseArray<FieldReference> fields = new SparseArray<FieldReference>(fieldCount);
+            for (int i=0; i<fieldCount; i++) {
+                int offset = input.readInt();
+                fields.put(offset, new ImmutableFieldReference(getString(input.readInt()), getString(input.readInt()),
+                        getString(input.readInt())));
+            }
+            return fields;
+        } catch (IOException ex) {
+            throw new ExceptionWithContext(ex, "Error while reading cached layout for %s", type);
+        }
+    }
+
+    @Nullable
+    private DataInputStream openClass(@Nonnull String type) {
+        Integer offset = classOffsets.get(type);
+        if (offset == null) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(buf, offset, buf.length - offset));
+    }
+
+    @Nonnull
+    private String getString(int index) throws IOException {
+        String string = strings[index];
+        if (string == null) {
+            int offsetPosition = stringOffsetsStart + index * 4;
+            int offset = stringDataStart + (((buf[offsetPosition] & 0xff) << 24) |
+                    ((buf[offsetPosition + 1] & 0xff) << 16) |
+                    ((buf[offsetPosition + 2] & 0xff) << 8) |
+                    (buf[offsetPosition + 3] & 0xff));
+            string = new DataInputStream(new ByteArrayInputStream(buf, offset, buf.length - offset)).readUTF();
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    @Nonnull
+    private List<Method> readVtable(@Nonnull DataInputStream input) throws IOException {
+        int vtableSize = input.readInt();
+        List<Method> vtable = Lists.newArrayListWithCapacity(vtableSize);
+        for (int i=0; i<vtableSize; i++) {
+            String definingClass = getString(input.readInt());
+            String name = getString(input.readInt());
+            String returnType = getString(input.readInt());
+            int accessFlags = input.readInt();
+
+            int parameterCount = input.readInt();
+            ImmutableList.Builder<ImmutableMethodParameter> parameters = ImmutableList.builder();
+            for (int j=0; j<parameterCount; j++) {
+                parameters.add(new ImmutableMethodParameter(getString(input.readInt()), null, null));
+            }
+
+            vtable.add(new ImmutableMethod(definingClass, name, parameters.build(), returnType, accessFlags, null,
+                    null, null));
+        }
+        return vtable;
+    }
+}
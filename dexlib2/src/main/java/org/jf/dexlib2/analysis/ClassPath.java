@@ -34,26 +34,44 @@ package org.jf.dexlib2.analysis;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.analysis.reflection.ReflectionClassDef;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.immutable.ImmutableDexFile;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * A set of classes that can be used to analyze code.
+ *
+ * A ClassPath is safe to use from multiple threads concurrently, as long as the ClassProviders it was created with are.
+ * This means that a ClassPath for a given bootclasspath can be created once and shared, with a separate layered
+ * ClassPath on top of it for each app being analyzed. See {@link #ClassPath(ClassPath, Iterable)}.
+ */
 public class ClassPath {
+    @Nullable private final ClassPath parent;
     @Nonnull private final TypeProto unknownClass;
+    @Nonnull private final Map<String, TypeProto> pinnedClasses;
+    @Nonnull private final LoadingCache<String, TypeProto> loadedClasses;
     @Nonnull private List<ClassProvider> classProviders;
     private final boolean checkPackagePrivateAccess;
     public final int oatVersion;
+    @Nullable private volatile ClassLayoutCache layoutCache;
 
     public static final int NOT_ART = -1;
     public static final int NOT_SPECIFIED = -2;
@@ -89,9 +107,33 @@ public class ClassPath {
      */
     public ClassPath(@Nonnull Iterable<? extends ClassProvider> classProviders, boolean checkPackagePrivateAccess,
                      int oatVersion) {
+        this(classProviders, checkPackagePrivateAccess, oatVersion, null);
+    }
+
+    /**
+     * Creates a new ClassPath instance that can load classes from the given providers, with a bounded class cache.
+     *
+     * By default, every TypeProto that is loaded is kept for the lifetime of the ClassPath, along with anything it has
+     * calculated (vtables, field offsets, etc.). For a ClassPath that is kept around for a long time, that cache can
+     * instead be limited with a cache spec such as "maximumSize=10000", "expireAfterAccess=10m" or "softValues". An
+     * evicted class is simply reloaded the next time it is needed. Weight based eviction is not supported.
+     *
+     * @param classProviders An iterable of ClassProviders. When loading a class, these providers will be searched in
+     *                       order
+     * @param checkPackagePrivateAccess Whether checkPackagePrivateAccess is needed, enabled for ONLY early API 17 by
+     *                                  default
+     * @param oatVersion The applicable oat version, or NOT_ART
+     * @param cacheSpec A guava CacheBuilderSpec for the class cache, or null for an unbounded cache
+     */
+    public ClassPath(@Nonnull Iterable<? extends ClassProvider> classProviders, boolean checkPackagePrivateAccess,
+                     int oatVersion, @Nullable CacheBuilderSpec cacheSpec) {
+        this.parent = null;
+        this.loadedClasses = buildCache(cacheSpec);
+
         // add fallbacks for certain special classes that must be present
+        pinnedClasses = Maps.newHashMap();
         unknownClass = new UnknownClassProto(this);
-        loadedClasses.put(unknownClass.getType(), unknownClass);
+        pinnedClasses.put(unknownClass.getType(), unknownClass);
         this.checkPackagePrivateAccess = checkPackagePrivateAccess;
         this.oatVersion = oatVersion;
 
@@ -109,8 +151,70 @@ public class ClassPath {
         this.classProviders.add(getBasicClasses());
     }
 
+    /**
+     * Creates a new ClassPath that is layered on top of an existing ClassPath.
+     *
+     * Any class that can be resolved by the parent ClassPath is always loaded from the parent, so that the TypeProtos
+     * for those classes (and anything they've calculated, like vtables and field offsets) are shared between all
+     * ClassPaths layered on the same parent. Only the classes that the parent can't resolve are loaded from the given
+     * providers. The parent is never modified, so a single parent can be used by any number of layered ClassPaths
+     * concurrently.
+     *
+     * This assumes that classes in the parent never depend on classes that are only available in the layered
+     * ClassPath, which is the case for a parent containing a complete bootclasspath.
+     *
+     * @param parent The ClassPath to layer this ClassPath on top of
+     * @param classProviders An iterable of ClassProviders for the classes that aren't available in the parent. When
+     *                       loading a class, these providers will be searched in order
+     */
+    public ClassPath(@Nonnull ClassPath parent, @Nonnull Iterable<? extends ClassProvider> classProviders) {
+        this(parent, classProviders, null);
+    }
+
+    /**
+     * Creates a new ClassPath that is layered on top of an existing ClassPath, with a bounded class cache.
+     *
+     * @param parent The ClassPath to layer this ClassPath on top of
+     * @param classProviders An iterable of ClassProviders for the classes that aren't available in the parent. When
+     *                       loading a class, these providers will be searched in order
+     * @param cacheSpec A guava CacheBuilderSpec for this ClassPath's class cache, or null for an unbounded cache. This
+     *                  doesn't affect the parent's cache.
+     */
+    public ClassPath(@Nonnull ClassPath parent, @Nonnull Iterable<? extends ClassProvider> classProviders,
+                     @Nullable CacheBuilderSpec cacheSpec) {
+        this.parent = parent;
+        this.loadedClasses = buildCache(cacheSpec);
+
+        // share the special classes with the parent, so that there's only a single instance of each
+        this.pinnedClasses = parent.pinnedClasses;
+        this.unknownClass = parent.unknownClass;
+        this.checkPackagePrivateAccess = parent.checkPackagePrivateAccess;
+        this.oatVersion = parent.oatVersion;
+
+        this.classProviders = Lists.newArrayList(classProviders);
+    }
+
+    @Nonnull
+    private LoadingCache<String, TypeProto> buildCache(@Nullable CacheBuilderSpec cacheSpec) {
+        CacheBuilder<Object, Object> cacheBuilder;
+        if (cacheSpec == null) {
+            cacheBuilder = CacheBuilder.newBuilder();
+        } else {
+            cacheBuilder = CacheBuilder.from(cacheSpec);
+        }
+        return cacheBuilder.recordStats().build(classLoader);
+    }
+
+    /**
+     * @return The ClassPath that this ClassPath is layered on top of, or null if this isn't a layered ClassPath
+     */
+    @Nullable
+    public ClassPath getParent() {
+        return parent;
+    }
+
     private void loadPrimitiveType(String type) {
-        loadedClasses.put(type, new PrimitiveProto(this, type));
+        pinnedClasses.put(type, new PrimitiveProto(this, type));
     }
 
     private static ClassProvider getBasicClasses() {
@@ -130,11 +234,76 @@ public class ClassPath {
 
     @Nonnull
     public TypeProto getClass(@Nonnull CharSequence type) {
-        return loadedClasses.getUnchecked(type.toString());
+        String typeString = type.toString();
+        TypeProto typeProto = pinnedClasses.get(typeString);
+        if (typeProto != null) {
+            return typeProto;
+        }
+        return loadedClasses.getUnchecked(typeString);
+    }
+
+    /**
+     * @return Statistics for the class cache, including the number of hits, loads and evictions, and the total time
+     * spent loading classes.
+     */
+    @Nonnull
+    public CacheStats getCacheStats() {
+        return loadedClasses.stats();
+    }
+
+    /**
+     * @return The number of classes that are currently cached. This does not include primitive types.
+     */
+    public long getCachedClassCount() {
+        return loadedClasses.size();
+    }
+
+    /**
+     * Discards all cached classes. They will be reloaded as needed.
+     */
+    public void invalidateCache() {
+        loadedClasses.invalidateAll();
+    }
+
+    /**
+     * @return The types of all classes that are currently cached, not including primitive types
+     */
+    @Nonnull
+    public Set<String> getCachedTypes() {
+        return Collections.unmodifiableSet(loadedClasses.asMap().keySet());
+    }
+
+    /**
+     * Sets a cache of previously calculated vtables and field offsets for this ClassPath.
+     *
+     * The cache is only consulted for classes whose vtable or field offsets haven't already been calculated, so this
+     * should be set before any classes are analyzed. The cache must have been created for the same set of classes
+     * and the same api level and oat version as this ClassPath. See {@link ClassLayoutCache#computeKey}.
+     *
+     * @param layoutCache The cache to use, or null to stop using a cache
+     */
+    public void setLayoutCache(@Nullable ClassLayoutCache layoutCache) {
+        this.layoutCache = layoutCache;
+    }
+
+    /**
+     * @return The layout cache for this ClassPath, or for its parent if this ClassPath doesn't have one. Null if
+     * neither has a layout cache.
+     */
+    @Nullable
+    public ClassLayoutCache getLayoutCache() {
+        ClassLayoutCache layoutCache = this.layoutCache;
+        if (layoutCache == null && parent != null) {
+            return parent.getLayoutCache();
+        }
+        return layoutCache;
     }
 
     private final CacheLoader<String, TypeProto> classLoader = new CacheLoader<String, TypeProto>() {
         @Override public TypeProto load(String type) throws Exception {
+            if (parent != null && parent.canResolve(type)) {
+                return parent.getClass(type);
+            }
             if (type.charAt(0) == '[') {
                 return new ArrayProto(ClassPath.this, type);
             } else {
@@ -143,17 +312,46 @@ public class ClassPath {
         }
     };
 
-    @Nonnull private LoadingCache<String, TypeProto> loadedClasses = CacheBuilder.newBuilder().build(classLoader);
+    /**
+     * Determines whether the given type can be fully resolved by this ClassPath. For an array type, this checks
+     * whether the element type can be resolved.
+     */
+    private boolean canResolve(@Nonnull String type) {
+        int elementIndex = 0;
+        while (type.charAt(elementIndex) == '[') {
+            elementIndex++;
+        }
+        if (type.length() - elementIndex == 1) {
+            // a primitive type, or an array of a primitive type
+            return true;
+        }
+        return findClassDef(type.substring(elementIndex)) != null;
+    }
 
-    @Nonnull
-    public ClassDef getClassDef(String type) {
+    @Nullable
+    private ClassDef findClassDef(String type) {
+        if (parent != null) {
+            ClassDef classDef = parent.findClassDef(type);
+            if (classDef != null) {
+                return classDef;
+            }
+        }
         for (ClassProvider provider: classProviders) {
             ClassDef classDef = provider.getClassDef(type);
             if (classDef != null) {
                 return classDef;
             }
         }
-        throw new UnresolvedClassException("Could not resolve class %s", type);
+        return null;
+    }
+
+    @Nonnull
+    public ClassDef getClassDef(String type) {
+        ClassDef classDef = findClassDef(type);
+        if (classDef == null) {
+            throw new UnresolvedClassException("Could not resolve class %s", type);
+        }
+        return classDef;
     }
 
     @Nonnull
@@ -33,6 +33,7 @@ package org.jf.dexlib2.analysis;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.jf.dexlib2.DexFileFactory.UnsupportedFileTypeException;
 import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
@@ -51,6 +52,9 @@ public class ClassPathResolver {
 
     private final PathEntryLoader pathEntryLoader;
 
+    @Nonnull private final List<File> classPathFiles;
+    @Nonnull private final List<ClassProvider> classPathProviders;
+
     /**
      * Constructs a new ClassPathResolver using a specified list of bootclasspath entries
      *
@@ -126,6 +130,9 @@ public class ClassPathResolver {
             }
         }
 
+        classPathFiles = ImmutableList.copyOf(pathEntryLoader.loadedFiles);
+        classPathProviders = ImmutableList.copyOf(pathEntryLoader.getClassProviders());
+
         MultiDexContainer<? extends DexFile> container = dexEntry.getContainer();
         for (String entry: container.getDexEntryNames()) {
             MultiDexContainer.DexEntry<? extends DexFile> tempDexEntry = container.getEntry(entry);
@@ -159,6 +166,24 @@ public class ClassPathResolver {
         return pathEntryLoader.getResolvedClassProviders();
     }
 
+    /**
+     * @return The files that were loaded for the boot classpath and extra classpath entries, in the order they were
+     * loaded. This doesn't include the container of the dex file being analyzed.
+     */
+    @Nonnull
+    public List<File> getResolvedClassPathFiles() {
+        return classPathFiles;
+    }
+
+    /**
+     * @return The class providers for the boot classpath and extra classpath entries. This is a prefix of
+     * {@link #getResolvedClassProviders()}, and doesn't include the providers for the dex file being analyzed.
+     */
+    @Nonnull
+    public List<ClassProvider> getResolvedClassPathProviders() {
+        return classPathProviders;
+    }
+
     private boolean loadLocalClassPathEntry(@Nonnull String entry) throws PathEntryLoader.NoDexException, IOException {
         File entryFile = new File(entry);
         if (entryFile.exists() && entryFile.isFile()) {
@@ -80,6 +80,22 @@ public class ClassProto implements TypeProto {
     }
 
     @Override public String toString() { return type; }
+
+    // A ClassPath may evict and later reload a class, so two protos for the same type in the same ClassPath are equal
+    @Override public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ClassProto)) {
+            return false;
+        }
+        ClassProto other = (ClassProto)o;
+        return classPath == other.classPath && type.equals(other.type);
+    }
+
+    @Override public int hashCode() {
+        return type.hashCode();
+    }
     @Nonnull @Override public ClassPath getClassPath() { return classPath; }
     @Nonnull @Override public String getType() { return type; }
 
@@ -482,7 +498,43 @@ public class ClassProto implements TypeProto {
         return -1;
     }
 
+    /**
+     * @return true if the vtable and interfaces of this class could be fully resolved, in which case the vtable and
+     * field layout can be saved to a {@link ClassLayoutCache}
+     */
+    public boolean isLayoutFullyResolved() {
+        getInterfaces();
+        getVtable();
+        return vtableFullyResolved && interfacesFullyResolved;
+    }
+
+    @Nonnull private final Supplier<SparseArray<FieldReference>> cachedInstanceFieldsSupplier =
+            Suppliers.memoize(new Supplier<SparseArray<FieldReference>>() {
+                @Override @Nullable public SparseArray<FieldReference> get() {
+                    ClassLayoutCache layoutCache = classPath.getLayoutCache();
+                    if (layoutCache == null) {
+                        return null;
+                    }
+                    return layoutCache.getInstanceFields(type);
+                }
+            });
+
+    @Nonnull private final Supplier<List<Method>> cachedVtableSupplier =
+            Suppliers.memoize(new Supplier<List<Method>>() {
+                @Override @Nullable public List<Method> get() {
+                    ClassLayoutCache layoutCache = classPath.getLayoutCache();
+                    if (layoutCache == null) {
+                        return null;
+                    }
+                    return layoutCache.getVtable(type);
+                }
+            });
+
     @Nonnull public SparseArray<FieldReference> getInstanceFields() {
+        SparseArray<FieldReference> cachedFields = cachedInstanceFieldsSupplier.get();
+        if (cachedFields != null) {
+            return cachedFields;
+        }
         if (classPath.isArt()) {
             return artInstanceFieldsSupplier.get();
         } else {
@@ -865,6 +917,10 @@ public class ClassProto implements TypeProto {
     }
 
     @Nonnull public List<Method> getVtable() {
+        List<Method> cachedVtable = cachedVtableSupplier.get();
+        if (cachedVtable != null) {
+            return cachedVtable;
+        }
         if (!classPath.isArt() || classPath.oatVersion < 72) {
             return preDefaultMethodVtableSupplier.get();
         } else if (classPath.oatVersion < 87) {
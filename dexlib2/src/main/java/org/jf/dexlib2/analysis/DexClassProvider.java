@@ -32,25 +32,43 @@
 package org.jf.dexlib2.analysis;
 
 import com.google.common.collect.Maps;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 
 import javax.annotation.Nullable;
 import java.util.Map;
 
+/**
+ * A ClassProvider for the classes in a DexFile.
+ *
+ * Classes are looked up lazily. For a DexBackedDexFile, this uses the sorted string and type sections of the dex file
+ * to find a class, so nothing needs to be decoded up front. For any other DexFile, a map of all classes is built on
+ * the first lookup.
+ */
 public class DexClassProvider implements ClassProvider {
     private final DexFile dexFile;
-    private Map<String, ClassDef> classMap = Maps.newHashMap();
+    @Nullable private Map<String, ClassDef> classMap;
 
     public DexClassProvider(DexFile dexFile) {
         this.dexFile = dexFile;
+    }
 
-        for (ClassDef classDef: dexFile.getClasses()) {
-            classMap.put(classDef.getType(), classDef);
+    @Nullable @Override public ClassDef getClassDef(String type) {
+        if (dexFile instanceof DexBackedDexFile) {
+            return ((DexBackedDexFile)dexFile).findClassDef(type);
         }
+        return getClassMap().get(type);
     }
 
-    @Nullable @Override public ClassDef getClassDef(String type) {
-        return classMap.get(type);
+    private synchronized Map<String, ClassDef> getClassMap() {
+        if (classMap == null) {
+            Map<String, ClassDef> classMap = Maps.newHashMap();
+            for (ClassDef classDef: dexFile.getClasses()) {
+                classMap.put(classDef.getType(), classDef);
+            }
+            this.classMap = classMap;
+        }
+        return classMap;
     }
 }
@@ -87,6 +87,9 @@ public class MethodAnalyzer {
     // Which instructions have been analyzed, keyed by instruction index
     @Nonnull private final BitSet analyzedState;
 
+    // A scratch BitSet that is reused while propagating register type changes. See getChangedInstructionsBitSet
+    @Nullable private BitSet changedInstructions = null;
+
     @Nullable private AnalysisException analysisException = null;
 
     // This is a dummy instruction that occurs immediately before the first real instruction. We can initialize the
@@ -173,8 +176,8 @@ public class MethodAnalyzer {
         BitSet instructionsToAnalyze = new BitSet(analyzedInstructions.size());
 
         //make sure all of the "first instructions" are marked for processing
-        for (AnalyzedInstruction successor: startOfMethod.successors) {
-            instructionsToAnalyze.set(successor.instructionIndex);
+        for (int i=0; i<startOfMethod.successorCount; i++) {
+            instructionsToAnalyze.set(startOfMethod.successors[i].instructionIndex);
         }
 
         BitSet undeodexedInstructions = new BitSet(analyzedInstructions.size());
@@ -216,8 +219,8 @@ public class MethodAnalyzer {
 
                     analyzedState.set(instructionToAnalyze.getInstructionIndex());
 
-                    for (AnalyzedInstruction successor: instructionToAnalyze.successors) {
-                        instructionsToAnalyze.set(successor.getInstructionIndex());
+                    for (int j=0; j<instructionToAnalyze.successorCount; j++) {
+                        instructionsToAnalyze.set(instructionToAnalyze.successors[j].getInstructionIndex());
                     }
                 }
                 if (analysisException != null) {
@@ -331,6 +334,25 @@ public class MethodAnalyzer {
                 registerType);
     }
 
+    /**
+     * Gets the BitSet used to track the instructions whose register types changed while propagating a change.
+     *
+     * A single BitSet is reused for every propagation, rather than allocating a new one each time. This is safe
+     * because propagateChanges always runs until the BitSet is empty again, and a propagation never starts a nested
+     * propagation while the BitSet is in use. It's cleared anyway, in case a previous propagation was aborted by an
+     * exception.
+     */
+    @Nonnull
+    private BitSet getChangedInstructionsBitSet() {
+        BitSet changedInstructions = this.changedInstructions;
+        if (changedInstructions == null) {
+            changedInstructions = new BitSet(analyzedInstructions.size());
+            this.changedInstructions = changedInstructions;
+        }
+        changedInstructions.clear();
+        return changedInstructions;
+    }
+
     private void propagateChanges(@Nonnull BitSet changedInstructions, int registerNumber, boolean override) {
         //Using a for loop inside the while loop optimizes for the common case of the successors of an instruction
         //occurring after the instruction. Any successors that occur prior to the instruction will be picked up on
@@ -353,7 +375,7 @@ public class MethodAnalyzer {
             @Nonnull AnalyzedInstruction analyzedInstruction, @Nonnull AnalyzedInstruction predecessor,
             int registerNumber, @Nonnull RegisterType registerType) {
 
-        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
+        BitSet changedInstructions = getChangedInstructionsBitSet();
 
         if (!analyzedInstruction.overridePredecessorRegisterType(
                 predecessor, registerNumber, registerType, analyzedState)) {
@@ -377,7 +399,7 @@ public class MethodAnalyzer {
     private void initializeRefAndPropagateChanges(@Nonnull AnalyzedInstruction analyzedInstruction,
                                                   int registerNumber, @Nonnull RegisterType registerType) {
 
-        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
+        BitSet changedInstructions = getChangedInstructionsBitSet();
 
         if (!analyzedInstruction.setPostRegisterType(registerNumber, registerType)) {
             return;
@@ -399,7 +421,7 @@ public class MethodAnalyzer {
     private void setPostRegisterTypeAndPropagateChanges(@Nonnull AnalyzedInstruction analyzedInstruction,
                                                         int registerNumber, @Nonnull RegisterType registerType) {
 
-        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
+        BitSet changedInstructions = getChangedInstructionsBitSet();
 
         if (!analyzedInstruction.setPostRegisterType(registerNumber, registerType)) {
             return;
@@ -421,7 +443,8 @@ public class MethodAnalyzer {
     private void propagateRegisterToSuccessors(@Nonnull AnalyzedInstruction instruction, int registerNumber,
                                                @Nonnull BitSet changedInstructions, boolean override) {
         RegisterType postRegisterType = instruction.getPostInstructionRegisterType(registerNumber);
-        for (AnalyzedInstruction successor: instruction.successors) {
+        for (int i=0; i<instruction.successorCount; i++) {
+            AnalyzedInstruction successor = instruction.successors[i];
             if (successor.mergeRegister(registerNumber, postRegisterType, analyzedState, override)) {
                 changedInstructions.set(successor.instructionIndex);
             }
@@ -1245,7 +1268,7 @@ public class MethodAnalyzer {
                 if (analyzedInstruction.getPredecessorCount() != 1) {
                     return;
                 }
-                AnalyzedInstruction prevAnalyzedInstruction = analyzedInstruction.getPredecessors().first();
+                AnalyzedInstruction prevAnalyzedInstruction = analyzedInstruction.getFirstPredecessor();
                 if (prevAnalyzedInstruction.instruction.getOpcode() == Opcode.INSTANCE_OF) {
 
                     AnalyzedInstruction fallthroughInstruction = analyzedInstructions.valueAt(
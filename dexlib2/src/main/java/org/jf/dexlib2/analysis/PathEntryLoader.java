@@ -21,7 +21,7 @@ public class PathEntryLoader {
         return opcodes;
     }
 
-    final Set<File> loadedFiles = Sets.newHashSet();
+    final Set<File> loadedFiles = Sets.newLinkedHashSet();
     final List<ClassProvider> classProviders = Lists.newArrayList();
 
     public List<ClassProvider> getClassProviders() {
@@ -57,6 +57,10 @@ public abstract class BaseTypeReference extends BaseReference implements TypeRef
 
     @Override
     public int compareTo(@Nonnull CharSequence o) {
+        if (o instanceof TypeReference) {
+            // compare the raw types, since toString() rejects a malformed type
+            return getType().compareTo(((TypeReference)o).getType());
+        }
         return getType().compareTo(o.toString());
     }
 
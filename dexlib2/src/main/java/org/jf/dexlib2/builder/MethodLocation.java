@@ -48,9 +48,21 @@ public class MethodLocation {
     private final LocatedItems<Label> labels;
     private final LocatedItems<BuilderDebugItem> debugItems;
 
+    /**
+     * The method implementation that this location belongs to. The codeAddress and index fields may be stale until
+     * the owner has been given a chance to update them.
+     */
+    @Nullable private final MutableMethodImplementation owner;
+
     MethodLocation(@Nullable BuilderInstruction instruction, int codeAddress, int index) {
+        this(null, instruction, codeAddress, index);
+    }
+
+    MethodLocation(@Nullable MutableMethodImplementation owner, @Nullable BuilderInstruction instruction,
+                   int codeAddress, int index) {
         this.debugItems = new LocatedDebugItems();
         this.labels = new LocatedLabels();
+        this.owner = owner;
         this.instruction = instruction;
         this.codeAddress = codeAddress;
         this.index = index;
@@ -62,10 +74,16 @@ public class MethodLocation {
     }
 
     public int getCodeAddress() {
+        if (owner != null) {
+            owner.updateLocations(this);
+        }
         return codeAddress;
     }
 
     public int getIndex() {
+        if (owner != null) {
+            owner.updateLocations(this);
+        }
         return index;
     }
 
@@ -55,10 +55,22 @@ import java.util.*;
 
 public class MutableMethodImplementation implements MethodImplementation {
     private final int registerCount;
-    final ArrayList<MethodLocation> instructionList = Lists.newArrayList(new MethodLocation(null, 0, 0));
+    final ArrayList<MethodLocation> instructionList = Lists.newArrayList(new MethodLocation(this, null, 0, 0));
     private final ArrayList<BuilderTryBlock> tryBlocks = Lists.newArrayList();
     private boolean fixInstructions = true;
 
+    /**
+     * The index of the first MethodLocation whose index and codeAddress may be out of date. Rather than renumbering
+     * every following location on each edit, we just lower this watermark, and renumber the stale locations the next
+     * time an index or code address is actually needed.
+     *
+     * Reading the index or code address of a single location only renumbers up to that location, so the usual
+     * pattern of walking forward through the method and inserting instructions next to the current location stays
+     * linear. Anything that needs the whole method to be up to date, like newLabelForAddress, or reading a location
+     * near the end of the method after each edit near the start, still costs a full pass per edit.
+     */
+    private int firstStaleLocation = Integer.MAX_VALUE;
+
     public MutableMethodImplementation(@Nonnull MethodImplementation methodImplementation) {
         this.registerCount = methodImplementation.getRegisterCount();
 
@@ -69,7 +81,7 @@ public class MutableMethodImplementation implements MethodImplementation {
             codeAddress += instruction.getCodeUnits();
             index++;
 
-            instructionList.add(new MethodLocation(null, codeAddress, index));
+            instructionList.add(new MethodLocation(this, null, codeAddress, index));
         }
 
         final int[] codeAddressToIndex = new int[codeAddress+1];
@@ -212,25 +224,11 @@ public class MutableMethodImplementation implements MethodImplementation {
             addInstruction(instruction);
             return;
         }
-        int codeAddress = instructionList.get(index).getCodeAddress();
-        MethodLocation newLoc = new MethodLocation(instruction, codeAddress, index);
+        MethodLocation newLoc = new MethodLocation(this, instruction, 0, index);
         instructionList.add(index, newLoc);
         instruction.location = newLoc;
 
-        codeAddress += instruction.getCodeUnits();
-
-        for (int i=index+1; i<instructionList.size(); i++) {
-            MethodLocation location = instructionList.get(i);
-            location.index++;
-            location.codeAddress = codeAddress;
-            if (location.instruction != null) {
-                codeAddress += location.instruction.getCodeUnits();
-            } else {
-                // only the last MethodLocation should have a null instruction
-                assert i == instructionList.size()-1;
-            }
-        }
-
+        invalidateLocations(index);
         this.fixInstructions = true;
     }
 
@@ -239,9 +237,9 @@ public class MutableMethodImplementation implements MethodImplementation {
         last.instruction = instruction;
         instruction.location = last;
 
-        int nextCodeAddress = last.codeAddress + instruction.getCodeUnits();
-        instructionList.add(new MethodLocation(null, nextCodeAddress, instructionList.size()));
+        instructionList.add(new MethodLocation(this, null, 0, instructionList.size()));
 
+        invalidateLocations(instructionList.size() - 1);
         this.fixInstructions = true;
     }
 
@@ -257,20 +255,7 @@ public class MutableMethodImplementation implements MethodImplementation {
         old.location = null;
         replaceLocation.instruction = replacementInstruction;
 
-        // TODO: factor out index/address fix up loop
-        int codeAddress = replaceLocation.codeAddress + replaceLocation.instruction.getCodeUnits();
-        for (int i=index+1; i<instructionList.size(); i++) {
-            MethodLocation location = instructionList.get(i);
-            location.codeAddress = codeAddress;
-
-            Instruction instruction = location.getInstruction();
-            if (instruction != null) {
-                codeAddress += instruction.getCodeUnits();
-            } else {
-                assert i == instructionList.size() - 1;
-            }
-        }
-
+        invalidateLocations(index + 1);
         this.fixInstructions = true;
     }
 
@@ -285,20 +270,8 @@ public class MutableMethodImplementation implements MethodImplementation {
         toRemove.mergeInto(next);
 
         instructionList.remove(index);
-        int codeAddress = toRemove.codeAddress;
-        for (int i=index; i<instructionList.size(); i++) {
-            MethodLocation location = instructionList.get(i);
-            location.index = i;
-            location.codeAddress = codeAddress;
-
-            Instruction instruction = location.getInstruction();
-            if (instruction != null) {
-                codeAddress += instruction.getCodeUnits();
-            } else {
-                assert i == instructionList.size() - 1;
-            }
-        }
 
+        invalidateLocations(index);
         this.fixInstructions = true;
     }
 
@@ -328,17 +301,67 @@ public class MutableMethodImplementation implements MethodImplementation {
             index1 = tmp;
         }
 
-        int codeAddress = first.codeAddress + first.instruction.getCodeUnits();
-        for (int i=index1+1; i<=index2; i++) {
+        invalidateLocations(index1 + 1);
+        this.fixInstructions = true;
+    }
+
+    private void invalidateLocations(int index) {
+        if (index < firstStaleLocation) {
+            firstStaleLocation = index;
+        }
+    }
+
+    /**
+     * Brings the index and codeAddress of any stale MethodLocations up to date.
+     */
+    void updateLocations() {
+        updateLocations(null);
+    }
+
+    /**
+     * Brings the index and codeAddress of the given location up to date, along with any stale locations before it.
+     *
+     * @param target The location to update. If null, or if it is no longer part of this method, all stale
+     *               locations are updated.
+     */
+    void updateLocations(@Nullable MethodLocation target) {
+        int startIndex = firstStaleLocation;
+        if (startIndex == Integer.MAX_VALUE) {
+            return;
+        }
+
+        if (target != null && target.index < startIndex && target.index < instructionList.size() &&
+                instructionList.get(target.index) == target) {
+            // the target is before the watermark, so it's already up to date
+            return;
+        }
+
+        int codeAddress = 0;
+        if (startIndex > 0) {
+            MethodLocation previous = instructionList.get(startIndex - 1);
+            assert previous.instruction != null;
+            codeAddress = previous.codeAddress + previous.instruction.getCodeUnits();
+        }
+
+        for (int i=startIndex; i<instructionList.size(); i++) {
             MethodLocation location = instructionList.get(i);
+            location.index = i;
             location.codeAddress = codeAddress;
 
             Instruction instruction = location.instruction;
-            assert instruction != null;
-            codeAddress += location.instruction.getCodeUnits();
-        }
+            if (instruction != null) {
+                codeAddress += instruction.getCodeUnits();
+            } else {
+                // only the last MethodLocation should have a null instruction
+                assert i == instructionList.size() - 1;
+            }
 
-        this.fixInstructions = true;
+            if (location == target && i < instructionList.size() - 1) {
+                firstStaleLocation = i + 1;
+                return;
+            }
+        }
+        firstStaleLocation = Integer.MAX_VALUE;
     }
 
     @Nullable
@@ -355,6 +378,8 @@ public class MutableMethodImplementation implements MethodImplementation {
     }
 
     private void fixInstructions() {
+        updateLocations();
+
         HashSet<MethodLocation> payloadLocations = Sets.newHashSet();
 
         for (MethodLocation location: instructionList) {
@@ -420,7 +445,7 @@ public class MutableMethodImplementation implements MethodImplementation {
                                     replacement = new BuilderInstruction20t(Opcode.GOTO_16,
                                             ((BuilderOffsetInstruction)instruction).getTarget());
                                 }
-                                replaceInstruction(location.index, replacement);
+                                replaceInstruction(location.getIndex(), replacement);
                                 madeChanges = true;
                             }
                             break;
@@ -430,7 +455,7 @@ public class MutableMethodImplementation implements MethodImplementation {
                             if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
                                 BuilderOffsetInstruction replacement =  new BuilderInstruction30t(Opcode.GOTO_32,
                                             ((BuilderOffsetInstruction)instruction).getTarget());
-                                replaceInstruction(location.index, replacement);
+                                replaceInstruction(location.getIndex(), replacement);
                                 madeChanges = true;
                             }
                             break;
@@ -446,8 +471,8 @@ public class MutableMethodImplementation implements MethodImplementation {
                             }
                             // intentional fall-through
                         case ARRAY_PAYLOAD: {
-                            if ((location.codeAddress & 0x01) != 0) {
-                                int previousIndex = location.index - 1;
+                            if ((location.getCodeAddress() & 0x01) != 0) {
+                                int previousIndex = location.getIndex() - 1;
                                 MethodLocation previousLocation = instructionList.get(previousIndex);
                                 Instruction previousInstruction = previousLocation.instruction;
                                 assert previousInstruction != null;
@@ -455,7 +480,7 @@ public class MutableMethodImplementation implements MethodImplementation {
                                     removeInstruction(previousIndex);
                                     index--;
                                 } else {
-                                    addInstruction(location.index, new BuilderInstruction10x(Opcode.NOP));
+                                    addInstruction(location.getIndex(), new BuilderInstruction10x(Opcode.NOP));
                                     index++;
                                 }
                                 madeChanges = true;
@@ -486,6 +511,8 @@ public class MutableMethodImplementation implements MethodImplementation {
     }
 
     private int mapCodeAddressToIndex(int codeAddress) {
+        updateLocations();
+
         float avgCodeUnitsPerInstruction = 1.9f;
 
         int index = (int)(codeAddress/avgCodeUnitsPerInstruction);
@@ -512,6 +539,7 @@ public class MutableMethodImplementation implements MethodImplementation {
 
     @Nonnull
     public Label newLabelForAddress(int codeAddress) {
+        updateLocations();
         if (codeAddress < 0 || codeAddress > instructionList.get(instructionList.size()-1).codeAddress) {
             throw new IndexOutOfBoundsException(String.format("codeAddress %d out of bounds", codeAddress));
         }
@@ -39,6 +39,7 @@ import org.jf.dexlib2.util.DexUtil;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 public class CDexBackedDexFile extends DexBackedDexFile {
     public CDexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull byte[] buf, int offset, boolean verifyMagic) {
@@ -57,6 +58,10 @@ public class CDexBackedDexFile extends DexBackedDexFile {
         super(opcodes, buf);
     }
 
+    public CDexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull ByteBuffer buf, int offset) {
+        super(opcodes, buf, offset, false);
+    }
+
     public static boolean isCdex(byte[] buf, int offset) {
         if (offset + 4 > buf.length) {
             return false;
@@ -74,6 +79,18 @@ public class CDexBackedDexFile extends DexBackedDexFile {
                 buf[offset+3] == cdexMagic[3];
     }
 
+    public static boolean isCdex(@Nonnull ByteBuffer buf, int offset) {
+        if (buf.hasArray()) {
+            return isCdex(buf.array(), buf.arrayOffset() + offset);
+        }
+        if (offset + 4 > buf.limit()) {
+            return false;
+        }
+        byte[] magic = new byte[4];
+        new DexBuffer(buf).readByteRange(offset, magic, 0, 4);
+        return isCdex(magic, 0);
+    }
+
     @Override
     protected int getVersion(byte[] buf, int offset, boolean verifyMagic) {
         if (verifyMagic) {
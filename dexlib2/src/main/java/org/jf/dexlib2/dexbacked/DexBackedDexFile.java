@@ -38,15 +38,19 @@ import org.jf.dexlib2.dexbacked.raw.*;
 import org.jf.dexlib2.dexbacked.reference.*;
 import org.jf.dexlib2.dexbacked.util.FixedSizeList;
 import org.jf.dexlib2.dexbacked.util.FixedSizeSet;
+import org.jf.dexlib2.dexbacked.util.StringCache;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.reference.*;
 import org.jf.dexlib2.util.DexUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -74,11 +78,26 @@ public class DexBackedDexFile implements DexFile {
     private final int mapOffset;
     private final int hiddenApiRestrictionsOffset;
 
+    @Nullable private volatile StringCache stringCache;
+    // maps a type index to the index of the class_def_item that defines it, or -1. This is built on first use
+    @Nullable private volatile int[] classIndexesByType;
+
     protected DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull byte[] buf, int offset, boolean verifyMagic) {
+        this(opcodes, ByteBuffer.wrap(buf), offset, verifyMagic);
+    }
+
+    protected DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull ByteBuffer buf, int offset,
+                               boolean verifyMagic) {
         dexBuffer = new DexBuffer(buf, offset);
         dataBuffer = new DexBuffer(buf, offset + getBaseDataOffset());
 
-        int dexVersion = getVersion(buf, offset, verifyMagic);
+        int dexVersion;
+        if (buf.hasArray()) {
+            dexVersion = getVersion(buf.array(), buf.arrayOffset() + offset, verifyMagic);
+        } else {
+            byte[] headerBuf = dexBuffer.readByteRange(0, Math.min(HeaderItem.ITEM_SIZE, buf.limit() - offset));
+            dexVersion = getVersion(headerBuf, 0, verifyMagic);
+        }
 
         if (opcodes == null) {
             this.opcodes = getDefaultOpcodes(dexVersion);
@@ -173,7 +192,31 @@ public class DexBackedDexFile implements DexFile {
     }
 
     public DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull DexBuffer buf) {
-        this(opcodes, buf.buf, buf.baseOffset);
+        this(opcodes, buf.buf, buf.baseOffset, false);
+    }
+
+    /**
+     * Creates a DexBackedDexFile that reads directly from the given ByteBuffer, which may be a memory mapped buffer.
+     *
+     * @param opcodes The set of opcodes to use, or null to determine them from the dex version
+     * @param buf The buffer containing the dex file. See {@link DexBuffer#mapFile(File)}
+     * @param offset The offset of the dex file within buf
+     */
+    public DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull ByteBuffer buf, int offset) {
+        this(opcodes, buf, offset, false);
+    }
+
+    /**
+     * Creates a DexBackedDexFile that reads directly from the given ByteBuffer, which may be a memory mapped buffer.
+     *
+     * Like {@link #DexBackedDexFile(Opcodes, byte[])}, this verifies the dex magic and header, while the constructor
+     * that takes an offset doesn't.
+     *
+     * @param opcodes The set of opcodes to use, or null to determine them from the dex version
+     * @param buf The buffer containing the dex file, starting at index 0. See {@link DexBuffer#mapFile(File)}
+     */
+    public DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull ByteBuffer buf) {
+        this(opcodes, buf, 0, true);
     }
 
     public DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull byte[] buf, int offset) {
@@ -193,6 +236,23 @@ public class DexBackedDexFile implements DexFile {
         return new DexBackedDexFile(opcodes, buf, 0, false);
     }
 
+    /**
+     * Loads a dex file by mapping it into memory, rather than reading it onto the heap.
+     *
+     * @param opcodes The set of opcodes to use, or null to determine them from the dex version
+     * @param file The dex file to map
+     * @return A DexBackedDexFile backed by the mapped file
+     * @throws NotADexFile if the file is not a dex file
+     */
+    @Nonnull
+    public static DexBackedDexFile fromMappedFile(@Nullable Opcodes opcodes, @Nonnull File file) throws IOException {
+        ByteBuffer buf = DexBuffer.mapFile(file);
+        if (buf.limit() < HeaderItem.ITEM_SIZE) {
+            throw new NotADexFile("File is too short");
+        }
+        return new DexBackedDexFile(opcodes, buf, 0, true);
+    }
+
     @Nonnull public Opcodes getOpcodes() {
         return opcodes;
     }
@@ -217,6 +277,210 @@ public class DexBackedDexFile implements DexFile {
         };
     }
 
+    /**
+     * Finds the index of the given string in the string section.
+     *
+     * This does a binary search over the string_ids, which the dex format requires to be sorted by their contents.
+     * The strings are compared in place, so none of them are decoded.
+     *
+     * @param value The string to find
+     * @return The index of the string, or -1 if it isn't in this dex file
+     */
+    public int findStringIndex(@Nonnull String value) {
+        int low = 0;
+        int high = stringCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int stringDataOffset = dexBuffer.readSmallUint(stringStartOffset + mid * StringIdItem.ITEM_SIZE);
+            DexReader<? extends DexBuffer> reader = dataBuffer.readerAt(stringDataOffset);
+            int utf16Length = reader.readSmallUleb128();
+            int comparison = reader.compareString(utf16Length, value);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the index of the given type in the type section.
+     *
+     * The type_ids are sorted by string index, so this is a binary search over the type_ids after finding the string
+     * for the type with {@link #findStringIndex(String)}.
+     *
+     * @param type The type to find
+     * @return The index of the type, or -1 if it isn't in this dex file
+     */
+    public int findTypeIndex(@Nonnull String type) {
+        int stringIndex = findStringIndex(type);
+        if (stringIndex < 0) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = typeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midStringIndex = dexBuffer.readSmallUint(typeStartOffset + mid * TypeIdItem.ITEM_SIZE);
+            if (midStringIndex < stringIndex) {
+                low = mid + 1;
+            } else if (midStringIndex > stringIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the index of the given field in the field section.
+     *
+     * The field_ids are sorted by defining class, name and type, so this is a binary search over the field_ids.
+     *
+     * @param field The field to find
+     * @return The index of the field, or -1 if it isn't in this dex file
+     */
+    public int findFieldIndex(@Nonnull FieldReference field) {
+        int classIndex = findTypeIndex(field.getDefiningClass());
+        int nameIndex = findStringIndex(field.getName());
+        int typeIndex = findTypeIndex(field.getType());
+        if (classIndex < 0 || nameIndex < 0 || typeIndex < 0) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = fieldCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int fieldOffset = fieldStartOffset + mid * FieldIdItem.ITEM_SIZE;
+            int comparison = compareIndexes(
+                    dexBuffer.readUshort(fieldOffset + FieldIdItem.CLASS_OFFSET), classIndex,
+                    dexBuffer.readSmallUint(fieldOffset + FieldIdItem.NAME_OFFSET), nameIndex,
+                    dexBuffer.readUshort(fieldOffset + FieldIdItem.TYPE_OFFSET), typeIndex);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the index of the given method in the method section.
+     *
+     * The method_ids are sorted by defining class, name and prototype. This does a binary search for the methods with
+     * the same defining class and name, and then compares the prototypes of those methods.
+     *
+     * @param method The method to find
+     * @return The index of the method, or -1 if it isn't in this dex file
+     */
+    public int findMethodIndex(@Nonnull MethodReference method) {
+        int classIndex = findTypeIndex(method.getDefiningClass());
+        int nameIndex = findStringIndex(method.getName());
+        if (classIndex < 0 || nameIndex < 0) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = methodCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comparison = compareMethodClassAndName(mid, classIndex, nameIndex);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                // mid is one of the overloads with this name, so look at its neighbors too
+                int start = mid;
+                while (start > 0 && compareMethodClassAndName(start - 1, classIndex, nameIndex) == 0) {
+                    start--;
+                }
+                IndexedSection<DexBackedMethodReference> methodSection = getMethodSection();
+                for (int i=start; i<methodCount && compareMethodClassAndName(i, classIndex, nameIndex) == 0; i++) {
+                    if (methodSection.get(i).equals(method)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private int compareMethodClassAndName(int methodIndex, int classIndex, int nameIndex) {
+        int methodOffset = methodStartOffset + methodIndex * MethodIdItem.ITEM_SIZE;
+        return compareIndexes(
+                dexBuffer.readUshort(methodOffset + MethodIdItem.CLASS_OFFSET), classIndex,
+                dexBuffer.readSmallUint(methodOffset + MethodIdItem.NAME_OFFSET), nameIndex,
+                0, 0);
+    }
+
+    private static int compareIndexes(int index1, int expected1, int index2, int expected2,
+                                      int index3, int expected3) {
+        if (index1 != expected1) {
+            return index1 < expected1 ? -1 : 1;
+        }
+        if (index2 != expected2) {
+            return index2 < expected2 ? -1 : 1;
+        }
+        if (index3 != expected3) {
+            return index3 < expected3 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the class with the given type.
+     *
+     * Unlike the other sections, the class_defs aren't sorted by type. The first lookup reads the type index of each
+     * class_def into an index, which is then used for all later lookups.
+     *
+     * @param type The type of the class to find
+     * @return The class with the given type, or null if it isn't defined in this dex file
+     */
+    @Nullable
+    public DexBackedClassDef findClassDef(@Nonnull String type) {
+        int typeIndex = findTypeIndex(type);
+        if (typeIndex < 0) {
+            return null;
+        }
+        int classIndex = getClassIndexesByType()[typeIndex];
+        if (classIndex < 0) {
+            return null;
+        }
+        return getClassSection().get(classIndex);
+    }
+
+    @Nonnull
+    private int[] getClassIndexesByType() {
+        int[] classIndexes = classIndexesByType;
+        if (classIndexes == null) {
+            // it's fine if multiple threads race to build this, they'll all build the same thing
+            classIndexes = new int[typeCount];
+            Arrays.fill(classIndexes, -1);
+            IndexedSection<DexBackedClassDef> classSection = getClassSection();
+            for (int i=0; i<classCount; i++) {
+                int typeIndex = dexBuffer.readSmallUint(classSection.getOffset(i) + ClassDefItem.CLASS_OFFSET);
+                if (typeIndex < typeCount) {
+                    // if a class is defined more than once, the last definition wins, the same as a map built from
+                    // getClasses() would
+                    classIndexes[typeIndex] = i;
+                }
+            }
+            classIndexesByType = classIndexes;
+        }
+        return classIndexes;
+    }
+
     public List<DexBackedStringReference> getStringReferences() {
         return new AbstractList<DexBackedStringReference>() {
             @Override public DexBackedStringReference get(int index) {
@@ -309,6 +573,20 @@ public class DexBackedDexFile implements DexFile {
         @Override
         public String get(int index) {
             int stringOffset = getOffset(index);
+
+            StringCache cache = stringCache;
+            if (cache != null) {
+                String value = cache.get(index);
+                if (value == null) {
+                    value = readString(stringOffset);
+                    cache.put(index, value);
+                }
+                return value;
+            }
+            return readString(stringOffset);
+        }
+
+        private String readString(int stringOffset) {
             int stringDataOffset = dexBuffer.readSmallUint(stringOffset);
             DexReader reader = dataBuffer.readerAt(stringDataOffset);
             int utf16Length = reader.readSmallUleb128();
@@ -343,6 +621,27 @@ public class DexBackedDexFile implements DexFile {
         return stringSection;
     }
 
+    /**
+     * Sets the cache used for decoded strings from the string section. Since types are looked up via the string
+     * section, this also caches the type section.
+     *
+     * There is no cache by default. {@link StringCache#create(int)} can be used to create a cache that is suitable
+     * for the size of this dex file's string pool.
+     *
+     * @param stringCache The cache to use, or null to disable caching
+     */
+    public void setStringCache(@Nullable StringCache stringCache) {
+        this.stringCache = stringCache;
+    }
+
+    /**
+     * @return The cache that is used for decoded strings, or null if strings aren't being cached
+     */
+    @Nullable
+    public StringCache getStringCache() {
+        return stringCache;
+    }
+
     private OptionalIndexedSection<String> typeSection = new OptionalIndexedSection<String>() {
         @Override
         public String get(int index) {
@@ -33,6 +33,7 @@ package org.jf.dexlib2.dexbacked;
 
 import com.google.common.collect.ImmutableList;
 import org.jf.dexlib2.dexbacked.instruction.DexBackedInstruction;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.dexbacked.raw.CodeItem;
 import org.jf.dexlib2.dexbacked.util.DebugInfo;
 import org.jf.dexlib2.dexbacked.util.FixedSizeList;
@@ -66,11 +67,17 @@ public class DexBackedMethodImplementation implements MethodImplementation {
         return dexFile.getDataBuffer().readUshort(codeOffset);
     }
 
-    protected int getInstructionsSize() {
+    /**
+     * @return The size of the instructions in this method implementation, in 16-bit code units
+     */
+    public int getInstructionsSize() {
         return dexFile.getDataBuffer().readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
     }
 
-    protected int getInstructionsStartOffset() {
+    /**
+     * @return The offset of the first instruction of this method implementation in the dex file's data buffer
+     */
+    public int getInstructionsStartOffset() {
         return codeOffset + CodeItem.INSTRUCTION_START_OFFSET;
     }
 
@@ -105,6 +112,17 @@ public class DexBackedMethodImplementation implements MethodImplementation {
         };
     }
 
+    /**
+     * Creates a new InstructionCursor positioned before the first instruction of this method implementation.
+     *
+     * Iterating with a cursor doesn't create an object for each instruction. A scan over many methods can avoid
+     * allocating a cursor per method by creating a single cursor and calling InstructionCursor.reset() instead.
+     */
+    @Nonnull
+    public InstructionCursor getInstructionCursor() {
+        return new InstructionCursor(this);
+    }
+
     protected int getTriesSize() {
         return dexFile.getDataBuffer().readUshort(codeOffset + CodeItem.TRIES_SIZE_OFFSET);
     }
@@ -152,7 +170,7 @@ public class DexBackedMethodImplementation implements MethodImplementation {
             System.err.println(String.format("%s: Invalid debug offset", method));
             return DebugInfo.newOrEmpty(dexFile, 0, this);
         }
-        if ((debugOffset + dexFile.getBaseDataOffset()) >= dexFile.getBuffer().buf.length) {
+        if ((debugOffset + dexFile.getBaseDataOffset()) >= dexFile.getBuffer().getBufferLength()) {
             System.err.println(String.format("%s: Invalid debug offset", method));
             return DebugInfo.newOrEmpty(dexFile, 0, this);
         }
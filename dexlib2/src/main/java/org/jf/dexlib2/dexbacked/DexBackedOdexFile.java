@@ -73,7 +73,7 @@ public class DexBackedOdexFile extends DexBackedDexFile {
                 int offset = reader.getOffset();
                 reader.moveRelative(length + 20);
                 try {
-                    return new String(fromStartBuffer.buf, offset, length-1, "US-ASCII");
+                    return new String(fromStartBuffer.readByteRange(offset, length-1), "US-ASCII");
                 } catch (UnsupportedEncodingException ex) {
                     throw new RuntimeException(ex);
                 }
@@ -34,27 +34,92 @@ package org.jf.dexlib2.dexbacked;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
-import java.util.Arrays;
-
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A little-endian view of the raw bytes of a dex file (or a container of dex files).
+ *
+ * The backing storage is a ByteBuffer, which will usually just wrap a byte array. It can also be a
+ * MappedByteBuffer, in which case the data is read directly from the mapped file, without first being copied
+ * onto the heap. See {@link #mapFile(File)}.
+ */
 public class DexBuffer {
-    @Nonnull final byte[] buf;
+    @Nonnull final ByteBuffer buf;
     final int baseOffset;
 
     public DexBuffer(@Nonnull byte[] buf) {
         this(buf, 0);
     }
     public DexBuffer(@Nonnull byte[] buf, int offset) {
-        this.buf = buf;
+        this(ByteBuffer.wrap(buf), offset);
+    }
+
+    public DexBuffer(@Nonnull ByteBuffer buf) {
+        this(buf, 0);
+    }
+
+    /**
+     * @param buf The buffer containing the data. Only absolute reads are performed, so the position of the given
+     *            buffer is ignored. Index 0 is the start of the buffer's content, and the limit marks the end of it.
+     * @param offset The offset in buf that offsets passed to the various read methods are relative to
+     */
+    public DexBuffer(@Nonnull ByteBuffer buf, int offset) {
+        if (buf.order() == ByteOrder.LITTLE_ENDIAN) {
+            this.buf = buf;
+        } else {
+            this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
         this.baseOffset = offset;
     }
 
+    /**
+     * Maps the given file into memory, read-only.
+     *
+     * The mapping remains valid until the returned buffer is garbage collected, so the file should not be modified
+     * while any DexBuffer or DexBackedDexFile created from it is still in use.
+     *
+     * @param file The file to map
+     * @return A read-only, little-endian ByteBuffer containing the contents of the file
+     * @throws ExceptionWithContext if the file is larger than 2GB, and so can't be addressed with int offsets
+     */
+    @Nonnull
+    public static ByteBuffer mapFile(@Nonnull File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return mapRegion(raf.getChannel(), 0, raf.length());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps a region of the given channel into memory, read-only.
+     *
+     * @param channel The channel to map
+     * @param position The position in the channel that the region starts at
+     * @param size The size of the region
+     * @return A read-only, little-endian ByteBuffer containing the given region of the channel
+     * @throws ExceptionWithContext if the region is larger than 2GB, and so can't be addressed with int offsets
+     */
+    @Nonnull
+    public static ByteBuffer mapRegion(@Nonnull FileChannel channel, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new ExceptionWithContext("Cannot map a region of size %d. The maximum size is %d",
+                    size, Integer.MAX_VALUE);
+        }
+        return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     public int readSmallUint(int offset) {
-        byte[] buf = this.buf;
         offset += baseOffset;
-        int result = (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3]) << 24);
+        int result = buf.getInt(offset);
         if (result < 0) {
             throw new ExceptionWithContext("Encountered small uint that is out of range at offset 0x%x", offset);
         }
@@ -62,12 +127,8 @@ public class DexBuffer {
     }
 
     public int readOptionalUint(int offset) {
-        byte[] buf = this.buf;
         offset += baseOffset;
-        int result = (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3]) << 24);
+        int result = buf.getInt(offset);
         if (result < -1) {
             throw new ExceptionWithContext("Encountered optional uint that is out of range at offset 0x%x", offset);
         }
@@ -75,40 +136,20 @@ public class DexBuffer {
     }
 
     public int readUshort(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8);
+        return buf.getShort(offset + baseOffset) & 0xffff;
     }
 
     public int readUbyte(int offset) {
-        return buf[offset + baseOffset] & 0xff;
+        return buf.get(offset + baseOffset) & 0xff;
     }
 
     public long readLong(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3] & 0xffL) << 24) |
-                ((buf[offset+4] & 0xffL) << 32) |
-                ((buf[offset+5] & 0xffL) << 40) |
-                ((buf[offset+6] & 0xffL) << 48) |
-                (((long)buf[offset+7]) << 56);
+        return buf.getLong(offset + baseOffset);
     }
 
     public int readLongAsSmallUint(int offset) {
-        byte[] buf = this.buf;
         offset += baseOffset;
-        long result = (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3] & 0xffL) << 24) |
-                ((buf[offset+4] & 0xffL) << 32) |
-                ((buf[offset+5] & 0xffL) << 40) |
-                ((buf[offset+6] & 0xffL) << 48) |
-                (((long)buf[offset+7]) << 56);
+        long result = buf.getLong(offset);
         if (result < 0 || result > Integer.MAX_VALUE) {
             throw new ExceptionWithContext("Encountered out-of-range ulong at offset 0x%x", offset);
         }
@@ -116,28 +157,41 @@ public class DexBuffer {
     }
 
     public int readInt(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                (buf[offset+3] << 24);
+        return buf.getInt(offset + baseOffset);
     }
 
     public int readShort(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                (buf[offset+1] << 8);
+        return buf.getShort(offset + baseOffset);
     }
 
     public int readByte(int offset) {
-        return buf[baseOffset + offset];
+        return buf.get(baseOffset + offset);
     }
 
     @Nonnull
     public byte[] readByteRange(int start, int length) {
-        return Arrays.copyOfRange(buf, baseOffset + start, baseOffset + start + length);
+        byte[] result = new byte[length];
+        readByteRange(start, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Copies a range of bytes from this buffer into the given array.
+     *
+     * @param start The offset of the first byte to copy, relative to the base offset of this buffer
+     * @param dest The array to copy the bytes into
+     * @param destOffset The offset in dest to start copying to
+     * @param length The number of bytes to copy
+     */
+    public void readByteRange(int start, @Nonnull byte[] dest, int destOffset, int length) {
+        int absoluteStart = baseOffset + start;
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + absoluteStart, dest, destOffset, length);
+        } else {
+            ByteBuffer view = buf.duplicate();
+            view.position(absoluteStart);
+            view.get(dest, destOffset, length);
+        }
     }
 
     @Nonnull
@@ -145,9 +199,45 @@ public class DexBuffer {
         return new DexReader<DexBuffer>(this, offset);
     }
 
+    /**
+     * Gets the byte array that backs this buffer.
+     *
+     * This is only supported for buffers that are backed by an accessible byte array, as indicated by
+     * {@link #hasArray()}. For other buffers, e.g. memory mapped buffers, use {@link #readByteRange(int, int)} or
+     * {@link #getByteBuffer()} to read the data.
+     *
+     * @return The backing byte array
+     * @throws UnsupportedOperationException if this buffer isn't backed by an accessible byte array
+     */
     @Nonnull
     public byte[] getBuf() {
-        return buf;
+        if (!hasArray()) {
+            throw new UnsupportedOperationException("This DexBuffer is not backed by a byte array");
+        }
+        return buf.array();
+    }
+
+    /**
+     * @return true if this buffer is backed by a byte array that can be retrieved via {@link #getBuf()}
+     */
+    public boolean hasArray() {
+        return buf.hasArray() && buf.arrayOffset() == 0;
+    }
+
+    /**
+     * @return A read-only, little-endian view of the ByteBuffer that backs this buffer. Index 0 of the returned buffer
+     * corresponds to offset 0 of the backing storage, not to the base offset of this buffer.
+     */
+    @Nonnull
+    public ByteBuffer getByteBuffer() {
+        return buf.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return The size of the backing storage, including any data before the base offset of this buffer
+     */
+    public int getBufferLength() {
+        return buf.limit();
     }
 
     public int getBaseOffset() {
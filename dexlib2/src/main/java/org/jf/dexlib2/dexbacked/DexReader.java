@@ -35,6 +35,7 @@ import org.jf.util.ExceptionWithContext;
 import org.jf.util.Utf8Utils;
 
 import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
 
 public class DexReader<T extends DexBuffer> {
     @Nonnull public final T dexBuf;
@@ -52,28 +53,28 @@ public class DexReader<T extends DexBuffer> {
         int end = dexBuf.baseOffset + offset;
         int currentByteValue;
         int result;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        result = buf[end++] & 0xff;
+        result = buf.get(end++) & 0xff;
         if (result <= 0x7f) {
             result = (result << 25) >> 25;
         } else {
-            currentByteValue = buf[end++] & 0xff;
+            currentByteValue = buf.get(end++) & 0xff;
             result = (result & 0x7f) | ((currentByteValue & 0x7f) << 7);
             if (currentByteValue <= 0x7f) {
                 result = (result << 18) >> 18;
             } else {
-                currentByteValue = buf[end++] & 0xff;
+                currentByteValue = buf.get(end++) & 0xff;
                 result |= (currentByteValue & 0x7f) << 14;
                 if (currentByteValue <= 0x7f) {
                     result = (result << 11) >> 11;
                 } else {
-                    currentByteValue = buf[end++] & 0xff;
+                    currentByteValue = buf.get(end++) & 0xff;
                     result |= (currentByteValue & 0x7f) << 21;
                     if (currentByteValue <= 0x7f) {
                         result = (result << 4) >> 4;
                     } else {
-                        currentByteValue = buf[end++] & 0xff;
+                        currentByteValue = buf.get(end++) & 0xff;
                         if (currentByteValue > 0x7f) {
                             throw new ExceptionWithContext(
                                     "Invalid sleb128 integer encountered at offset 0x%x", offset);
@@ -92,17 +93,17 @@ public class DexReader<T extends DexBuffer> {
         int end = dexBuf.baseOffset + offset;
         int currentByteValue;
         int result;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        result = buf[end++] & 0xff;
+        result = buf.get(end++) & 0xff;
         if (result > 0x7f) {
-            currentByteValue = buf[end++] & 0xff;
+            currentByteValue = buf.get(end++) & 0xff;
             if (currentByteValue > 0x7f) {
-                currentByteValue = buf[end++] & 0xff;
+                currentByteValue = buf.get(end++) & 0xff;
                 if (currentByteValue > 0x7f) {
-                    currentByteValue = buf[end++] & 0xff;
+                    currentByteValue = buf.get(end++) & 0xff;
                     if (currentByteValue > 0x7f) {
-                        currentByteValue = buf[end++] & 0xff;
+                        currentByteValue = buf.get(end++) & 0xff;
                         if (currentByteValue > 0x7f) {
                             throw new ExceptionWithContext(
                                 "Invalid sleb128 integer encountered at offset 0x%x", offset);
@@ -127,20 +128,20 @@ public class DexReader<T extends DexBuffer> {
         int end = dexBuf.baseOffset + offset;
         int currentByteValue;
         int result;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        result = buf[end++] & 0xff;
+        result = buf.get(end++) & 0xff;
         if (result > 0x7f) {
-            currentByteValue = buf[end++] & 0xff;
+            currentByteValue = buf.get(end++) & 0xff;
             result = (result & 0x7f) | ((currentByteValue & 0x7f) << 7);
             if (currentByteValue > 0x7f) {
-                currentByteValue = buf[end++] & 0xff;
+                currentByteValue = buf.get(end++) & 0xff;
                 result |= (currentByteValue & 0x7f) << 14;
                 if (currentByteValue > 0x7f) {
-                    currentByteValue = buf[end++] & 0xff;
+                    currentByteValue = buf.get(end++) & 0xff;
                     result |= (currentByteValue & 0x7f) << 21;
                     if (currentByteValue > 0x7f) {
-                        currentByteValue = buf[end++];
+                        currentByteValue = buf.get(end++);
 
                         // MSB shouldn't be set on last byte
                         if (currentByteValue < 0) {
@@ -168,17 +169,17 @@ public class DexReader<T extends DexBuffer> {
         int end = dexBuf.baseOffset + offset;
         int currentByteValue;
         int result;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        result = buf[end++] & 0xff;
+        result = buf.get(end++) & 0xff;
         if (result > 0x7f) {
-            currentByteValue = buf[end++] & 0xff;
+            currentByteValue = buf.get(end++) & 0xff;
             if (currentByteValue > 0x7f) {
-                currentByteValue = buf[end++] & 0xff;
+                currentByteValue = buf.get(end++) & 0xff;
                 if (currentByteValue > 0x7f) {
-                    currentByteValue = buf[end++] & 0xff;
+                    currentByteValue = buf.get(end++) & 0xff;
                     if (currentByteValue > 0x7f) {
-                        currentByteValue = buf[end++];
+                        currentByteValue = buf.get(end++);
 
                         // MSB shouldn't be set on last byte
                         if (currentByteValue < 0) {
@@ -221,20 +222,20 @@ public class DexReader<T extends DexBuffer> {
         int end = dexBuf.baseOffset + offset;
         int currentByteValue;
         int result;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        result = buf[end++] & 0xff;
+        result = buf.get(end++) & 0xff;
         if (result > 0x7f) {
-            currentByteValue = buf[end++] & 0xff;
+            currentByteValue = buf.get(end++) & 0xff;
             result = (result & 0x7f) | ((currentByteValue & 0x7f) << 7);
             if (currentByteValue > 0x7f) {
-                currentByteValue = buf[end++] & 0xff;
+                currentByteValue = buf.get(end++) & 0xff;
                 result |= (currentByteValue & 0x7f) << 14;
                 if (currentByteValue > 0x7f) {
-                    currentByteValue = buf[end++] & 0xff;
+                    currentByteValue = buf.get(end++) & 0xff;
                     result |= (currentByteValue & 0x7f) << 21;
                     if (currentByteValue > 0x7f) {
-                        currentByteValue = buf[end++];
+                        currentByteValue = buf.get(end++);
 
                         // MSB shouldn't be set on last byte
                         if (currentByteValue < 0) {
@@ -255,17 +256,17 @@ public class DexReader<T extends DexBuffer> {
         int end = dexBuf.baseOffset + offset;
         int currentByteValue;
         int result;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        result = buf[end++] & 0xff;
+        result = buf.get(end++) & 0xff;
         if (result > 0x7f) {
-            currentByteValue = buf[end++] & 0xff;
+            currentByteValue = buf.get(end++) & 0xff;
             if (currentByteValue > 0x7f) {
-                currentByteValue = buf[end++] & 0xff;
+                currentByteValue = buf.get(end++) & 0xff;
                 if (currentByteValue > 0x7f) {
-                    currentByteValue = buf[end++] & 0xff;
+                    currentByteValue = buf.get(end++) & 0xff;
                     if (currentByteValue > 0x7f) {
-                        currentByteValue = buf[end++];
+                        currentByteValue = buf.get(end++);
 
                         // MSB shouldn't be set on last byte
                         if (currentByteValue < 0) {
@@ -283,17 +284,17 @@ public class DexReader<T extends DexBuffer> {
     public void skipUleb128() {
         int end = dexBuf.baseOffset + offset;
         byte currentByteValue;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
-        currentByteValue = buf[end++];
+        currentByteValue = buf.get(end++);
         if (currentByteValue < 0) { // if the MSB is set
-            currentByteValue = buf[end++];
+            currentByteValue = buf.get(end++);
             if (currentByteValue < 0) { // if the MSB is set
-                currentByteValue = buf[end++];
+                currentByteValue = buf.get(end++);
                 if (currentByteValue < 0) { // if the MSB is set
-                    currentByteValue = buf[end++];
+                    currentByteValue = buf.get(end++);
                     if (currentByteValue < 0) { // if the MSB is set
-                        currentByteValue = buf[end++];
+                        currentByteValue = buf.get(end++);
                         if (currentByteValue < 0) {
                             throw new ExceptionWithContext(
                                     "Invalid uleb128 integer encountered at offset 0x%x", offset);
@@ -383,27 +384,27 @@ public class DexReader<T extends DexBuffer> {
 
     public int readSizedInt(int bytes) {
         int o = dexBuf.baseOffset + offset;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
         int result;
         switch (bytes) {
             case 4:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        (buf[o+3] << 24);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        (buf.get(o+3) << 24);
                 break;
             case 3:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2]) << 16);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2)) << 16);
                 break;
             case 2:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1]) << 8);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1)) << 8);
                 break;
             case 1:
-                result = buf[o];
+                result = buf.get(o);
                 break;
             default:
                 throw new ExceptionWithContext("Invalid size %d for sized int at offset 0x%x", bytes, offset);
@@ -414,12 +415,12 @@ public class DexReader<T extends DexBuffer> {
 
     public int readSizedSmallUint(int bytes) {
         int o = dexBuf.baseOffset + offset;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
         int result = 0;
         switch (bytes) {
             case 4:
-                int b = buf[o+3];
+                int b = buf.get(o+3);
                 if (b < 0) {
                     throw new ExceptionWithContext(
                             "Encountered valid sized uint that is out of range at offset 0x%x", offset);
@@ -427,13 +428,13 @@ public class DexReader<T extends DexBuffer> {
                 result = b << 24;
                 // fall-through
             case 3:
-                result |= (buf[o+2] & 0xff) << 16;
+                result |= (buf.get(o+2) & 0xff) << 16;
                 // fall-through
             case 2:
-                result |= (buf[o+1] & 0xff) << 8;
+                result |= (buf.get(o+1) & 0xff) << 8;
                 // fall-through
             case 1:
-                result |= (buf[o] & 0xff);
+                result |= (buf.get(o) & 0xff);
                 break;
             default:
                 throw new ExceptionWithContext("Invalid size %d for sized uint at offset 0x%x", bytes, offset);
@@ -444,27 +445,27 @@ public class DexReader<T extends DexBuffer> {
 
     public int readSizedRightExtendedInt(int bytes) {
         int o = dexBuf.baseOffset + offset;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
         int result;
         switch (bytes) {
             case 4:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        (buf[o+3] << 24);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        (buf.get(o+3) << 24);
                 break;
             case 3:
-                result = (buf[o] & 0xff) << 8 |
-                        ((buf[o+1] & 0xff) << 16) |
-                        (buf[o+2] << 24);
+                result = (buf.get(o) & 0xff) << 8 |
+                        ((buf.get(o+1) & 0xff) << 16) |
+                        (buf.get(o+2) << 24);
                 break;
             case 2:
-                result = (buf[o] & 0xff) << 16 |
-                        (buf[o+1] << 24);
+                result = (buf.get(o) & 0xff) << 16 |
+                        (buf.get(o+1) << 24);
                 break;
             case 1:
-                result = buf[o] << 24;
+                result = buf.get(o) << 24;
                 break;
             default:
                 throw new ExceptionWithContext(
@@ -476,61 +477,61 @@ public class DexReader<T extends DexBuffer> {
 
     public long readSizedRightExtendedLong(int bytes) {
         int o = dexBuf.baseOffset + offset;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
         long result;
         switch (bytes) {
             case 8:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        ((buf[o+3] & 0xffL) << 24) |
-                        ((buf[o+4] & 0xffL) << 32) |
-                        ((buf[o+5] & 0xffL) << 40) |
-                        ((buf[o+6] & 0xffL) << 48) |
-                        (((long)buf[o+7]) << 56);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        ((buf.get(o+3) & 0xffL) << 24) |
+                        ((buf.get(o+4) & 0xffL) << 32) |
+                        ((buf.get(o+5) & 0xffL) << 40) |
+                        ((buf.get(o+6) & 0xffL) << 48) |
+                        (((long)buf.get(o+7)) << 56);
                 break;
             case 7:
-                result = ((buf[o] & 0xff)) << 8 |
-                        ((buf[o+1] & 0xff) << 16) |
-                        ((buf[o+2] & 0xffL) << 24) |
-                        ((buf[o+3] & 0xffL) << 32) |
-                        ((buf[o+4] & 0xffL) << 40) |
-                        ((buf[o+5] & 0xffL) << 48) |
-                        (((long)buf[o+6]) << 56);
+                result = ((buf.get(o) & 0xff)) << 8 |
+                        ((buf.get(o+1) & 0xff) << 16) |
+                        ((buf.get(o+2) & 0xffL) << 24) |
+                        ((buf.get(o+3) & 0xffL) << 32) |
+                        ((buf.get(o+4) & 0xffL) << 40) |
+                        ((buf.get(o+5) & 0xffL) << 48) |
+                        (((long)buf.get(o+6)) << 56);
                 break;
             case 6:
-                result = ((buf[o] & 0xff)) << 16 |
-                        ((buf[o+1] & 0xffL) << 24) |
-                        ((buf[o+2] & 0xffL) << 32) |
-                        ((buf[o+3] & 0xffL) << 40) |
-                        ((buf[o+4] & 0xffL) << 48) |
-                        (((long)buf[o+5]) << 56);
+                result = ((buf.get(o) & 0xff)) << 16 |
+                        ((buf.get(o+1) & 0xffL) << 24) |
+                        ((buf.get(o+2) & 0xffL) << 32) |
+                        ((buf.get(o+3) & 0xffL) << 40) |
+                        ((buf.get(o+4) & 0xffL) << 48) |
+                        (((long)buf.get(o+5)) << 56);
                 break;
             case 5:
-                result = ((buf[o] & 0xffL)) << 24 |
-                        ((buf[o+1] & 0xffL) << 32) |
-                        ((buf[o+2] & 0xffL) << 40) |
-                        ((buf[o+3] & 0xffL) << 48) |
-                        (((long)buf[o+4]) << 56);
+                result = ((buf.get(o) & 0xffL)) << 24 |
+                        ((buf.get(o+1) & 0xffL) << 32) |
+                        ((buf.get(o+2) & 0xffL) << 40) |
+                        ((buf.get(o+3) & 0xffL) << 48) |
+                        (((long)buf.get(o+4)) << 56);
                 break;
             case 4:
-                result = ((buf[o] & 0xffL)) << 32 |
-                        ((buf[o+1] & 0xffL) << 40) |
-                        ((buf[o+2] & 0xffL) << 48) |
-                        (((long)buf[o+3]) << 56);
+                result = ((buf.get(o) & 0xffL)) << 32 |
+                        ((buf.get(o+1) & 0xffL) << 40) |
+                        ((buf.get(o+2) & 0xffL) << 48) |
+                        (((long)buf.get(o+3)) << 56);
                 break;
             case 3:
-                result = ((buf[o] & 0xffL)) << 40 |
-                        ((buf[o+1] & 0xffL) << 48) |
-                        (((long)buf[o+2]) << 56);
+                result = ((buf.get(o) & 0xffL)) << 40 |
+                        ((buf.get(o+1) & 0xffL) << 48) |
+                        (((long)buf.get(o+2)) << 56);
                 break;
             case 2:
-                result = ((buf[o] & 0xffL)) << 48 |
-                        (((long)buf[o+1]) << 56);
+                result = ((buf.get(o) & 0xffL)) << 48 |
+                        (((long)buf.get(o+1)) << 56);
                 break;
             case 1:
-                result = ((long)buf[o]) << 56;
+                result = ((long)buf.get(o)) << 56;
                 break;
             default:
                 throw new ExceptionWithContext(
@@ -542,61 +543,61 @@ public class DexReader<T extends DexBuffer> {
 
     public long readSizedLong(int bytes) {
         int o = dexBuf.baseOffset + offset;
-        byte[] buf = dexBuf.buf;
+        ByteBuffer buf = dexBuf.buf;
 
         long result;
         switch (bytes) {
             case 8:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        ((buf[o+3] & 0xffL) << 24) |
-                        ((buf[o+4] & 0xffL) << 32) |
-                        ((buf[o+5] & 0xffL) << 40) |
-                        ((buf[o+6] & 0xffL) << 48) |
-                        (((long)buf[o+7]) << 56);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        ((buf.get(o+3) & 0xffL) << 24) |
+                        ((buf.get(o+4) & 0xffL) << 32) |
+                        ((buf.get(o+5) & 0xffL) << 40) |
+                        ((buf.get(o+6) & 0xffL) << 48) |
+                        (((long)buf.get(o+7)) << 56);
                 break;
             case 7:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        ((buf[o+3] & 0xffL) << 24) |
-                        ((buf[o+4] & 0xffL) << 32) |
-                        ((buf[o+5] & 0xffL) << 40) |
-                        ((long)(buf[o+6]) << 48);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        ((buf.get(o+3) & 0xffL) << 24) |
+                        ((buf.get(o+4) & 0xffL) << 32) |
+                        ((buf.get(o+5) & 0xffL) << 40) |
+                        ((long)(buf.get(o+6)) << 48);
                 break;
             case 6:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        ((buf[o+3] & 0xffL) << 24) |
-                        ((buf[o+4] & 0xffL) << 32) |
-                        ((long)(buf[o+5]) << 40);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        ((buf.get(o+3) & 0xffL) << 24) |
+                        ((buf.get(o+4) & 0xffL) << 32) |
+                        ((long)(buf.get(o+5)) << 40);
                 break;
             case 5:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        ((buf[o+3] & 0xffL) << 24) |
-                        ((long)(buf[o+4]) << 32);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        ((buf.get(o+3) & 0xffL) << 24) |
+                        ((long)(buf.get(o+4)) << 32);
                 break;
             case 4:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        ((buf[o+2] & 0xff) << 16) |
-                        (((long)buf[o+3]) << 24);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        ((buf.get(o+2) & 0xff) << 16) |
+                        (((long)buf.get(o+3)) << 24);
                 break;
             case 3:
-                result = (buf[o] & 0xff) |
-                        ((buf[o+1] & 0xff) << 8) |
-                        (buf[o+2] << 16);
+                result = (buf.get(o) & 0xff) |
+                        ((buf.get(o+1) & 0xff) << 8) |
+                        (buf.get(o+2) << 16);
                 break;
             case 2:
-                result = (buf[o] & 0xff) |
-                        (buf[o+1] << 8);
+                result = (buf.get(o) & 0xff) |
+                        (buf.get(o+1) << 8);
                 break;
             case 1:
-                result = buf[o];
+                result = buf.get(o);
                 break;
             default:
                 throw new ExceptionWithContext("Invalid size %d for sized long at offset 0x%x", bytes, offset);
@@ -608,16 +609,86 @@ public class DexReader<T extends DexBuffer> {
 
     public String readString(int utf16Length) {
         int[] ret = new int[1];
-        String value = Utf8Utils.utf8BytesWithUtf16LengthToString(
-                dexBuf.buf, dexBuf.baseOffset + offset, utf16Length, ret);
+        String value = decodeString(utf16Length, ret);
         offset += ret[0];
         return value;
     }
 
+    /**
+     * Compares the modified utf-8 string at the current offset with the given string, without decoding it into a new
+     * String. The offset is not advanced.
+     *
+     * @param utf16Length The number of utf-16 characters in the string at the current offset
+     * @param value The string to compare against
+     * @return A negative value, zero or a positive value as the string at the current offset is less than, equal to
+     * or greater than value, in the same order as {@link String#compareTo}
+     */
+    public int compareString(int utf16Length, @Nonnull String value) {
+        ByteBuffer buf = dexBuf.buf;
+        int at = dexBuf.baseOffset + offset;
+        int length = Math.min(utf16Length, value.length());
+
+        for (int i=0; i<length; i++) {
+            int v0 = buf.get(at) & 0xff;
+            char c;
+            if (v0 < 0x80) {
+                c = (char)v0;
+                at++;
+            } else if ((v0 & 0xe0) == 0xc0) {
+                c = (char)(((v0 & 0x1f) << 6) | (buf.get(at + 1) & 0x3f));
+                at += 2;
+            } else if ((v0 & 0xf0) == 0xe0) {
+                c = (char)(((v0 & 0x0f) << 12) | ((buf.get(at + 1) & 0x3f) << 6) | (buf.get(at + 2) & 0x3f));
+                at += 3;
+            } else {
+                throw new ExceptionWithContext("Invalid utf-8 byte 0x%x at offset 0x%x", v0,
+                        at - dexBuf.baseOffset);
+            }
+
+            int diff = c - value.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return utf16Length - value.length();
+    }
+
     public int peekStringLength(int utf16Length) {
         int[] ret = new int[1];
-        Utf8Utils.utf8BytesWithUtf16LengthToString(
-            dexBuf.buf, dexBuf.baseOffset + offset, utf16Length, ret);
+        decodeString(utf16Length, ret);
         return ret[0];
     }
+
+    // The largest buffer that stringBuffer will hold on to
+    private static final int MAX_STRING_BUFFER_SIZE = 64 * 1024;
+
+    // A scratch buffer for decoding strings out of a dex buffer that isn't backed by an array
+    private static final ThreadLocal<byte[]> stringBuffer = new ThreadLocal<byte[]>() {
+        @Override protected byte[] initialValue() {
+            return new byte[768];
+        }
+    };
+
+    private String decodeString(int utf16Length, int[] ret) {
+        ByteBuffer buf = dexBuf.buf;
+        int start = dexBuf.baseOffset + offset;
+        if (buf.hasArray()) {
+            return Utf8Utils.utf8BytesWithUtf16LengthToString(buf.array(), buf.arrayOffset() + start, utf16Length, ret);
+        }
+        // Each utf-16 character is encoded as at most 3 bytes, so copy out just enough to cover the whole string
+        int length = Math.min(utf16Length * 3, buf.limit() - start);
+        byte[] bytes;
+        if (length > MAX_STRING_BUFFER_SIZE) {
+            // don't let a single huge string pin a huge buffer to the thread
+            bytes = new byte[length];
+        } else {
+            bytes = stringBuffer.get();
+            if (bytes.length < length) {
+                bytes = new byte[length];
+                stringBuffer.set(bytes);
+            }
+        }
+        dexBuf.readByteRange(offset, bytes, 0, length);
+        return Utf8Utils.utf8BytesWithUtf16LengthToString(bytes, 0, utf16Length, ret);
+    }
 }
@@ -46,8 +46,10 @@ import org.jf.util.AbstractForwardSequentialList;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
 
@@ -75,20 +77,31 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
     }
 
     public OatFile(@Nonnull byte[] buf, @Nullable VdexProvider vdexProvider) {
+        this(ByteBuffer.wrap(buf), vdexProvider);
+    }
+
+    /**
+     * Creates an OatFile that reads directly from the given ByteBuffer, which may be a memory mapped buffer.
+     *
+     * @param buf The buffer containing the oat file. See {@link DexBuffer#mapFile(File)}
+     * @param vdexProvider A provider for the associated vdex file, if any
+     */
+    public OatFile(@Nonnull ByteBuffer buf, @Nullable VdexProvider vdexProvider) {
         super(buf);
 
-        if (buf.length < MIN_ELF_HEADER_SIZE) {
+        if (buf.limit() < MIN_ELF_HEADER_SIZE) {
             throw new NotAnOatFileException();
         }
 
-        verifyMagic(buf);
+        verifyMagic(readByteRange(0, ELF_MAGIC.length));
 
-        if (buf[4] == 1) {
+        int wordSize = readByte(4);
+        if (wordSize == 1) {
             is64bit = false;
-        } else if (buf[4] == 2) {
+        } else if (wordSize == 2) {
             is64bit = true;
         } else {
-            throw new InvalidOatFileException(String.format("Invalid word-size value: %x", buf[5]));
+            throw new InvalidOatFileException(String.format("Invalid word-size value: %x", readByte(5)));
         }
 
         OatHeader oatHeader = null;
@@ -148,6 +161,19 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
         return new OatFile(buf, vdexProvider);
     }
 
+    /**
+     * Loads an oat file by mapping it into memory, rather than reading it onto the heap.
+     *
+     * @param file The oat file to map
+     * @param vdexProvider A provider for the associated vdex file, if any
+     * @return An OatFile backed by the mapped file
+     * @throws NotAnOatFileException if the file is not an oat file
+     */
+    public static OatFile fromMappedFile(@Nonnull File file, @Nullable VdexProvider vdexProvider)
+            throws IOException {
+        return new OatFile(DexBuffer.mapFile(file), vdexProvider);
+    }
+
     public int getOatVersion() {
         return oatHeader.getVersion();
     }
@@ -230,6 +256,10 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
             super(opcodes, buf, offset);
         }
 
+        public OatDexFile(@Nonnull ByteBuffer buf, int offset) {
+            super(opcodes, buf, offset, false);
+        }
+
         @Override public boolean supportsOptimizedOpcodes() {
             return true;
         }
@@ -240,6 +270,10 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
             super(opcodes, buf, offset);
         }
 
+        public OatCDexFile(@Nonnull ByteBuffer buf, int offset) {
+            super(opcodes, buf, offset);
+        }
+
         @Override public boolean supportsOptimizedOpcodes() {
             return true;
         }
@@ -266,22 +300,23 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
 
         public boolean isValid() {
             for (int i=0; i<OAT_MAGIC.length; i++) {
-                if (buf[headerOffset + i] != OAT_MAGIC[i]) {
+                if (readByte(headerOffset + i) != OAT_MAGIC[i]) {
                     return false;
                 }
             }
 
             for (int i=4; i<7; i++) {
-                if (buf[headerOffset + i] < '0' || buf[headerOffset + i] > '9') {
+                int digit = readByte(headerOffset + i);
+                if (digit < '0' || digit > '9') {
                     return false;
                 }
             }
 
-            return buf[headerOffset + 7] == 0;
+            return readByte(headerOffset + 7) == 0;
         }
 
         public int getVersion() {
-            return Integer.valueOf(new String(buf, headerOffset + 4, 3));
+            return Integer.valueOf(new String(readByteRange(headerOffset + 4, 3)));
         }
 
         public int getDexFileCount() {
@@ -312,7 +347,7 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
 
             while (offset < endOffset) {
                 int keyStartOffset = offset;
-                while (offset < endOffset && buf[offset] != '\0') {
+                while (offset < endOffset && readByte(offset) != '\0') {
                     offset++;
                 }
                 if (offset >= endOffset) {
@@ -320,17 +355,17 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
                 }
                 int keyEndOffset = offset;
 
-                String k = new String(buf, keyStartOffset, keyEndOffset - keyStartOffset);
+                String k = new String(readByteRange(keyStartOffset, keyEndOffset - keyStartOffset));
                 if (k.equals(key)) {
                     int valueStartOffset = ++offset;
-                    while (offset < endOffset && buf[offset] != '\0') {
+                    while (offset < endOffset && readByte(offset) != '\0') {
                         offset++;
                     }
                     if (offset >= endOffset) {
                         throw new InvalidOatFileException("Oat file contains truncated key value store");
                     }
                     int valueEndOffset = offset;
-                    return new String(buf, valueStartOffset, valueEndOffset - valueStartOffset);
+                    return new String(readByteRange(valueStartOffset, valueEndOffset - valueStartOffset));
                 }
                 offset++;
             }
@@ -361,7 +396,7 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
             entryCount = readUshort(48);
         }
 
-        if (offset + (entrySize * entryCount) > buf.length) {
+        if (offset + (entrySize * entryCount) > getBufferLength()) {
             throw new InvalidOatFileException("The ELF section headers extend past the end of the file");
         }
 
@@ -454,7 +489,7 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
             this.entrySize = header.getEntrySize();
             this.entryCount = header.getSize() / entrySize;
 
-            if (offset + entryCount * entrySize > buf.length) {
+            if (offset + entryCount * entrySize > getBufferLength()) {
                 throw new InvalidOatFileException("Symbol table extends past end of file");
             }
         }
@@ -540,7 +575,7 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
             this.offset = header.getOffset();
             this.size = header.getSize();
 
-            if (offset + size > buf.length) {
+            if (offset + size > getBufferLength()) {
                 throw new InvalidOatFileException("String table extends past end of file");
             }
         }
@@ -553,23 +588,23 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
 
             int start = offset + index;
             int end = start;
-            while (buf[end] != 0) {
+            while (readByte(end) != 0) {
                 end++;
                 if (end >= offset + size) {
                     throw new InvalidOatFileException("String extends past end of string table");
                 }
             }
 
-            return new String(buf, start, end-start, Charset.forName("US-ASCII"));
+            return new String(readByteRange(start, end-start), Charset.forName("US-ASCII"));
         }
     }
 
     private class OatDexEntry implements MultiDexContainer.DexEntry<DexBackedDexFile> {
         public final String entryName;
-        public final byte[] buf;
+        public final ByteBuffer buf;
         public final int dexOffset;
 
-        public OatDexEntry(String entryName, byte[] buf, int dexOffset) {
+        public OatDexEntry(String entryName, ByteBuffer buf, int dexOffset) {
             this.entryName = entryName;
             this.buf = buf;
             this.dexOffset = dexOffset;
@@ -622,7 +657,7 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
                 offset += 4;
 
                 // TODO: what is the correct character encoding?
-                String filename = new String(buf, offset, filenameLength, Charset.forName("US-ASCII"));
+                String filename = new String(readByteRange(offset, filenameLength), Charset.forName("US-ASCII"));
                 offset += filenameLength;
 
                 offset += 4; // checksum
@@ -630,10 +665,11 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
                 int dexOffset = readSmallUint(offset);
                 offset += 4;
 
-                byte[] buf;
-                if (getOatVersion() >= 87 && vdexProvider != null && vdexProvider.getVdex() != null) {
-                    buf = vdexProvider.getVdex();
-                } else {
+                ByteBuffer buf = null;
+                if (getOatVersion() >= 87 && vdexProvider != null) {
+                    buf = vdexProvider.getVdexBuffer();
+                }
+                if (buf == null) {
                     buf = OatFile.this.buf;
                     dexOffset += oatHeader.headerOffset;
                 }
@@ -689,5 +725,18 @@ public class OatFile extends DexBuffer implements MultiDexContainer<DexBackedDex
     public interface VdexProvider {
         @Nullable
         byte[] getVdex();
+
+        /**
+         * Gets the contents of the vdex file as a ByteBuffer. Implementations can override this to provide a memory
+         * mapped buffer, rather than reading the whole vdex file onto the heap.
+         */
+        @Nullable
+        default ByteBuffer getVdexBuffer() {
+            byte[] vdex = getVdex();
+            if (vdex == null) {
+                return null;
+            }
+            return ByteBuffer.wrap(vdex);
+        }
     }
 }
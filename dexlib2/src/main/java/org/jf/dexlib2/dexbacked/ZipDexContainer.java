@@ -32,10 +32,10 @@
 package org.jf.dexlib2.dexbacked;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.NotADexFile;
-import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.MultiDexContainer;
 import org.jf.dexlib2.util.DexUtil;
 import org.jf.dexlib2.util.DexUtil.InvalidFile;
@@ -44,11 +44,17 @@ import org.jf.dexlib2.util.DexUtil.UnsupportedFile;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -57,8 +63,20 @@ import java.util.zip.ZipFile;
  */
 public class ZipDexContainer implements MultiDexContainer<DexBackedDexFile> {
 
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
     private final File zipFilePath;
     @Nullable private final Opcodes opcodes;
+    private final boolean mapStoredEntries;
+
+    // A map of entry name to the offset of the entry's data in the zip file, for stored (uncompressed) entries
+    @Nullable private Map<String, Long> storedEntryOffsets;
 
     /**
      * Constructs a new ZipDexContainer for the given zip file
@@ -66,8 +84,21 @@ public class ZipDexContainer implements MultiDexContainer<DexBackedDexFile> {
      * @param zipFilePath The path to the zip file
      */
     public ZipDexContainer(@Nonnull File zipFilePath, @Nullable Opcodes opcodes) {
+        this(zipFilePath, opcodes, false);
+    }
+
+    /**
+     * Constructs a new ZipDexContainer for the given zip file
+     *
+     * @param zipFilePath The path to the zip file
+     * @param mapStoredEntries If true, dex entries that are stored uncompressed in the zip file will be read directly
+     *                         from a memory mapping of the zip file, rather than being copied onto the heap.
+     *                         Compressed entries are always inflated onto the heap.
+     */
+    public ZipDexContainer(@Nonnull File zipFilePath, @Nullable Opcodes opcodes, boolean mapStoredEntries) {
         this.zipFilePath = zipFilePath;
         this.opcodes = opcodes;
+        this.mapStoredEntries = mapStoredEntries;
     }
 
     /**
@@ -163,33 +194,142 @@ public class ZipDexContainer implements MultiDexContainer<DexBackedDexFile> {
     }
 
     @Nonnull
-    protected DexEntry loadEntry(@Nonnull ZipFile zipFile, @Nonnull ZipEntry zipEntry) throws IOException {
+    protected DexEntry<DexBackedDexFile> loadEntry(@Nonnull ZipFile zipFile, @Nonnull ZipEntry zipEntry)
+            throws IOException {
+        if (mapStoredEntries && zipEntry.getMethod() == ZipEntry.STORED) {
+            ByteBuffer buf = mapStoredEntry(zipEntry);
+            if (buf != null) {
+                return createDexEntry(zipEntry, buf);
+            }
+        }
+
         InputStream inputStream = zipFile.getInputStream(zipEntry);
         try {
             byte[] buf = ByteStreams.toByteArray(inputStream);
+            return createDexEntry(zipEntry, ByteBuffer.wrap(buf));
+        } finally {
+            inputStream.close();
+        }
+    }
 
-            return new DexEntry() {
-                @Nonnull
-                @Override
-                public String getEntryName() {
-                    return zipEntry.getName();
-                }
+    @Nonnull
+    private DexEntry<DexBackedDexFile> createDexEntry(@Nonnull ZipEntry zipEntry, @Nonnull ByteBuffer buf) {
+        return new DexEntry<DexBackedDexFile>() {
+            @Nonnull
+            @Override
+            public String getEntryName() {
+                return zipEntry.getName();
+            }
 
-                @Nonnull
-                @Override
-                public DexFile getDexFile() {
-                    return new DexBackedDexFile(opcodes, buf);
-                }
+            @Nonnull
+            @Override
+            public DexBackedDexFile getDexFile() {
+                return new DexBackedDexFile(opcodes, buf);
+            }
 
-                @Nonnull
-                @Override
-                public MultiDexContainer getContainer() {
-                    return ZipDexContainer.this;
-                }
-            };
+            @Nonnull
+            @Override
+            public MultiDexContainer<DexBackedDexFile> getContainer() {
+                return ZipDexContainer.this;
+            }
+        };
+    }
+
+    /**
+     * Maps the data of a stored (uncompressed) entry directly from the zip file.
+     *
+     * @return A buffer containing the entry's data, or null if the entry's location in the zip file couldn't be
+     * determined (e.g. for a zip64 file)
+     */
+    @Nullable
+    private ByteBuffer mapStoredEntry(@Nonnull ZipEntry zipEntry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(zipFilePath, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            Long dataOffset = getStoredEntryOffsets(channel).get(zipEntry.getName());
+            if (dataOffset == null) {
+                return null;
+            }
+            return DexBuffer.mapRegion(channel, dataOffset, zipEntry.getSize());
         } finally {
-            inputStream.close();
+            raf.close();
+        }
+    }
+
+    @Nonnull
+    private synchronized Map<String, Long> getStoredEntryOffsets(@Nonnull FileChannel channel) throws IOException {
+        if (storedEntryOffsets == null) {
+            storedEntryOffsets = readStoredEntryOffsets(channel);
+        }
+        return storedEntryOffsets;
+    }
+
+    @Nonnull
+    private static Map<String, Long> readStoredEntryOffsets(@Nonnull FileChannel channel) throws IOException {
+        Map<String, Long> offsets = Maps.newHashMap();
+
+        long fileSize = channel.size();
+        int tailSize = (int)Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        if (tailSize < END_HEADER_SIZE) {
+            return offsets;
+        }
+        DexBuffer tail = readRegion(channel, fileSize - tailSize, tailSize);
+
+        int endHeaderOffset = tailSize - END_HEADER_SIZE;
+        while (endHeaderOffset >= 0 && tail.readInt(endHeaderOffset) != END_HEADER_SIGNATURE) {
+            endHeaderOffset--;
+        }
+        if (endHeaderOffset < 0) {
+            return offsets;
+        }
+
+        int entryCount = tail.readUshort(endHeaderOffset + 10);
+        long centralDirectorySize = tail.readInt(endHeaderOffset + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.readInt(endHeaderOffset + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xffff || centralDirectoryOffset == 0xFFFFFFFFL ||
+                centralDirectoryOffset + centralDirectorySize > fileSize) {
+            // zip64, or otherwise something we don't understand. Fall back to reading entries normally.
+            return offsets;
+        }
+
+        DexBuffer centralDirectory = readRegion(channel, centralDirectoryOffset, (int)centralDirectorySize);
+        int offset = 0;
+        for (int i=0; i<entryCount; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > centralDirectorySize ||
+                    centralDirectory.readInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                break;
+            }
+            int method = centralDirectory.readUshort(offset + 10);
+            int nameLength = centralDirectory.readUshort(offset + 28);
+            int extraLength = centralDirectory.readUshort(offset + 30);
+            int commentLength = centralDirectory.readUshort(offset + 32);
+            long localHeaderOffset = centralDirectory.readInt(offset + 42) & 0xFFFFFFFFL;
+
+            if (method == ZipEntry.STORED && localHeaderOffset + LOCAL_HEADER_SIZE <= fileSize) {
+                String name = new String(centralDirectory.readByteRange(offset + CENTRAL_HEADER_SIZE, nameLength),
+                        StandardCharsets.UTF_8);
+
+                DexBuffer localHeader = readRegion(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+                if (localHeader.readInt(0) == LOCAL_HEADER_SIGNATURE) {
+                    // note: the extra field in the local header can differ from the one in the central directory
+                    offsets.put(name, localHeaderOffset + LOCAL_HEADER_SIZE +
+                            localHeader.readUshort(26) + localHeader.readUshort(28));
+                }
+            }
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return offsets;
+    }
+
+    @Nonnull
+    private static DexBuffer readRegion(@Nonnull FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
         }
+        return new DexBuffer(buf);
     }
 
     public static class NotAZipFileException extends RuntimeException {
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked.instruction;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.DexBuffer;
+import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.NibbleUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A reusable, forward-only cursor over the instructions of a DexBackedMethodImplementation.
+ *
+ * Unlike DexBackedMethodImplementation.getInstructions(), the cursor doesn't create an object for each instruction.
+ * The opcode, registers, literals and reference indexes of the current instruction are read directly from the
+ * underlying buffer. A single cursor can be reset and reused across any number of methods, but it is not thread-safe.
+ *
+ * The accessors for the operands of the current instruction follow the same layout as the corresponding
+ * DexBackedInstruction classes, and their results are unspecified if the current instruction's format doesn't have
+ * the requested operand.
+ *
+ * Typical usage:
+ * <pre>
+ *     InstructionCursor cursor = new InstructionCursor();
+ *     for (DexBackedMethod method: classDef.getMethods()) {
+ *         DexBackedMethodImplementation impl = method.getImplementation();
+ *         if (impl != null) {
+ *             cursor.reset(impl);
+ *             while (cursor.next()) {
+ *                 ...
+ *             }
+ *         }
+ *     }
+ * </pre>
+ */
+public class InstructionCursor {
+    private DexBackedDexFile dexFile;
+    private DexBuffer buffer;
+    private DexBackedMethod method;
+
+    private int startOffset;
+    private int endOffset;
+    private int instructionStart;
+    private int nextOffset;
+
+    private int opcodeValue;
+    @Nullable private Opcode opcode;
+
+    /**
+     * Creates a new cursor that isn't associated with any method. reset() must be called before next().
+     */
+    public InstructionCursor() {
+    }
+
+    public InstructionCursor(@Nonnull DexBackedMethodImplementation implementation) {
+        reset(implementation);
+    }
+
+    /**
+     * Positions this cursor before the first instruction of the given method implementation.
+     */
+    public void reset(@Nonnull DexBackedMethodImplementation implementation) {
+        this.dexFile = implementation.dexFile;
+        this.buffer = dexFile.getDataBuffer();
+        this.method = implementation.method;
+        this.startOffset = implementation.getInstructionsStartOffset();
+        this.endOffset = startOffset + implementation.getInstructionsSize() * 2;
+        this.instructionStart = startOffset;
+        this.nextOffset = startOffset;
+        this.opcodeValue = -1;
+        this.opcode = null;
+    }
+
+    /**
+     * Advances this cursor to the next instruction.
+     *
+     * @return true if the cursor is now positioned on an instruction, or false if there are no more instructions
+     */
+    public boolean next() {
+        if (nextOffset >= endOffset) {
+            instructionStart = endOffset;
+            opcodeValue = -1;
+            opcode = null;
+            return false;
+        }
+
+        instructionStart = nextOffset;
+        opcodeValue = buffer.readUbyte(instructionStart);
+        if (opcodeValue == 0) {
+            opcodeValue = buffer.readUshort(instructionStart);
+        }
+        opcode = dexFile.getOpcodes().getOpcodeByValue(opcodeValue);
+
+        // Does the instruction extend past the end of the method?
+        nextOffset = instructionStart + getCodeUnits() * 2;
+        if (nextOffset > endOffset || nextOffset < 0) {
+            throw new ExceptionWithContext("The last instruction in method %s is truncated", method);
+        }
+        return true;
+    }
+
+    /**
+     * @return The DexBackedDexFile containing the current method
+     */
+    @Nonnull
+    public DexBackedDexFile getDexFile() {
+        return dexFile;
+    }
+
+    /**
+     * @return The opcode of the current instruction, or null if the opcode value isn't recognized
+     */
+    @Nullable
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return The raw opcode value of the current instruction. For payload pseudo-instructions, this is the full
+     * 16-bit ident value.
+     */
+    public int getOpcodeValue() {
+        return opcodeValue;
+    }
+
+    /**
+     * @return The offset of the current instruction from the start of the method, in 16-bit code units
+     */
+    public int getCodeAddress() {
+        return (instructionStart - startOffset) / 2;
+    }
+
+    /**
+     * @return The offset of the current instruction in the dex file's data buffer. This is the same offset that the
+     * DexBackedInstruction for this instruction would have as its instructionStart.
+     */
+    public int getInstructionStart() {
+        return instructionStart;
+    }
+
+    /**
+     * @return The size of the current instruction, in 16-bit code units
+     */
+    public int getCodeUnits() {
+        if (opcode == null) {
+            // an unknown instruction is treated as a single code unit, like DexBackedUnknownInstruction
+            return 1;
+        }
+
+        switch (opcode.format) {
+            case PackedSwitchPayload:
+                return 4 + buffer.readUshort(instructionStart + 2) * 2;
+            case SparseSwitchPayload:
+                return 2 + buffer.readUshort(instructionStart + 2) * 4;
+            case ArrayPayload: {
+                int elementWidth = buffer.readUshort(instructionStart + 2);
+                if (elementWidth == 0) {
+                    return 4;
+                }
+                int elementCount = buffer.readSmallUint(instructionStart + 4);
+                if (((long) elementWidth) * elementCount > Integer.MAX_VALUE) {
+                    throw new ExceptionWithContext("Invalid array-payload instruction: element width*count overflows");
+                }
+                return 4 + (elementWidth * elementCount + 1) / 2;
+            }
+            default:
+                return opcode.format.size / 2;
+        }
+    }
+
+    public int getRegisterA() {
+        switch (getFormat()) {
+            case Format11n:
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractLowUnsignedNibble(buffer.readByte(instructionStart + 1));
+            case Format32x:
+                return buffer.readUshort(instructionStart + 2);
+            default:
+                return buffer.readUbyte(instructionStart + 1);
+        }
+    }
+
+    public int getRegisterB() {
+        switch (getFormat()) {
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractHighUnsignedNibble(buffer.readByte(instructionStart + 1));
+            case Format22x:
+                return buffer.readUshort(instructionStart + 2);
+            case Format32x:
+                return buffer.readUshort(instructionStart + 4);
+            default:
+                return buffer.readUbyte(instructionStart + 2);
+        }
+    }
+
+    public int getRegisterC() {
+        return buffer.readUbyte(instructionStart + 3);
+    }
+
+    /**
+     * @return The number of registers used by the current invoke-style or filled-new-array-style instruction
+     */
+    public int getRegisterCount() {
+        switch (getFormat()) {
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return NibbleUtils.extractHighUnsignedNibble(buffer.readUbyte(instructionStart + 1));
+            default:
+                return buffer.readUbyte(instructionStart + 1);
+        }
+    }
+
+    /**
+     * Gets one of the registers of the current invoke-style or filled-new-array-style instruction.
+     *
+     * @param index The index of the register, between 0 and getRegisterCount() - 1
+     * @return The register number
+     */
+    public int getRegister(int index) {
+        switch (getFormat()) {
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                switch (index) {
+                    case 0:
+                        return NibbleUtils.extractLowUnsignedNibble(buffer.readUbyte(instructionStart + 4));
+                    case 1:
+                        return NibbleUtils.extractHighUnsignedNibble(buffer.readUbyte(instructionStart + 4));
+                    case 2:
+                        return NibbleUtils.extractLowUnsignedNibble(buffer.readUbyte(instructionStart + 5));
+                    case 3:
+                        return NibbleUtils.extractHighUnsignedNibble(buffer.readUbyte(instructionStart + 5));
+                    case 4:
+                        return NibbleUtils.extractLowUnsignedNibble(buffer.readUbyte(instructionStart + 1));
+                    default:
+                        throw new IndexOutOfBoundsException(String.valueOf(index));
+                }
+            default:
+                // the range formats
+                return buffer.readUshort(instructionStart + 4) + index;
+        }
+    }
+
+    public int getNarrowLiteral() {
+        switch (getFormat()) {
+            case Format11n:
+                return NibbleUtils.extractHighSignedNibble(buffer.readByte(instructionStart + 1));
+            case Format21ih:
+                return buffer.readShort(instructionStart + 2) << 16;
+            case Format22b:
+                return buffer.readByte(instructionStart + 3);
+            case Format31i:
+                return buffer.readInt(instructionStart + 2);
+            default:
+                // Format21s, Format22s
+                return buffer.readShort(instructionStart + 2);
+        }
+    }
+
+    public long getWideLiteral() {
+        switch (getFormat()) {
+            case Format21lh:
+                return ((long) buffer.readShort(instructionStart + 2)) << 48;
+            case Format51l:
+                return buffer.readLong(instructionStart + 2);
+            default:
+                return getNarrowLiteral();
+        }
+    }
+
+    /**
+     * @return The branch offset of the current instruction, in code units relative to the current instruction
+     */
+    public int getCodeOffset() {
+        switch (getFormat()) {
+            case Format10t:
+                return buffer.readByte(instructionStart + 1);
+            case Format30t:
+            case Format31t:
+                return buffer.readInt(instructionStart + 2);
+            default:
+                // Format20t, Format21t, Format22t
+                return buffer.readShort(instructionStart + 2);
+        }
+    }
+
+    /**
+     * @return The reference type of the current instruction's reference, as a ReferenceType value
+     */
+    public int getReferenceType() {
+        if (getFormat() == Format.Format20bc) {
+            int referenceType = (buffer.readUbyte(instructionStart + 1) >>> 6) + 1;
+            ReferenceType.validateReferenceType(referenceType);
+            return referenceType;
+        }
+        return opcode.referenceType;
+    }
+
+    /**
+     * @return The index of the current instruction's reference, in the section corresponding to getReferenceType()
+     */
+    public int getReferenceIndex() {
+        if (getFormat() == Format.Format31c) {
+            return buffer.readSmallUint(instructionStart + 2);
+        }
+        return buffer.readUshort(instructionStart + 2);
+    }
+
+    /**
+     * @return The reference type of the second reference of the current Format45cc or Format4rcc instruction
+     */
+    public int getReferenceType2() {
+        return opcode.referenceType2;
+    }
+
+    /**
+     * @return The index of the second reference of the current Format45cc or Format4rcc instruction
+     */
+    public int getReferenceIndex2() {
+        return buffer.readUshort(instructionStart + 6);
+    }
+
+    /**
+     * @return The vtable index, inline method index or field offset of the current odex-only instruction
+     */
+    public int getOdexIndex() {
+        return buffer.readUshort(instructionStart + 2);
+    }
+
+    /**
+     * Creates a reference object for the current instruction's reference.
+     *
+     * This allocates, and is intended for the relatively rare cases where a scan needs the full reference.
+     */
+    @Nonnull
+    public Reference getReference() {
+        return DexBackedReference.makeReference(dexFile, getReferenceType(), getReferenceIndex());
+    }
+
+    /**
+     * Creates an instruction object for the current instruction.
+     *
+     * This allocates, and is intended for the relatively rare cases where a scan needs the full instruction.
+     */
+    @Nonnull
+    public Instruction getInstruction() {
+        return DexBackedInstruction.readFrom(dexFile, buffer.readerAt(instructionStart));
+    }
+
+    @Nonnull
+    private Format getFormat() {
+        if (opcode == null) {
+            throw new IllegalStateException("The cursor is not positioned on a recognized instruction");
+        }
+        return opcode.format;
+    }
+}
@@ -36,6 +36,7 @@ import com.google.common.collect.Ordering;
 import com.google.common.primitives.Ints;
 import org.jf.dexlib2.dexbacked.CDexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBuffer;
 import org.jf.dexlib2.dexbacked.raw.*;
 import org.jf.dexlib2.util.AnnotatedBytes;
 
@@ -193,7 +194,12 @@ public class DexAnnotator extends AnnotatedBytes {
                 }
             }
         } finally {
-            writeAnnotations(out, dexFile.getBuffer().getBuf(), dexFile.getBuffer().getBaseOffset());
+            DexBuffer buffer = dexFile.getBuffer();
+            if (buffer.hasArray()) {
+                writeAnnotations(out, buffer.getBuf(), buffer.getBaseOffset());
+            } else {
+                writeAnnotations(out, buffer.readByteRange(0, buffer.getBufferLength() - buffer.getBaseOffset()), 0);
+            }
         }
     }
 
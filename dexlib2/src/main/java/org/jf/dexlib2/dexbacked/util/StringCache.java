@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of decoded strings from a dex file's string pool, keyed by string index.
+ *
+ * Decoding a string requires reading its uleb128 length and converting the MUTF-8 data to a String, which adds up
+ * when the same strings and types are looked up over and over (e.g. by baksmali or ClassPath). A StringCache can be
+ * attached to a DexBackedDexFile via {@link org.jf.dexlib2.dexbacked.DexBackedDexFile#setStringCache(StringCache)},
+ * after which repeated lookups are served from the cache.
+ *
+ * All implementations are thread safe.
+ */
+public abstract class StringCache {
+    /**
+     * String pools up to this size get a dense array cache by default. The array costs 1 reference per string.
+     */
+    public static final int DEFAULT_DENSE_LIMIT = 1 << 18;
+
+    /**
+     * The default maximum number of strings held by a bounded cache.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1 << 16;
+
+    private final boolean recordStats;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    protected StringCache(boolean recordStats) {
+        this.recordStats = recordStats;
+    }
+
+    /**
+     * Creates a cache suitable for a string pool of the given size. This is a dense cache for pools up to
+     * {@link #DEFAULT_DENSE_LIMIT} strings, and a bounded cache of {@link #DEFAULT_MAXIMUM_SIZE} strings otherwise.
+     *
+     * @param stringCount The number of strings in the string pool
+     * @return A new StringCache
+     */
+    @Nonnull
+    public static StringCache create(int stringCount) {
+        if (stringCount <= DEFAULT_DENSE_LIMIT) {
+            return dense(stringCount, false);
+        }
+        return bounded(DEFAULT_MAXIMUM_SIZE, false);
+    }
+
+    /**
+     * Creates a cache backed by an array with an entry for every string. Strings are never evicted.
+     *
+     * @param stringCount The number of strings in the string pool
+     * @param recordStats Whether to keep track of the hit and miss counts
+     */
+    @Nonnull
+    public static StringCache dense(int stringCount, boolean recordStats) {
+        return new DenseStringCache(stringCount, recordStats);
+    }
+
+    /**
+     * Creates a cache that holds at most maximumSize strings, evicting the least recently used strings as needed.
+     *
+     * @param maximumSize The maximum number of strings to hold
+     * @param recordStats Whether to keep track of the hit and miss counts
+     */
+    @Nonnull
+    public static StringCache bounded(int maximumSize, boolean recordStats) {
+        return new GuavaStringCache(CacheBuilder.newBuilder().maximumSize(maximumSize), recordStats);
+    }
+
+    /**
+     * Creates a cache that holds strings via soft references, so that they can be evicted in response to memory
+     * pressure.
+     *
+     * @param recordStats Whether to keep track of the hit and miss counts
+     */
+    @Nonnull
+    public static StringCache soft(boolean recordStats) {
+        return new GuavaStringCache(CacheBuilder.newBuilder().softValues(), recordStats);
+    }
+
+    /**
+     * @param index The index of the string
+     * @return The cached string, or null if the string isn't currently cached
+     */
+    @Nullable
+    public String get(int index) {
+        String value = getCached(index);
+        if (recordStats) {
+            if (value == null) {
+                missCount.incrementAndGet();
+            } else {
+                hitCount.incrementAndGet();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Adds a decoded string to the cache.
+     *
+     * @param index The index of the string
+     * @param value The decoded string
+     */
+    public abstract void put(int index, @Nonnull String value);
+
+    @Nullable
+    protected abstract String getCached(int index);
+
+    /**
+     * @return The number of lookups that were served from the cache. This is always 0 if stats aren't being recorded.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of lookups that weren't served from the cache. This is always 0 if stats aren't being
+     * recorded.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private static class DenseStringCache extends StringCache {
+        // A racy write just means a string may be decoded more than once. Strings are immutable, so a reader will
+        // never see a partially constructed string.
+        @Nonnull private final String[] strings;
+
+        public DenseStringCache(int stringCount, boolean recordStats) {
+            super(recordStats);
+            this.strings = new String[stringCount];
+        }
+
+        @Override public void put(int index, @Nonnull String value) {
+            strings[index] = value;
+        }
+
+        @Nullable @Override protected String getCached(int index) {
+            return strings[index];
+        }
+    }
+
+    private static class GuavaStringCache extends StringCache {
+        @Nonnull private final Cache<Integer, String> cache;
+
+        public GuavaStringCache(@Nonnull CacheBuilder<Object, Object> builder, boolean recordStats) {
+            super(recordStats);
+            this.cache = builder.build();
+        }
+
+        @Override public void put(int index, @Nonnull String value) {
+            cache.put(index, value);
+        }
+
+        @Nullable @Override protected String getCached(int index) {
+            return cache.getIfPresent(index);
+        }
+    }
+}
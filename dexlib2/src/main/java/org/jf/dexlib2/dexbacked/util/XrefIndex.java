@@ -0,0 +1,533 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.util.ExceptionWithContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A cross-reference index for a dex file, which maps each method, field, type and string to the places in the code
+ * that reference it.
+ *
+ * The index is built by scanning the instructions of every method, and is stored as a set of compact posting lists.
+ * For each kind of reference, there is an array of sites, grouped by reference index, and an array with the start of
+ * the group for each reference index. Each site is a pair of ints: the method_id index of the method containing the
+ * reference, and the code offset of the referencing instruction, in code units.
+ *
+ * The sites for a reference are in the order of the class_defs and methods in the dex file.
+ *
+ * An index can be saved with {@link #writeTo(File)} and loaded again with {@link #readFrom(DexBackedDexFile, File)},
+ * which checks that the index was built for the same dex file.
+ */
+public class XrefIndex {
+    /** Invocations of a method */
+    public static final int METHOD_CALLS = 0;
+    /** Reads of a field, e.g. iget and sget */
+    public static final int FIELD_READS = 1;
+    /** Writes to a field, e.g. iput and sput */
+    public static final int FIELD_WRITES = 2;
+    /** Uses of a type, e.g. new-instance, check-cast or const-class */
+    public static final int TYPE_USES = 3;
+    /** Uses of a string by const-string */
+    public static final int STRING_USES = 4;
+
+    private static final int KIND_COUNT = 5;
+
+    /** The extension used for an index that is stored alongside a dex file. See {@link #getIndexFile(File)} */
+    public static final String FILE_EXTENSION = ".xref";
+
+    private static final int MAGIC = 0x78726566; // "xref"
+    private static final int VERSION = 1;
+
+    // the number of classes that are scanned in a single task
+    private static final int CLASS_CHUNK_SIZE = 64;
+
+    @Nonnull private final DexBackedDexFile dexFile;
+    @Nonnull private final int[][] starts;
+    @Nonnull private final int[][] sites;
+
+    private XrefIndex(@Nonnull DexBackedDexFile dexFile, @Nonnull int[][] starts, @Nonnull int[][] sites) {
+        this.dexFile = dexFile;
+        this.starts = starts;
+        this.sites = sites;
+    }
+
+    @Nonnull
+    public DexBackedDexFile getDexFile() {
+        return dexFile;
+    }
+
+    /**
+     * Gets the sites that reference the item with the given index.
+     *
+     * @param kind The kind of reference. One of the constants in this class, e.g. {@link #METHOD_CALLS}
+     * @param referenceIndex The index of the referenced item in the corresponding section of the dex file
+     * @return The sites that reference the item
+     */
+    @Nonnull
+    public List<Site> getSites(int kind, int referenceIndex) {
+        final int[] kindStarts = starts[kind];
+        if (referenceIndex < 0 || referenceIndex >= kindStarts.length - 1) {
+            throw new IndexOutOfBoundsException(String.format("Invalid reference index %d, not in [0, %d)",
+                    referenceIndex, kindStarts.length - 1));
+        }
+
+        final int[] kindSites = sites[kind];
+        final int start = kindStarts[referenceIndex];
+        final int size = kindStarts[referenceIndex + 1] - start;
+        return new AbstractList<Site>() {
+            @Override public Site get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException();
+                }
+                int siteIndex = (start + index) * 2;
+                return new Site(new DexBackedMethodReference(dexFile, kindSites[siteIndex]),
+                        kindSites[siteIndex + 1]);
+            }
+
+            @Override public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return The sites that invoke the given method
+     */
+    @Nonnull
+    public List<Site> getMethodCalls(@Nonnull MethodReference method) {
+        return getSitesOrEmpty(METHOD_CALLS, dexFile.findMethodIndex(method));
+    }
+
+    /**
+     * @return The sites that read the given field
+     */
+    @Nonnull
+    public List<Site> getFieldReads(@Nonnull FieldReference field) {
+        return getSitesOrEmpty(FIELD_READS, dexFile.findFieldIndex(field));
+    }
+
+    /**
+     * @return The sites that write to the given field
+     */
+    @Nonnull
+    public List<Site> getFieldWrites(@Nonnull FieldReference field) {
+        return getSitesOrEmpty(FIELD_WRITES, dexFile.findFieldIndex(field));
+    }
+
+    /**
+     * @return The sites that use the given type
+     */
+    @Nonnull
+    public List<Site> getTypeUses(@Nonnull String type) {
+        return getSitesOrEmpty(TYPE_USES, dexFile.findTypeIndex(type));
+    }
+
+    /**
+     * @return The sites that use the given string
+     */
+    @Nonnull
+    public List<Site> getStringUses(@Nonnull String string) {
+        return getSitesOrEmpty(STRING_USES, dexFile.findStringIndex(string));
+    }
+
+    @Nonnull
+    private List<Site> getSitesOrEmpty(int kind, int referenceIndex) {
+        if (referenceIndex < 0) {
+            return ImmutableList.of();
+        }
+        return getSites(kind, referenceIndex);
+    }
+
+    /**
+     * A single instruction that references an item.
+     */
+    public static class Site {
+        /** The method that contains the instruction */
+        @Nonnull public final DexBackedMethodReference method;
+        /** The offset of the instruction in the method's code, in code units */
+        public final int codeOffset;
+
+        public Site(@Nonnull DexBackedMethodReference method, int codeOffset) {
+            this.method = method;
+            this.codeOffset = codeOffset;
+        }
+    }
+
+    /**
+     * Builds a cross-reference index for the given dex file.
+     *
+     * @param dexFile The dex file to index
+     * @param jobs The number of threads to scan the classes with
+     * @return The index
+     * @throws RuntimeException if scanning a class fails, or if the calling thread is interrupted. In the latter case,
+     * the interrupt flag is restored. Any chunks that are still being scanned are interrupted in either case.
+     */
+    @Nonnull
+    public static XrefIndex build(@Nonnull final DexBackedDexFile dexFile, int jobs) {
+        final DexBackedDexFile.IndexedSection<DexBackedClassDef> classSection = dexFile.getClassSection();
+        int classCount = classSection.size();
+        final int[] referenceCounts = getReferenceCounts(dexFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<SiteBuffer[]>> tasks = Lists.newArrayList();
+        try {
+            for (int chunkStart=0; chunkStart<classCount; chunkStart+=CLASS_CHUNK_SIZE) {
+                final int start = chunkStart;
+                final int end = Math.min(classCount, chunkStart + CLASS_CHUNK_SIZE);
+                tasks.add(executor.submit(new Callable<SiteBuffer[]>() {
+                    @Override public SiteBuffer[] call() throws Exception {
+                        SiteBuffer[] buffers = newSiteBuffers();
+                        InstructionCursor cursor = new InstructionCursor();
+                        for (int i=start; i<end; i++) {
+                            if (Thread.interrupted()) {
+                                throw new InterruptedException();
+                            }
+                            scanClass(classSection.get(i), referenceCounts, cursor, buffers);
+                        }
+                        return buffers;
+                    }
+                }));
+            }
+
+            List<SiteBuffer[]> chunks = Lists.newArrayListWithCapacity(tasks.size());
+            for (Future<SiteBuffer[]> task: tasks) {
+                try {
+                    chunks.add(task.get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            int[][] starts = new int[KIND_COUNT][];
+            int[][] sites = new int[KIND_COUNT][];
+            for (int kind=0; kind<KIND_COUNT; kind++) {
+                buildPostingLists(kind, referenceCounts[kind], chunks, starts, sites);
+            }
+            return new XrefIndex(dexFile, starts, sites);
+        } finally {
+            // if a chunk failed, or we were interrupted, don't leave the remaining chunks running
+            executor.shutdownNow();
+        }
+    }
+
+    private static void buildPostingLists(int kind, int referenceCount, @Nonnull List<SiteBuffer[]> chunks,
+                                          @Nonnull int[][] starts, @Nonnull int[][] sites) {
+        // count the sites for each reference, and then convert the counts to start positions
+        int[] kindStarts = new int[referenceCount + 1];
+        for (SiteBuffer[] chunk: chunks) {
+            SiteBuffer buffer = chunk[kind];
+            for (int i=0; i<buffer.size; i+=3) {
+                kindStarts[buffer.data[i] + 1]++;
+            }
+        }
+        for (int i=0; i<referenceCount; i++) {
+            kindStarts[i + 1] += kindStarts[i];
+        }
+
+        // the chunks are in class order, so filling in order keeps the sites for each reference in class order
+        int[] positions = Arrays.copyOf(kindStarts, referenceCount);
+        int[] kindSites = new int[kindStarts[referenceCount] * 2];
+        for (SiteBuffer[] chunk: chunks) {
+            SiteBuffer buffer = chunk[kind];
+            for (int i=0; i<buffer.size; i+=3) {
+                int position = positions[buffer.data[i]]++ * 2;
+                kindSites[position] = buffer.data[i + 1];
+                kindSites[position + 1] = buffer.data[i + 2];
+            }
+        }
+
+        starts[kind] = kindStarts;
+        sites[kind] = kindSites;
+    }
+
+    private static void scanClass(@Nonnull DexBackedClassDef classDef, @Nonnull int[] referenceCounts,
+                                  @Nonnull InstructionCursor cursor, @Nonnull SiteBuffer[] buffers) {
+        for (DexBackedMethod method: classDef.getMethods()) {
+            DexBackedMethodImplementation implementation = method.getImplementation();
+            if (implementation == null) {
+                continue;
+            }
+
+            int methodIndex = method.getMethodIndex();
+            cursor.reset(implementation);
+            while (cursor.next()) {
+                Opcode opcode = cursor.getOpcode();
+                if (opcode == null) {
+                    continue;
+                }
+                int kind = getKind(opcode);
+                if (kind >= 0) {
+                    int referenceIndex = cursor.getReferenceIndex();
+                    // an invalid reference can't be looked up anyway, so there's no point indexing it
+                    if (referenceIndex < referenceCounts[kind]) {
+                        buffers[kind].add(referenceIndex, methodIndex, cursor.getCodeAddress());
+                    }
+                }
+            }
+        }
+    }
+
+    private static int getKind(@Nonnull Opcode opcode) {
+        // the odex-only opcodes use other formats for their "references", e.g. vtable indexes or inline method
+        // indexes, which aren't indexes into the dex file's sections
+        switch (opcode.format) {
+            case Format21c:
+            case Format22c:
+            case Format31c:
+            case Format35c:
+            case Format3rc:
+            case Format45cc:
+            case Format4rcc:
+                break;
+            default:
+                return -1;
+        }
+
+        switch (opcode.referenceType) {
+            case ReferenceType.METHOD:
+                return METHOD_CALLS;
+            case ReferenceType.FIELD:
+                return opcode.setsRegister() ? FIELD_READS : FIELD_WRITES;
+            case ReferenceType.TYPE:
+                return TYPE_USES;
+            case ReferenceType.STRING:
+                return STRING_USES;
+            default:
+                return -1;
+        }
+    }
+
+    @Nonnull
+    private static int[] getReferenceCounts(@Nonnull DexBackedDexFile dexFile) {
+        int[] counts = new int[KIND_COUNT];
+        counts[METHOD_CALLS] = dexFile.getMethodSection().size();
+        counts[FIELD_READS] = dexFile.getFieldSection().size();
+        counts[FIELD_WRITES] = dexFile.getFieldSection().size();
+        counts[TYPE_USES] = dexFile.getTypeSection().size();
+        counts[STRING_USES] = dexFile.getStringSection().size();
+        return counts;
+    }
+
+    @Nonnull
+    private static SiteBuffer[] newSiteBuffers() {
+        SiteBuffer[] buffers = new SiteBuffer[KIND_COUNT];
+        for (int i=0; i<KIND_COUNT; i++) {
+            buffers[i] = new SiteBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * A growable list of (reference index, method index, code offset) triples
+     */
+    private static class SiteBuffer {
+        @Nonnull public int[] data = new int[48];
+        public int size = 0;
+
+        public void add(int referenceIndex, int methodIndex, int codeOffset) {
+            if (size + 3 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = referenceIndex;
+            data[size++] = methodIndex;
+            data[size++] = codeOffset;
+        }
+    }
+
+    /**
+     * @return The file that an index for the given dex file is stored in, alongside the dex file
+     */
+    @Nonnull
+    public static File getIndexFile(@Nonnull File dexFile) {
+        return new File(dexFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Writes this index to the given file.
+     *
+     * The index is written to a temporary file first, so that a partially written index is never left behind.
+     */
+    public void writeTo(@Nonnull File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(getSignature(dexFile));
+                for (int kind=0; kind<KIND_COUNT; kind++) {
+                    writePostingLists(out, starts[kind], sites[kind]);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                // renameTo may fail on some systems if the destination already exists
+                if (!file.delete() || !tempFile.renameTo(file)) {
+                    throw new IOException("Could not write the index to " + file);
+                }
+            }
+        } finally {
+            // the temp file only still exists if something went wrong
+            // noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Reads an index that was previously written with {@link #writeTo(File)}.
+     *
+     * @param dexFile The dex file that the index was built for
+     * @param file The file to read the index from
+     * @return The index, or null if the file doesn't contain an index for this version of the dex file
+     * @throws IOException if the file couldn't be read
+     * @throws ExceptionWithContext if the file is truncated or otherwise corrupt
+     */
+    @Nullable
+    public static XrefIndex readFrom(@Nonnull DexBackedDexFile dexFile, @Nonnull File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            byte[] signature = new byte[HeaderItem.SIGNATURE_SIZE];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, getSignature(dexFile))) {
+                return null;
+            }
+
+            int[] referenceCounts = getReferenceCounts(dexFile);
+            int[][] starts = new int[KIND_COUNT][];
+            int[][] sites = new int[KIND_COUNT][];
+            for (int kind=0; kind<KIND_COUNT; kind++) {
+                if (readUnsignedVarInt(in) != referenceCounts[kind]) {
+                    throw new ExceptionWithContext("Invalid xref index: %s", file);
+                }
+                readPostingLists(in, referenceCounts[kind], kind, starts, sites, file.length());
+            }
+            return new XrefIndex(dexFile, starts, sites);
+        } catch (EOFException ex) {
+            throw new ExceptionWithContext(ex, "Truncated xref index: %s", file);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Nonnull
+    private static byte[] getSignature(@Nonnull DexBackedDexFile dexFile) {
+        return dexFile.getBuffer().readByteRange(HeaderItem.SIGNATURE_OFFSET, HeaderItem.SIGNATURE_SIZE);
+    }
+
+    /**
+     * Writes the posting lists for a single kind of reference. The start positions are stored as the number of sites
+     * for each reference, and all values are stored as variable length ints, since most are small.
+     */
+    private static void writePostingLists(@Nonnull DataOutputStream out, @Nonnull int[] starts, @Nonnull int[] sites)
+            throws IOException {
+        int referenceCount = starts.length - 1;
+        writeUnsignedVarInt(out, referenceCount);
+        for (int i=0; i<referenceCount; i++) {
+            writeUnsignedVarInt(out, starts[i + 1] - starts[i]);
+        }
+        for (int site: sites) {
+            writeUnsignedVarInt(out, site);
+        }
+    }
+
+    private static void readPostingLists(@Nonnull DataInputStream in, int referenceCount, int kind,
+                                         @Nonnull int[][] starts, @Nonnull int[][] sites, long fileLength)
+            throws IOException {
+        int[] kindStarts = new int[referenceCount + 1];
+        for (int i=0; i<referenceCount; i++) {
+            kindStarts[i + 1] = kindStarts[i] + readUnsignedVarInt(in);
+            // each site is 2 values of at least 1 byte each, so a corrupt count can't be allowed to make us allocate
+            // more than the file could possibly hold
+            if (kindStarts[i + 1] < 0 || kindStarts[i + 1] > fileLength / 2) {
+                throw new ExceptionWithContext("Invalid site count in xref index");
+            }
+        }
+        int[] kindSites = new int[kindStarts[referenceCount] * 2];
+        for (int i=0; i<kindSites.length; i++) {
+            kindSites[i] = readUnsignedVarInt(in);
+        }
+        starts[kind] = kindStarts;
+        sites[kind] = kindSites;
+    }
+
+    private static void writeUnsignedVarInt(@Nonnull DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readUnsignedVarInt(@Nonnull DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift=0; shift<35; shift+=7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (result < 0) {
+                    break;
+                }
+                return result;
+            }
+        }
+        throw new ExceptionWithContext("Invalid value in xref index");
+    }
+}
@@ -38,6 +38,7 @@ import org.jf.dexlib2.iface.debug.DebugItem;
 import org.jf.dexlib2.iface.instruction.Instruction;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.List;
 
 public class MethodImplementationRewriter implements Rewriter<MethodImplementation> {
@@ -51,7 +52,7 @@ public class MethodImplementationRewriter implements Rewriter<MethodImplementati
         return new RewrittenMethodImplementation(methodImplementation);
     }
 
-    protected class RewrittenMethodImplementation implements MethodImplementation {
+    protected class RewrittenMethodImplementation implements ReferenceRewrittenMethodImplementation {
         @Nonnull protected MethodImplementation methodImplementation;
 
         public RewrittenMethodImplementation(@Nonnull MethodImplementation methodImplementation) {
@@ -76,5 +77,18 @@ public class MethodImplementationRewriter implements Rewriter<MethodImplementati
             return RewriterUtils.rewriteIterable(rewriters.getDebugItemRewriter(),
                     methodImplementation.getDebugItems());
         }
+
+        @Override @Nullable public MethodImplementation getReferenceRewrittenImplementation() {
+            // a subclass of this class or of InstructionRewriter could rewrite more than just the references
+            if (getClass() != RewrittenMethodImplementation.class ||
+                    rewriters.getInstructionRewriter().getClass() != InstructionRewriter.class) {
+                return null;
+            }
+            return methodImplementation;
+        }
+
+        @Override @Nonnull public Rewriters getRewriters() {
+            return rewriters;
+        }
     }
 }
@@ -31,7 +31,11 @@
 
 package org.jf.dexlib2.rewriter;
 
+import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.base.reference.BaseTypeReference;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
 import org.jf.dexlib2.iface.reference.TypeReference;
 
 import javax.annotation.Nonnull;
@@ -113,6 +117,27 @@ public class RewriterUtils {
             }
         };
     }
-}
-
 
+    /**
+     * Rewrites a reference from an instruction, in the same way the stock InstructionRewriter does.
+     *
+     * @param referenceType The type of the reference, as per ReferenceType
+     */
+    @Nonnull
+    public static Reference rewriteReference(@Nonnull Rewriters rewriters, @Nonnull Reference reference,
+                                             int referenceType) {
+        switch (referenceType) {
+            case ReferenceType.TYPE:
+                return rewriteTypeReference(rewriters.getTypeRewriter(), (TypeReference)reference);
+            case ReferenceType.FIELD:
+                return rewriters.getFieldReferenceRewriter().rewrite((FieldReference)reference);
+            case ReferenceType.METHOD:
+                return rewriters.getMethodReferenceRewriter().rewrite((MethodReference)reference);
+            case ReferenceType.STRING:
+            case ReferenceType.METHOD_PROTO:
+                return reference;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+}
@@ -34,6 +34,7 @@ package org.jf.dexlib2.util;
 import com.google.common.io.ByteStreams;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.NotADexFile;
 import org.jf.dexlib2.dexbacked.DexBackedOdexFile.NotAnOdexFile;
+import org.jf.dexlib2.dexbacked.DexBuffer;
 import org.jf.dexlib2.dexbacked.raw.CdexHeaderItem;
 import org.jf.dexlib2.dexbacked.raw.HeaderItem;
 import org.jf.dexlib2.dexbacked.raw.OdexHeaderItem;
@@ -42,6 +43,7 @@ import javax.annotation.Nonnull;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class DexUtil {
 
@@ -73,6 +75,28 @@ public class DexUtil {
         return verifyDexHeader(partialHeader, 0);
     }
 
+    /**
+     * Verifies that the dex header is valid and a supported version
+     *
+     * @param buf A ByteBuffer containing at least the first 44 bytes of a dex file, starting at offset
+     * @param offset The offset within the buffer to the dex header
+     * @return The dex version
+     * @throws NotADexFile If the file is not a dex file
+     * @throws InvalidFile If the header appears to be a dex file, but is not valid for some reason
+     * @throws UnsupportedFile If the dex header is valid, but uses unsupported functionality
+     */
+    public static int verifyDexHeader(@Nonnull ByteBuffer buf, int offset) {
+        if (buf.hasArray()) {
+            return verifyDexHeader(buf.array(), buf.arrayOffset() + offset);
+        }
+        if (offset + 44 > buf.limit()) {
+            throw new NotADexFile("File is too short");
+        }
+        byte[] partialHeader = new byte[44];
+        new DexBuffer(buf).readByteRange(offset, partialHeader, 0, partialHeader.length);
+        return verifyDexHeader(partialHeader, 0);
+    }
+
     /**
      * Verifies that the dex header is valid and a supported version
      *
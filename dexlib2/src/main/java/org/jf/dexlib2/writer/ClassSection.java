@@ -82,6 +82,19 @@ public interface ClassSection<StringKey extends CharSequence, TypeKey extends Ch
 
     int getRegisterCount(@Nonnull MethodKey key);
     @Nullable Iterable<? extends Instruction> getInstructions(@Nonnull MethodKey key);
+
+    /**
+     * Gets the already-encoded instructions for the given method, if they are available.
+     *
+     * This is used as a fast path in place of getInstructions(), when the section can produce the encoded
+     * instructions more cheaply than the writer could encode them. The returned instructions must not need any of the
+     * fixups the writer would otherwise apply, e.g. a const-string whose string index doesn't fit in 16 bits.
+     *
+     * @return The encoded instructions, or null if the writer should encode the instructions from getInstructions()
+     */
+    @Nullable default RawInstructions getRawInstructions(@Nonnull MethodKey key) {
+        return null;
+    }
     @Nonnull List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks(@Nonnull MethodKey key);
     @Nullable TypeKey getExceptionType(@Nonnull ExceptionHandler handler);
     @Nonnull MutableMethodImplementation makeMutableMethodImplementation(@Nonnull MethodKey key);
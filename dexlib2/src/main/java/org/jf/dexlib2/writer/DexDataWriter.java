@@ -32,6 +32,7 @@
 package org.jf.dexlib2.writer;
 
 import org.jf.util.ExceptionWithContext;
+import org.jf.util.Utf8Utils;
 
 import javax.annotation.Nonnull;
 import java.io.BufferedOutputStream;
@@ -243,30 +244,13 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public void writeString(String string) throws IOException {
-        int len = string.length();
-
         // make sure we have enough room in the temporary buffer
         if (tempBuf.length <= string.length()*3) {
             tempBuf = new byte[string.length()*3];
         }
 
-        final byte[] buf = tempBuf;
-
-        int bufPos = 0;
-        for (int i = 0; i < len; i++) {
-            char c = string.charAt(i);
-            if ((c != 0) && (c < 0x80)) {
-                buf[bufPos++] = (byte)c;
-            } else if (c < 0x800) {
-                buf[bufPos++] = (byte)(((c >> 6) & 0x1f) | 0xc0);
-                buf[bufPos++] = (byte)((c & 0x3f) | 0x80);
-            } else {
-                buf[bufPos++] = (byte)(((c >> 12) & 0x0f) | 0xe0);
-                buf[bufPos++] = (byte)(((c >> 6) & 0x3f) | 0x80);
-                buf[bufPos++] = (byte)((c & 0x3f) | 0x80);
-            }
-        }
-        write(buf, 0, bufPos);
+        int length = Utf8Utils.encodeString(string, tempBuf, 0);
+        write(tempBuf, 0, length);
     }
 
     public void align() throws IOException {
@@ -31,6 +31,7 @@
 
 package org.jf.dexlib2.writer;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -76,6 +77,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.Adler32;
 
 public abstract class DexWriter<
@@ -142,6 +147,17 @@ public abstract class DexWriter<
     protected int numCodeItemItems = 0;
     protected int numClassDataItems = 0;
 
+    private long writeTimeNanos = 0;
+    private long signatureTimeNanos = 0;
+
+    private int writeThreads = 1;
+
+    /**
+     * The number of methods whose code and debug items are encoded together as a single unit of work, when encoding
+     * them in parallel
+     */
+    private static final int CODE_CHUNK_SIZE = 256;
+
     // The sections defined here must be kept in sync with these section arrays:
     // - DexWriter.overflowableSections
     // - DexPool.sections
@@ -312,6 +328,7 @@ public abstract class DexWriter<
     public void writeTo(@Nonnull DexDataStore dest,
                         @Nonnull DeferredOutputStreamFactory tempFactory) throws IOException {
         try {
+            long startTime = System.nanoTime();
             int dataSectionOffset = getDataSectionOffset();
             DexDataWriter headerWriter = outputAt(dest, 0);
             DexDataWriter indexWriter = outputAt(dest, HeaderItem.ITEM_SIZE);
@@ -351,7 +368,11 @@ public abstract class DexWriter<
                 writeAnnotationSets(offsetWriter);
                 writeAnnotationSetRefs(offsetWriter);
                 writeAnnotationDirectories(offsetWriter);
-                writeDebugAndCodeItems(offsetWriter, tempFactory.makeDeferredOutputStream());
+                if (writeThreads > 1) {
+                    writeDebugAndCodeItemsInParallel(offsetWriter, tempFactory.makeDeferredOutputStream());
+                } else {
+                    writeDebugAndCodeItems(offsetWriter, tempFactory.makeDeferredOutputStream());
+                }
                 writeClasses(dest, indexWriter, offsetWriter);
 
                 writeMapItem(offsetWriter);
@@ -361,26 +382,72 @@ public abstract class DexWriter<
                 indexWriter.close();
                 offsetWriter.close();
             }
-            updateSignature(dest);
-            updateChecksum(dest);
+            long writeEndTime = System.nanoTime();
+            writeTimeNanos = writeEndTime - startTime;
+
+            updateSignatureAndChecksum(dest);
+            signatureTimeNanos = System.nanoTime() - writeEndTime;
         } finally {
             dest.close();
         }
     }
 
-    private void updateSignature(@Nonnull DexDataStore dataStore) throws IOException {
+    /**
+     * Sets the number of threads to use when encoding the code and debug items. Defaults to 1.
+     *
+     * Once the index pools are fixed, each method's code and debug items can be encoded independently. With more than
+     * one thread, the methods are encoded in chunks on a fork-join pool, and the chunks are then written out in order,
+     * with their offsets adjusted. The output is identical to the output when using a single thread.
+     *
+     * @param writeThreads The number of threads to use
+     */
+    public void setWriteThreads(int writeThreads) {
+        if (writeThreads < 1) {
+            throw new IllegalArgumentException("writeThreads must be at least 1");
+        }
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * @return The time spent generating and writing the dex data during the last call to writeTo, in nanoseconds.
+     * This does not include the time spent calculating the signature and checksum.
+     */
+    public long getWriteTimeNanos() {
+        return writeTimeNanos;
+    }
+
+    /**
+     * @return The time spent calculating and writing the signature and checksum during the last call to writeTo, in
+     * nanoseconds.
+     */
+    public long getSignatureTimeNanos() {
+        return signatureTimeNanos;
+    }
+
+    /**
+     * Calculates and writes both the signature and the checksum, with a single pass over the written data.
+     *
+     * The checksum covers the signature, which isn't known until the rest of the data has been read. So we calculate
+     * the adler32 of everything after the signature during the same pass, and then combine it with the adler32 of the
+     * signature itself afterwards.
+     */
+    private void updateSignatureAndChecksum(@Nonnull DexDataStore dataStore) throws IOException {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException ex) {
             throw new RuntimeException(ex);
         }
+        Adler32 a32 = new Adler32();
 
-        byte[] buffer = new byte[4 * 1024];
+        byte[] buffer = new byte[64 * 1024];
+        long signedLength = 0;
         InputStream input = dataStore.readAt(HeaderItem.SIGNATURE_DATA_START_OFFSET);
         int bytesRead = input.read(buffer);
         while (bytesRead >= 0) {
             md.update(buffer, 0, bytesRead);
+            a32.update(buffer, 0, bytesRead);
+            signedLength += bytesRead;
             bytesRead = input.read(buffer);
         }
 
@@ -393,25 +460,43 @@ public abstract class DexWriter<
         OutputStream output = dataStore.outputAt(HeaderItem.SIGNATURE_OFFSET);
         output.write(signature);
         output.close();
-    }
 
-    private void updateChecksum(@Nonnull DexDataStore dataStore) throws IOException {
-        Adler32 a32 = new Adler32();
-
-        byte[] buffer = new byte[4 * 1024];
-        InputStream input = dataStore.readAt(HeaderItem.CHECKSUM_DATA_START_OFFSET);
-        int bytesRead = input.read(buffer);
-        while (bytesRead >= 0) {
-            a32.update(buffer, 0, bytesRead);
-            bytesRead = input.read(buffer);
-        }
+        // the checksum data starts with the signature
+        assert HeaderItem.CHECKSUM_DATA_START_OFFSET == HeaderItem.SIGNATURE_OFFSET;
+        Adler32 signatureA32 = new Adler32();
+        signatureA32.update(signature);
+        long checksum = combineAdler32(signatureA32.getValue(), a32.getValue(), signedLength);
 
         // write checksum, utilizing logic in DexWriter to write the integer value properly
-        OutputStream output = dataStore.outputAt(HeaderItem.CHECKSUM_OFFSET);
-        DexDataWriter.writeInt(output, (int)a32.getValue());
+        output = dataStore.outputAt(HeaderItem.CHECKSUM_OFFSET);
+        DexDataWriter.writeInt(output, (int)checksum);
         output.close();
     }
 
+    /**
+     * Combines the adler32 checksums of two adjacent blocks of data into the adler32 checksum of the concatenated
+     * data. This is the same calculation as zlib's adler32_combine.
+     *
+     * @param adler1 The adler32 checksum of the first block
+     * @param adler2 The adler32 checksum of the second block
+     * @param length2 The length of the second block
+     * @return The adler32 checksum of the first block followed by the second block
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long BASE = 65521;
+
+        long rem = length2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+        if (sum1 >= BASE) sum1 -= BASE;
+        if (sum1 >= BASE) sum1 -= BASE;
+        if (sum2 >= (BASE << 1)) sum2 -= (BASE << 1);
+        if (sum2 >= BASE) sum2 -= BASE;
+        return sum1 | (sum2 << 16);
+    }
+
     private static DexDataWriter outputAt(DexDataStore dataStore, int filePosition) throws IOException {
         return new DexDataWriter(dataStore.outputAt(filePosition), filePosition);
     }
@@ -886,7 +971,8 @@ public abstract class DexWriter<
                         writer.align();
                         int position = writer.getPosition();
                         classSection.setAnnotationSetRefListOffset(methodKey, position);
-                        internedItems.put(parameterAnnotations, position);
+                        // the list may be a view over the method, which shouldn't be kept alive past this point
+                        internedItems.put(ImmutableList.copyOf(parameterAnnotations), position);
 
                         numAnnotationSetRefItems++;
 
@@ -991,13 +1077,19 @@ public abstract class DexWriter<
         }
     }
 
-    private static class CodeItemOffset<MethodKey> {
-        @Nonnull MethodKey method;
+    /**
+     * The offsets of the code item and debug item written for a method.
+     *
+     * This deliberately doesn't reference the method itself, since a method key may keep its entire class alive. The
+     * code item offsets are instead assigned by walking the methods a second time, in the same order.
+     */
+    private static class CodeItemOffset {
         int codeOffset;
+        int debugOffset;
 
-        private CodeItemOffset(@Nonnull MethodKey method, int codeOffset) {
+        private CodeItemOffset(int codeOffset, int debugOffset) {
             this.codeOffset = codeOffset;
-            this.method = method;
+            this.debugOffset = debugOffset;
         }
     }
 
@@ -1010,60 +1102,246 @@ public abstract class DexWriter<
 
         DexDataWriter codeWriter = new DexDataWriter(temp, 0);
 
-        List<CodeItemOffset<MethodKey>> codeOffsets = Lists.newArrayList();
+        List<CodeItemOffset> codeOffsets = Lists.newArrayList();
 
         for (ClassKey classKey: classSection.getSortedClasses()) {
-            Collection<? extends MethodKey> directMethods = classSection.getSortedDirectMethods(classKey);
-            Collection<? extends MethodKey> virtualMethods = classSection.getSortedVirtualMethods(classKey);
-
-            Iterable<MethodKey> methods = Iterables.concat(directMethods, virtualMethods);
-
-            for (MethodKey methodKey: methods) {
-                List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
-                        classSection.getTryBlocks(methodKey);
-                Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
-                Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
-
-                if (instructions != null && stringSection.hasJumboIndexes()) {
-                    boolean needsFix = false;
-                    for (Instruction instruction: instructions) {
-                        if (instruction.getOpcode() == Opcode.CONST_STRING) {
-                            if (stringSection.getItemIndex(
-                                    (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
-                                needsFix = true;
-                                break;
-                            }
+            for (MethodKey methodKey: getSortedMethods(classKey)) {
+                codeOffsets.add(writeDebugAndCodeItem(offsetWriter, debugWriter, codeWriter, ehBuf, methodKey));
+            }
+        }
+
+        finishCodeItems(offsetWriter, temp, codeWriter, codeOffsets);
+    }
+
+    /**
+     * Writes the debug and code items like writeDebugAndCodeItems, but encodes them in parallel.
+     *
+     * The methods are split into chunks, and the debug and code items for each chunk are encoded into separate
+     * buffers, with offsets relative to the start of the buffer. The chunks are then written out in order, at which
+     * point the final offsets are known, and the debug item offsets in the code items are patched.
+     *
+     * Only a limited number of chunks are in flight at any time, to avoid buffering the entire code section.
+     */
+    private void writeDebugAndCodeItemsInParallel(@Nonnull DexDataWriter offsetWriter,
+                                                  @Nonnull DeferredOutputStream temp) throws IOException {
+        debugSectionOffset = offsetWriter.getPosition();
+        DexDataWriter codeWriter = new DexDataWriter(temp, 0);
+
+        List<CodeItemOffset> codeOffsets = Lists.newArrayList();
+
+        List<List<ClassKey>> chunks = getCodeChunks();
+        int maxPendingChunks = writeThreads * 4;
+        ForkJoinPool pool = new ForkJoinPool(writeThreads);
+        try {
+            Deque<Future<CodeChunk>> pendingChunks = new ArrayDeque<Future<CodeChunk>>();
+            int nextChunk = 0;
+            while (nextChunk < chunks.size() || !pendingChunks.isEmpty()) {
+                while (nextChunk < chunks.size() && pendingChunks.size() < maxPendingChunks) {
+                    final List<ClassKey> classes = chunks.get(nextChunk++);
+                    pendingChunks.add(pool.submit(new Callable<CodeChunk>() {
+                        @Override public CodeChunk call() throws IOException {
+                            return encodeCodeChunk(classes);
                         }
-                    }
+                    }));
+                }
+
+                CodeChunk chunk = getCodeChunk(pendingChunks.remove());
 
-                    if (needsFix) {
-                        MutableMethodImplementation mutableMethodImplementation =
-                                classSection.makeMutableMethodImplementation(methodKey);
-                        fixInstructions(mutableMethodImplementation);
+                int debugBase = offsetWriter.getPosition();
+                offsetWriter.write(chunk.debugData);
 
-                        instructions = mutableMethodImplementation.getInstructions();
-                        tryBlocks = mutableMethodImplementation.getTryBlocks();
-                        debugItems = mutableMethodImplementation.getDebugItems();
+                if (chunk.codeData.length > 0) {
+                    // the first code item in the chunk was aligned relative to the start of the chunk
+                    codeWriter.align();
+                }
+                int codeBase = codeWriter.getPosition();
+                for (CodeItemOffset codeOffset: chunk.codeOffsets) {
+                    if (codeOffset == null) {
+                        codeOffsets.add(null);
+                        continue;
+                    }
+                    if (codeOffset.debugOffset != -1) {
+                        codeOffset.debugOffset += debugBase;
+                        // debug_info_off is the 3rd field of the code_item, after 4 ushorts
+                        writeInt(chunk.codeData, codeOffset.codeOffset + 8, codeOffset.debugOffset);
                     }
+                    codeOffset.codeOffset += codeBase;
+                    codeOffsets.add(codeOffset);
                 }
+                codeWriter.write(chunk.codeData);
+            }
+        } finally {
+            pool.shutdown();
+        }
 
-                int debugItemOffset = writeDebugItem(offsetWriter, debugWriter,
-                        classSection.getParameterNames(methodKey), debugItems);
-                int codeItemOffset;
-                try {
-                    codeItemOffset = writeCodeItem(
-                            codeWriter, ehBuf, methodKey, tryBlocks, instructions, debugItemOffset);
-                } catch (RuntimeException ex) {
-                    throw new ExceptionWithContext(ex, "Exception occurred while writing code_item for method %s",
-                            methodSection.getMethodReference(methodKey));
+        finishCodeItems(offsetWriter, temp, codeWriter, codeOffsets);
+    }
+
+    private class CodeChunk {
+        @Nonnull final byte[] debugData;
+        @Nonnull final byte[] codeData;
+        @Nonnull final List<CodeItemOffset> codeOffsets;
+
+        CodeChunk(@Nonnull byte[] debugData, @Nonnull byte[] codeData,
+                  @Nonnull List<CodeItemOffset> codeOffsets) {
+            this.debugData = debugData;
+            this.codeData = codeData;
+            this.codeOffsets = codeOffsets;
+        }
+    }
+
+    @Nonnull
+    private CodeChunk encodeCodeChunk(@Nonnull List<ClassKey> classes) throws IOException {
+        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
+        ByteArrayOutputStream debugBuf = new ByteArrayOutputStream();
+        ByteArrayOutputStream codeBuf = new ByteArrayOutputStream();
+        DexDataWriter debugOutput = new DexDataWriter(debugBuf, 0);
+        DexDataWriter codeWriter = new DexDataWriter(codeBuf, 0);
+        DebugWriter<StringKey, TypeKey> debugWriter =
+                new DebugWriter<StringKey, TypeKey>(stringSection, typeSection, debugOutput);
+
+        List<CodeItemOffset> codeOffsets = Lists.newArrayList();
+        for (ClassKey classKey: classes) {
+            for (MethodKey methodKey: getSortedMethods(classKey)) {
+                codeOffsets.add(writeDebugAndCodeItem(debugOutput, debugWriter, codeWriter, ehBuf, methodKey));
+            }
+        }
+
+        debugOutput.close();
+        codeWriter.close();
+        return new CodeChunk(debugBuf.toByteArray(), codeBuf.toByteArray(), codeOffsets);
+    }
+
+    @Nonnull
+    private CodeChunk getCodeChunk(@Nonnull Future<CodeChunk> future) throws IOException {
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                // just try again
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
                 }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static void writeInt(@Nonnull byte[] buf, int offset, int value) {
+        buf[offset] = (byte)value;
+        buf[offset + 1] = (byte)(value >> 8);
+        buf[offset + 2] = (byte)(value >> 16);
+        buf[offset + 3] = (byte)(value >> 24);
+    }
+
+    /**
+     * @return The direct methods of the class followed by its virtual methods, in the order their code items are
+     * written.
+     */
+    @Nonnull
+    private Iterable<? extends MethodKey> getSortedMethods(@Nonnull ClassKey classKey) {
+        return Iterables.concat(classSection.getSortedDirectMethods(classKey),
+                classSection.getSortedVirtualMethods(classKey));
+    }
 
-                if (codeItemOffset != -1) {
-                    codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset));
+    /**
+     * Splits the sorted classes into chunks of about CODE_CHUNK_SIZE methods each.
+     */
+    @Nonnull
+    private List<List<ClassKey>> getCodeChunks() {
+        List<List<ClassKey>> chunks = Lists.newArrayList();
+        List<ClassKey> chunk = Lists.newArrayList();
+        int chunkMethods = 0;
+        for (ClassKey classKey: classSection.getSortedClasses()) {
+            chunk.add(classKey);
+            chunkMethods += classSection.getSortedDirectMethods(classKey).size() +
+                    classSection.getSortedVirtualMethods(classKey).size();
+            if (chunkMethods >= CODE_CHUNK_SIZE) {
+                chunks.add(chunk);
+                chunk = Lists.newArrayList();
+                chunkMethods = 0;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes the debug item and code item for a single method.
+     *
+     * @return The offsets of the code item and debug item, relative to their respective writers, or null if no code
+     * item was written. The debug item offset is -1 if no debug item was written.
+     */
+    @Nullable
+    private CodeItemOffset writeDebugAndCodeItem(@Nonnull DexDataWriter debugOutput,
+                                                            @Nonnull DebugWriter<StringKey, TypeKey> debugWriter,
+                                                            @Nonnull DexDataWriter codeWriter,
+                                                            @Nonnull ByteArrayOutputStream ehBuf,
+                                                            @Nonnull MethodKey methodKey) throws IOException {
+        List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
+                classSection.getTryBlocks(methodKey);
+        Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
+
+        // when the instructions are available pre-encoded, they can be copied as-is, and don't need the jumbo fixup
+        RawInstructions rawInstructions = classSection.getRawInstructions(methodKey);
+        Iterable<? extends Instruction> instructions = null;
+        if (rawInstructions == null) {
+            instructions = classSection.getInstructions(methodKey);
+        }
+
+        if (instructions != null && stringSection.hasJumboIndexes()) {
+            boolean needsFix = false;
+            for (Instruction instruction: instructions) {
+                if (instruction.getOpcode() == Opcode.CONST_STRING) {
+                    if (stringSection.getItemIndex(
+                            (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
+                        needsFix = true;
+                        break;
+                    }
                 }
             }
+
+            if (needsFix) {
+                MutableMethodImplementation mutableMethodImplementation =
+                        classSection.makeMutableMethodImplementation(methodKey);
+                fixInstructions(mutableMethodImplementation);
+
+                instructions = mutableMethodImplementation.getInstructions();
+                tryBlocks = mutableMethodImplementation.getTryBlocks();
+                debugItems = mutableMethodImplementation.getDebugItems();
+            }
+        }
+
+        int debugItemOffset = writeDebugItem(debugOutput, debugWriter,
+                classSection.getParameterNames(methodKey), debugItems);
+        int codeItemOffset;
+        try {
+            codeItemOffset = writeCodeItem(
+                    codeWriter, ehBuf, methodKey, tryBlocks, instructions, rawInstructions, debugItemOffset);
+        } catch (RuntimeException ex) {
+            throw new ExceptionWithContext(ex, "Exception occurred while writing code_item for method %s",
+                    methodSection.getMethodReference(methodKey));
         }
 
+        if (codeItemOffset == -1) {
+            return null;
+        }
+        return new CodeItemOffset(codeItemOffset, debugItemOffset);
+    }
+
+    private void finishCodeItems(@Nonnull DexDataWriter offsetWriter, @Nonnull DeferredOutputStream temp,
+                                 @Nonnull DexDataWriter codeWriter,
+                                 @Nonnull List<CodeItemOffset> codeOffsets) throws IOException {
         offsetWriter.align();
         codeSectionOffset = offsetWriter.getPosition();
 
@@ -1071,8 +1349,20 @@ public abstract class DexWriter<
         temp.writeTo(offsetWriter);
         temp.close();
 
-        for (CodeItemOffset<MethodKey> codeOffset: codeOffsets) {
-            classSection.setCodeItemOffset(codeOffset.method, codeSectionOffset + codeOffset.codeOffset);
+        // codeOffsets has an entry for every method, in the same order the methods were written in
+        Iterator<CodeItemOffset> codeOffsetIterator = codeOffsets.iterator();
+        for (ClassKey classKey: classSection.getSortedClasses()) {
+            for (MethodKey methodKey: getSortedMethods(classKey)) {
+                CodeItemOffset codeOffset = codeOffsetIterator.next();
+                if (codeOffset == null) {
+                    continue;
+                }
+                numCodeItemItems++;
+                if (codeOffset.debugOffset != -1) {
+                    numDebugInfoItems++;
+                }
+                classSection.setCodeItemOffset(methodKey, codeSectionOffset + codeOffset.codeOffset);
+            }
         }
     }
 
@@ -1093,6 +1383,9 @@ public abstract class DexWriter<
         }
     }
 
+    /**
+     * @return The offset of the debug item, or -1 if the method doesn't need a debug item
+     */
     private int writeDebugItem(@Nonnull DexDataWriter writer,
                                @Nonnull DebugWriter<StringKey, TypeKey> debugWriter,
                                @Nullable Iterable<? extends StringKey> parameterNames,
@@ -1112,11 +1405,9 @@ public abstract class DexWriter<
 
 
         if (lastNamedParameterIndex == -1 && (debugItems == null || Iterables.isEmpty(debugItems))) {
-            return NO_OFFSET;
+            return -1;
         }
 
-        numDebugInfoItems++;
-
         int debugItemOffset = writer.getPosition();
         int startingLineNumber = 0;
 
@@ -1160,12 +1451,14 @@ public abstract class DexWriter<
                               @Nonnull MethodKey methodKey,
                               @Nonnull List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
                               @Nullable Iterable<? extends Instruction> instructions,
+                              @Nullable RawInstructions rawInstructions,
                               int debugItemOffset) throws IOException {
-        if (instructions == null && debugItemOffset == NO_OFFSET) {
+        if (instructions == null && rawInstructions == null && debugItemOffset == -1) {
             return -1;
         }
-
-        numCodeItemItems++;
+        if (debugItemOffset == -1) {
+            debugItemOffset = NO_OFFSET;
+        }
 
         writer.align();
 
@@ -1179,7 +1472,17 @@ public abstract class DexWriter<
 
         writer.writeUshort(MethodUtil.getParameterRegisterCount(parameters, isStatic));
 
-        if (instructions != null) {
+        if (rawInstructions != null) {
+            tryBlocks = TryListBuilder.massageTryBlocks(tryBlocks);
+
+            writer.writeUshort(rawInstructions.outParamCount);
+            writer.writeUshort(tryBlocks.size());
+            writer.writeInt(debugItemOffset);
+            writer.writeInt(rawInstructions.code.length / 2);
+            writer.write(rawInstructions.code);
+
+            writeTryBlocks(writer, ehBuf, tryBlocks);
+        } else if (instructions != null) {
             tryBlocks = TryListBuilder.massageTryBlocks(tryBlocks);
 
             int outParamCount = 0;
@@ -1206,206 +1509,217 @@ public abstract class DexWriter<
             writer.writeUshort(tryBlocks.size());
             writer.writeInt(debugItemOffset);
 
-            InstructionWriter instructionWriter =
-                    InstructionWriter.makeInstructionWriter(opcodes, writer, stringSection, typeSection, fieldSection,
-                            methodSection, protoSection, methodHandleSection, callSiteSection);
-
             writer.writeInt(codeUnitCount);
-            int codeOffset = 0;
-            for (Instruction instruction: instructions) {
-                try {
-                    switch (instruction.getOpcode().format) {
-                        case Format10t:
-                            instructionWriter.write((Instruction10t)instruction);
-                            break;
-                        case Format10x:
-                            instructionWriter.write((Instruction10x)instruction);
-                            break;
-                        case Format11n:
-                            instructionWriter.write((Instruction11n)instruction);
-                            break;
-                        case Format11x:
-                            instructionWriter.write((Instruction11x)instruction);
-                            break;
-                        case Format12x:
-                            instructionWriter.write((Instruction12x)instruction);
-                            break;
-                        case Format20bc:
-                            instructionWriter.write((Instruction20bc)instruction);
-                            break;
-                        case Format20t:
-                            instructionWriter.write((Instruction20t)instruction);
-                            break;
-                        case Format21c:
-                            instructionWriter.write((Instruction21c)instruction);
-                            break;
-                        case Format21ih:
-                            instructionWriter.write((Instruction21ih)instruction);
-                            break;
-                        case Format21lh:
-                            instructionWriter.write((Instruction21lh)instruction);
-                            break;
-                        case Format21s:
-                            instructionWriter.write((Instruction21s)instruction);
-                            break;
-                        case Format21t:
-                            instructionWriter.write((Instruction21t)instruction);
-                            break;
-                        case Format22b:
-                            instructionWriter.write((Instruction22b)instruction);
-                            break;
-                        case Format22c:
-                            instructionWriter.write((Instruction22c)instruction);
-                            break;
-                        case Format22cs:
-                            instructionWriter.write((Instruction22cs)instruction);
-                            break;
-                        case Format22s:
-                            instructionWriter.write((Instruction22s)instruction);
-                            break;
-                        case Format22t:
-                            instructionWriter.write((Instruction22t)instruction);
-                            break;
-                        case Format22x:
-                            instructionWriter.write((Instruction22x)instruction);
-                            break;
-                        case Format23x:
-                            instructionWriter.write((Instruction23x)instruction);
-                            break;
-                        case Format30t:
-                            instructionWriter.write((Instruction30t)instruction);
-                            break;
-                        case Format31c:
-                            instructionWriter.write((Instruction31c)instruction);
-                            break;
-                        case Format31i:
-                            instructionWriter.write((Instruction31i)instruction);
-                            break;
-                        case Format31t:
-                            instructionWriter.write((Instruction31t)instruction);
-                            break;
-                        case Format32x:
-                            instructionWriter.write((Instruction32x)instruction);
-                            break;
-                        case Format35c:
-                            instructionWriter.write((Instruction35c)instruction);
-                            break;
-                        case Format35mi:
-                            instructionWriter.write((Instruction35mi)instruction);
-                            break;
-                        case Format35ms:
-                            instructionWriter.write((Instruction35ms)instruction);
-                            break;
-                        case Format3rc:
-                            instructionWriter.write((Instruction3rc)instruction);
-                            break;
-                        case Format3rmi:
-                            instructionWriter.write((Instruction3rmi)instruction);
-                            break;
-                        case Format3rms:
-                            instructionWriter.write((Instruction3rms)instruction);
-                            break;
-                        case Format45cc:
-                            instructionWriter.write((Instruction45cc)instruction);
-                            break;
-                        case Format4rcc:
-                            instructionWriter.write((Instruction4rcc)instruction);
-                            break;
-                        case Format51l:
-                            instructionWriter.write((Instruction51l)instruction);
-                            break;
-                        case ArrayPayload:
-                            instructionWriter.write((ArrayPayload)instruction);
-                            break;
-                        case PackedSwitchPayload:
-                            instructionWriter.write((PackedSwitchPayload)instruction);
-                            break;
-                        case SparseSwitchPayload:
-                            instructionWriter.write((SparseSwitchPayload)instruction);
-                            break;
-                        default:
-                            throw new ExceptionWithContext("Unsupported instruction format: %s",
-                                    instruction.getOpcode().format);
-                    }
-                } catch (RuntimeException ex) {
-                    throw new ExceptionWithContext(ex, "Error while writing instruction at code offset 0x%x", codeOffset);
+            writeInstructions(writer, instructions);
+            writeTryBlocks(writer, ehBuf, tryBlocks);
+        } else {
+            // no instructions, all we have is the debug item offset
+            writer.writeUshort(0);
+            writer.writeUshort(0);
+            writer.writeInt(debugItemOffset);
+            writer.writeInt(0);
+        }
+
+        return codeItemOffset;
+    }
+
+    private void writeInstructions(@Nonnull DexDataWriter writer,
+                                   @Nonnull Iterable<? extends Instruction> instructions) {
+        InstructionWriter instructionWriter =
+                InstructionWriter.makeInstructionWriter(opcodes, writer, stringSection, typeSection, fieldSection,
+                        methodSection, protoSection, methodHandleSection, callSiteSection);
+
+        int codeOffset = 0;
+        for (Instruction instruction: instructions) {
+            try {
+                switch (instruction.getOpcode().format) {
+                    case Format10t:
+                        instructionWriter.write((Instruction10t)instruction);
+                        break;
+                    case Format10x:
+                        instructionWriter.write((Instruction10x)instruction);
+                        break;
+                    case Format11n:
+                        instructionWriter.write((Instruction11n)instruction);
+                        break;
+                    case Format11x:
+                        instructionWriter.write((Instruction11x)instruction);
+                        break;
+                    case Format12x:
+                        instructionWriter.write((Instruction12x)instruction);
+                        break;
+                    case Format20bc:
+                        instructionWriter.write((Instruction20bc)instruction);
+                        break;
+                    case Format20t:
+                        instructionWriter.write((Instruction20t)instruction);
+                        break;
+                    case Format21c:
+                        instructionWriter.write((Instruction21c)instruction);
+                        break;
+                    case Format21ih:
+                        instructionWriter.write((Instruction21ih)instruction);
+                        break;
+                    case Format21lh:
+                        instructionWriter.write((Instruction21lh)instruction);
+                        break;
+                    case Format21s:
+                        instructionWriter.write((Instruction21s)instruction);
+                        break;
+                    case Format21t:
+                        instructionWriter.write((Instruction21t)instruction);
+                        break;
+                    case Format22b:
+                        instructionWriter.write((Instruction22b)instruction);
+                        break;
+                    case Format22c:
+                        instructionWriter.write((Instruction22c)instruction);
+                        break;
+                    case Format22cs:
+                        instructionWriter.write((Instruction22cs)instruction);
+                        break;
+                    case Format22s:
+                        instructionWriter.write((Instruction22s)instruction);
+                        break;
+                    case Format22t:
+                        instructionWriter.write((Instruction22t)instruction);
+                        break;
+                    case Format22x:
+                        instructionWriter.write((Instruction22x)instruction);
+                        break;
+                    case Format23x:
+                        instructionWriter.write((Instruction23x)instruction);
+                        break;
+                    case Format30t:
+                        instructionWriter.write((Instruction30t)instruction);
+                        break;
+                    case Format31c:
+                        instructionWriter.write((Instruction31c)instruction);
+                        break;
+                    case Format31i:
+                        instructionWriter.write((Instruction31i)instruction);
+                        break;
+                    case Format31t:
+                        instructionWriter.write((Instruction31t)instruction);
+                        break;
+                    case Format32x:
+                        instructionWriter.write((Instruction32x)instruction);
+                        break;
+                    case Format35c:
+                        instructionWriter.write((Instruction35c)instruction);
+                        break;
+                    case Format35mi:
+                        instructionWriter.write((Instruction35mi)instruction);
+                        break;
+                    case Format35ms:
+                        instructionWriter.write((Instruction35ms)instruction);
+                        break;
+                    case Format3rc:
+                        instructionWriter.write((Instruction3rc)instruction);
+                        break;
+                    case Format3rmi:
+                        instructionWriter.write((Instruction3rmi)instruction);
+                        break;
+                    case Format3rms:
+                        instructionWriter.write((Instruction3rms)instruction);
+                        break;
+                    case Format45cc:
+                        instructionWriter.write((Instruction45cc)instruction);
+                        break;
+                    case Format4rcc:
+                        instructionWriter.write((Instruction4rcc)instruction);
+                        break;
+                    case Format51l:
+                        instructionWriter.write((Instruction51l)instruction);
+                        break;
+                    case ArrayPayload:
+                        instructionWriter.write((ArrayPayload)instruction);
+                        break;
+                    case PackedSwitchPayload:
+                        instructionWriter.write((PackedSwitchPayload)instruction);
+                        break;
+                    case SparseSwitchPayload:
+                        instructionWriter.write((SparseSwitchPayload)instruction);
+                        break;
+                    default:
+                        throw new ExceptionWithContext("Unsupported instruction format: %s",
+                                instruction.getOpcode().format);
                 }
-                codeOffset += instruction.getCodeUnits();
+            } catch (RuntimeException ex) {
+                throw new ExceptionWithContext(ex, "Error while writing instruction at code offset 0x%x", codeOffset);
             }
+            codeOffset += instruction.getCodeUnits();
+        }
+    }
 
-            if (tryBlocks.size() > 0) {
-                writer.align();
+    private void writeTryBlocks(@Nonnull DexDataWriter writer,
+                                @Nonnull ByteArrayOutputStream ehBuf,
+                                @Nonnull List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks)
+            throws IOException {
+        if (tryBlocks.size() > 0) {
+            writer.align();
 
-                // filter out unique lists of exception handlers
-                Map<List<? extends ExceptionHandler>, Integer> exceptionHandlerOffsetMap = Maps.newHashMap();
-                for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlocks) {
-                    exceptionHandlerOffsetMap.put(tryBlock.getExceptionHandlers(), 0);
-                }
-                DexDataWriter.writeUleb128(ehBuf, exceptionHandlerOffsetMap.size());
+            // filter out unique lists of exception handlers
+            Map<List<? extends ExceptionHandler>, Integer> exceptionHandlerOffsetMap = Maps.newHashMap();
+            for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlocks) {
+                exceptionHandlerOffsetMap.put(tryBlock.getExceptionHandlers(), 0);
+            }
+            DexDataWriter.writeUleb128(ehBuf, exceptionHandlerOffsetMap.size());
 
-                for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlocks) {
-                    int startAddress = tryBlock.getStartCodeAddress();
-                    int endAddress = startAddress + tryBlock.getCodeUnitCount();
+            for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlocks) {
+                int startAddress = tryBlock.getStartCodeAddress();
+                int endAddress = startAddress + tryBlock.getCodeUnitCount();
 
-                    int tbCodeUnitCount = endAddress - startAddress;
+                int tbCodeUnitCount = endAddress - startAddress;
 
-                    writer.writeInt(startAddress);
-                    writer.writeUshort(tbCodeUnitCount);
+                writer.writeInt(startAddress);
+                writer.writeUshort(tbCodeUnitCount);
 
-                    if (tryBlock.getExceptionHandlers().size() == 0) {
-                        throw new ExceptionWithContext("No exception handlers for the try block!");
-                    }
+                if (tryBlock.getExceptionHandlers().size() == 0) {
+                    throw new ExceptionWithContext("No exception handlers for the try block!");
+                }
 
-                    Integer offset = exceptionHandlerOffsetMap.get(tryBlock.getExceptionHandlers());
-                    if (offset != 0) {
-                        // exception handler has already been written out, just use it
-                        writer.writeUshort(offset);
-                    } else {
-                        // if offset has not been set yet, we are about to write out a new exception handler
-                        offset = ehBuf.size();
-                        writer.writeUshort(offset);
-                        exceptionHandlerOffsetMap.put(tryBlock.getExceptionHandlers(), offset);
-
-                        // check if the last exception handler is a catch-all and adjust the size accordingly
-                        int ehSize = tryBlock.getExceptionHandlers().size();
-                        ExceptionHandler ehLast = tryBlock.getExceptionHandlers().get(ehSize-1);
-                        if (ehLast.getExceptionType() == null) {
-                            ehSize = ehSize * (-1) + 1;
-                        }
+                Integer offset = exceptionHandlerOffsetMap.get(tryBlock.getExceptionHandlers());
+                if (offset != 0) {
+                    // exception handler has already been written out, just use it
+                    writer.writeUshort(offset);
+                } else {
+                    // if offset has not been set yet, we are about to write out a new exception handler
+                    offset = ehBuf.size();
+                    writer.writeUshort(offset);
+                    exceptionHandlerOffsetMap.put(tryBlock.getExceptionHandlers(), offset);
+
+                    // check if the last exception handler is a catch-all and adjust the size accordingly
+                    int ehSize = tryBlock.getExceptionHandlers().size();
+                    ExceptionHandler ehLast = tryBlock.getExceptionHandlers().get(ehSize-1);
+                    if (ehLast.getExceptionType() == null) {
+                        ehSize = ehSize * (-1) + 1;
+                    }
 
-                        // now let's layout the exception handlers, assuming that catch-all is always last
-                        DexDataWriter.writeSleb128(ehBuf, ehSize);
-                        for (ExceptionHandler eh : tryBlock.getExceptionHandlers()) {
-                            TypeKey exceptionTypeKey = classSection.getExceptionType(eh);
+                    // now let's layout the exception handlers, assuming that catch-all is always last
+                    DexDataWriter.writeSleb128(ehBuf, ehSize);
+                    for (ExceptionHandler eh : tryBlock.getExceptionHandlers()) {
+                        TypeKey exceptionTypeKey = classSection.getExceptionType(eh);
 
-                            int codeAddress = eh.getHandlerCodeAddress();
+                        int codeAddress = eh.getHandlerCodeAddress();
 
-                            if (exceptionTypeKey != null) {
-                                //regular exception handling
-                                DexDataWriter.writeUleb128(ehBuf, typeSection.getItemIndex(exceptionTypeKey));
-                                DexDataWriter.writeUleb128(ehBuf, codeAddress);
-                            } else {
-                                //catch-all
-                                DexDataWriter.writeUleb128(ehBuf, codeAddress);
-                            }
+                        if (exceptionTypeKey != null) {
+                            //regular exception handling
+                            DexDataWriter.writeUleb128(ehBuf, typeSection.getItemIndex(exceptionTypeKey));
+                            DexDataWriter.writeUleb128(ehBuf, codeAddress);
+                        } else {
+                            //catch-all
+                            DexDataWriter.writeUleb128(ehBuf, codeAddress);
                         }
                     }
                 }
+            }
 
-                if (ehBuf.size() > 0) {
-                    ehBuf.writeTo(writer);
-                    ehBuf.reset();
-                }
+            if (ehBuf.size() > 0) {
+                ehBuf.writeTo(writer);
+                ehBuf.reset();
             }
-        } else {
-            // no instructions, all we have is the debug item offset
-            writer.writeUshort(0);
-            writer.writeUshort(0);
-            writer.writeInt(debugItemOffset);
-            writer.writeInt(0);
         }
-
-        return codeItemOffset;
     }
 
     private int calcNumItems() {
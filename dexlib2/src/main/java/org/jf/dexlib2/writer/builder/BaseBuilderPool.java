@@ -31,7 +31,11 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ListMultimap;
+
 import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 public class BaseBuilderPool {
     @Nonnull protected final DexBuilder dexBuilder;
@@ -39,4 +43,26 @@ public class BaseBuilderPool {
     public BaseBuilderPool(@Nonnull DexBuilder dexBuilder) {
         this.dexBuilder = dexBuilder;
     }
+
+    /**
+     * Adds the items from another builder's pool to a pool of this builder.
+     *
+     * An item that isn't in the pool yet is added as-is, along with whatever it references from the other builder. An
+     * item that is already present is instead recorded as an alias of the existing item. When the builder is written,
+     * an alias is given the same index or offset as the item it is an alias of, so that anything in the other builder
+     * that refers to the alias is written with the index of the merged item, without having to be re-interned.
+     */
+    static <K, V> void mergeItems(@Nonnull ConcurrentMap<K, V> items, @Nonnull ListMultimap<V, V> aliases,
+                                  @Nonnull Map<K, V> otherItems, @Nonnull ListMultimap<V, V> otherAliases) {
+        for (Map.Entry<K, V> entry: otherItems.entrySet()) {
+            V item = entry.getValue();
+            V existing = items.putIfAbsent(entry.getKey(), item);
+            V canonical = existing == null ? item : existing;
+            if (existing != null) {
+                aliases.put(existing, item);
+            }
+            // anything that was an alias in the other builder becomes an alias of the merged item
+            aliases.putAll(canonical, otherAliases.get(item));
+        }
+    }
 }
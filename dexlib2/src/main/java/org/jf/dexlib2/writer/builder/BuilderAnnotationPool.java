@@ -31,13 +31,17 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.writer.AnnotationSection;
 import org.jf.dexlib2.writer.builder.BuilderEncodedValues.BuilderEncodedValue;
 
 import javax.annotation.Nonnull;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 
@@ -45,6 +49,7 @@ class BuilderAnnotationPool extends BaseBuilderPool implements AnnotationSection
         BuilderTypeReference, BuilderAnnotation, BuilderAnnotationElement, BuilderEncodedValue> {
     @Nonnull private final ConcurrentMap<Annotation, BuilderAnnotation> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderAnnotation, BuilderAnnotation> aliases = ArrayListMultimap.create();
 
     public BuilderAnnotationPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -91,8 +96,14 @@ class BuilderAnnotationPool extends BaseBuilderPool implements AnnotationSection
         return key.offset;
     }
 
+    void merge(@Nonnull BuilderAnnotationPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderAnnotation, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderAnnotation>(internedItems.values()) {
+        // sort by content, so the layout doesn't depend on the order the items were interned in
+        List<BuilderAnnotation> annotations = Ordering.natural().sortedCopy(internedItems.values());
+        return new BuilderMapEntryCollection<BuilderAnnotation>(annotations, aliases) {
             @Override protected int getValue(@Nonnull BuilderAnnotation key) {
                 return key.offset;
             }
@@ -32,16 +32,21 @@
 package org.jf.dexlib2.writer.builder;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.writer.AnnotationSetSection;
 import org.jf.dexlib2.writer.DexWriter;
+import org.jf.util.CollectionUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
@@ -50,6 +55,8 @@ class BuilderAnnotationSetPool extends BaseBuilderPool
         implements AnnotationSetSection<BuilderAnnotation, BuilderAnnotationSet> {
     @Nonnull private final ConcurrentMap<Set<? extends Annotation>, BuilderAnnotationSet> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderAnnotationSet, BuilderAnnotationSet> aliases =
+            ArrayListMultimap.create();
 
     public BuilderAnnotationSetPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -90,8 +97,16 @@ class BuilderAnnotationSetPool extends BaseBuilderPool
         return key.offset;
     }
 
+    void merge(@Nonnull BuilderAnnotationSetPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderAnnotationSet, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderAnnotationSet>(internedItems.values()) {
+        // sort by content, so the layout doesn't depend on the order the sets were interned in
+        List<BuilderAnnotationSet> annotationSets = Ordering.from(
+                CollectionUtils.<BuilderAnnotation>setComparator(Ordering.natural()))
+                .sortedCopy(internedItems.values());
+        return new BuilderMapEntryCollection<BuilderAnnotationSet>(annotationSets, aliases) {
             @Override protected int getValue(@Nonnull BuilderAnnotationSet key) {
                 return key.offset;
             }
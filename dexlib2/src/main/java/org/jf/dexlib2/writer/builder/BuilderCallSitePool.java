@@ -31,6 +31,8 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.iface.reference.CallSiteReference;
 import org.jf.dexlib2.writer.CallSiteSection;
@@ -46,6 +48,8 @@ public class BuilderCallSitePool extends BaseBuilderPool
         implements CallSiteSection<BuilderCallSiteReference, BuilderArrayEncodedValue> {
     @Nonnull private final ConcurrentMap<CallSiteReference, BuilderCallSiteReference> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderCallSiteReference, BuilderCallSiteReference> aliases =
+            ArrayListMultimap.create();
 
     public BuilderCallSitePool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -73,10 +77,14 @@ public class BuilderCallSitePool extends BaseBuilderPool
         return builderCallSite.index;
     }
 
+    void merge(@Nonnull BuilderCallSitePool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull
     @Override
     public Collection<? extends Map.Entry<? extends BuilderCallSiteReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderCallSiteReference>(internedItems.values()) {
+        return new BuilderMapEntryCollection<BuilderCallSiteReference>(internedItems.values(), aliases) {
             @Override
             protected int getValue(@Nonnull BuilderCallSiteReference builderCallSiteReference) {
                 return builderCallSiteReference.index;
@@ -79,6 +79,12 @@ public class BuilderClassPool extends BaseBuilderPool implements ClassSection<Bu
         return classDef;
     }
 
+    void merge(@Nonnull BuilderClassPool other) {
+        for (BuilderClassDef classDef: other.internedItems.values()) {
+            internClass(classDef);
+        }
+    }
+
     private ImmutableList<BuilderClassDef> sortedClasses = null;
     @Nonnull @Override public Collection<? extends BuilderClassDef> getSortedClasses() {
         if (sortedClasses == null) {
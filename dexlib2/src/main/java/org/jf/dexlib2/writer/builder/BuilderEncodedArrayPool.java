@@ -31,7 +31,10 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import org.jf.dexlib2.iface.value.ArrayEncodedValue;
 import org.jf.dexlib2.writer.EncodedArraySection;
 import org.jf.dexlib2.writer.builder.BuilderEncodedValues.BuilderArrayEncodedValue;
@@ -47,6 +50,8 @@ public class BuilderEncodedArrayPool extends BaseBuilderPool implements
         EncodedArraySection<BuilderArrayEncodedValue, BuilderEncodedValue> {
     @Nonnull private final ConcurrentMap<ArrayEncodedValue, BuilderArrayEncodedValue> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderArrayEncodedValue, BuilderArrayEncodedValue> aliases =
+            ArrayListMultimap.create();
 
     public BuilderEncodedArrayPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -69,10 +74,16 @@ public class BuilderEncodedArrayPool extends BaseBuilderPool implements
         return builderArrayEncodedValue.offset;
     }
 
+    void merge(@Nonnull BuilderEncodedArrayPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull
     @Override
     public Collection<? extends Map.Entry<? extends BuilderArrayEncodedValue, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderArrayEncodedValue>(internedItems.values()) {
+        // sort by content, so the layout doesn't depend on the order the items were interned in
+        List<BuilderArrayEncodedValue> arrays = Ordering.natural().sortedCopy(internedItems.values());
+        return new BuilderMapEntryCollection<BuilderArrayEncodedValue>(arrays, aliases) {
             @Override
             protected int getValue(@Nonnull BuilderArrayEncodedValue builderArrayEncodedValue) {
                 return builderArrayEncodedValue.offset;
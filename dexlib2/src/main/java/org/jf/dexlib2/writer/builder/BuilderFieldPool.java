@@ -31,6 +31,8 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.iface.reference.FieldReference;
 import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
@@ -45,6 +47,8 @@ public class BuilderFieldPool extends BaseBuilderPool
         implements FieldSection<BuilderStringReference, BuilderTypeReference, BuilderFieldReference, BuilderField> {
     @Nonnull private final ConcurrentMap<FieldReference, BuilderFieldReference> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderFieldReference, BuilderFieldReference> aliases =
+            ArrayListMultimap.create();
 
     public BuilderFieldPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -90,8 +94,12 @@ public class BuilderFieldPool extends BaseBuilderPool
         return key.index;
     }
 
+    void merge(@Nonnull BuilderFieldPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderFieldReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderFieldReference>(internedItems.values()) {
+        return new BuilderMapEntryCollection<BuilderFieldReference>(internedItems.values(), aliases) {
             @Override protected int getValue(@Nonnull BuilderFieldReference key) {
                 return key.index;
             }
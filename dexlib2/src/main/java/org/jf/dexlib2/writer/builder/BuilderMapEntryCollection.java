@@ -31,7 +31,10 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ListMultimap;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.AbstractCollection;
 import java.util.Collection;
 import java.util.Iterator;
@@ -39,9 +42,20 @@ import java.util.Map;
 
 public abstract class BuilderMapEntryCollection<Key> extends AbstractCollection<Map.Entry<Key, Integer>> {
     @Nonnull private final Collection<Key> keys;
+    @Nullable private final ListMultimap<Key, Key> aliases;
 
     public BuilderMapEntryCollection(@Nonnull Collection<Key> keys) {
+        this(keys, null);
+    }
+
+    /**
+     * @param keys The keys in the pool
+     * @param aliases Equivalent keys from other builders that were merged into the pool, which are given the same
+     *                value as the key they are an alias of
+     */
+    public BuilderMapEntryCollection(@Nonnull Collection<Key> keys, @Nullable ListMultimap<Key, Key> aliases) {
         this.keys = keys;
+        this.aliases = aliases;
     }
 
     private class MapEntry implements Map.Entry<Key, Integer> {
@@ -56,6 +70,11 @@ public abstract class BuilderMapEntryCollection<Key> extends AbstractCollection<
         }
 
         @Override public Integer setValue(Integer value) {
+            if (aliases != null && !aliases.isEmpty()) {
+                for (Key alias: aliases.get(key)) {
+                    BuilderMapEntryCollection.this.setValue(alias, value);
+                }
+            }
             return BuilderMapEntryCollection.this.setValue(key, value);
         }
     }
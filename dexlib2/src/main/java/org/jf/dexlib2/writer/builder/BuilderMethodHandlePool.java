@@ -31,7 +31,10 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import org.jf.dexlib2.MethodHandleType;
 import org.jf.dexlib2.iface.reference.FieldReference;
 import org.jf.dexlib2.iface.reference.MethodHandleReference;
@@ -41,6 +44,7 @@ import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
@@ -48,6 +52,8 @@ public class BuilderMethodHandlePool extends BaseBuilderPool
         implements MethodHandleSection<BuilderMethodHandleReference, BuilderFieldReference, BuilderMethodReference> {
     @Nonnull private final ConcurrentMap<MethodHandleReference, BuilderMethodHandleReference> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderMethodHandleReference, BuilderMethodHandleReference> aliases =
+            ArrayListMultimap.create();
 
     public BuilderMethodHandlePool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -102,10 +108,16 @@ public class BuilderMethodHandlePool extends BaseBuilderPool
         return builderMethodHandleReference.index;
     }
 
+    void merge(@Nonnull BuilderMethodHandlePool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull
     @Override
     public Collection<? extends Map.Entry<? extends BuilderMethodHandleReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderMethodHandleReference>(internedItems.values()) {
+        // sort by content, so the layout doesn't depend on the order the items were interned in
+        List<BuilderMethodHandleReference> methodHandles = Ordering.natural().sortedCopy(internedItems.values());
+        return new BuilderMapEntryCollection<BuilderMethodHandleReference>(methodHandles, aliases) {
             @Override
             protected int getValue(@Nonnull BuilderMethodHandleReference builderMethodHandleReference) {
                 return builderMethodHandleReference.index;
@@ -31,6 +31,8 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.base.reference.BaseMethodReference;
 import org.jf.dexlib2.iface.reference.MethodReference;
@@ -46,6 +48,8 @@ class BuilderMethodPool extends BaseBuilderPool implements MethodSection<Builder
         BuilderMethodProtoReference, BuilderMethodReference, BuilderMethod>{
     @Nonnull private final ConcurrentMap<MethodReference, BuilderMethodReference> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderMethodReference, BuilderMethodReference> aliases =
+            ArrayListMultimap.create();
 
     public BuilderMethodPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -101,8 +105,12 @@ class BuilderMethodPool extends BaseBuilderPool implements MethodSection<Builder
         return key.index;
     }
 
+    void merge(@Nonnull BuilderMethodPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderMethodReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderMethodReference>(internedItems.values()) {
+        return new BuilderMapEntryCollection<BuilderMethodReference>(internedItems.values(), aliases) {
             @Override protected int getValue(@Nonnull BuilderMethodReference key) {
                 return key.index;
             }
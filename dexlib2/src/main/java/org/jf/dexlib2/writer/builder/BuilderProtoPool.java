@@ -31,6 +31,8 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.iface.reference.MethodProtoReference;
 import org.jf.dexlib2.iface.reference.MethodReference;
@@ -48,6 +50,8 @@ class BuilderProtoPool extends BaseBuilderPool
         implements ProtoSection<BuilderStringReference, BuilderTypeReference, BuilderMethodProtoReference, BuilderTypeList> {
     @Nonnull private final ConcurrentMap<MethodProtoReference, BuilderMethodProtoReference> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderMethodProtoReference, BuilderMethodProtoReference> aliases =
+            ArrayListMultimap.create();
 
     public BuilderProtoPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -89,8 +93,12 @@ class BuilderProtoPool extends BaseBuilderPool
         return proto.getIndex();
     }
 
+    void merge(@Nonnull BuilderProtoPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderMethodProtoReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderMethodProtoReference>(internedItems.values()) {
+        return new BuilderMapEntryCollection<BuilderMethodProtoReference>(internedItems.values(), aliases) {
             @Override protected int getValue(@Nonnull BuilderMethodProtoReference key) {
                 return key.index;
             }
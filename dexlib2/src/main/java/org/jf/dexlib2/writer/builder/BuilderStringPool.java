@@ -31,6 +31,8 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.writer.DexWriter;
 import org.jf.dexlib2.writer.StringSection;
@@ -43,6 +45,8 @@ import java.util.concurrent.ConcurrentMap;
 
 class BuilderStringPool implements StringSection<BuilderStringReference, BuilderStringReference> {
     @Nonnull private final ConcurrentMap<String, BuilderStringReference> internedItems = Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderStringReference, BuilderStringReference> aliases =
+            ArrayListMultimap.create();
 
     @Nonnull BuilderStringReference internString(@Nonnull String string) {
         BuilderStringReference ret = internedItems.get(string);
@@ -73,8 +77,12 @@ class BuilderStringPool implements StringSection<BuilderStringReference, Builder
         return internedItems.size() > 65536;
     }
 
+    void merge(@Nonnull BuilderStringPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderStringReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderStringReference>(internedItems.values()) {
+        return new BuilderMapEntryCollection<BuilderStringReference>(internedItems.values(), aliases) {
             @Override protected int getValue(@Nonnull BuilderStringReference key) {
                 return key.index;
             }
@@ -32,11 +32,15 @@
 package org.jf.dexlib2.writer.builder;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import org.jf.dexlib2.writer.DexWriter;
 import org.jf.dexlib2.writer.TypeListSection;
+import org.jf.util.CollectionUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -48,6 +52,7 @@ import java.util.concurrent.ConcurrentMap;
 class BuilderTypeListPool extends BaseBuilderPool implements TypeListSection<BuilderTypeReference, BuilderTypeList> {
     @Nonnull private final ConcurrentMap<List<? extends CharSequence>, BuilderTypeList> internedItems =
             Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderTypeList, BuilderTypeList> aliases = ArrayListMultimap.create();
 
     public BuilderTypeListPool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -87,8 +92,16 @@ class BuilderTypeListPool extends BaseBuilderPool implements TypeListSection<Bui
         return key.offset;
     }
 
+    void merge(@Nonnull BuilderTypeListPool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderTypeList, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderTypeList>(internedItems.values()) {
+        // sort by content, so the layout doesn't depend on the order the lists were interned in
+        List<BuilderTypeList> typeLists = Ordering.from(
+                CollectionUtils.<BuilderTypeReference>listComparator(Ordering.natural()))
+                .sortedCopy(internedItems.values());
+        return new BuilderMapEntryCollection<BuilderTypeList>(typeLists, aliases) {
             @Override protected int getValue(@Nonnull BuilderTypeList key) {
                 return key.offset;
             }
@@ -31,6 +31,8 @@
 
 package org.jf.dexlib2.writer.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.writer.DexWriter;
 import org.jf.dexlib2.writer.TypeSection;
@@ -44,6 +46,8 @@ import java.util.concurrent.ConcurrentMap;
 class BuilderTypePool extends BaseBuilderPool
         implements TypeSection<BuilderStringReference, BuilderTypeReference, BuilderTypeReference> {
     @Nonnull private final ConcurrentMap<String, BuilderTypeReference> internedItems = Maps.newConcurrentMap();
+    @Nonnull private final ListMultimap<BuilderTypeReference, BuilderTypeReference> aliases =
+            ArrayListMultimap.create();
 
     public BuilderTypePool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
@@ -79,8 +83,12 @@ class BuilderTypePool extends BaseBuilderPool
         return key.getIndex();
     }
 
+    void merge(@Nonnull BuilderTypePool other) {
+        BaseBuilderPool.mergeItems(internedItems, aliases, other.internedItems, other.aliases);
+    }
+
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderTypeReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderTypeReference>(internedItems.values()) {
+        return new BuilderMapEntryCollection<BuilderTypeReference>(internedItems.values(), aliases) {
             @Override protected int getValue(@Nonnull BuilderTypeReference key) {
                 return key.index;
             }
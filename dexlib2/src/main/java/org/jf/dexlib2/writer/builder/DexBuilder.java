@@ -151,6 +151,36 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
                 internedStaticInitializers));
     }
 
+    /**
+     * Merges the items and classes that were interned into another DexBuilder into this one.
+     *
+     * This is used to combine several builders that were populated independently, e.g. one per thread. Nothing is
+     * re-interned. The other builder's items are added to this builder's pools, or are recorded as aliases of an
+     * equivalent item that is already present, and are given the same index as that item when this builder is written.
+     * The cost is proportional to the number of distinct items in the other builder, rather than the size of its
+     * classes.
+     *
+     * The other builder must not be used after it has been merged.
+     *
+     * @param other The builder to merge into this one
+     * @throws ExceptionWithContext if a class in the other builder has already been interned into this one. This
+     * builder is left partially merged in that case.
+     */
+    public void merge(@Nonnull DexBuilder other) {
+        stringSection.merge(other.stringSection);
+        typeSection.merge(other.typeSection);
+        protoSection.merge(other.protoSection);
+        fieldSection.merge(other.fieldSection);
+        methodSection.merge(other.methodSection);
+        typeListSection.merge(other.typeListSection);
+        annotationSection.merge(other.annotationSection);
+        annotationSetSection.merge(other.annotationSetSection);
+        encodedArraySection.merge(other.encodedArraySection);
+        callSiteSection.merge(other.callSiteSection);
+        methodHandleSection.merge(other.methodHandleSection);
+        classSection.merge(other.classSection);
+    }
+
     public BuilderCallSiteReference internCallSite(@Nonnull CallSiteReference callSiteReference) {
         return callSiteSection.internCallSite(callSiteReference);
     }
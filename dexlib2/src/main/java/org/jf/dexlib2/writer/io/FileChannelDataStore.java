@@ -0,0 +1,223 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer.io;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A DexDataStore that writes directly to a file, using positional FileChannel writes instead of seek+write.
+ *
+ * The file can optionally be pre-sized to the expected size of the output, and can optionally be written via a
+ * memory mapping instead of via explicit writes. In either case, the file is truncated to the amount of data actually
+ * written when the store is closed.
+ */
+public class FileChannelDataStore implements DexDataStore {
+    private static final int MIN_MAPPING_GROWTH = 1024 * 1024;
+
+    @Nonnull private final RandomAccessFile raf;
+    @Nonnull private final FileChannel channel;
+    private final boolean mapped;
+    @Nullable private MappedByteBuffer mappedBuffer;
+
+    /** The end of the data that has been written so far */
+    private int size = 0;
+
+    public FileChannelDataStore(@Nonnull File file) throws IOException {
+        this(file, 0, false);
+    }
+
+    /**
+     * @param file The file to write to. Any existing contents are discarded.
+     * @param expectedSize The expected size of the output. The file will be pre-sized to this length, to avoid
+     *                     growing it incrementally. It's fine if the actual output ends up smaller or larger.
+     * @param mapped If true, the file will be written via a read-write memory mapping, rather than with explicit
+     *               writes
+     */
+    public FileChannelDataStore(@Nonnull File file, int expectedSize, boolean mapped) throws IOException {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize must not be negative");
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.mapped = mapped;
+
+        try {
+            raf.setLength(0);
+            if (mapped) {
+                mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.max(expectedSize, MIN_MAPPING_GROWTH));
+            } else if (expectedSize > 0) {
+                raf.setLength(expectedSize);
+            }
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    @Nonnull @Override public OutputStream outputAt(final int offset) {
+        if (offset < 0) throw new IllegalArgumentException();
+        return new OutputStream() {
+            private int position = offset;
+
+            @Override public void write(int b) throws IOException {
+                if (mapped) {
+                    ensureMapped(position + 1).put(position, (byte)b);
+                } else {
+                    writeFully(ByteBuffer.wrap(new byte[] { (byte)b }), position);
+                }
+                position++;
+                updateSize(position);
+            }
+
+            @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return;
+                }
+                if (mapped) {
+                    ByteBuffer view = ensureMapped(position + len).duplicate();
+                    view.position(position);
+                    view.put(b, off, len);
+                } else {
+                    writeFully(ByteBuffer.wrap(b, off, len), position);
+                }
+                position += len;
+                updateSize(position);
+            }
+        };
+    }
+
+    @Nonnull @Override public InputStream readAt(final int offset) {
+        if (offset < 0) throw new IllegalArgumentException();
+        return new InputStream() {
+            private int position = offset;
+
+            @Override public int read() throws IOException {
+                byte[] b = new byte[1];
+                if (read(b, 0, 1) <= 0) {
+                    return -1;
+                }
+                return b[0] & 0xff;
+            }
+
+            @Override public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+                // the file may have been pre-sized or mapped past the end of the data, so don't read past size
+                int readLength = Math.min(len, size - position);
+                if (readLength <= 0) {
+                    if (position >= size) {
+                        return -1;
+                    }
+                    return 0;
+                }
+
+                if (mapped) {
+                    ByteBuffer view = mappedBuffer.duplicate();
+                    view.position(position);
+                    view.get(b, off, readLength);
+                } else {
+                    ByteBuffer dest = ByteBuffer.wrap(b, off, readLength);
+                    while (dest.hasRemaining()) {
+                        int bytesRead = channel.read(dest, position + dest.position() - off);
+                        if (bytesRead < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                    }
+                }
+                position += readLength;
+                return readLength;
+            }
+
+            @Override public long skip(long n) throws IOException {
+                int skipLength = (int)Math.max(0, Math.min(n, size - position));
+                position += skipLength;
+                return skipLength;
+            }
+
+            @Override public int available() throws IOException {
+                return Math.max(0, size - position);
+            }
+        };
+    }
+
+    private void writeFully(@Nonnull ByteBuffer src, int position) throws IOException {
+        long filePosition = position;
+        while (src.hasRemaining()) {
+            filePosition += channel.write(src, filePosition);
+        }
+    }
+
+    @Nonnull private MappedByteBuffer ensureMapped(int minSize) throws IOException {
+        MappedByteBuffer mappedBuffer = this.mappedBuffer;
+        assert mappedBuffer != null;
+        if (minSize > mappedBuffer.capacity()) {
+            long newSize = Math.max((long)minSize,
+                    mappedBuffer.capacity() + Math.max(mappedBuffer.capacity() >> 1, MIN_MAPPING_GROWTH));
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(newSize, Integer.MAX_VALUE));
+            this.mappedBuffer = mappedBuffer;
+        }
+        return mappedBuffer;
+    }
+
+    private void updateSize(int position) {
+        if (position > size) {
+            size = position;
+        }
+    }
+
+    /**
+     * @return The amount of data that has been written so far
+     */
+    public int getSize() {
+        return size;
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            if (mappedBuffer != null) {
+                mappedBuffer.force();
+                mappedBuffer = null;
+            }
+            channel.truncate(size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -36,11 +36,15 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import org.jf.dexlib2.DebugItemType;
 import org.jf.dexlib2.HiddenApiRestriction;
+import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.formatter.DexFormatter;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.debug.*;
@@ -50,8 +54,14 @@ import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.reference.*;
 import org.jf.dexlib2.iface.value.ArrayEncodedValue;
 import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.value.ImmutableArrayEncodedValue;
+import org.jf.dexlib2.rewriter.ReferenceRewrittenMethodImplementation;
+import org.jf.dexlib2.rewriter.Rewriters;
 import org.jf.dexlib2.writer.ClassSection;
 import org.jf.dexlib2.writer.DebugWriter;
+import org.jf.dexlib2.writer.RawInstructions;
 import org.jf.dexlib2.writer.util.StaticInitializerUtil;
 import org.jf.util.AbstractForwardSequentialList;
 import org.jf.util.ExceptionWithContext;
@@ -66,13 +76,30 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
         TypeListPool.Key<? extends Collection<? extends CharSequence>>, PoolClassDef, Field, PoolMethod,
         Set<? extends Annotation>, ArrayEncodedValue> {
 
+    // there is typically a single remapper, for the one dex file being rewritten
+    @Nonnull private final List<InstructionRemapper> instructionRemappers = Lists.newArrayList();
+
     public ClassPool(@Nonnull DexPool dexPool) {
         super(dexPool);
     }
 
     public void intern(@Nonnull ClassDef classDef) {
-        PoolClassDef poolClassDef = new PoolClassDef(classDef);
+        intern(new PoolClassDef(classDef));
+    }
+
+    /**
+     * Interns every class in the given list, re-reading them from the list as needed rather than retaining them.
+     *
+     * @see DexPool#internClassesStreaming(List)
+     */
+    public void internStreaming(@Nonnull List<? extends ClassDef> classes) {
+        PoolClassDef.ClassSource source = new PoolClassDef.ClassSource(classes);
+        for (int i=0; i<classes.size(); i++) {
+            intern(new PoolClassDef(classes.get(i), source, i));
+        }
+    }
 
+    private void intern(@Nonnull PoolClassDef poolClassDef) {
         PoolClassDef prev = internedItems.put(poolClassDef.getType(), poolClassDef);
         if (prev != null) {
             throw new ExceptionWithContext("Class %s has already been interned", poolClassDef.getType());
@@ -90,7 +117,12 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
                 throw new ExceptionWithContext("Multiple definitions for field %s->%s",
                         poolClassDef.getType(), fieldDescriptor);
             }
-            dexPool.fieldSection.intern(field);
+            if (poolClassDef.isStreamed()) {
+                // the field definition would keep the whole class alive, so intern a detached reference instead
+                dexPool.fieldSection.intern(ImmutableFieldReference.of(field));
+            } else {
+                dexPool.fieldSection.intern(field);
+            }
 
             EncodedValue initialValue = field.getInitialValue();
             if (initialValue != null) {
@@ -101,6 +133,10 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
 
             ArrayEncodedValue staticInitializers = getStaticInitializers(poolClassDef);
             if (staticInitializers != null) {
+                if (poolClassDef.isStreamed()) {
+                    // the initializer array is a view over the class's static fields
+                    staticInitializers = ImmutableArrayEncodedValue.of(staticInitializers);
+                }
                 dexPool.encodedArraySection.intern(staticInitializers);
             }
         }
@@ -112,7 +148,11 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
                 throw new ExceptionWithContext("Multiple definitions for method %s->%s",
                         poolClassDef.getType(), methodDescriptor);
             }
-            dexPool.methodSection.intern(method);
+            if (poolClassDef.isStreamed()) {
+                dexPool.methodSection.intern(ImmutableMethodReference.of(method));
+            } else {
+                dexPool.methodSection.intern(method);
+            }
             internCode(method);
             internDebug(method);
             dexPool.annotationSetSection.intern(method.getAnnotations());
@@ -398,6 +438,46 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
         return null;
     }
 
+    @Nullable @Override public RawInstructions getRawInstructions(@Nonnull PoolMethod method) {
+        MethodImplementation impl = method.getImplementation();
+        Rewriters rewriters = null;
+        if (impl instanceof ReferenceRewrittenMethodImplementation) {
+            rewriters = ((ReferenceRewrittenMethodImplementation)impl).getRewriters();
+            impl = ((ReferenceRewrittenMethodImplementation)impl).getReferenceRewrittenImplementation();
+        }
+        if (!(impl instanceof DexBackedMethodImplementation)) {
+            return null;
+        }
+
+        DexBackedMethodImplementation dexBackedImpl = (DexBackedMethodImplementation)impl;
+        InstructionRemapper remapper = getInstructionRemapper(dexBackedImpl.dexFile, rewriters);
+        if (remapper == null) {
+            return null;
+        }
+        return remapper.copyInstructions(dexBackedImpl);
+    }
+
+    @Nullable
+    private InstructionRemapper getInstructionRemapper(@Nonnull DexBackedDexFile dexFile,
+                                                       @Nullable Rewriters rewriters) {
+        // the opcode values in the original instructions are only valid if the opcodes are the same
+        Opcodes opcodes = dexPool.getOpcodes();
+        if (dexFile.getOpcodes().api != opcodes.api || dexFile.getOpcodes().artVersion != opcodes.artVersion) {
+            return null;
+        }
+
+        synchronized (instructionRemappers) {
+            for (InstructionRemapper remapper: instructionRemappers) {
+                if (remapper.dexFile == dexFile && remapper.rewriters == rewriters) {
+                    return remapper;
+                }
+            }
+            InstructionRemapper remapper = new InstructionRemapper(dexPool, dexFile, rewriters);
+            instructionRemappers.add(remapper);
+            return remapper;
+        }
+    }
+
     @Nonnull @Override public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks(
             @Nonnull PoolMethod method) {
         MethodImplementation impl = method.getImplementation();
@@ -425,19 +505,19 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
     }
 
     @Override public void setAnnotationSetRefListOffset(@Nonnull PoolMethod method, int offset) {
-        method.annotationSetRefListOffset = offset;
+        method.setAnnotationSetRefListOffset(offset);
 
     }
     @Override public int getAnnotationSetRefListOffset(@Nonnull PoolMethod method) {
-        return method.annotationSetRefListOffset;
+        return method.getAnnotationSetRefListOffset();
     }
 
     @Override public void setCodeItemOffset(@Nonnull PoolMethod method, int offset) {
-        method.codeItemOffset = offset;
+        method.setCodeItemOffset(offset);
     }
 
     @Override public int getCodeItemOffset(@Nonnull PoolMethod method) {
-        return method.codeItemOffset;
+        return method.getCodeItemOffset();
     }
 
     @Override public void writeDebugItem(@Nonnull DebugWriter<CharSequence, CharSequence> writer,
@@ -41,13 +41,14 @@ import org.jf.dexlib2.iface.reference.*;
 import org.jf.dexlib2.iface.value.*;
 import org.jf.dexlib2.writer.*;
 import org.jf.dexlib2.writer.io.DexDataStore;
-import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.io.FileChannelDataStore;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 public class DexPool extends DexWriter<CharSequence, StringReference, CharSequence, TypeReference,
@@ -77,6 +78,10 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
         super(opcodes);
     }
 
+    @Nonnull Opcodes getOpcodes() {
+        return opcodes;
+    }
+
     @Nonnull @Override protected SectionProvider getSectionProvider() {
         return new DexPoolSectionProvider();
     }
@@ -90,12 +95,24 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
         dexPool.writeTo(dataStore);
     }
 
+    /**
+     * Writes the given classes to a dex file, without retaining them in memory.
+     *
+     * See internClassesStreaming() for the requirements on the list of classes.
+     */
+    public static void writeStreaming(@Nonnull DexDataStore dataStore, @Nonnull Opcodes opcodes,
+                                      @Nonnull List<? extends ClassDef> classes) throws IOException {
+        DexPool dexPool = new DexPool(opcodes);
+        dexPool.internClassesStreaming(classes);
+        dexPool.writeTo(dataStore);
+    }
+
     public static void writeTo(@Nonnull String path, @Nonnull org.jf.dexlib2.iface.DexFile input) throws IOException {
         DexPool dexPool = new DexPool(input.getOpcodes());
         for (ClassDef classDef: input.getClasses()) {
             dexPool.internClass(classDef);
         }
-        dexPool.writeTo(new FileDataStore(new File(path)));
+        dexPool.writeTo(new FileChannelDataStore(new File(path)));
     }
 
     /**
@@ -106,6 +123,28 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
         classSection.intern(classDef);
     }
 
+    /**
+     * Interns the classes in the given list into this DexPool, without retaining them.
+     *
+     * The classes are read once to intern the items they reference, and then re-read from the list one at a time
+     * while the dex file is being written, so that the memory used while writing is proportional to the size of the
+     * index pools, rather than the size of the classes. This is mostly useful for large inputs whose classes are
+     * produced on demand, like a DexRewriter applied to a DexBackedDexFile:
+     *
+     * <pre>
+     * dexPool.internClassesStreaming(Lists.transform(dexFile.getClassSection(), new Function&lt;...&gt;() {
+     *     public ClassDef apply(DexBackedClassDef classDef) {
+     *         return rewriter.getClassDefRewriter().rewrite(classDef);
+     *     }
+     * }));
+     * </pre>
+     *
+     * @param classes A random-access list of classes. It must return equivalent classes each time it is read.
+     */
+    public void internClassesStreaming(@Nonnull List<? extends ClassDef> classes) {
+        classSection.internStreaming(classes);
+    }
+
     /**
      * Creates a marked state that can be returned to by calling reset()
      *
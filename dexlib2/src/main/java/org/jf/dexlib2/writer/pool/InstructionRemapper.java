@@ -0,0 +1,293 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer.pool;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
+import org.jf.dexlib2.iface.reference.*;
+import org.jf.dexlib2.rewriter.Rewriters;
+import org.jf.dexlib2.rewriter.RewriterUtils;
+import org.jf.dexlib2.util.InstructionUtil;
+import org.jf.dexlib2.util.MethodUtil;
+import org.jf.dexlib2.writer.RawInstructions;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Copies the encoded instructions of DexBackedMethodImplementations from a single dex file into a DexPool, rewriting
+ * the index operands from the indexes in the original dex file to the indexes in the dex file being written.
+ *
+ * The old to new index mapping for each reference type is built up lazily, as indexes are encountered. This must
+ * only be used while the DexPool is being written, after the indexes of all items have been assigned.
+ */
+class InstructionRemapper {
+    @Nonnull private final DexPool dexPool;
+    @Nonnull final DexBackedDexFile dexFile;
+    @Nullable final Rewriters rewriters;
+
+    // indexed by reference type, and then by the index in the original dex file. -1 is used for an unmapped index
+    @Nonnull private final int[][] indexMaps = new int[ReferenceType.METHOD_PROTO + 1][];
+    // the parameter register count of each method reference, as if it was static
+    @Nonnull private final int[] parameterRegisterCounts;
+
+    InstructionRemapper(@Nonnull DexPool dexPool, @Nonnull DexBackedDexFile dexFile, @Nullable Rewriters rewriters) {
+        this.dexPool = dexPool;
+        this.dexFile = dexFile;
+        this.rewriters = rewriters;
+
+        indexMaps[ReferenceType.STRING] = newIndexMap(dexFile.getStringSection().size());
+        indexMaps[ReferenceType.TYPE] = newIndexMap(dexFile.getTypeSection().size());
+        indexMaps[ReferenceType.FIELD] = newIndexMap(dexFile.getFieldSection().size());
+        indexMaps[ReferenceType.METHOD] = newIndexMap(dexFile.getMethodSection().size());
+        indexMaps[ReferenceType.METHOD_PROTO] = newIndexMap(dexFile.getProtoSection().size());
+        parameterRegisterCounts = newIndexMap(dexFile.getMethodSection().size());
+    }
+
+    @Nonnull
+    private static int[] newIndexMap(int size) {
+        int[] indexMap = new int[size];
+        Arrays.fill(indexMap, -1);
+        return indexMap;
+    }
+
+    /**
+     * Copies the instructions of the given method implementation, which must be from this remapper's dex file.
+     *
+     * @return The copied instructions, or null if they can't be copied directly. E.g. if they contain a reference
+     * type that isn't supported, or a 16-bit index operand whose new index doesn't fit in 16 bits.
+     */
+    @Nullable
+    RawInstructions copyInstructions(@Nonnull DexBackedMethodImplementation implementation) {
+        assert implementation.dexFile == dexFile;
+
+        int start = implementation.getInstructionsStartOffset();
+        byte[] code = dexFile.getDataBuffer().readByteRange(start, implementation.getInstructionsSize() * 2);
+
+        int outParamCount = 0;
+        InstructionCursor cursor = implementation.getInstructionCursor();
+        while (cursor.next()) {
+            Opcode opcode = cursor.getOpcode();
+            if (opcode == null || opcode.format == Format.Format20bc) {
+                return null;
+            }
+            int offset = cursor.getInstructionStart() - start;
+            if (!normalizeUnusedBits(code, offset, opcode.format)) {
+                return null;
+            }
+            if (opcode.referenceType == ReferenceType.NONE) {
+                continue;
+            }
+            if (rewriters != null &&
+                    (opcode.format == Format.Format4rcc || opcode.referenceType == ReferenceType.METHOD_PROTO)) {
+                // the stock InstructionRewriter doesn't support these, so let the normal path report the error
+                return null;
+            }
+
+            int newIndex = getNewIndex(opcode.referenceType, cursor.getReferenceIndex());
+            if (opcode.format == Format.Format31c) {
+                if (newIndex < 0) {
+                    return null;
+                }
+                writeInt(code, offset + 2, newIndex);
+            } else if (!writeUshortIndex(code, offset + 2, newIndex)) {
+                return null;
+            }
+
+            if (opcode.format == Format.Format45cc || opcode.format == Format.Format4rcc) {
+                if (!writeUshortIndex(code, offset + 6, getNewIndex(opcode.referenceType2,
+                        cursor.getReferenceIndex2()))) {
+                    return null;
+                }
+            }
+
+            if (opcode.referenceType == ReferenceType.METHOD) {
+                int paramCount;
+                if (InstructionUtil.isInvokePolymorphic(opcode)) {
+                    paramCount = cursor.getRegisterCount();
+                } else {
+                    paramCount = getParameterRegisterCount(cursor.getReferenceIndex());
+                    if (!InstructionUtil.isInvokeStatic(opcode)) {
+                        paramCount++;
+                    }
+                }
+                if (paramCount > outParamCount) {
+                    outParamCount = paramCount;
+                }
+            }
+        }
+        return new RawInstructions(code, outParamCount);
+    }
+
+    /**
+     * Zeroes the parts of the given instruction that aren't used, the same as InstructionWriter would write them.
+     *
+     * @return false if the instruction wouldn't be written as-is for some other reason, e.g. a sparse switch whose
+     * keys aren't sorted
+     */
+    private static boolean normalizeUnusedBits(@Nonnull byte[] code, int offset, @Nonnull Format format) {
+        switch (format) {
+            case Format10x:
+            case Format20t:
+            case Format30t:
+            case Format32x:
+                code[offset + 1] = 0;
+                return true;
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc: {
+                int registerCount = (code[offset + 1] >> 4) & 0x0F;
+                // the registers are C and D in the 5th byte, E and F in the 6th, and G in the low nibble of the 2nd
+                for (int register=registerCount; register<5; register++) {
+                    if (register == 4) {
+                        code[offset + 1] &= (byte)0xF0;
+                    } else if ((register & 1) == 0) {
+                        code[offset + 4 + register/2] &= (byte)0xF0;
+                    } else {
+                        code[offset + 4 + register/2] &= (byte)0x0F;
+                    }
+                }
+                return true;
+            }
+            case ArrayPayload: {
+                int elementWidth = readUshort(code, offset + 2);
+                long dataLength = (long)elementWidth * readInt(code, offset + 4);
+                if ((dataLength & 1) != 0) {
+                    code[offset + 8 + (int)dataLength] = 0;
+                }
+                return true;
+            }
+            case SparseSwitchPayload: {
+                int size = readUshort(code, offset + 2);
+                for (int i=1; i<size; i++) {
+                    if (readInt(code, offset + 4 + (i-1) * 4) > readInt(code, offset + 4 + i * 4)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return The index of the given item in the dex file being written, or -1 if the reference type isn't supported
+     * or the old index is invalid
+     */
+    private int getNewIndex(int referenceType, int oldIndex) {
+        if (referenceType < 0 || referenceType >= indexMaps.length) {
+            return -1;
+        }
+        int[] indexMap = indexMaps[referenceType];
+        if (oldIndex >= indexMap.length) {
+            // let the normal instruction writing path report the invalid index
+            return -1;
+        }
+        // concurrent lookups of the same index will just store the same value
+        int newIndex = indexMap[oldIndex];
+        if (newIndex == -1) {
+            newIndex = lookupNewIndex(referenceType, getReference(referenceType, oldIndex));
+            indexMap[oldIndex] = newIndex;
+        }
+        return newIndex;
+    }
+
+    @Nonnull
+    private Reference getReference(int referenceType, int oldIndex) {
+        Reference reference = DexBackedReference.makeReference(dexFile, referenceType, oldIndex);
+        if (rewriters != null) {
+            return RewriterUtils.rewriteReference(rewriters, reference, referenceType);
+        }
+        return reference;
+    }
+
+    private int lookupNewIndex(int referenceType, @Nonnull Reference reference) {
+        switch (referenceType) {
+            case ReferenceType.STRING:
+                return dexPool.stringSection.getItemIndex((StringReference)reference);
+            case ReferenceType.TYPE:
+                return dexPool.typeSection.getItemIndex((TypeReference)reference);
+            case ReferenceType.FIELD:
+                return dexPool.fieldSection.getItemIndex((FieldReference)reference);
+            case ReferenceType.METHOD:
+                return dexPool.methodSection.getItemIndex((MethodReference)reference);
+            case ReferenceType.METHOD_PROTO:
+                return dexPool.protoSection.getItemIndex((MethodProtoReference)reference);
+            default:
+                return -1;
+        }
+    }
+
+    private int getParameterRegisterCount(int oldMethodIndex) {
+        int count = parameterRegisterCounts[oldMethodIndex];
+        if (count == -1) {
+            MethodReference methodReference =
+                    (MethodReference)getReference(ReferenceType.METHOD, oldMethodIndex);
+            count = MethodUtil.getParameterRegisterCount(methodReference, true);
+            parameterRegisterCounts[oldMethodIndex] = count;
+        }
+        return count;
+    }
+
+    private static boolean writeUshortIndex(@Nonnull byte[] buf, int offset, int index) {
+        if (index < 0 || index > 0xFFFF) {
+            return false;
+        }
+        buf[offset] = (byte)index;
+        buf[offset + 1] = (byte)(index >> 8);
+        return true;
+    }
+
+    private static int readUshort(@Nonnull byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(@Nonnull byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8) | ((buf[offset + 2] & 0xFF) << 16) |
+                (buf[offset + 3] << 24);
+    }
+
+    private static void writeInt(@Nonnull byte[] buf, int offset, int value) {
+        buf[offset] = (byte)value;
+        buf[offset + 1] = (byte)(value >> 8);
+        buf[offset + 2] = (byte)(value >> 16);
+        buf[offset + 3] = (byte)(value >> 24);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer.pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.DexWriter;
+import org.jf.dexlib2.writer.io.FileChannelDataStore;
+import org.jf.util.ExceptionWithContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.*;
+
+/**
+ * Writes a stream of classes into as many dex files as needed, named classes.dex, classes2.dex, etc.
+ *
+ * Classes are interned into a DexPool until one would cause one of its size-sensitive index sections to overflow,
+ * at which point that class is rolled back and a new DexPool is started. Each DexPool is written out on a
+ * background thread as soon as it is full, so that writing is done in parallel with interning the remaining
+ * classes. At most one full pool per job is kept waiting to be written. If the writes fall further behind than that,
+ * internClass blocks until the oldest one is done.
+ *
+ * If a main dex list is given, the classes in the list are always placed in classes.dex, and all other classes are
+ * placed in the secondary dex files. Otherwise, classes are placed in the order they are interned.
+ *
+ * A writer that won't be finished, e.g. due to an exception, should be closed to stop its background threads.
+ */
+public class MultiDexWriter implements Closeable {
+    @Nonnull private final Opcodes opcodes;
+    @Nonnull private final File outputDir;
+    @Nullable private final Set<String> mainDexClasses;
+    private final int maxPoolSize;
+    private final int jobs;
+
+    @Nonnull private final ExecutorService executor;
+    @Nonnull private final SortedMap<Integer, Future<File>> pendingWrites = Maps.newTreeMap();
+    // the writes that may not have completed yet, oldest first
+    @Nonnull private final Deque<Future<File>> activeWrites = new ArrayDeque<Future<File>>();
+    @Nonnull private final Set<String> internedClasses = Sets.newHashSet();
+
+    @Nullable private DexPool mainDexPool;
+    @Nullable private DexPool currentDexPool;
+    private int currentDexIndex = 0;
+    private boolean finished = false;
+
+    /**
+     * @param opcodes The Opcodes to use for the dex files
+     * @param outputDir The directory to write the dex files to
+     * @param mainDexClasses If not null, the classes that must be placed in classes.dex
+     * @param jobs The number of dex files to write in parallel
+     */
+    public MultiDexWriter(@Nonnull Opcodes opcodes, @Nonnull File outputDir, @Nullable Set<String> mainDexClasses,
+                          int jobs) {
+        this(opcodes, outputDir, mainDexClasses, jobs, DexWriter.MAX_POOL_SIZE);
+    }
+
+    /**
+     * @param maxPoolSize The maximum number of entries allowed in any of the size-sensitive index sections
+     */
+    public MultiDexWriter(@Nonnull Opcodes opcodes, @Nonnull File outputDir, @Nullable Set<String> mainDexClasses,
+                          int jobs, int maxPoolSize) {
+        this.opcodes = opcodes;
+        this.outputDir = outputDir;
+        this.mainDexClasses = mainDexClasses;
+        this.maxPoolSize = maxPoolSize;
+        this.jobs = jobs;
+        // daemon threads, so that a writer that is never finished or closed can't keep the jvm alive
+        this.executor = Executors.newFixedThreadPool(jobs,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MultiDexWriter-%d").build());
+
+        this.mainDexPool = new DexPool(opcodes);
+        if (mainDexClasses == null) {
+            currentDexPool = mainDexPool;
+        }
+    }
+
+    /**
+     * Interns a class into the current dex file, or into a new dex file if the current one is full.
+     *
+     * @param classDef The class to intern
+     * @throws IOException If an error occurred while writing a previous dex file
+     */
+    public void internClass(@Nonnull ClassDef classDef) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("finish() has already been called");
+        }
+
+        String type = classDef.getType();
+        if (!internedClasses.add(type)) {
+            throw new ExceptionWithContext("Class %s has already been interned", type);
+        }
+
+        boolean interned = false;
+        try {
+            internNewClass(classDef);
+            interned = true;
+        } finally {
+            if (!interned) {
+                internedClasses.remove(type);
+            }
+        }
+    }
+
+    private void internNewClass(@Nonnull ClassDef classDef) throws IOException {
+        String type = classDef.getType();
+        if (mainDexClasses != null && mainDexClasses.contains(type)) {
+            assert mainDexPool != null;
+            if (!tryInternClass(mainDexPool, classDef)) {
+                throw new ExceptionWithContext("The classes in the main dex list don't fit in a single dex file. " +
+                        "It overflowed while adding %s", type);
+            }
+            return;
+        }
+
+        if (currentDexPool != null) {
+            if (tryInternClass(currentDexPool, classDef)) {
+                return;
+            }
+            writeDexPool(currentDexPool, currentDexIndex);
+            if (currentDexPool == mainDexPool) {
+                mainDexPool = null;
+            }
+        }
+
+        currentDexPool = new DexPool(opcodes);
+        currentDexIndex++;
+        if (!tryInternClass(currentDexPool, classDef)) {
+            throw new ExceptionWithContext("Class %s is too large to fit in a single dex file", type);
+        }
+    }
+
+    /**
+     * Writes any remaining dex files, and waits for all dex files to be written.
+     *
+     * @return The dex files that were written, in order
+     */
+    @Nonnull
+    public List<File> finish() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("finish() has already been called");
+        }
+        finished = true;
+
+        try {
+            if (mainDexPool != null) {
+                writeDexPool(mainDexPool, 0);
+            }
+            if (currentDexPool != null && currentDexPool != mainDexPool) {
+                writeDexPool(currentDexPool, currentDexIndex);
+            }
+            mainDexPool = null;
+            currentDexPool = null;
+
+            List<File> files = Lists.newArrayList();
+            for (Future<File> write: pendingWrites.values()) {
+                files.add(getResult(write));
+            }
+            return files;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the background threads. Any dex files that haven't been written yet are abandoned.
+     *
+     * This has no effect if finish() has already been called.
+     */
+    @Override public void close() {
+        if (!finished) {
+            finished = true;
+            mainDexPool = null;
+            currentDexPool = null;
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param index The 0-based index of the dex file
+     * @return The name of the dex file with the given index, e.g. classes.dex or classes2.dex
+     */
+    @Nonnull
+    public static String getDexFileName(int index) {
+        if (index == 0) {
+            return "classes.dex";
+        }
+        return "classes" + (index + 1) + ".dex";
+    }
+
+    private boolean tryInternClass(@Nonnull DexPool dexPool, @Nonnull ClassDef classDef) {
+        dexPool.mark();
+        try {
+            dexPool.internClass(classDef);
+        } catch (RuntimeException ex) {
+            // don't leave a partially interned class behind
+            dexPool.reset();
+            throw ex;
+        }
+        if (dexPool.hasOverflowed(maxPoolSize)) {
+            dexPool.reset();
+            return false;
+        }
+        return true;
+    }
+
+    private void writeDexPool(@Nonnull final DexPool dexPool, int index) throws IOException {
+        // don't let full pools pile up in memory if the writes can't keep up
+        while (activeWrites.size() >= jobs) {
+            getResult(activeWrites.removeFirst());
+        }
+
+        final File file = new File(outputDir, getDexFileName(index));
+        Future<File> write = executor.submit(new Callable<File>() {
+            @Override public File call() throws IOException {
+                dexPool.writeTo(new FileChannelDataStore(file));
+                return file;
+            }
+        });
+        pendingWrites.put(index, write);
+        activeWrites.addLast(write);
+    }
+
+    @Nonnull
+    private static File getResult(@Nonnull Future<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedException =
+                    new InterruptedIOException("Interrupted while writing dex files");
+            interruptedException.initCause(ex);
+            throw interruptedException;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
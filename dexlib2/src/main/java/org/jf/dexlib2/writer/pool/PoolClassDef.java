@@ -36,44 +36,93 @@ import org.jf.dexlib2.base.reference.BaseTypeReference;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.Field;
+import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
 
 class PoolClassDef extends BaseTypeReference implements ClassDef {
-    @Nonnull final ClassDef classDef;
+    @Nonnull private final String type;
+    private final int accessFlags;
+    @Nullable private final String superclass;
+    @Nullable private final String sourceFile;
     @Nonnull final TypeListPool.Key<List<String>> interfaces;
-    @Nonnull final ImmutableSortedSet<Field> staticFields;
-    @Nonnull final ImmutableSortedSet<Field> instanceFields;
-    @Nonnull final ImmutableSortedSet<PoolMethod> directMethods;
-    @Nonnull final ImmutableSortedSet<PoolMethod> virtualMethods;
+
+    // For a streamed class, the contents are only held while the class is being interned or written, and are
+    // otherwise re-read from the class source as needed
+    @Nullable private Contents contents;
+    @Nullable private final ClassSource source;
+    private final int sourceIndex;
+
+    // For a streamed class, the offsets of each method's items are kept here rather than in the PoolMethod objects,
+    // since those are recreated each time the class is re-read. The direct methods come first, followed by the
+    // virtual methods.
+    @Nullable private final int[] methodAnnotationSetRefListOffsets;
+    @Nullable private final int[] methodCodeItemOffsets;
 
     int classDefIndex = DexPool.NO_INDEX;
     int annotationDirectoryOffset = DexPool.NO_OFFSET;
 
     PoolClassDef(@Nonnull ClassDef classDef) {
-        this.classDef = classDef;
+        this(classDef, null, -1);
+    }
+
+    /**
+     * Creates a new PoolClassDef for a class from a class source.
+     *
+     * The contents of the class are retained until the source has loaded several other classes.
+     */
+    PoolClassDef(@Nonnull ClassDef classDef, @Nullable ClassSource source, int sourceIndex) {
+        this.type = classDef.getType();
+        this.accessFlags = classDef.getAccessFlags();
+        this.superclass = classDef.getSuperclass();
+        this.sourceFile = classDef.getSourceFile();
+        this.interfaces = new TypeListPool.Key<List<String>>(ImmutableList.copyOf(classDef.getInterfaces()));
+
+        this.source = source;
+        this.sourceIndex = sourceIndex;
+        this.contents = new Contents(this, classDef);
+
+        if (source != null) {
+            int methodCount = contents.directMethods.size() + contents.virtualMethods.size();
+            methodAnnotationSetRefListOffsets = new int[methodCount];
+            methodCodeItemOffsets = new int[methodCount];
+            Arrays.fill(methodAnnotationSetRefListOffsets, DexPool.NO_OFFSET);
+            Arrays.fill(methodCodeItemOffsets, DexPool.NO_OFFSET);
+            source.setLoaded(this);
+        } else {
+            methodAnnotationSetRefListOffsets = null;
+            methodCodeItemOffsets = null;
+        }
+    }
+
+    /**
+     * @return true if this class is re-read from a class source, rather than being retained
+     */
+    boolean isStreamed() {
+        return source != null;
+    }
 
-        interfaces = new TypeListPool.Key<List<String>>(ImmutableList.copyOf(classDef.getInterfaces()));
-        staticFields = ImmutableSortedSet.copyOf(classDef.getStaticFields());
-        instanceFields = ImmutableSortedSet.copyOf(classDef.getInstanceFields());
-        directMethods = ImmutableSortedSet.copyOf(
-                Iterables.transform(classDef.getDirectMethods(), PoolMethod.TRANSFORM));
-        virtualMethods = ImmutableSortedSet.copyOf(
-                Iterables.transform(classDef.getVirtualMethods(), PoolMethod.TRANSFORM));
+    @Nonnull private Contents getContents() {
+        Contents contents = this.contents;
+        if (contents == null) {
+            assert source != null;
+            contents = source.load(this);
+        }
+        return contents;
     }
 
     @Nonnull @Override public String getType() {
-        return classDef.getType();
+        return type;
     }
 
     @Override public int getAccessFlags() {
-        return classDef.getAccessFlags();
+        return accessFlags;
     }
 
     @Nullable @Override public String getSuperclass() {
-        return classDef.getSuperclass();
+        return superclass;
     }
 
     @Nonnull @Override public List<String> getInterfaces() {
@@ -81,54 +130,149 @@ class PoolClassDef extends BaseTypeReference implements ClassDef {
     }
 
     @Nullable @Override public String getSourceFile() {
-        return classDef.getSourceFile();
+        return sourceFile;
     }
 
     @Nonnull @Override public Set<? extends Annotation> getAnnotations() {
-        return classDef.getAnnotations();
+        return getContents().classDef.getAnnotations();
     }
 
     @Nonnull @Override public SortedSet<Field> getStaticFields() {
-        return staticFields;
+        return getContents().staticFields;
     }
 
     @Nonnull @Override public SortedSet<Field> getInstanceFields() {
-        return instanceFields;
+        return getContents().instanceFields;
     }
 
     @Nonnull @Override public Collection<Field> getFields() {
+        final Contents contents = getContents();
         return new AbstractCollection<Field>() {
             @Nonnull @Override public Iterator<Field> iterator() {
                 return Iterators.mergeSorted(
-                        ImmutableList.of(staticFields.iterator(), instanceFields.iterator()),
+                        ImmutableList.of(contents.staticFields.iterator(), contents.instanceFields.iterator()),
                         Ordering.natural());
             }
 
             @Override public int size() {
-                return staticFields.size() + instanceFields.size();
+                return contents.staticFields.size() + contents.instanceFields.size();
             }
         };
     }
 
     @Nonnull @Override public SortedSet<PoolMethod> getDirectMethods() {
-        return directMethods;
+        return getContents().directMethods;
     }
 
     @Nonnull @Override public SortedSet<PoolMethod> getVirtualMethods() {
-        return virtualMethods;
+        return getContents().virtualMethods;
     }
 
     @Nonnull @Override public Collection<PoolMethod> getMethods() {
+        final Contents contents = getContents();
         return new AbstractCollection<PoolMethod>() {
             @Nonnull @Override public Iterator<PoolMethod> iterator() {
                 return Iterators.mergeSorted(
-                        ImmutableList.of(directMethods.iterator(), virtualMethods.iterator()),
+                        ImmutableList.of(contents.directMethods.iterator(), contents.virtualMethods.iterator()),
                         Ordering.natural());
             }
 
             @Override public int size() {
-                return directMethods.size() + virtualMethods.size();
+                return contents.directMethods.size() + contents.virtualMethods.size();
             }
         };
     }
+
+    int getAnnotationSetRefListOffset(int methodIndex) {
+        assert methodAnnotationSetRefListOffsets != null;
+        return methodAnnotationSetRefListOffsets[methodIndex];
+    }
+
+    void setAnnotationSetRefListOffset(int methodIndex, int offset) {
+        assert methodAnnotationSetRefListOffsets != null;
+        methodAnnotationSetRefListOffsets[methodIndex] = offset;
+    }
+
+    int getCodeItemOffset(int methodIndex) {
+        assert methodCodeItemOffsets != null;
+        return methodCodeItemOffsets[methodIndex];
+    }
+
+    void setCodeItemOffset(int methodIndex, int offset) {
+        assert methodCodeItemOffsets != null;
+        methodCodeItemOffsets[methodIndex] = offset;
+    }
+
+    private static class Contents {
+        @Nonnull final ClassDef classDef;
+        @Nonnull final ImmutableSortedSet<Field> staticFields;
+        @Nonnull final ImmutableSortedSet<Field> instanceFields;
+        @Nonnull final ImmutableSortedSet<PoolMethod> directMethods;
+        @Nonnull final ImmutableSortedSet<PoolMethod> virtualMethods;
+
+        Contents(@Nonnull PoolClassDef owner, @Nonnull ClassDef classDef) {
+            this.classDef = classDef;
+
+            staticFields = ImmutableSortedSet.copyOf(classDef.getStaticFields());
+            instanceFields = ImmutableSortedSet.copyOf(classDef.getInstanceFields());
+            directMethods = ImmutableSortedSet.copyOf(
+                    Iterables.transform(classDef.getDirectMethods(), PoolMethod.TRANSFORM));
+            virtualMethods = ImmutableSortedSet.copyOf(
+                    Iterables.transform(classDef.getVirtualMethods(), PoolMethod.TRANSFORM));
+
+            if (owner.source != null) {
+                int methodIndex = 0;
+                for (PoolMethod method: directMethods) {
+                    method.setOwner(owner, methodIndex++);
+                }
+                for (PoolMethod method: virtualMethods) {
+                    method.setOwner(owner, methodIndex++);
+                }
+            }
+        }
+    }
+
+    /**
+     * A random-access list of classes that a DexPool re-reads classes from, rather than retaining them.
+     *
+     * Only the few most recently read classes are retained, so that several threads encoding code items at once don't
+     * keep evicting each other's classes.
+     */
+    static class ClassSource {
+        private static final int MAX_LOADED = 16;
+
+        @Nonnull private final List<? extends ClassDef> classes;
+        @Nonnull private final ArrayDeque<PoolClassDef> loaded = new ArrayDeque<PoolClassDef>();
+
+        ClassSource(@Nonnull List<? extends ClassDef> classes) {
+            this.classes = classes;
+        }
+
+        @Nonnull
+        private synchronized Contents load(@Nonnull PoolClassDef poolClassDef) {
+            if (poolClassDef.contents != null) {
+                return poolClassDef.contents;
+            }
+
+            ClassDef classDef = classes.get(poolClassDef.sourceIndex);
+            if (!classDef.getType().equals(poolClassDef.type)) {
+                throw new ExceptionWithContext("Class source returned %s at index %d, but expected %s",
+                        classDef.getType(), poolClassDef.sourceIndex, poolClassDef.type);
+            }
+            Contents contents = new Contents(poolClassDef, classDef);
+            poolClassDef.contents = contents;
+            setLoaded(poolClassDef);
+            return contents;
+        }
+
+        private synchronized void setLoaded(@Nonnull PoolClassDef poolClassDef) {
+            if (loaded.contains(poolClassDef)) {
+                return;
+            }
+            if (loaded.size() == MAX_LOADED) {
+                loaded.removeFirst().contents = null;
+            }
+            loaded.addLast(poolClassDef);
+        }
+    }
 }
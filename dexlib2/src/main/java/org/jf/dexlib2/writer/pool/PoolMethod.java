@@ -50,6 +50,10 @@ class PoolMethod extends BaseMethodReference implements Method {
     protected int annotationSetRefListOffset = DexPool.NO_OFFSET;
     protected int codeItemOffset = DexPool.NO_OFFSET;
 
+    // For a method of a streamed class, the offsets are stored in the owning class instead
+    @Nullable private PoolClassDef owner;
+    private int ownerIndex;
+
     public static final Function<Method, PoolMethod> TRANSFORM = new Function<Method, PoolMethod>() {
         @Override public PoolMethod apply(Method method) {
             return new PoolMethod(method);
@@ -60,6 +64,41 @@ class PoolMethod extends BaseMethodReference implements Method {
         this.method = method;
     }
 
+    void setOwner(@Nonnull PoolClassDef owner, int ownerIndex) {
+        this.owner = owner;
+        this.ownerIndex = ownerIndex;
+    }
+
+    int getAnnotationSetRefListOffset() {
+        if (owner != null) {
+            return owner.getAnnotationSetRefListOffset(ownerIndex);
+        }
+        return annotationSetRefListOffset;
+    }
+
+    void setAnnotationSetRefListOffset(int offset) {
+        if (owner != null) {
+            owner.setAnnotationSetRefListOffset(ownerIndex, offset);
+        } else {
+            annotationSetRefListOffset = offset;
+        }
+    }
+
+    int getCodeItemOffset() {
+        if (owner != null) {
+            return owner.getCodeItemOffset(ownerIndex);
+        }
+        return codeItemOffset;
+    }
+
+    void setCodeItemOffset(int offset) {
+        if (owner != null) {
+            owner.setCodeItemOffset(ownerIndex, offset);
+        } else {
+            codeItemOffset = offset;
+        }
+    }
+
     @Override @Nonnull public String getDefiningClass() {
         return method.getDefiningClass();
     }
@@ -26,6 +26,8 @@ package org.jf.util;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Constants of type <code>CONSTANT_Utf8_info</code>.
@@ -40,32 +42,71 @@ public final class Utf8Utils {
      * @return non-null; the UTF-8 bytes for it
      */
     public static byte[] stringToUtf8Bytes(String string) {
+        int maxLength = string.length() * 3;
+        byte[] bytes;
+        if (maxLength > MAX_LOCAL_BYTE_BUFFER_SIZE) {
+            // don't let a single huge string pin a huge buffer to the thread
+            bytes = new byte[maxLength];
+        } else {
+            bytes = localByteBuffer.get();
+            if (bytes.length < maxLength) {
+                bytes = new byte[maxLength];
+                localByteBuffer.set(bytes);
+            }
+        }
+        int length = encodeString(string, bytes, 0);
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Encodes a string into its Java-style UTF-8 form, directly into the given buffer.
+     *
+     * @param string non-null; the string to encode
+     * @param buf non-null; the buffer to write into. It must have room for at least <code>string.length() * 3</code>
+     *            bytes, starting at offset
+     * @param offset the offset in buf to start writing at
+     * @return the offset in buf just past the last byte written
+     */
+    public static int encodeString(@Nonnull String string, @Nonnull byte[] buf, int offset) {
         int len = string.length();
-        byte[] bytes = new byte[len * 3]; // Avoid having to reallocate.
-        int outAt = 0;
+        int i = 0;
+
+        // The vast majority of strings are pure ascii, so copy the leading ascii run with a tight loop first
+        for (; i < len; i++) {
+            char c = string.charAt(i);
+            if (c == 0 || c >= 0x80) {
+                break;
+            }
+            buf[offset++] = (byte) c;
+        }
 
-        for (int i = 0; i < len; i++) {
+        for (; i < len; i++) {
             char c = string.charAt(i);
             if ((c != 0) && (c < 0x80)) {
-                bytes[outAt] = (byte) c;
-                outAt++;
+                buf[offset++] = (byte) c;
             } else if (c < 0x800) {
-                bytes[outAt] = (byte) (((c >> 6) & 0x1f) | 0xc0);
-                bytes[outAt + 1] = (byte) ((c & 0x3f) | 0x80);
-                outAt += 2;
+                buf[offset++] = (byte) (((c >> 6) & 0x1f) | 0xc0);
+                buf[offset++] = (byte) ((c & 0x3f) | 0x80);
             } else {
-                bytes[outAt] = (byte) (((c >> 12) & 0x0f) | 0xe0);
-                bytes[outAt + 1] = (byte) (((c >> 6) & 0x3f) | 0x80);
-                bytes[outAt + 2] = (byte) ((c & 0x3f) | 0x80);
-                outAt += 3;
+                buf[offset++] = (byte) (((c >> 12) & 0x0f) | 0xe0);
+                buf[offset++] = (byte) (((c >> 6) & 0x3f) | 0x80);
+                buf[offset++] = (byte) ((c & 0x3f) | 0x80);
             }
         }
-
-        byte[] result = new byte[outAt];
-        System.arraycopy(bytes, 0, result, 0, outAt);
-        return result;
+        return offset;
     }
 
+    // The largest buffer that localByteBuffer will hold on to
+    private static final int MAX_LOCAL_BYTE_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> localByteBuffer =
+            new ThreadLocal<byte[]> () {
+                @Override protected byte[] initialValue() {
+                    // A reasonably sized initial value
+                    return new byte[768];
+                }
+            };
+
     private static final ThreadLocal<char[]> localBuffer =
             new ThreadLocal<char[]> () {
                 @Override protected char[] initialValue() {
@@ -83,14 +124,20 @@ public final class Utf8Utils {
      * @return non-null; the converted string
      */
     public static String utf8BytesToString(byte[] bytes, int start, int length) {
+        int asciiLength = getAsciiPrefixLength(bytes, start, length);
+        if (asciiLength == length) {
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+
         char[] chars = localBuffer.get();
         if (chars == null || chars.length < length) {
             chars = new char[length];
             localBuffer.set(chars);
         }
-        int outAt = 0;
+        int outAt = copyAscii(bytes, start, asciiLength, chars);
+        length -= asciiLength;
 
-        for (int at = start; length > 0; /*at*/) {
+        for (int at = start + asciiLength; length > 0; /*at*/) {
             int v0 = bytes[at] & 0xFF;
             char out;
             switch (v0 >> 4) {
@@ -190,15 +237,25 @@ public final class Utf8Utils {
      */
     public static String utf8BytesWithUtf16LengthToString(@Nonnull byte[] bytes, int start, int utf16Length,
                                                           @Nullable int[] readLength) {
+        // Each ascii character is encoded as a single byte, so if the first utf16Length bytes are all ascii, they are
+        // the whole string
+        int asciiLength = getAsciiPrefixLength(bytes, start, utf16Length);
+        if (asciiLength == utf16Length) {
+            if (readLength != null && readLength.length > 0) {
+                readLength[0] = utf16Length;
+            }
+            return new String(bytes, start, utf16Length, StandardCharsets.ISO_8859_1);
+        }
+
         char[] chars = localBuffer.get();
         if (chars == null || chars.length < utf16Length) {
             chars = new char[utf16Length];
             localBuffer.set(chars);
         }
-        int outAt = 0;
+        int outAt = copyAscii(bytes, start, asciiLength, chars);
 
-        int at = 0;
-        for (at = start; utf16Length > 0; utf16Length--) {
+        int at;
+        for (at = start + asciiLength, utf16Length -= asciiLength; utf16Length > 0; utf16Length--) {
             int v0 = bytes[at] & 0xFF;
             char out;
             switch (v0 >> 4) {
@@ -265,11 +322,35 @@ public final class Utf8Utils {
 
         if (readLength != null && readLength.length > 0) {
             readLength[0] = at - start;
-            readLength[0] = at - start;
         }
         return new String(chars, 0, outAt);
     }
 
+    /**
+     * Gets the length of the run of non-null ascii bytes at the start of the given range.
+     *
+     * @param bytes non-null; the bytes to scan
+     * @param start the index of the first byte to scan
+     * @param maxLength the maximum number of bytes to scan. This is clamped to the end of the array.
+     * @return the number of leading bytes in the range that are in [0x01, 0x7f]
+     */
+    private static int getAsciiPrefixLength(@Nonnull byte[] bytes, int start, int maxLength) {
+        int end = start + Math.min(maxLength, bytes.length - start);
+        int at = start;
+        // bytes are signed, so anything > 0 is in [0x01, 0x7f]
+        while (at < end && bytes[at] > 0) {
+            at++;
+        }
+        return at - start;
+    }
+
+    private static int copyAscii(@Nonnull byte[] bytes, int start, int length, @Nonnull char[] chars) {
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) bytes[start + i];
+        }
+        return length;
+    }
+
     /**
      * Helper for {@link #utf8BytesToString}, which throws the right
      * exception for a bogus utf-8 byte.
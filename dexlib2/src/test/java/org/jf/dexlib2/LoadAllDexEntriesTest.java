@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.MultiDexContainer;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class LoadAllDexEntriesTest {
+    @Test
+    public void testLoadAllDexEntries() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            File apk = new File(tempDir, "test.apk");
+            List<String> entryNames = Lists.newArrayList();
+            ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(apk));
+            try {
+                for (int i=1; i<=6; i++) {
+                    String entryName = i == 1 ? "classes.dex" : "classes" + i + ".dex";
+                    entryNames.add(entryName);
+                    zipStream.putNextEntry(new ZipEntry(entryName));
+                    zipStream.write(makeDex("Lcls" + i + ";"));
+                }
+                zipStream.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+                zipStream.write(new byte[] { 1, 2, 3 });
+            } finally {
+                zipStream.close();
+            }
+
+            MultiDexContainer<? extends DexBackedDexFile> container =
+                    DexFileFactory.loadDexContainer(apk, Opcodes.getDefault());
+            List<? extends MultiDexContainer.DexEntry<? extends DexBackedDexFile>> entries =
+                    DexFileFactory.loadAllDexEntries(container, 3);
+
+            Assert.assertEquals(entryNames.size(), entries.size());
+            for (int i=0; i<entries.size(); i++) {
+                MultiDexContainer.DexEntry<? extends DexBackedDexFile> entry = entries.get(i);
+                Assert.assertEquals(entryNames.get(i), entry.getEntryName());
+                ClassDef classDef = Iterables.getOnlyElement(entry.getDexFile().getClasses());
+                Assert.assertEquals("Lcls" + (i+1) + ";", classDef.getType());
+            }
+        } finally {
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testInterruptedWhileLoading() throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        MultiDexContainer<DexFile> container = new MultiDexContainer<DexFile>() {
+            @Nonnull @Override public List<String> getDexEntryNames() {
+                return ImmutableList.of("classes.dex");
+            }
+
+            @Nullable @Override public DexEntry<DexFile> getEntry(@Nonnull String entryName) throws IOException {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                return null;
+            }
+        };
+
+        Thread.currentThread().interrupt();
+        try {
+            DexFileFactory.loadAllDexEntries(container, 1);
+            Assert.fail();
+        } catch (InterruptedIOException ex) {
+            // the interrupt status should be preserved, rather than swallowed
+            Assert.assertTrue(Thread.interrupted());
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    private static byte[] makeDex(String type) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(
+                new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                        null, null))));
+        return dataStore.getData();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.util.SparseArray;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class ClassLayoutCacheTest {
+    private static ClassProvider makeClassProvider() {
+        int publicFlags = AccessFlags.PUBLIC.getValue();
+        ClassDef base = new ImmutableClassDef("Ltest/Base;", publicFlags, "Ljava/lang/Object;", null, null, null,
+                ImmutableList.of(
+                        new ImmutableField("Ltest/Base;", "a", "I", publicFlags, null, null, null),
+                        new ImmutableField("Ltest/Base;", "b", "J", publicFlags, null, null, null)),
+                ImmutableList.of(
+                        new ImmutableMethod("Ltest/Base;", "foo",
+                                ImmutableList.of(new ImmutableMethodParameter("I", null, null)), "V", publicFlags,
+                                null, null, null)));
+        ClassDef sub = new ImmutableClassDef("Ltest/Sub;", publicFlags, "Ltest/Base;", null, null, null,
+                ImmutableList.of(
+                        new ImmutableField("Ltest/Sub;", "c", "Ljava/lang/Object;", publicFlags, null, null, null)),
+                ImmutableList.of(
+                        new ImmutableMethod("Ltest/Sub;", "foo",
+                                ImmutableList.of(new ImmutableMethodParameter("I", null, null)), "V", publicFlags,
+                                null, null, null),
+                        new ImmutableMethod("Ltest/Sub;", "bar",
+                                ImmutableList.of(new ImmutableMethodParameter("Ljava/lang/String;", null, null),
+                                        new ImmutableMethodParameter("[J", null, null)),
+                                "Z", publicFlags, null, null, null)));
+        ClassDef orphan = TestUtils.makeClassDef("Ltest/Orphan;", "Ltest/Missing;");
+        return new DexClassProvider(new ImmutableDexFile(Opcodes.getDefault(),
+                ImmutableSet.of(base, sub, orphan)));
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("layout", ".cache");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static ClassLayoutCache.Key makeKey() throws IOException {
+        File input = createTempFile();
+        Files.write(new byte[] {1, 2, 3}, input);
+        return new ClassLayoutCache.Key(ImmutableList.of(input), 15, ClassPath.NOT_ART, false);
+    }
+
+    private static void assertSameLayout(ClassProto expected, ClassProto actual) {
+        List<Method> expectedVtable = expected.getVtable();
+        List<Method> actualVtable = actual.getVtable();
+        Assert.assertEquals(expectedVtable.size(), actualVtable.size());
+        for (int i=0; i<expectedVtable.size(); i++) {
+            Assert.assertEquals(expectedVtable.get(i), actualVtable.get(i));
+            Assert.assertEquals(expectedVtable.get(i).getAccessFlags(), actualVtable.get(i).getAccessFlags());
+        }
+
+        SparseArray<FieldReference> expectedFields = expected.getInstanceFields();
+        SparseArray<FieldReference> actualFields = actual.getInstanceFields();
+        Assert.assertEquals(expectedFields.size(), actualFields.size());
+        for (int i=0; i<expectedFields.size(); i++) {
+            Assert.assertEquals(expectedFields.keyAt(i), actualFields.keyAt(i));
+            Assert.assertEquals(expectedFields.valueAt(i), actualFields.valueAt(i));
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+        File file = createTempFile();
+        ClassLayoutCache.Key key = makeKey();
+
+        int count = ClassLayoutCache.save(file, key, classPath,
+                ImmutableList.of("Ltest/Base;", "Ltest/Sub;", "Ltest/Orphan;", "Ltest/Sub;", "I"));
+        // Orphan can't be resolved, and I isn't a class
+        Assert.assertEquals(2, count);
+
+        ClassLayoutCache layoutCache = ClassLayoutCache.load(file, key);
+        Assert.assertNotNull(layoutCache);
+        Assert.assertFalse(layoutCache.isStampOutdated());
+        Assert.assertEquals(2, layoutCache.getClassCount());
+        Assert.assertTrue(layoutCache.containsClass("Ltest/Sub;"));
+        Assert.assertFalse(layoutCache.containsClass("Ltest/Orphan;"));
+        Assert.assertNull(layoutCache.getVtable("Ltest/Orphan;"));
+        Assert.assertNull(layoutCache.getInstanceFields("Ltest/Orphan;"));
+
+        ClassPath cachedClassPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+        cachedClassPath.setLayoutCache(layoutCache);
+        Assert.assertSame(layoutCache, cachedClassPath.getLayoutCache());
+
+        for (String type: ImmutableList.of("Ltest/Base;", "Ltest/Sub;")) {
+            ClassProto cachedProto = (ClassProto)cachedClassPath.getClass(type);
+            assertSameLayout((ClassProto)classPath.getClass(type), cachedProto);
+            Assert.assertTrue(cachedProto.isLayoutFullyResolved());
+        }
+
+        ClassProto sub = (ClassProto)cachedClassPath.getClass("Ltest/Sub;");
+        Assert.assertEquals("Ltest/Sub;", sub.getMethodByVtableIndex(sub.getVtable().size() - 1).getDefiningClass());
+        Assert.assertEquals("c", sub.getFieldByOffset(sub.getInstanceFields().keyAt(2)).getName());
+    }
+
+    @Test
+    public void testKeyMismatch() throws IOException {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+        File file = createTempFile();
+        ClassLayoutCache.Key key = makeKey();
+
+        ClassLayoutCache.save(file, key, classPath, ImmutableList.of("Ltest/Base;"));
+        Assert.assertNull(ClassLayoutCache.load(file, makeKey()));
+        Assert.assertNull(ClassLayoutCache.load(new File(file.getPath() + ".missing"), key));
+    }
+
+    @Test
+    public void testKey() throws IOException {
+        File file = createTempFile();
+        String stamp = new ClassLayoutCache.Key(ImmutableList.of(file), 15, ClassPath.NOT_ART, false).getStamp();
+
+        Assert.assertEquals(stamp, new ClassLayoutCache.Key(ImmutableList.of(file), 15, ClassPath.NOT_ART, false)
+                .getStamp());
+        Assert.assertFalse(stamp.equals(new ClassLayoutCache.Key(ImmutableList.of(file), 16, ClassPath.NOT_ART,
+                false).getStamp()));
+        Assert.assertFalse(stamp.equals(new ClassLayoutCache.Key(ImmutableList.of(file), 15, ClassPath.NOT_ART,
+                true).getStamp()));
+
+        Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+        Assert.assertFalse(stamp.equals(new ClassLayoutCache.Key(ImmutableList.of(file), 15, ClassPath.NOT_ART,
+                false).getStamp()));
+    }
+
+    @Test
+    public void testContentHashFallback() throws IOException {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+        File file = createTempFile();
+        File input = createTempFile();
+        Files.write(new byte[] {1, 2, 3}, input);
+
+        ClassLayoutCache.save(file, new ClassLayoutCache.Key(ImmutableList.of(input), 15, ClassPath.NOT_ART, false),
+                classPath, ImmutableList.of("Ltest/Base;"));
+
+        // a touched file doesn't match the stamp, but still matches by contents
+        Assert.assertTrue(input.setLastModified(input.lastModified() - 10000));
+        ClassLayoutCache.Key touchedKey = new ClassLayoutCache.Key(ImmutableList.of(input), 15, ClassPath.NOT_ART,
+                false);
+        ClassLayoutCache layoutCache = ClassLayoutCache.load(file, touchedKey);
+        Assert.assertNotNull(layoutCache);
+        Assert.assertTrue(layoutCache.isStampOutdated());
+        Assert.assertTrue(layoutCache.containsClass("Ltest/Base;"));
+
+        // saving again updates the stamp
+        ClassLayoutCache.save(file, touchedKey, classPath, layoutCache.getTypes());
+        layoutCache = ClassLayoutCache.load(file, touchedKey);
+        Assert.assertNotNull(layoutCache);
+        Assert.assertFalse(layoutCache.isStampOutdated());
+
+        // a file with different contents matches neither
+        Files.write(new byte[] {1, 2, 4}, input);
+        Assert.assertTrue(input.setLastModified(input.lastModified() - 20000));
+        Assert.assertNull(ClassLayoutCache.load(file, new ClassLayoutCache.Key(ImmutableList.of(input), 15,
+                ClassPath.NOT_ART, false)));
+    }
+
+    @Test
+    public void testLayeredClassPathUsesParentCache() throws IOException {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+        File file = createTempFile();
+        ClassLayoutCache.Key key = makeKey();
+        ClassLayoutCache.save(file, key, classPath, ImmutableList.of("Ltest/Base;"));
+
+        ClassLayoutCache layoutCache = ClassLayoutCache.load(file, key);
+        classPath.setLayoutCache(layoutCache);
+        ClassPath child = new ClassPath(classPath, ImmutableList.<ClassProvider>of());
+        Assert.assertSame(layoutCache, child.getLayoutCache());
+    }
+}
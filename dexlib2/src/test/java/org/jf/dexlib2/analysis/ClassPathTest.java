@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import junit.framework.Assert;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+
+public class ClassPathTest {
+    private static ClassProvider makeClassProvider() {
+        return new DexClassProvider(new ImmutableDexFile(Opcodes.getDefault(), ImmutableSet.<ClassDef>of(
+                TestUtils.makeClassDef("Ltest/one;", "Ljava/lang/Object;"),
+                TestUtils.makeClassDef("Ltest/two;", "Ltest/one;"),
+                TestUtils.makeClassDef("Ltest/three;", "Ltest/two;"))));
+    }
+
+    @Test
+    public void testUnboundedCache() {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+
+        TypeProto one = classPath.getClass("Ltest/one;");
+        Assert.assertSame(one, classPath.getClass("Ltest/one;"));
+
+        CacheStats stats = classPath.getCacheStats();
+        Assert.assertEquals(1, stats.loadCount());
+        Assert.assertEquals(1, stats.hitCount());
+        Assert.assertEquals(0, stats.evictionCount());
+    }
+
+    @Test
+    public void testBoundedCache() {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART,
+                CacheBuilderSpec.parse("maximumSize=1,concurrencyLevel=1"));
+
+        TypeProto three = classPath.getClass("Ltest/three;");
+        Assert.assertEquals("Ltest/one;", classPath.getClass("Ltest/three;").getCommonSuperclass(
+                classPath.getClass("Ltest/one;")).getType());
+
+        Assert.assertTrue(classPath.getCachedClassCount() <= 1);
+        Assert.assertTrue(classPath.getCacheStats().evictionCount() > 0);
+
+        // an evicted class is reloaded as an equivalent proto
+        TypeProto reloaded = classPath.getClass("Ltest/three;");
+        Assert.assertEquals(three, reloaded);
+        Assert.assertEquals(three.hashCode(), reloaded.hashCode());
+        Assert.assertEquals("Ltest/two;", reloaded.getSuperclass());
+
+        // primitive types are never evicted
+        Assert.assertSame(classPath.getClass("I"), classPath.getClass("I"));
+        Assert.assertEquals(classPath.getClass("[I"), classPath.getClass("[I"));
+    }
+
+    @Test
+    public void testInvalidateCache() {
+        ClassPath classPath = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+
+        TypeProto one = classPath.getClass("Ltest/one;");
+        classPath.invalidateCache();
+        Assert.assertEquals(0, classPath.getCachedClassCount());
+
+        TypeProto reloaded = classPath.getClass("Ltest/one;");
+        Assert.assertNotSame(one, reloaded);
+        Assert.assertEquals(one, reloaded);
+        Assert.assertEquals(2, classPath.getCacheStats().loadCount());
+    }
+
+    @Test
+    public void testLayeredClassPath() {
+        ClassPath parent = new ClassPath(ImmutableList.of(makeClassProvider()), false, ClassPath.NOT_ART);
+
+        ClassProvider appProvider = new DexClassProvider(new ImmutableDexFile(Opcodes.getDefault(),
+                ImmutableSet.<ClassDef>of(
+                        TestUtils.makeClassDef("Lapp/one;", "Ltest/two;"),
+                        // a class that is also in the parent. The parent's definition should take precedence
+                        TestUtils.makeClassDef("Ltest/one;", "Lapp/one;"))));
+        ClassPath child = new ClassPath(parent, ImmutableList.of(appProvider));
+
+        Assert.assertSame(parent, child.getParent());
+        Assert.assertSame(parent.getClass("Ltest/two;"), child.getClass("Ltest/two;"));
+        Assert.assertSame(parent.getClass("[Ltest/two;"), child.getClass("[Ltest/two;"));
+        Assert.assertSame(parent.getClass("[I"), child.getClass("[I"));
+        Assert.assertSame(parent.getClass("I"), child.getClass("I"));
+        Assert.assertSame(parent.getUnknownClass(), child.getUnknownClass());
+        Assert.assertEquals("Ljava/lang/Object;", child.getClassDef("Ltest/one;").getSuperclass());
+
+        TypeProto app = child.getClass("Lapp/one;");
+        Assert.assertSame(child, app.getClassPath());
+        Assert.assertSame(child, child.getClass("[Lapp/one;").getClassPath());
+        Assert.assertEquals("Ltest/two;", app.getCommonSuperclass(child.getClass("Ltest/three;")).getType());
+        Assert.assertEquals("Ltest/one;", child.getClass("Ltest/one;").getCommonSuperclass(app).getType());
+
+        // the app's classes aren't visible in the parent
+        try {
+            parent.getClassDef("Lapp/one;");
+            Assert.fail();
+        } catch (UnresolvedClassException ex) {
+            // expected
+        }
+    }
+}
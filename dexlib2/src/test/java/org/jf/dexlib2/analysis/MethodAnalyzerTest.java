@@ -36,6 +36,7 @@ import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10t;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction12x;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction21t;
@@ -257,4 +258,54 @@ public class MethodAnalyzerTest {
         Assert.assertEquals("Ljava/lang/Object;",
                 analyzedInstructions.get(4).getPreInstructionRegisterType(2).type.getType());
     }
+
+    @Test
+    public void testPredecessorsAndSuccessors() throws IOException {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("three")));
+        builder.addLabel("one");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        builder.addLabel("two");
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("one")));
+        builder.addLabel("three");
+        builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 0, builder.getLabel("one")));
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("two")));
+
+        MethodImplementation methodImplementation = builder.getMethodImplementation();
+
+        Method method = new ImmutableMethod("Lmain;", "branches",
+                Collections.singletonList(new ImmutableMethodParameter("I", null, null)), "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null, null, methodImplementation);
+        ClassDef classDef = new ImmutableClassDef("Lmain;", AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null,
+                null, null, null, Collections.singletonList(method));
+        DexFile dexFile = new ImmutableDexFile(Opcodes.forApi(19), Collections.singletonList(classDef));
+
+        ClassPath classPath = new ClassPath(new DexClassProvider(dexFile));
+        MethodAnalyzer methodAnalyzer = new MethodAnalyzer(classPath, method, null, false);
+
+        List<AnalyzedInstruction> analyzedInstructions = methodAnalyzer.getAnalyzedInstructions();
+
+        // the goto at index 2 is discovered as a predecessor after the if-eqz at index 3, but the predecessors should
+        // still be ordered by index
+        AnalyzedInstruction returnInstruction = analyzedInstructions.get(1);
+        Assert.assertEquals(2, returnInstruction.getPredecessorCount());
+        Assert.assertEquals(Lists.newArrayList(analyzedInstructions.get(2), analyzedInstructions.get(3)),
+                Lists.newArrayList(returnInstruction.getPredecessors()));
+        Assert.assertFalse(returnInstruction.isBeginningInstruction());
+        Assert.assertTrue(analyzedInstructions.get(0).isBeginningInstruction());
+
+        AnalyzedInstruction ifInstruction = analyzedInstructions.get(3);
+        Assert.assertEquals(2, ifInstruction.getSuccessorCount());
+        Assert.assertEquals(Lists.newArrayList(analyzedInstructions.get(4), analyzedInstructions.get(1)),
+                ifInstruction.getSuccessors());
+        Assert.assertSame(analyzedInstructions.get(1), ifInstruction.getSuccessor(1));
+
+        for (AnalyzedInstruction analyzedInstruction: analyzedInstructions) {
+            Assert.assertEquals(RegisterType.INTEGER,
+                    analyzedInstruction.getPreInstructionRegisterType(0).category);
+            Assert.assertEquals(RegisterType.INTEGER,
+                    analyzedInstruction.getPostInstructionRegisterType(0).category);
+        }
+    }
 }
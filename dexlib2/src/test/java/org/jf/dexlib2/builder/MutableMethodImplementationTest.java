@@ -115,4 +115,81 @@ public class MutableMethodImplementationTest {
         Assert.assertEquals(1, mutableMethodImplementation.getTryBlocks().get(0).getExceptionHandlers().get(0)
                 .getHandlerCodeAddress());
     }
+
+    @Test
+    public void testLocationsAfterManyEdits() {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(10);
+        for (int i=0; i<100; i++) {
+            builder.addInstruction(new BuilderInstruction10x(Opcode.NOP));
+        }
+        MutableMethodImplementation impl = new MutableMethodImplementation(builder.getMethodImplementation());
+
+        Label label = impl.newLabelForIndex(50);
+
+        // insert a 3-unit instruction before every original instruction, without looking at any locations in between
+        for (int i=99; i>=0; i--) {
+            impl.addInstruction(i, new BuilderInstruction32x(Opcode.MOVE_16, 0, 0));
+        }
+        impl.removeInstruction(0);
+        impl.replaceInstruction(0, new BuilderInstruction32x(Opcode.MOVE_16, 1, 1));
+        impl.swapInstructions(0, 1);
+        impl.addInstruction(new BuilderInstruction10x(Opcode.NOP));
+
+        Assert.assertEquals(200, impl.getInstructions().size());
+        Assert.assertEquals(3 + 49*4 + 3, label.getCodeAddress());
+
+        int codeAddress = 0;
+        for (int i=0; i<impl.instructionList.size(); i++) {
+            MethodLocation location = impl.instructionList.get(i);
+            Assert.assertEquals(i, location.getIndex());
+            Assert.assertEquals(codeAddress, location.getCodeAddress());
+            if (location.getInstruction() != null) {
+                codeAddress += location.getInstruction().getCodeUnits();
+            }
+        }
+        Assert.assertEquals(3 + 99*4 + 1, codeAddress);
+    }
+
+    @Test
+    public void testForwardInsertWithReads() {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(10);
+        for (int i=0; i<100; i++) {
+            builder.addInstruction(new BuilderInstruction10x(Opcode.NOP));
+        }
+        MutableMethodImplementation impl = new MutableMethodImplementation(builder.getMethodImplementation());
+
+        Label label = impl.newLabelForIndex(50);
+
+        // walk forward, inserting a 3-unit instruction before every nop, and reading the current location after
+        // each edit. Each read only needs to renumber the locations between the edit and the location being read.
+        int count = 0;
+        int i = 0;
+        while (i < impl.instructionList.size() - 1) {
+            MethodLocation location = impl.instructionList.get(i);
+            Assert.assertEquals(i, location.getIndex());
+            Assert.assertEquals(count*4, location.getCodeAddress());
+
+            impl.addInstruction(location.getIndex(), new BuilderInstruction32x(Opcode.MOVE_16, 0, 0));
+            Assert.assertEquals(i + 1, location.getIndex());
+            Assert.assertEquals(count*4 + 3, location.getCodeAddress());
+
+            count++;
+            i = location.getIndex() + 1;
+        }
+
+        Assert.assertEquals(100, count);
+        Assert.assertEquals(200, impl.getInstructions().size());
+        Assert.assertEquals(50*4 + 3, label.getCodeAddress());
+
+        int codeAddress = 0;
+        for (i=0; i<impl.instructionList.size(); i++) {
+            MethodLocation location = impl.instructionList.get(i);
+            Assert.assertEquals(i, location.getIndex());
+            Assert.assertEquals(codeAddress, location.getCodeAddress());
+            if (location.getInstruction() != null) {
+                codeAddress += location.getInstruction().getCodeUnits();
+            }
+        }
+        Assert.assertEquals(100*4, codeAddress);
+    }
 }
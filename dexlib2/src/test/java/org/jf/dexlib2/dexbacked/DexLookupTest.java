@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.analysis.DexClassProvider;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+public class DexLookupTest {
+    private static final String[] STRINGS = new String[] {
+            "", "a", "ab", "abc", "b", "A", "Z", "\u0000", "a\u0000b", "\u00e9", "a\u00e9", "\u0800", "\uffff",
+            "\ud83d\ude00", "a\ud83d\ude00b", "\ue000", "zzz"
+    };
+
+    @Test
+    public void testFindStringIndex() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        for (int i=0; i<dexFile.getStringSection().size(); i++) {
+            Assert.assertEquals(i, dexFile.findStringIndex(dexFile.getStringSection().get(i)));
+        }
+        for (String string: STRINGS) {
+            Assert.assertEquals(string, dexFile.getStringSection().get(dexFile.findStringIndex(string)));
+        }
+
+        Assert.assertEquals(-1, dexFile.findStringIndex("aa"));
+        Assert.assertEquals(-1, dexFile.findStringIndex("abcd"));
+        Assert.assertEquals(-1, dexFile.findStringIndex("\u0001"));
+        Assert.assertEquals(-1, dexFile.findStringIndex("\u00e8"));
+        Assert.assertEquals(-1, dexFile.findStringIndex("\ud83d"));
+        Assert.assertEquals(-1, dexFile.findStringIndex("\ufffe"));
+        Assert.assertEquals(-1, dexFile.findStringIndex("zzzz"));
+    }
+
+    @Test
+    public void testFindTypeIndex() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        for (int i=0; i<dexFile.getTypeSection().size(); i++) {
+            Assert.assertEquals(i, dexFile.findTypeIndex(dexFile.getTypeSection().get(i)));
+        }
+
+        // a string that isn't a type
+        Assert.assertEquals(-1, dexFile.findTypeIndex("abc"));
+        Assert.assertEquals(-1, dexFile.findTypeIndex("Lorg/test/Missing;"));
+    }
+
+    @Test
+    public void testFindFieldIndex() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        for (int i=0; i<dexFile.getFieldSection().size(); i++) {
+            Assert.assertEquals(i, dexFile.findFieldIndex(dexFile.getFieldSection().get(i)));
+        }
+
+        Assert.assertEquals(-1, dexFile.findFieldIndex(
+                new ImmutableFieldReference("Lorg/test/Class0;", "field0", "I")));
+        Assert.assertEquals(-1, dexFile.findFieldIndex(
+                new ImmutableFieldReference("Lorg/test/Class1;", "field0", "Ljava/lang/String;")));
+        Assert.assertEquals(-1, dexFile.findFieldIndex(
+                new ImmutableFieldReference("Lorg/test/Missing;", "field0", "Ljava/lang/String;")));
+    }
+
+    @Test
+    public void testFindMethodIndex() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        for (int i=0; i<dexFile.getMethodSection().size(); i++) {
+            Assert.assertEquals(i, dexFile.findMethodIndex(dexFile.getMethodSection().get(i)));
+        }
+
+        Assert.assertEquals(-1, dexFile.findMethodIndex(new ImmutableMethodReference("Lorg/test/Class0;",
+                "method", ImmutableList.of("J"), "V")));
+        Assert.assertEquals(-1, dexFile.findMethodIndex(new ImmutableMethodReference("Lorg/test/Class0;",
+                "method", ImmutableList.of("I"), "I")));
+        Assert.assertEquals(-1, dexFile.findMethodIndex(new ImmutableMethodReference("Lorg/test/Class0;",
+                "missing", null, "V")));
+    }
+
+    @Test
+    public void testFindClassDef() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            DexBackedClassDef foundClassDef = dexFile.findClassDef(classDef.getType());
+            Assert.assertNotNull(foundClassDef);
+            Assert.assertEquals(classDef.getType(), foundClassDef.getType());
+        }
+
+        // a type that is referenced, but not defined
+        Assert.assertNull(dexFile.findClassDef("Ljava/lang/Object;"));
+        Assert.assertNull(dexFile.findClassDef("Lorg/test/Missing;"));
+    }
+
+    @Test
+    public void testDexClassProvider() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+        DexClassProvider classProvider = new DexClassProvider(dexFile);
+
+        for (ClassDef classDef: dexFile.getClasses()) {
+            Assert.assertEquals(classDef.getType(), classProvider.getClassDef(classDef.getType()).getType());
+        }
+        Assert.assertNull(classProvider.getClassDef("Ljava/lang/Object;"));
+
+        // and the same for a DexFile that isn't dex-backed
+        ImmutableDexFile immutableDexFile = ImmutableDexFile.of(dexFile);
+        classProvider = new DexClassProvider(immutableDexFile);
+        for (ClassDef classDef: immutableDexFile.getClasses()) {
+            Assert.assertEquals(classDef.getType(), classProvider.getClassDef(classDef.getType()).getType());
+        }
+        Assert.assertNull(classProvider.getClassDef("Ljava/lang/Object;"));
+    }
+
+    private static DexBackedDexFile createDexFile() throws IOException {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<50; i++) {
+            String type = "Lorg/test/Class" + i + ";";
+            // each class except the first extends the previous class, so the class_defs aren't in type order
+            String superclass = i == 0 ? "Ljava/lang/Object;" : "Lorg/test/Class" + (i - 1) + ";";
+
+            List<Field> fields = Lists.newArrayList();
+            if (i == 0) {
+                for (int j=0; j<STRINGS.length; j++) {
+                    fields.add(new ImmutableField(type, "field" + j, "Ljava/lang/String;",
+                            AccessFlags.STATIC.getValue(), new ImmutableStringEncodedValue(STRINGS[j]), null, null));
+                }
+            }
+
+            // a few overloads, to check that the right one is found
+            List<Method> methods = Lists.newArrayList();
+            methods.add(new ImmutableMethod(type, "method", null, "V", AccessFlags.ABSTRACT.getValue(), null, null,
+                    null));
+            methods.add(new ImmutableMethod(type, "method", ImmutableList.of(new ImmutableMethodParameter("I", null,
+                    null)), "V", AccessFlags.ABSTRACT.getValue(), null, null, null));
+            methods.add(new ImmutableMethod(type, "method", ImmutableList.of(new ImmutableMethodParameter(
+                    "Ljava/lang/String;", null, null)), "I", AccessFlags.ABSTRACT.getValue(), null, null, null));
+            methods.add(new ImmutableMethod(type, "other", null, "V", AccessFlags.ABSTRACT.getValue(), null, null,
+                    null));
+
+            classDefs.add(new ImmutableClassDef(type, AccessFlags.ABSTRACT.getValue(), superclass, null, null, null,
+                    fields, methods));
+        }
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classDefs));
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+    }
+}
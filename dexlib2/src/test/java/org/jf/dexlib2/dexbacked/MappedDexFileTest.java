@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.MultiDexContainer;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MappedDexFileTest {
+    @Test
+    public void testDirectBuffer() throws IOException {
+        byte[] dexBytes = createDex();
+
+        ByteBuffer directBuf = ByteBuffer.allocateDirect(dexBytes.length);
+        directBuf.put(dexBytes);
+
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), directBuf);
+        Assert.assertFalse(dexFile.getBuffer().hasArray());
+        Assert.assertTrue(Arrays.equals(dexBytes,
+                dexFile.getBuffer().readByteRange(0, dexFile.getBuffer().getBufferLength())));
+        try {
+            dexFile.getBuffer().getBuf();
+            Assert.fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        verifyDexFile(dexFile);
+    }
+
+    @Test
+    public void testMagicIsVerifiedConsistently() {
+        byte[] notADex = new byte[1024];
+
+        try {
+            new DexBackedDexFile(Opcodes.getDefault(), notADex);
+            Assert.fail("Expected a NotADexFile exception");
+        } catch (DexBackedDexFile.NotADexFile ex) {
+            // expected
+        }
+        try {
+            new DexBackedDexFile(Opcodes.getDefault(), ByteBuffer.allocateDirect(notADex.length));
+            Assert.fail("Expected a NotADexFile exception");
+        } catch (DexBackedDexFile.NotADexFile ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMappedDexFile() throws IOException {
+        File tempFile = File.createTempFile("dex", ".dex");
+        tempFile.deleteOnExit();
+        Files.write(createDex(), tempFile);
+
+        verifyDexFile(DexBackedDexFile.fromMappedFile(Opcodes.getDefault(), tempFile));
+        verifyDexFile(DexFileFactory.loadDexFile(tempFile, Opcodes.getDefault(), true));
+    }
+
+    @Test
+    public void testMappedStoredZipEntry() throws IOException {
+        byte[] dexBytes = createDex();
+
+        File tempFile = File.createTempFile("dex", ".zip");
+        tempFile.deleteOnExit();
+        ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(tempFile));
+        try {
+            zipStream.putNextEntry(new ZipEntry("classes.dex"));
+            zipStream.write(dexBytes);
+
+            CRC32 crc = new CRC32();
+            crc.update(dexBytes);
+            ZipEntry storedEntry = new ZipEntry("classes2.dex");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(dexBytes.length);
+            storedEntry.setCompressedSize(dexBytes.length);
+            storedEntry.setCrc(crc.getValue());
+            storedEntry.setExtra(new byte[] { 0x00, 0x00, 0x03, 0x00, 0x01, 0x02, 0x03 });
+            zipStream.putNextEntry(storedEntry);
+            zipStream.write(dexBytes);
+        } finally {
+            zipStream.close();
+        }
+
+        ZipDexContainer container = new ZipDexContainer(tempFile, Opcodes.getDefault(), true);
+        Assert.assertEquals(ImmutableList.of("classes.dex", "classes2.dex"), container.getDexEntryNames());
+
+        MultiDexContainer.DexEntry<DexBackedDexFile> deflatedEntry = container.getEntry("classes.dex");
+        Assert.assertNotNull(deflatedEntry);
+        Assert.assertTrue(deflatedEntry.getDexFile().getBuffer().hasArray());
+        verifyDexFile(deflatedEntry.getDexFile());
+
+        MultiDexContainer.DexEntry<DexBackedDexFile> storedEntry = container.getEntry("classes2.dex");
+        Assert.assertNotNull(storedEntry);
+        Assert.assertFalse(storedEntry.getDexFile().getBuffer().hasArray());
+        verifyDexFile(storedEntry.getDexFile());
+    }
+
+    private static byte[] createDex() throws IOException {
+        ImmutableClassDef classDef = new ImmutableClassDef("Lorg/test/blah;",
+                0, "Ljava/lang/Object;", null, null, null,
+                ImmutableList.of(new ImmutableField("Lorg/test/blah;", "f\u00e9ld", "I", 0, null, null, null)),
+                null);
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableSet.of(classDef)));
+        return Arrays.copyOf(dataStore.getBuffer(), dataStore.getSize());
+    }
+
+    private static void verifyDexFile(DexFile dexFile) {
+        List<? extends ClassDef> classes = ImmutableList.copyOf(dexFile.getClasses());
+        Assert.assertEquals(1, classes.size());
+        ClassDef classDef = classes.get(0);
+        Assert.assertEquals("Lorg/test/blah;", classDef.getType());
+        Assert.assertEquals("f\u00e9ld", Iterables.getOnlyElement(classDef.getFields()).getName());
+    }
+}
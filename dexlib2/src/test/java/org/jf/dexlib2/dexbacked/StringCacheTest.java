@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import junit.framework.Assert;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.util.StringCache;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class StringCacheTest {
+    @Test
+    public void testDenseCache() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+        int stringCount = dexFile.getStringSection().size();
+
+        StringCache cache = StringCache.dense(stringCount, true);
+        dexFile.setStringCache(cache);
+        verifyCachedLookups(dexFile, cache);
+    }
+
+    @Test
+    public void testBoundedCache() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+        int stringCount = dexFile.getStringSection().size();
+
+        StringCache cache = StringCache.bounded(stringCount, true);
+        dexFile.setStringCache(cache);
+        verifyCachedLookups(dexFile, cache);
+    }
+
+    @Test
+    public void testSoftCache() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        StringCache cache = StringCache.soft(true);
+        dexFile.setStringCache(cache);
+        Assert.assertEquals("I", dexFile.getTypeSection().get(0));
+        Assert.assertEquals("I", dexFile.getTypeSection().get(0));
+        Assert.assertEquals(2, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testInvalidIndex() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+        dexFile.setStringCache(StringCache.create(dexFile.getStringSection().size()));
+        dexFile.getStringSection().get(dexFile.getStringSection().size());
+    }
+
+    private static void verifyCachedLookups(DexBackedDexFile dexFile, StringCache cache) {
+        DexBackedDexFile uncachedDexFile = new DexBackedDexFile(Opcodes.getDefault(), dexFile.getBuffer());
+        int stringCount = dexFile.getStringSection().size();
+
+        for (int i=0; i<stringCount; i++) {
+            Assert.assertEquals(uncachedDexFile.getStringSection().get(i), dexFile.getStringSection().get(i));
+        }
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(stringCount, cache.getMissCount());
+
+        for (int i=0; i<stringCount; i++) {
+            Assert.assertEquals(uncachedDexFile.getStringSection().get(i), dexFile.getStringSection().get(i));
+        }
+        Assert.assertEquals(stringCount, cache.getHitCount());
+        Assert.assertEquals(stringCount, cache.getMissCount());
+    }
+
+    private static DexBackedDexFile createDexFile() throws IOException {
+        ImmutableClassDef classDef = new ImmutableClassDef("Lorg/test/blah;",
+                0, "Ljava/lang/Object;", null, null, null,
+                ImmutableList.of(
+                        new ImmutableField("Lorg/test/blah;", "field1", "I", 0, null, null, null),
+                        new ImmutableField("Lorg/test/blah;", "field2", "Ljava/lang/String;", 0, null, null, null)),
+                null);
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableSet.of(classDef)));
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked.instruction;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+public class InstructionCursorTest {
+    private static final String CLASS = "Lcursor/Test;";
+
+    @Test
+    public void testMatchesInstructions() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+
+        int methodCount = 0;
+        InstructionCursor cursor = new InstructionCursor();
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            for (DexBackedMethod method: classDef.getMethods()) {
+                DexBackedMethodImplementation impl = method.getImplementation();
+                Assert.assertNotNull(impl);
+
+                // the same cursor is reused for every method
+                cursor.reset(impl);
+                assertCursorMatches(impl, cursor);
+                assertCursorMatches(impl, impl.getInstructionCursor());
+                methodCount++;
+            }
+        }
+        Assert.assertEquals(2, methodCount);
+    }
+
+    @Test
+    public void testCodeAddresses() throws IOException {
+        DexBackedDexFile dexFile = createDexFile();
+        DexBackedClassDef classDef = dexFile.getClasses().iterator().next();
+        DexBackedMethodImplementation impl = classDef.getMethods().iterator().next().getImplementation();
+        Assert.assertNotNull(impl);
+
+        List<Integer> addresses = Lists.newArrayList();
+        InstructionCursor cursor = impl.getInstructionCursor();
+        while (cursor.next()) {
+            addresses.add(cursor.getCodeAddress());
+        }
+        Assert.assertEquals(ImmutableList.of(0, 1, 3, 5, 7, 9, 11, 13, 15, 18, 21, 26, 28, 30, 33, 36, 39, 40, 41,
+                43, 46, 48, 50, 53, 56, 59, 60, 68, 78), addresses);
+        Assert.assertEquals(88, impl.getInstructionsSize());
+
+        // once the cursor is exhausted, it stays exhausted
+        Assert.assertFalse(cursor.next());
+    }
+
+    private static void assertCursorMatches(DexBackedMethodImplementation impl, InstructionCursor cursor) {
+        Iterator<? extends Instruction> instructions = impl.getInstructions().iterator();
+        int codeAddress = 0;
+        while (instructions.hasNext()) {
+            Instruction instruction = instructions.next();
+            Assert.assertTrue(cursor.next());
+
+            Assert.assertEquals(instruction.getOpcode(), cursor.getOpcode());
+            Assert.assertEquals(((DexBackedInstruction)instruction).instructionStart, cursor.getInstructionStart());
+            Assert.assertEquals(codeAddress, cursor.getCodeAddress());
+            Assert.assertEquals(instruction.getCodeUnits(), cursor.getCodeUnits());
+
+            if (instruction instanceof OneRegisterInstruction) {
+                Assert.assertEquals(((OneRegisterInstruction)instruction).getRegisterA(), cursor.getRegisterA());
+            }
+            if (instruction instanceof TwoRegisterInstruction) {
+                Assert.assertEquals(((TwoRegisterInstruction)instruction).getRegisterB(), cursor.getRegisterB());
+            }
+            if (instruction instanceof ThreeRegisterInstruction) {
+                Assert.assertEquals(((ThreeRegisterInstruction)instruction).getRegisterC(), cursor.getRegisterC());
+            }
+            if (instruction instanceof NarrowLiteralInstruction) {
+                Assert.assertEquals(((NarrowLiteralInstruction)instruction).getNarrowLiteral(),
+                        cursor.getNarrowLiteral());
+            }
+            if (instruction instanceof WideLiteralInstruction) {
+                Assert.assertEquals(((WideLiteralInstruction)instruction).getWideLiteral(), cursor.getWideLiteral());
+            }
+            if (instruction instanceof OffsetInstruction) {
+                Assert.assertEquals(((OffsetInstruction)instruction).getCodeOffset(), cursor.getCodeOffset());
+            }
+            if (instruction instanceof ReferenceInstruction) {
+                ReferenceInstruction referenceInstruction = (ReferenceInstruction)instruction;
+                Assert.assertEquals(referenceInstruction.getReferenceType(), cursor.getReferenceType());
+                Assert.assertEquals(referenceInstruction.getReference(), cursor.getReference());
+            }
+            if (instruction instanceof VariableRegisterInstruction) {
+                Assert.assertEquals(((VariableRegisterInstruction)instruction).getRegisterCount(),
+                        cursor.getRegisterCount());
+            }
+            if (instruction instanceof FiveRegisterInstruction) {
+                FiveRegisterInstruction fiveRegisterInstruction = (FiveRegisterInstruction)instruction;
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterC(), cursor.getRegister(0));
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterD(), cursor.getRegister(1));
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterE(), cursor.getRegister(2));
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterF(), cursor.getRegister(3));
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterG(), cursor.getRegister(4));
+            }
+            if (instruction instanceof RegisterRangeInstruction) {
+                RegisterRangeInstruction rangeInstruction = (RegisterRangeInstruction)instruction;
+                for (int i=0; i<rangeInstruction.getRegisterCount(); i++) {
+                    Assert.assertEquals(rangeInstruction.getStartRegister() + i, cursor.getRegister(i));
+                }
+            }
+
+            Instruction materialized = cursor.getInstruction();
+            Assert.assertEquals(instruction.getClass(), materialized.getClass());
+            Assert.assertEquals(cursor.getInstructionStart(), ((DexBackedInstruction)materialized).instructionStart);
+
+            codeAddress += instruction.getCodeUnits();
+        }
+        Assert.assertFalse(cursor.next());
+    }
+
+    private static DexBackedDexFile createDexFile() throws IOException {
+        ImmutableFieldReference field = new ImmutableFieldReference(CLASS, "field", "I");
+        ImmutableMethodReference method = new ImmutableMethodReference(CLASS, "method",
+                ImmutableList.of("I", "I", "I", "I", "I"), "V");
+
+        List<Instruction> instructions = ImmutableList.<Instruction>of(
+                new ImmutableInstruction11n(Opcode.CONST_4, 0, -2),
+                new ImmutableInstruction21s(Opcode.CONST_16, 1, -5),
+                new ImmutableInstruction21ih(Opcode.CONST_HIGH16, 2, 0x12340000),
+                new ImmutableInstruction21lh(Opcode.CONST_WIDE_HIGH16, 2, 0x1234000000000000L),
+                new ImmutableInstruction22b(Opcode.ADD_INT_LIT8, 0, 1, -3),
+                new ImmutableInstruction22s(Opcode.ADD_INT_LIT16, 0, 15, 1000),
+                new ImmutableInstruction23x(Opcode.ADD_INT, 0, 1, 200),
+                new ImmutableInstruction22x(Opcode.MOVE_FROM16, 0, 300),
+                new ImmutableInstruction32x(Opcode.MOVE_16, 256, 300),
+                new ImmutableInstruction31i(Opcode.CONST, 0, 0x12345678),
+                new ImmutableInstruction51l(Opcode.CONST_WIDE, 0, 0x123456789abcdefL),
+                new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("string")),
+                new ImmutableInstruction22c(Opcode.IGET, 3, 14, field),
+                new ImmutableInstruction31c(Opcode.CONST_STRING_JUMBO, 0, new ImmutableStringReference("jumbo")),
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 5, 1, 2, 3, 4, 5, method),
+                new ImmutableInstruction3rc(Opcode.INVOKE_STATIC_RANGE, 10, 5, method),
+                new ImmutableInstruction12x(Opcode.MOVE, 7, 8),
+                new ImmutableInstruction10t(Opcode.GOTO, 1),
+                new ImmutableInstruction20t(Opcode.GOTO_16, 2),
+                new ImmutableInstruction30t(Opcode.GOTO_32, 3),
+                new ImmutableInstruction21t(Opcode.IF_EQZ, 0, 2),
+                new ImmutableInstruction22t(Opcode.IF_EQ, 0, 1, 2),
+                new ImmutableInstruction31t(Opcode.PACKED_SWITCH, 0, 10),
+                new ImmutableInstruction31t(Opcode.SPARSE_SWITCH, 0, 15),
+                new ImmutableInstruction31t(Opcode.FILL_ARRAY_DATA, 0, 22),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                new ImmutablePackedSwitchPayload(ImmutableList.of(
+                        new ImmutableSwitchElement(5, -10), new ImmutableSwitchElement(6, -9))),
+                new ImmutableSparseSwitchPayload(ImmutableList.of(
+                        new ImmutableSwitchElement(-100, -15), new ImmutableSwitchElement(100, -14))),
+                new ImmutableArrayPayload(4, ImmutableList.<Number>of(1, 2, 3)));
+
+        List<Instruction> instructions2 = ImmutableList.<Instruction>of(
+                new ImmutableInstruction21c(Opcode.NEW_INSTANCE, 0, new ImmutableTypeReference(CLASS)),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+
+        List<ClassDef> classDefs = ImmutableList.<ClassDef>of(
+                new ImmutableClassDef(CLASS, 0, "Ljava/lang/Object;", null, null, null, null,
+                        ImmutableList.of(
+                                new ImmutableMethod(CLASS, "a", null, "V", 0, null, null,
+                                        new ImmutableMethodImplementation(301, instructions, null, null)),
+                                new ImmutableMethod(CLASS, "b", null, "V", 0, null, null,
+                                        new ImmutableMethodImplementation(1, instructions2, null, null)))));
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classDefs));
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.jf.util.ExceptionWithContext;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class XrefIndexTest {
+    private static final String TARGET = "Lxref/Target;";
+    private static final MethodReference RUN =
+            new ImmutableMethodReference(TARGET, "run", null, "V");
+    private static final MethodReference RUN_INT =
+            new ImmutableMethodReference(TARGET, "run", ImmutableList.of("I"), "V");
+    private static final FieldReference VALUE = new ImmutableFieldReference(TARGET, "value", "I");
+    private static final FieldReference STATIC_VALUE =
+            new ImmutableFieldReference(TARGET, "staticValue", "Ljava/lang/String;");
+
+    @Test
+    public void testQueries() throws IOException {
+        XrefIndex index = XrefIndex.build(createDexFile("hello"), 2);
+        verifyIndex(index);
+    }
+
+    @Test
+    public void testJobsDontChangeTheResult() throws IOException {
+        DexBackedDexFile dexFile = createDexFile("hello");
+        XrefIndex index1 = XrefIndex.build(dexFile, 1);
+        XrefIndex index2 = XrefIndex.build(dexFile, 4);
+
+        for (int i=0; i<dexFile.getMethodSection().size(); i++) {
+            assertSameSites(index1.getSites(XrefIndex.METHOD_CALLS, i), index2.getSites(XrefIndex.METHOD_CALLS, i));
+        }
+        for (int i=0; i<dexFile.getTypeSection().size(); i++) {
+            assertSameSites(index1.getSites(XrefIndex.TYPE_USES, i), index2.getSites(XrefIndex.TYPE_USES, i));
+        }
+    }
+
+    @Test
+    public void testInterrupted() throws IOException {
+        DexBackedDexFile dexFile = createDexFile("hello");
+
+        Thread.currentThread().interrupt();
+        try {
+            XrefIndex.build(dexFile, 2);
+            Assert.fail();
+        } catch (RuntimeException ex) {
+            Assert.assertTrue(ex.getCause() instanceof InterruptedException);
+            // the interrupt flag is restored
+            Assert.assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            DexBackedDexFile dexFile = createDexFile("hello");
+            File indexFile = XrefIndex.getIndexFile(new File(tempDir, "classes.dex"));
+            Assert.assertEquals("classes.dex.xref", indexFile.getName());
+
+            XrefIndex.build(dexFile, 2).writeTo(indexFile);
+            XrefIndex index = XrefIndex.readFrom(dexFile, indexFile);
+            Assert.assertNotNull(index);
+            verifyIndex(index);
+
+            // an index for a different dex file shouldn't be used
+            Assert.assertNull(XrefIndex.readFrom(createDexFile("goodbye"), indexFile));
+        } finally {
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testFailedWrite() throws IOException {
+        File tempDir = Files.createTempDir();
+        File indexFile = XrefIndex.getIndexFile(new File(tempDir, "classes.dex"));
+        try {
+            // a non-empty directory in the way of the index can't be replaced
+            Assert.assertTrue(indexFile.mkdir());
+            Files.write(new byte[1], new File(indexFile, "file"));
+
+            try {
+                XrefIndex.build(createDexFile("hello"), 2).writeTo(indexFile);
+                Assert.fail("Expected an IOException");
+            } catch (IOException ex) {
+                // expected
+            }
+            Assert.assertEquals(ImmutableList.of(indexFile.getName()), Arrays.asList(tempDir.list()));
+        } finally {
+            new File(indexFile, "file").delete();
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testCorruptIndex() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            DexBackedDexFile dexFile = createDexFile("hello");
+            File indexFile = XrefIndex.getIndexFile(new File(tempDir, "classes.dex"));
+            XrefIndex.build(dexFile, 2).writeTo(indexFile);
+            byte[] data = Files.toByteArray(indexFile);
+
+            // truncated
+            Files.write(Arrays.copyOf(data, data.length - 1), indexFile);
+            assertCorrupt(dexFile, indexFile);
+
+            // a site count of 0x40000000 for the last of the 4 methods, which is far more than the file could hold
+            byte[] corrupt = new byte[data.length + 4];
+            int countOffset = 8 + HeaderItem.SIGNATURE_SIZE + 4;
+            System.arraycopy(data, 0, corrupt, 0, countOffset);
+            System.arraycopy(new byte[] { (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0x04 }, 0, corrupt,
+                    countOffset, 5);
+            System.arraycopy(data, countOffset + 1, corrupt, countOffset + 5, data.length - countOffset - 1);
+            Files.write(corrupt, indexFile);
+            assertCorrupt(dexFile, indexFile);
+        } finally {
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    private static void assertCorrupt(DexBackedDexFile dexFile, File indexFile) throws IOException {
+        try {
+            XrefIndex.readFrom(dexFile, indexFile);
+            Assert.fail();
+        } catch (ExceptionWithContext ex) {
+            // expected
+        }
+    }
+
+    private static void verifyIndex(XrefIndex index) {
+        assertSites(index.getMethodCalls(RUN), "Lxref/Caller;->call()V@2", "Lxref/Caller2;->other()V@0");
+        assertSites(index.getMethodCalls(RUN_INT), "Lxref/Caller;->call()V@6");
+        assertSites(index.getMethodCalls(new ImmutableMethodReference(TARGET, "missing", null, "V")));
+
+        assertSites(index.getFieldReads(VALUE), "Lxref/Caller;->call()V@9");
+        assertSites(index.getFieldWrites(VALUE), "Lxref/Caller;->call()V@11");
+        assertSites(index.getFieldReads(STATIC_VALUE));
+        assertSites(index.getFieldWrites(STATIC_VALUE), "Lxref/Caller;->call()V@15");
+
+        assertSites(index.getTypeUses(TARGET), "Lxref/Caller;->call()V@0");
+        assertSites(index.getTypeUses("Ljava/lang/String;"), "Lxref/Caller;->call()V@20");
+        assertSites(index.getTypeUses("Lxref/Missing;"));
+
+        assertSites(index.getStringUses("hello"), "Lxref/Caller;->call()V@13");
+        assertSites(index.getStringUses("jumbo"), "Lxref/Caller;->call()V@17");
+        assertSites(index.getStringUses("missing"));
+    }
+
+    private static void assertSites(List<XrefIndex.Site> sites, String... expected) {
+        List<String> actual = Lists.newArrayList();
+        for (XrefIndex.Site site: sites) {
+            actual.add(site.method.toString() + "@" + site.codeOffset);
+        }
+        // the sites are in class_def order, which isn't necessarily the order of the class names
+        Assert.assertEquals(Ordering.natural().sortedCopy(ImmutableList.copyOf(expected)),
+                Ordering.natural().sortedCopy(actual));
+    }
+
+    private static void assertSameSites(List<XrefIndex.Site> sites1, List<XrefIndex.Site> sites2) {
+        Assert.assertEquals(sites1.size(), sites2.size());
+        for (int i=0; i<sites1.size(); i++) {
+            Assert.assertEquals(sites1.get(i).method, sites2.get(i).method);
+            Assert.assertEquals(sites1.get(i).codeOffset, sites2.get(i).codeOffset);
+        }
+    }
+
+    private static DexBackedDexFile createDexFile(String string) throws IOException {
+        List<ClassDef> classDefs = Lists.newArrayList();
+
+        ImmutableMethodImplementation returnVoid = new ImmutableMethodImplementation(2,
+                ImmutableList.of(new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null);
+        classDefs.add(new ImmutableClassDef(TARGET, 0, "Ljava/lang/Object;", null, null, null,
+                ImmutableList.of(
+                        new ImmutableField(TARGET, "value", "I", 0, null, null, null),
+                        new ImmutableField(TARGET, "staticValue", "Ljava/lang/String;",
+                                AccessFlags.STATIC.getValue(), null, null, null)),
+                ImmutableList.of(
+                        new ImmutableMethod(TARGET, "run", null, "V", 0, null, null, returnVoid),
+                        new ImmutableMethod(TARGET, "run", ImmutableList.of(
+                                new ImmutableMethodParameter("I", null, null)), "V", 0, null, null, returnVoid))));
+
+        List<Instruction> instructions = ImmutableList.<Instruction>of(
+                new ImmutableInstruction21c(Opcode.NEW_INSTANCE, 0, new ImmutableTypeReference(TARGET)),
+                new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 1, 0, 0, 0, 0, 0, RUN),
+                new ImmutableInstruction11n(Opcode.CONST_4, 1, 1),
+                new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 0, 1, 0, 0, 0, RUN_INT),
+                new ImmutableInstruction22c(Opcode.IGET, 1, 0, VALUE),
+                new ImmutableInstruction22c(Opcode.IPUT, 1, 0, VALUE),
+                new ImmutableInstruction21c(Opcode.CONST_STRING, 2, new ImmutableStringReference(string)),
+                new ImmutableInstruction21c(Opcode.SPUT_OBJECT, 2, STATIC_VALUE),
+                new ImmutableInstruction31c(Opcode.CONST_STRING_JUMBO, 2, new ImmutableStringReference("jumbo")),
+                new ImmutableInstruction21c(Opcode.CHECK_CAST, 2, new ImmutableTypeReference("Ljava/lang/String;")),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        classDefs.add(new ImmutableClassDef("Lxref/Caller;", 0, "Ljava/lang/Object;", null, null, null, null,
+                ImmutableList.of(new ImmutableMethod("Lxref/Caller;", "call", null, "V", 0, null, null,
+                        new ImmutableMethodImplementation(3, instructions, null, null)))));
+
+        instructions = ImmutableList.<Instruction>of(
+                new ImmutableInstruction3rc(Opcode.INVOKE_VIRTUAL_RANGE, 0, 1, RUN),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        classDefs.add(new ImmutableClassDef("Lxref/Caller2;", 0, "Ljava/lang/Object;", null, null, null, null,
+                ImmutableList.of(new ImmutableMethod("Lxref/Caller2;", "other", null, "V", 0, null, null,
+                        new ImmutableMethodImplementation(1, instructions, null, null)))));
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classDefs));
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+    }
+}
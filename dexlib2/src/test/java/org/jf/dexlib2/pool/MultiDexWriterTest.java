@@ -0,0 +1,231 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
+import org.jf.dexlib2.immutable.debug.ImmutableDebugItem;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.writer.pool.MultiDexWriter;
+import org.jf.util.ExceptionWithContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+public class MultiDexWriterTest {
+    // each class has 3 methods, so 3 classes fit in a dex file with a max pool size of 10
+    private static final int MAX_POOL_SIZE = 10;
+
+    private File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(outputDir.delete());
+    }
+
+    private static ClassDef makeClass(int index, int methodCount) {
+        String type = "Lcls" + index + ";";
+        List<Method> methods = Lists.newArrayList();
+        for (int i=0; i<methodCount; i++) {
+            methods.add(new ImmutableMethod(type, "method" + i, null, "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), null, null, null));
+        }
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(),
+                "Ljava/lang/Object;", null, null, null, null, methods);
+    }
+
+    private static Set<String> getTypes(File file) throws IOException {
+        DexFile dexFile = DexFileFactory.loadDexFile(file, Opcodes.getDefault());
+        Set<String> types = Sets.newHashSet();
+        for (ClassDef classDef: dexFile.getClasses()) {
+            types.add(classDef.getType());
+        }
+        return types;
+    }
+
+    @Test
+    public void testSplitting() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir, null, 2, MAX_POOL_SIZE);
+        for (int i=0; i<10; i++) {
+            writer.internClass(makeClass(i, 3));
+        }
+        List<File> files = writer.finish();
+
+        Assert.assertEquals(4, files.size());
+        for (int i=0; i<files.size(); i++) {
+            Assert.assertEquals(MultiDexWriter.getDexFileName(i), files.get(i).getName());
+        }
+        Assert.assertEquals(ImmutableSet.of("Lcls0;", "Lcls1;", "Lcls2;"), getTypes(files.get(0)));
+        Assert.assertEquals(ImmutableSet.of("Lcls3;", "Lcls4;", "Lcls5;"), getTypes(files.get(1)));
+        Assert.assertEquals(ImmutableSet.of("Lcls6;", "Lcls7;", "Lcls8;"), getTypes(files.get(2)));
+        Assert.assertEquals(ImmutableSet.of("Lcls9;"), getTypes(files.get(3)));
+    }
+
+    @Test
+    public void testMainDexClasses() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir,
+                ImmutableSet.of("Lcls2;", "Lcls7;"), 2, MAX_POOL_SIZE);
+        for (int i=0; i<8; i++) {
+            writer.internClass(makeClass(i, 3));
+        }
+        List<File> files = writer.finish();
+
+        Assert.assertEquals(3, files.size());
+        Assert.assertEquals("classes.dex", files.get(0).getName());
+        Assert.assertEquals(ImmutableSet.of("Lcls2;", "Lcls7;"), getTypes(files.get(0)));
+        Assert.assertEquals(ImmutableSet.of("Lcls0;", "Lcls1;", "Lcls3;"), getTypes(files.get(1)));
+        Assert.assertEquals(ImmutableSet.of("Lcls4;", "Lcls5;", "Lcls6;"), getTypes(files.get(2)));
+    }
+
+    @Test
+    public void testMainDexOverflow() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir,
+                ImmutableSet.of("Lcls0;", "Lcls1;", "Lcls2;", "Lcls3;"), 1, MAX_POOL_SIZE);
+        for (int i=0; i<3; i++) {
+            writer.internClass(makeClass(i, 3));
+        }
+        try {
+            writer.internClass(makeClass(3, 3));
+            Assert.fail();
+        } catch (ExceptionWithContext ex) {
+            // expected
+        }
+        writer.finish();
+    }
+
+    @Test
+    public void testClassTooLarge() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir, null, 1, MAX_POOL_SIZE);
+        writer.internClass(makeClass(0, 3));
+        try {
+            writer.internClass(makeClass(1, MAX_POOL_SIZE + 1));
+            Assert.fail();
+        } catch (ExceptionWithContext ex) {
+            // expected
+        }
+        writer.finish();
+    }
+
+    @Test
+    public void testDuplicateClass() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir, null, 1, MAX_POOL_SIZE);
+        for (int i=0; i<4; i++) {
+            writer.internClass(makeClass(i, 3));
+        }
+        try {
+            // the original is in a different dex file by now
+            writer.internClass(makeClass(0, 3));
+            Assert.fail();
+        } catch (ExceptionWithContext ex) {
+            // expected
+        }
+        writer.finish();
+    }
+
+    @Test
+    public void testFailedClassIsRolledBack() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir, null, 1, MAX_POOL_SIZE);
+        writer.internClass(makeClass(0, 3));
+        writer.internClass(makeClass(1, 3));
+
+        // a method with a try block but no instructions fails part way through interning the class
+        MethodImplementation invalidImplementation = new ImmutableMethodImplementation(1,
+                ImmutableList.<ImmutableInstruction>of(), ImmutableList.of(new ImmutableTryBlock(0, 1,
+                        ImmutableList.of(new ImmutableExceptionHandler(null, 0)))),
+                ImmutableList.<ImmutableDebugItem>of());
+        try {
+            writer.internClass(new ImmutableClassDef("Lcls2;", AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                    null, null, null, null, ImmutableList.of(new ImmutableMethod("Lcls2;", "invalid", null, "V",
+                            AccessFlags.PUBLIC.getValue(), null, null, invalidImplementation))));
+            Assert.fail();
+        } catch (ExceptionWithContext ex) {
+            // expected
+        }
+
+        // nothing from the failed class should be left behind, so the corrected class can be interned in its place
+        writer.internClass(makeClass(2, 3));
+        List<File> files = writer.finish();
+
+        Assert.assertEquals(1, files.size());
+        Assert.assertEquals(ImmutableSet.of("Lcls0;", "Lcls1;", "Lcls2;"), getTypes(files.get(0)));
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        MultiDexWriter writer = new MultiDexWriter(Opcodes.getDefault(), outputDir, null, 1, MAX_POOL_SIZE);
+        for (int i=0; i<4; i++) {
+            writer.internClass(makeClass(i, 3));
+        }
+        writer.close();
+
+        try {
+            writer.internClass(makeClass(4, 3));
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        // closing again has no effect
+        writer.close();
+    }
+}
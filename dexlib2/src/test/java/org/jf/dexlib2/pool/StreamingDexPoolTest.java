@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.pool;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.rewriter.DexRewriter;
+import org.jf.dexlib2.rewriter.RewriterModule;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.jf.util.ExceptionWithContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.AbstractList;
+import java.util.List;
+
+public class StreamingDexPoolTest {
+    // more classes than a class source keeps loaded at once, so that they have to be re-read while writing
+    private static final int CLASS_COUNT = 40;
+
+    @Test
+    public void testMatchesDexPool() throws IOException {
+        DexBackedDexFile dexFile = makeDexFile();
+
+        MemoryDataStore expected = new MemoryDataStore();
+        DexPool.writeTo(expected, dexFile);
+
+        CountingRewrittenClasses classes = new CountingRewrittenClasses(dexFile);
+        MemoryDataStore actual = new MemoryDataStore();
+        DexPool.writeStreaming(actual, dexFile.getOpcodes(), classes);
+
+        Assert.assertArrayEquals(expected.getData(), actual.getData());
+        // the classes are re-read while writing, rather than being retained after they're interned
+        Assert.assertTrue(classes.reads > dexFile.getClassSection().size());
+    }
+
+    @Test
+    public void testMatchesDexPoolWithWriteThreads() throws IOException {
+        DexBackedDexFile dexFile = makeDexFile();
+
+        MemoryDataStore expected = new MemoryDataStore();
+        DexPool.writeTo(expected, dexFile);
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        dexPool.setWriteThreads(4);
+        dexPool.internClassesStreaming(new CountingRewrittenClasses(dexFile));
+        MemoryDataStore actual = new MemoryDataStore();
+        dexPool.writeTo(actual);
+
+        Assert.assertArrayEquals(expected.getData(), actual.getData());
+    }
+
+    @Test
+    public void testMatchesDexPoolForAccessorTest() throws IOException {
+        URL url = StreamingDexPoolTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(url.getFile(), Opcodes.getDefault());
+
+        MemoryDataStore expected = new MemoryDataStore();
+        DexPool.writeTo(expected, dexFile);
+
+        MemoryDataStore actual = new MemoryDataStore();
+        DexPool.writeStreaming(actual, dexFile.getOpcodes(), new CountingRewrittenClasses(dexFile));
+
+        Assert.assertArrayEquals(expected.getData(), actual.getData());
+    }
+
+    @Test
+    public void testChangedSource() throws IOException {
+        final List<ClassDef> classes = Lists.newArrayList();
+        for (int i=0; i<CLASS_COUNT; i++) {
+            classes.add(makeClass(i));
+        }
+
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        dexPool.internClassesStreaming(classes);
+
+        classes.set(1, makeClass(CLASS_COUNT));
+        try {
+            dexPool.writeTo(new MemoryDataStore());
+            Assert.fail();
+        } catch (ExceptionWithContext ex) {
+            // expected
+        }
+    }
+
+    private static ClassDef makeClass(int index) {
+        String type = "Lcls" + index + ";";
+        List<Method> methods = Lists.newArrayList();
+        for (int i=0; i<3; i++) {
+            MethodImplementation implementation = new ImmutableMethodImplementation(1,
+                    ImmutableList.of(
+                            new ImmutableInstruction21c(Opcode.CONST_STRING, 0,
+                                    new ImmutableStringReference("string" + index + "_" + i)),
+                            new ImmutableInstruction10x(Opcode.RETURN_VOID)),
+                    null, null);
+            methods.add(new ImmutableMethod(type, "method" + i, null, "V", AccessFlags.PUBLIC.getValue(), null,
+                    null, implementation));
+        }
+        List<Field> fields = ImmutableList.<Field>of(new ImmutableField(type, "field", "I",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), new ImmutableIntEncodedValue(index),
+                null, null));
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                fields, methods);
+    }
+
+    private static DexBackedDexFile makeDexFile() throws IOException {
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        for (int i=0; i<CLASS_COUNT; i++) {
+            dexPool.internClass(makeClass(i));
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getData());
+    }
+
+    /**
+     * A lazily rewritten view of the classes in a dex file, that counts the number of times a class is read.
+     */
+    private static class CountingRewrittenClasses extends AbstractList<ClassDef> {
+        private final List<ClassDef> classes;
+        private int reads = 0;
+
+        public CountingRewrittenClasses(DexBackedDexFile dexFile) {
+            final DexRewriter rewriter = new DexRewriter(new RewriterModule());
+            this.classes = Lists.transform(dexFile.getClassSection(), new Function<DexBackedClassDef, ClassDef>() {
+                @Nullable @Override public ClassDef apply(@Nullable DexBackedClassDef classDef) {
+                    return rewriter.getClassDefRewriter().rewrite(classDef);
+                }
+            });
+        }
+
+        @Override public ClassDef get(int index) {
+            reads++;
+            return classes.get(index);
+        }
+
+        @Override public int size() {
+            return classes.size();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.util.ExceptionWithContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class DexBuilderMergeTest {
+    private static final int CLASS_COUNT = 12;
+
+    @Test
+    public void testMergedMatchesSingleBuilder() throws IOException {
+        DexBuilder single = new DexBuilder(Opcodes.getDefault());
+        for (int i=0; i<CLASS_COUNT; i++) {
+            addClass(single, i);
+        }
+        byte[] expected = write(single);
+
+        // classes are spread across the shards in an interleaved order, and the shards are merged as a chain
+        DexBuilder[] shards = createShards(3);
+        shards[0].merge(shards[1]);
+        shards[0].merge(shards[2]);
+        Assert.assertTrue(Arrays.equals(expected, write(shards[0])));
+
+        // and as a tree, so that some of the merged items are already aliases in the builder being merged
+        shards = createShards(4);
+        shards[0].merge(shards[1]);
+        shards[2].merge(shards[3]);
+        shards[0].merge(shards[2]);
+        Assert.assertTrue(Arrays.equals(expected, write(shards[0])));
+    }
+
+    @Test(expected = ExceptionWithContext.class)
+    public void testDuplicateClass() {
+        DexBuilder first = new DexBuilder(Opcodes.getDefault());
+        DexBuilder second = new DexBuilder(Opcodes.getDefault());
+        addClass(first, 0);
+        addClass(second, 0);
+        first.merge(second);
+    }
+
+    private static DexBuilder[] createShards(int shardCount) {
+        DexBuilder[] shards = new DexBuilder[shardCount];
+        for (int i=0; i<shardCount; i++) {
+            shards[i] = new DexBuilder(Opcodes.getDefault());
+        }
+        for (int i=CLASS_COUNT-1; i>=0; i--) {
+            addClass(shards[i % shardCount], i);
+        }
+        return shards;
+    }
+
+    private static byte[] write(DexBuilder dexBuilder) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        return dataStore.getData();
+    }
+
+    private static void addClass(DexBuilder dexBuilder, int index) {
+        String type = "Ltest/Class" + index + ";";
+        String superclass = index == 0 ? "Ljava/lang/Object;" : "Ltest/Class" + (index - 1) + ";";
+
+        MethodImplementationBuilder methodBuilder = new MethodImplementationBuilder(3);
+        methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                dexBuilder.internStringReference("shared")));
+        methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 1,
+                dexBuilder.internStringReference("string" + index)));
+        methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.SGET_OBJECT, 0,
+                dexBuilder.internFieldReference(new ImmutableFieldReference(
+                        "Ltest/Class0;", "value", "Ljava/lang/String;"))));
+        methodBuilder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 0, 1, 0, 0, 0,
+                dexBuilder.internMethodReference(new ImmutableMethodReference(
+                        "Ljava/lang/String;", "concat", ImmutableList.of("Ljava/lang/String;"),
+                        "Ljava/lang/String;"))));
+        methodBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        List<MethodParameter> parameters = ImmutableList.<MethodParameter>of(
+                new ImmutableMethodParameter("I", ImmutableSet.<Annotation>of(), "value"));
+        Annotation annotation = new ImmutableAnnotation(AnnotationVisibility.RUNTIME, "Ltest/Marker;",
+                ImmutableList.of(new ImmutableAnnotationElement("index", new ImmutableIntEncodedValue(index % 3))));
+
+        dexBuilder.internClassDef(
+                type,
+                AccessFlags.PUBLIC.getValue(),
+                superclass,
+                ImmutableList.of("Ljava/lang/Runnable;"),
+                "Class" + index + ".java",
+                ImmutableSet.of(annotation),
+                ImmutableList.of(
+                        dexBuilder.internField(
+                                type,
+                                "value",
+                                "Ljava/lang/String;",
+                                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(),
+                                new ImmutableStringEncodedValue(index % 2 == 0 ? "even" : "odd"),
+                                ImmutableSet.<Annotation>of(),
+                                ImmutableSet.of())),
+                ImmutableList.of(
+                        dexBuilder.internMethod(
+                                type,
+                                "run",
+                                parameters,
+                                "V",
+                                AccessFlags.PUBLIC.getValue(),
+                                ImmutableSet.of(annotation),
+                                ImmutableSet.of(),
+                                methodBuilder.getMethodImplementation())));
+    }
+}
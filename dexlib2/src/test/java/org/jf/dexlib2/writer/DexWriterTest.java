@@ -31,21 +31,36 @@
 
 package org.jf.dexlib2.writer;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.iface.AnnotationElement;
 import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.iface.value.AnnotationEncodedValue;
 import org.jf.dexlib2.immutable.ImmutableAnnotation;
 import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
 import org.jf.dexlib2.immutable.ImmutableClassDef;
 import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
+import org.jf.dexlib2.immutable.debug.ImmutableLineNumber;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
 import org.jf.dexlib2.immutable.value.ImmutableAnnotationEncodedValue;
 import org.jf.dexlib2.immutable.value.ImmutableNullEncodedValue;
 import org.jf.dexlib2.writer.io.MemoryDataStore;
@@ -53,7 +68,11 @@ import org.jf.dexlib2.writer.pool.DexPool;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
 
 public class DexWriterTest {
     @Test
@@ -133,4 +152,92 @@ public class DexWriterTest {
         Assert.assertEquals("blah", dbElements.get(0).getName());
         Assert.assertEquals("zabaglione", dbElements.get(1).getName());
     }
+
+    @Test
+    public void testSignatureAndChecksum() throws Exception {
+        ImmutableClassDef classDef = new ImmutableClassDef("Lorg/test/blah;",
+                0, "Ljava/lang/Object;", null, "blah.java", ImmutableSet.<Annotation>of(), null, null);
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableSet.of(classDef)));
+        byte[] buf = dataStore.getData();
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update(buf, HeaderItem.SIGNATURE_DATA_START_OFFSET, buf.length - HeaderItem.SIGNATURE_DATA_START_OFFSET);
+        Assert.assertTrue(Arrays.equals(md.digest(), Arrays.copyOfRange(buf, HeaderItem.SIGNATURE_OFFSET,
+                HeaderItem.SIGNATURE_OFFSET + HeaderItem.SIGNATURE_SIZE)));
+
+        Adler32 a32 = new Adler32();
+        a32.update(buf, HeaderItem.CHECKSUM_DATA_START_OFFSET, buf.length - HeaderItem.CHECKSUM_DATA_START_OFFSET);
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), buf);
+        Assert.assertEquals((int)a32.getValue(), dexFile.getBuffer().readInt(HeaderItem.CHECKSUM_OFFSET));
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        Random random = new Random(1234);
+        for (int length: new int[] {0, 1, 20, 5552, 65521, 65522, 200000}) {
+            byte[] data = new byte[length + 20];
+            random.nextBytes(data);
+
+            Adler32 expected = new Adler32();
+            expected.update(data);
+
+            Adler32 first = new Adler32();
+            first.update(data, 0, 20);
+            Adler32 second = new Adler32();
+            second.update(data, 20, length);
+
+            Assert.assertEquals(expected.getValue(),
+                    DexWriter.combineAdler32(first.getValue(), second.getValue(), length));
+        }
+    }
+
+    @Test
+    public void testParallelCodeItemsMatchSequential() throws IOException {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<50; i++) {
+            String type = "Lorg/test/Class" + i + ";";
+            List<Method> methods = Lists.newArrayList();
+            for (int j=0; j<20; j++) {
+                // a mix of methods with and without code, debug info, parameter names and try blocks, so that the
+                // code items have varying sizes and alignments
+                List<ImmutableMethodParameter> parameters = ImmutableList.of(
+                        new ImmutableMethodParameter("I", null, j % 4 == 0 ? "param" + j : null));
+                MethodImplementation implementation = null;
+                int accessFlags = AccessFlags.PUBLIC.getValue();
+                if (j % 3 == 0) {
+                    accessFlags |= AccessFlags.ABSTRACT.getValue();
+                } else {
+                    implementation = new ImmutableMethodImplementation(2,
+                            ImmutableList.of(
+                                    new ImmutableInstruction21c(Opcode.CONST_STRING, 0,
+                                            new ImmutableStringReference("string" + i + "_" + j)),
+                                    new ImmutableInstruction10x(Opcode.RETURN_VOID)),
+                            j % 5 == 1 ? ImmutableList.of(new ImmutableTryBlock(0, 2,
+                                    ImmutableList.of(new ImmutableExceptionHandler("Ljava/lang/Exception;", 2))))
+                                    : null,
+                            j % 2 == 0 ? ImmutableList.of(new ImmutableLineNumber(0, i * 100 + j)) : null);
+                }
+                methods.add(new ImmutableMethod(type, "method" + j, parameters, "V", accessFlags, null, null,
+                        implementation));
+            }
+            classDefs.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(),
+                    "Ljava/lang/Object;", null, null, null, null, methods));
+        }
+        ImmutableDexFile dexFile = new ImmutableDexFile(Opcodes.getDefault(), classDefs);
+
+        MemoryDataStore sequential = new MemoryDataStore();
+        DexPool.writeTo(sequential, dexFile);
+
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.setWriteThreads(4);
+        MemoryDataStore parallel = new MemoryDataStore();
+        dexPool.writeTo(parallel);
+
+        Assert.assertTrue(Arrays.equals(sequential.getData(), parallel.getData()));
+    }
 }
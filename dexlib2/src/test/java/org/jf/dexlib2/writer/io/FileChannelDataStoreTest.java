@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer.io;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class FileChannelDataStoreTest {
+    @Test
+    public void testChannelWrite() throws IOException {
+        byte[] expected = writeDex(new MemoryDataStore()).getData();
+
+        File file = createTempFile();
+        writeDex(new FileChannelDataStore(file));
+        Assert.assertTrue(Arrays.equals(expected, Files.toByteArray(file)));
+    }
+
+    @Test
+    public void testPresizedChannelWrite() throws IOException {
+        byte[] expected = writeDex(new MemoryDataStore()).getData();
+
+        File file = createTempFile();
+        writeDex(new FileChannelDataStore(file, expected.length * 4, false));
+        Assert.assertTrue(Arrays.equals(expected, Files.toByteArray(file)));
+    }
+
+    @Test
+    public void testMappedWrite() throws IOException {
+        byte[] expected = writeDex(new MemoryDataStore()).getData();
+
+        File file = createTempFile();
+        writeDex(new FileChannelDataStore(file, 0, true));
+        Assert.assertTrue(Arrays.equals(expected, Files.toByteArray(file)));
+    }
+
+    @Test
+    public void testMappedGrowth() throws IOException {
+        File file = createTempFile();
+        FileChannelDataStore dataStore = new FileChannelDataStore(file, 16, true);
+
+        byte[] data = new byte[3 * 1024 * 1024];
+        for (int i=0; i<data.length; i++) {
+            data[i] = (byte)i;
+        }
+
+        OutputStream output = dataStore.outputAt(1);
+        output.write(data, 1, data.length - 1);
+        output = dataStore.outputAt(0);
+        output.write(data[0]);
+
+        Assert.assertEquals(data.length, dataStore.getSize());
+        Assert.assertTrue(Arrays.equals(data, ByteStreams.toByteArray(dataStore.readAt(0))));
+        dataStore.close();
+
+        Assert.assertTrue(Arrays.equals(data, Files.toByteArray(file)));
+    }
+
+    private static <T extends DexDataStore> T writeDex(T dataStore) throws IOException {
+        List<ClassDef> classes = Lists.newArrayList();
+        for (int i=0; i<100; i++) {
+            classes.add(new ImmutableClassDef("Lorg/test/Class" + i + ";", 0, "Ljava/lang/Object;", null,
+                    "Class" + i + ".java", null, null, null));
+        }
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classes));
+        return dataStore;
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("dex", ".dex");
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer.pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.rewriter.*;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+public class RawInstructionsTest {
+    @Test
+    public void testMatchesEncodedInstructions() throws IOException {
+        DexBackedDexFile dexFile = loadDexFile();
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        MemoryDataStore actual = new MemoryDataStore();
+        dexPool.writeTo(actual);
+
+        Assert.assertTrue(countRawInstructions(dexPool, true) > 0);
+        Assert.assertArrayEquals(writeEncoded(dexFile), actual.getData());
+    }
+
+    @Test
+    public void testRewrittenReferences() throws IOException {
+        DexBackedDexFile dexFile = loadDexFile();
+
+        DexRewriter rewriter = new DexRewriter(new RewriterModule() {
+            @Nonnull @Override public Rewriter<String> getTypeRewriter(@Nonnull Rewriters rewriters) {
+                return new Rewriter<String>() {
+                    @Nonnull @Override public String rewrite(@Nonnull String value) {
+                        return value.replace("Lorg/jf/", "Lorg/jf/renamed/");
+                    }
+                };
+            }
+        });
+        DexFile rewritten = rewriter.getDexFileRewriter().rewrite(dexFile);
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: rewritten.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        MemoryDataStore actual = new MemoryDataStore();
+        dexPool.writeTo(actual);
+
+        Assert.assertTrue(countRawInstructions(dexPool, true) > 0);
+        Assert.assertArrayEquals(writeEncoded(rewritten), actual.getData());
+    }
+
+    @Test
+    public void testCustomInstructionRewriter() throws IOException {
+        DexBackedDexFile dexFile = loadDexFile();
+
+        DexRewriter rewriter = new DexRewriter(new RewriterModule() {
+            @Nonnull @Override
+            public Rewriter<Instruction> getInstructionRewriter(@Nonnull Rewriters rewriters) {
+                return new InstructionRewriter(rewriters) {
+                };
+            }
+        });
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: rewriter.getDexFileRewriter().rewrite(dexFile).getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.writeTo(new MemoryDataStore());
+
+        // the instruction rewriter could change more than the references, so the instructions can't be copied
+        Assert.assertEquals(0, countRawInstructions(dexPool, false));
+    }
+
+    @Test
+    public void testJumboStringFallback() throws IOException {
+        MemoryDataStore original = new MemoryDataStore();
+        DexPool.writeTo(original, new ImmutableDexFile(Opcodes.getDefault(),
+                ImmutableList.of(makeClass("Ltest;", ImmutableList.of("zzz")))));
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), original.getData());
+
+        // enough strings that sort before "zzz" to push it past the 16-bit string index limit
+        List<String> strings = Lists.newArrayList();
+        for (int i=0; i<66000; i++) {
+            strings.add(String.format("%08d", i));
+        }
+        ClassDef other = makeClass("Lother;", strings);
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        dexPool.internClass(Iterables.getOnlyElement(dexFile.getClasses()));
+        dexPool.internClass(other);
+        MemoryDataStore actual = new MemoryDataStore();
+        dexPool.writeTo(actual);
+
+        Assert.assertArrayEquals(writeEncoded(new ImmutableDexFile(Opcodes.getDefault(),
+                ImmutableList.of(ImmutableClassDef.of(Iterables.getOnlyElement(dexFile.getClasses())), other))),
+                actual.getData());
+
+        DexBackedDexFile written = new DexBackedDexFile(Opcodes.getDefault(), actual.getData());
+        for (ClassDef classDef: written.getClasses()) {
+            if (classDef.getType().equals("Ltest;")) {
+                Instruction instruction = Iterables.getFirst(
+                        Iterables.getOnlyElement(classDef.getMethods()).getImplementation().getInstructions(), null);
+                Assert.assertNotNull(instruction);
+                Assert.assertEquals(Opcode.CONST_STRING_JUMBO, instruction.getOpcode());
+                Assert.assertEquals("zzz",
+                        ((StringReference)((ReferenceInstruction)instruction).getReference()).getString());
+            }
+        }
+    }
+
+    @Test
+    public void testUnusedBitsAreNormalized() throws IOException {
+        List<Instruction> instructions = ImmutableList.<Instruction>of(
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0,
+                        new ImmutableMethodReference("Ltest;", "test", ImmutableList.of("I"), "V")),
+                new ImmutableInstruction32x(Opcode.MOVE_16, 0, 1),
+                new ImmutableInstruction31t(Opcode.FILL_ARRAY_DATA, 0, 6),
+                new ImmutableInstruction20t(Opcode.GOTO_16, 2),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                new ImmutableArrayPayload(1, ImmutableList.<Number>of(1, 2, 3)));
+        ImmutableMethod method = new ImmutableMethod("Ltest;", "test",
+                ImmutableList.of(new ImmutableMethodParameter("I", null, null)), "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null, null,
+                new ImmutableMethodImplementation(2, instructions, null, null));
+        MemoryDataStore original = new MemoryDataStore();
+        DexPool.writeTo(original, new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(
+                new ImmutableClassDef("Ltest;", AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null,
+                        null, null, ImmutableList.of(method)))));
+
+        // put garbage in the bits that InstructionWriter always writes as 0
+        byte[] dexBytes = original.getData();
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), dexBytes);
+        int start = ((DexBackedMethodImplementation)Iterables.getOnlyElement(
+                Iterables.getOnlyElement(dexFile.getClasses()).getMethods()).getImplementation())
+                .getInstructionsStartOffset();
+        dexBytes[start + 1] |= 0x0F; // invoke-static register G
+        dexBytes[start + 4] |= (byte)0xA0; // invoke-static register D
+        dexBytes[start + 5] = (byte)0xBC; // invoke-static registers E and F
+        dexBytes[start + 7] = 0x7F; // move/16
+        dexBytes[start + 19] = 0x55; // goto/16
+        dexBytes[start + 23] = 0x66; // return-void
+        dexBytes[start + 35] = 0x77; // the padding after the array payload's data
+        dexFile = new DexBackedDexFile(Opcodes.getDefault(), dexBytes);
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        dexPool.internClass(Iterables.getOnlyElement(dexFile.getClasses()));
+        MemoryDataStore actual = new MemoryDataStore();
+        dexPool.writeTo(actual);
+
+        Assert.assertEquals(1, countRawInstructions(dexPool, true));
+        Assert.assertArrayEquals(writeEncoded(dexFile), actual.getData());
+        Assert.assertArrayEquals(original.getData(), actual.getData());
+    }
+
+    private static int countRawInstructions(@Nonnull DexPool dexPool, boolean expectRaw) {
+        int count = 0;
+        for (PoolClassDef classDef: dexPool.classSection.getSortedClasses()) {
+            for (PoolMethod method: dexPool.classSection.getSortedMethods(classDef)) {
+                if (method.getImplementation() == null) {
+                    continue;
+                }
+                if (dexPool.classSection.getRawInstructions(method) != null) {
+                    count++;
+                } else if (expectRaw) {
+                    Assert.fail("Expected the instructions of " + method + " to be copied");
+                }
+            }
+        }
+        return count;
+    }
+
+    @Nonnull
+    private static byte[] writeEncoded(@Nonnull DexFile dexFile) throws IOException {
+        // an ImmutableDexFile can't provide pre-encoded instructions, so its instructions are always encoded
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, ImmutableDexFile.of(dexFile));
+        return dataStore.getData();
+    }
+
+    @Nonnull
+    private static ClassDef makeClass(@Nonnull String type, @Nonnull List<String> strings) {
+        List<Instruction> instructions = Lists.newArrayList();
+        for (String string: strings) {
+            instructions.add(new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference(string)));
+        }
+        instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+
+        ImmutableMethod method = new ImmutableMethod(type, "test", null, "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null, null,
+                new ImmutableMethodImplementation(1, instructions, null, null));
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                null, ImmutableList.of(method));
+    }
+
+    @Nonnull
+    private static DexBackedDexFile loadDexFile() throws IOException {
+        URL url = RawInstructionsTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        return DexFileFactory.loadDexFile(url.getFile(), Opcodes.getDefault());
+    }
+}
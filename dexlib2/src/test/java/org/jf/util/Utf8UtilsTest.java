@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Utf8UtilsTest {
+    private static final String[] STRINGS = new String[] {
+            "",
+            "Ljava/lang/Object;",
+            "\u00e9t\u00e9",
+            "prefix\u00e9",
+            "prefix\u4e2d\u6587suffix",
+            "null\u0000char",
+            "\ud83d\ude00 surrogates"
+    };
+
+    @Test
+    public void testRoundTrip() {
+        for (String string: STRINGS) {
+            byte[] bytes = Utf8Utils.stringToUtf8Bytes(string);
+            Assert.assertEquals(string, Utf8Utils.utf8BytesToString(bytes, 0, bytes.length));
+
+            int[] readLength = new int[1];
+            Assert.assertEquals(string,
+                    Utf8Utils.utf8BytesWithUtf16LengthToString(bytes, 0, string.length(), readLength));
+            Assert.assertEquals(bytes.length, readLength[0]);
+        }
+    }
+
+    @Test
+    public void testEncoding() {
+        Assert.assertArrayEquals(new byte[] {'a', (byte)0xc0, (byte)0x80, 'b'},
+                Utf8Utils.stringToUtf8Bytes("a\u0000b"));
+        Assert.assertArrayEquals(new byte[] {'a', (byte)0xc3, (byte)0xa9},
+                Utf8Utils.stringToUtf8Bytes("a\u00e9"));
+        Assert.assertArrayEquals(new byte[] {(byte)0xe4, (byte)0xb8, (byte)0xad},
+                Utf8Utils.stringToUtf8Bytes("\u4e2d"));
+    }
+
+    @Test
+    public void testEncodeStringAtOffset() {
+        byte[] buf = new byte[32];
+        int end = Utf8Utils.encodeString("ab\u00e9", buf, 3);
+        Assert.assertEquals(7, end);
+        Assert.assertEquals('a', buf[3]);
+        Assert.assertEquals((byte)0xc3, buf[5]);
+    }
+
+    @Test
+    public void testDecodeWithinLargerBuffer() {
+        // A pure-ascii string followed by more data, as it would appear in a dex file
+        byte[] bytes = new byte[] {'x', 'a', 'b', 'c', 0, (byte)0xc3, (byte)0xa9, 0};
+        int[] readLength = new int[1];
+        Assert.assertEquals("abc", Utf8Utils.utf8BytesWithUtf16LengthToString(bytes, 1, 3, readLength));
+        Assert.assertEquals(3, readLength[0]);
+        Assert.assertEquals("\u00e9", Utf8Utils.utf8BytesWithUtf16LengthToString(bytes, 5, 1, readLength));
+        Assert.assertEquals(2, readLength[0]);
+    }
+
+    @Test
+    public void testLargeString() {
+        // larger than the thread-local scratch buffer is allowed to grow, followed by a small one
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<30000; i++) {
+            sb.append(i % 7 == 0 ? '\u00e9' : 'a');
+        }
+        String large = sb.toString();
+        byte[] bytes = Utf8Utils.stringToUtf8Bytes(large);
+        Assert.assertEquals(large, Utf8Utils.utf8BytesToString(bytes, 0, bytes.length));
+        Assert.assertArrayEquals(new byte[] {'a', 'b'}, Utf8Utils.stringToUtf8Bytes("ab"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroByte() {
+        Utf8Utils.utf8BytesWithUtf16LengthToString(new byte[] {'a', 0, 'b'}, 0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadContinuationAfterAscii() {
+        Utf8Utils.utf8BytesWithUtf16LengthToString(new byte[] {'a', 'b', (byte)0xc3, 'c'}, 0, 3);
+    }
+}
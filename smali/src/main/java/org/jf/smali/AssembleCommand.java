@@ -77,6 +77,21 @@ public class AssembleCommand extends Command {
             description = "Allows the odex opcodes that dalvik doesn't reject to be assembled.")
     private boolean allowOdexOpcodes;
 
+    @Parameter(names = "--sharded",
+            description = "Have each thread intern into its own private builder, and merge the results at the end. " +
+                    "This avoids contention between the threads when assembling a large number of files.")
+    private boolean sharded = false;
+
+    @Parameter(names = "--cache",
+            description = "A directory to cache the assembled classes in. On later runs, any file that hasn't " +
+                    "changed is loaded from the cache instead of being assembled again.")
+    @ExtendedParameter(argumentNames = "dir")
+    private String cacheDirectory = null;
+
+    @Parameter(names = "--task-stats",
+            description = "Print statistics about how long each file took to assemble, including the slowest files.")
+    private boolean printTaskStatistics = false;
+
     @Parameter(description = "Assembles the given files. If a directory is specified, it will be " +
             "recursively searched for any files with a .smali prefix")
     @ExtendedParameter(argumentNames = "[<file>|<dir>]+")
@@ -107,6 +122,9 @@ public class AssembleCommand extends Command {
         options.outputDexFile = output;
         options.allowOdexOpcodes = allowOdexOpcodes;
         options.verboseErrors = verbose;
+        options.shardedInterning = sharded;
+        options.cacheDirectory = cacheDirectory;
+        options.printTaskStatistics = printTaskStatistics;
 
         return options;
     }
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.smali;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache of assembled smali files, keyed by a hash of the file's contents and the options that affect assembly.
+ *
+ * The assembled classes for each file are stored as a small dex file containing just those classes, which is
+ * interned into the final dex file on a later run instead of assembling the smali file again. New entries are written
+ * in the background, while the rest of the files are assembled.
+ *
+ * Entries are written atomically, so the cache can be shared by concurrent runs. Unused entries are never removed
+ * automatically, but the cache directory can safely be deleted at any time.
+ */
+public class CompiledClassCache {
+    @Nonnull private final File cacheDir;
+    @Nonnull private final Opcodes opcodes;
+    @Nonnull private final byte[] optionsKey;
+
+    private final int writeThreads;
+    @Nullable private ExecutorService writeExecutor;
+    @Nonnull private final Queue<Future<?>> pendingWrites = new ConcurrentLinkedQueue<Future<?>>();
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    public CompiledClassCache(@Nonnull File cacheDir, @Nonnull SmaliOptions options) {
+        this.cacheDir = cacheDir;
+        this.opcodes = Opcodes.forApi(options.apiLevel);
+        this.writeThreads = Math.max(1, options.jobs);
+
+        String optionsString = Main.VERSION + '\n' + options.apiLevel + '\n' + options.allowOdexOpcodes + '\n';
+        try {
+            this.optionsKey = optionsString.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @param smaliContents The raw contents of a smali file
+     * @return The cache key for the given smali file
+     */
+    @Nonnull
+    public String getKey(@Nonnull byte[] smaliContents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        digest.update(optionsKey);
+        digest.update(smaliContents);
+        return BaseEncoding.base16().lowerCase().encode(digest.digest());
+    }
+
+    /**
+     * Loads the cached classes for the given key.
+     *
+     * @return A dex file containing the cached classes, or null if there is no usable entry for this key
+     */
+    @Nullable
+    public DexBackedDexFile load(@Nonnull String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        try {
+            DexBackedDexFile dexFile = new DexBackedDexFile(opcodes, Files.toByteArray(file));
+            hitCount.incrementAndGet();
+            return dexFile;
+        } catch (Exception ex) {
+            // an unreadable entry is treated as a miss, and will be overwritten
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Queues the classes in the given builder to be written to the cache.
+     *
+     * The entry is written in the background, so that encoding it doesn't hold up the rest of the assembly. The builder
+     * must not be modified after it has been queued. If the entry can't be written, e.g. because the disk is full, a
+     * warning is printed, and the file is just assembled again on the next run.
+     *
+     * {@link #finishWrites} must be called once all entries have been queued.
+     */
+    public void save(@Nonnull final String key, @Nonnull final DexBuilder dexBuilder) {
+        ExecutorService writeExecutor;
+        synchronized (this) {
+            if (this.writeExecutor == null) {
+                this.writeExecutor = Executors.newFixedThreadPool(writeThreads);
+            }
+            writeExecutor = this.writeExecutor;
+        }
+
+        pendingWrites.add(writeExecutor.submit(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                MemoryDataStore dataStore = new MemoryDataStore();
+                dexBuilder.writeTo(dataStore);
+                try {
+                    writeEntry(key, dataStore.getData());
+                } catch (IOException ex) {
+                    System.err.println(String.format("Warning: Could not write cache entry %s: %s", key,
+                            ex.getMessage()));
+                }
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Waits for all queued entries to be written, and releases the threads used to write them.
+     */
+    public void finishWrites() {
+        ExecutorService writeExecutor;
+        synchronized (this) {
+            writeExecutor = this.writeExecutor;
+            this.writeExecutor = null;
+        }
+        if (writeExecutor == null) {
+            return;
+        }
+
+        try {
+            Future<?> future = pendingWrites.poll();
+            while (future != null) {
+                future.get();
+                future = pendingWrites.poll();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            writeExecutor.shutdownNow();
+        }
+    }
+
+    private void writeEntry(@Nonnull String key, @Nonnull byte[] dexBytes) throws IOException {
+        File file = getFile(key);
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        File tempFile = File.createTempFile(key, ".tmp", parent);
+        try {
+            Files.write(dexBytes, tempFile);
+            if (!tempFile.renameTo(file)) {
+                // another run may have written the same entry concurrently, in which case its contents are the same
+                if (!file.exists()) {
+                    throw new IOException(String.format("Could not rename %s to %s", tempFile, file));
+                }
+            }
+        } finally {
+            // noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * @return The number of files whose classes were loaded from the cache
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of files that weren't in the cache
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    @Nonnull
+    private File getFile(@Nonnull String key) {
+        // fan the entries out into subdirectories, to avoid having tens of thousands of files in a single directory
+        return new File(new File(cacheDir, key.substring(0, 2)), key.substring(2) + ".dex");
+    }
+}
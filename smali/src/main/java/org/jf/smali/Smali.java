@@ -31,27 +31,38 @@
 
 package org.jf.smali;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.TokenSource;
 import org.antlr.runtime.tree.CommonTree;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
 import org.jf.dexlib2.writer.builder.DexBuilder;
-import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.io.FileChannelDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
 import org.jf.util.StringUtils;
+import org.jf.util.TaskScheduler;
 
 import javax.annotation.Nonnull;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import javax.annotation.Nullable;
+import java.io.*;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Smali {
 
@@ -90,47 +101,226 @@ public class Smali {
             }
         }
 
-        boolean errors = false;
+        if (options.cacheDirectory != null && !options.printTokens) {
+            return assembleWithCache(options, filesToProcessSet,
+                    new CompiledClassCache(new File(options.cacheDirectory), options));
+        }
 
-        final DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(options.apiLevel));
+        final Opcodes opcodes = Opcodes.forApi(options.apiLevel);
+        final DexBuilder sharedDexBuilder;
+        final Queue<DexBuilder> shards = new ConcurrentLinkedQueue<DexBuilder>();
+        final ThreadLocal<DexBuilder> threadDexBuilder;
+
+        if (options.shardedInterning) {
+            // each worker thread interns into its own private builder, so there is no contention on the pools. The
+            // shards are merged into a single builder once all files have been assembled
+            sharedDexBuilder = null;
+            threadDexBuilder = new ThreadLocal<DexBuilder>() {
+                @Override protected DexBuilder initialValue() {
+                    DexBuilder shard = new DexBuilder(opcodes);
+                    shards.add(shard);
+                    return shard;
+                }
+            };
+        } else {
+            sharedDexBuilder = new DexBuilder(opcodes);
+            threadDexBuilder = null;
+        }
 
-        ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
-        List<Future<Boolean>> tasks = Lists.newArrayList();
+        final AtomicBoolean errors = new AtomicBoolean();
+        // a class defined in two files that were assembled into different shards isn't caught by either shard, so
+        // the file that each class came from is tracked here, to report it with the file names
+        final Map<String, File> classFiles = Maps.newHashMap();
+        TaskScheduler.TaskStatistics statistics = new FileScheduler<String>(options.jobs) {
+            @Override protected String process(@Nonnull File file) throws Exception {
+                DexBuilder dexBuilder = sharedDexBuilder;
+                if (dexBuilder == null) {
+                    dexBuilder = threadDexBuilder.get();
+                }
+                ClassDef classDef = assembleSmaliFile(file, dexBuilder, options);
+                return classDef == null ? null : classDef.getType();
+            }
 
-        for (final File file: filesToProcessSet) {
-            tasks.add(executor.submit(new Callable<Boolean>() {
-                @Override public Boolean call() throws Exception {
-                    return assembleSmaliFile(file, dexBuilder, options);
+            @Override protected void handleResult(@Nonnull File file, String classType) {
+                if (classType == null) {
+                    errors.set(true);
+                    return;
+                }
+                File previousFile = classFiles.put(classType, file);
+                if (previousFile != null) {
+                    reportDuplicateClass(classType, file, previousFile);
+                    errors.set(true);
                 }
-            }));
+            }
+        }.run(filesToProcessSet);
+
+        if (options.printTaskStatistics) {
+            statistics.print(System.err);
+        }
+
+        if (errors.get()) {
+            return false;
+        }
+
+        if (sharedDexBuilder != null) {
+            sharedDexBuilder.setWriteThreads(options.jobs);
+            sharedDexBuilder.writeTo(new FileChannelDataStore(new File(options.outputDexFile)));
+        } else {
+            DexBuilder dexBuilder = mergeShards(opcodes, shards, options.jobs);
+            dexBuilder.setWriteThreads(options.jobs);
+            dexBuilder.writeTo(new FileChannelDataStore(new File(options.outputDexFile)));
         }
 
-        for (Future<Boolean> task: tasks) {
-            while(true) {
-                try {
-                    try {
-                        if (!task.get()) {
-                            errors = true;
+        return true;
+    }
+
+    /**
+     * Assembles the given files, reusing the previously assembled classes from the cache for any file whose contents
+     * haven't changed. The classes from all files are then merged into a single DexPool.
+     */
+    private static boolean assembleWithCache(final SmaliOptions options, Set<File> files,
+                                             final CompiledClassCache cache) throws IOException {
+        final AtomicBoolean errors = new AtomicBoolean();
+        final List<ClassDef> classDefs = Lists.newArrayList();
+        // the file that each class came from, so that a class defined in more than one file can be reported
+        final Map<String, File> classFiles = Maps.newHashMap();
+        try {
+            TaskScheduler.TaskStatistics statistics = new FileScheduler<Iterable<? extends ClassDef>>(options.jobs) {
+                @Override protected Iterable<? extends ClassDef> process(@Nonnull File file) throws Exception {
+                    return assembleSmaliFile(file, cache, options);
+                }
+
+                @Override protected void handleResult(@Nonnull File file, Iterable<? extends ClassDef> fileClassDefs) {
+                    if (fileClassDefs == null) {
+                        errors.set(true);
+                        return;
+                    }
+                    for (ClassDef classDef: fileClassDefs) {
+                        File previousFile = classFiles.put(classDef.getType(), file);
+                        if (previousFile != null) {
+                            reportDuplicateClass(classDef.getType(), file, previousFile);
+                            errors.set(true);
+                        } else {
+                            classDefs.add(classDef);
                         }
-                    } catch (ExecutionException ex) {
-                        throw new RuntimeException(ex);
                     }
-                } catch (InterruptedException ex) {
-                    continue;
                 }
-                break;
+            }.run(files);
+
+            if (options.printTaskStatistics) {
+                statistics.print(System.err);
+            }
+
+            if (errors.get()) {
+                return false;
             }
+
+            DexPool dexPool = mergeClasses(Opcodes.forApi(options.apiLevel), classDefs);
+            dexPool.setWriteThreads(options.jobs);
+            dexPool.writeTo(new FileChannelDataStore(new File(options.outputDexFile)));
+            return true;
+        } finally {
+            // the new cache entries are written in the background while the rest of the run completes
+            cache.finishWrites();
         }
+    }
 
-        executor.shutdown();
+    private static void reportDuplicateClass(@Nonnull String classType, @Nonnull File file,
+                                             @Nonnull File previousFile) {
+        System.err.println(String.format("%s: Class %s has already been interned from %s",
+                file.getPath(), classType, previousFile.getPath()));
+    }
 
-        if (errors) {
-            return false;
+    /**
+     * A TaskScheduler for smali files, which assembles the largest files first
+     */
+    private abstract static class FileScheduler<R> extends TaskScheduler<File, R> {
+        public FileScheduler(int jobs) {
+            super(jobs);
         }
 
-        dexBuilder.writeTo(new FileDataStore(new File(options.outputDexFile)));
+        @Override protected long estimateCost(@Nonnull File file) {
+            return file.length();
+        }
 
-        return true;
+        @Nonnull @Override protected String getName(@Nonnull File file) {
+            return file.getPath();
+        }
+    }
+
+    /**
+     * Merges a set of independently populated DexBuilder shards into a single DexBuilder.
+     *
+     * The shards are merged pairwise, in rounds, with the merges in each round running in parallel. Each merge only
+     * adds the distinct items of one shard to another, without re-interning any classes, and the indexes are assigned
+     * from the sorted items when the result is written, so the output doesn't depend on how the files happened to be
+     * distributed across the shards, or on the order they are merged in.
+     *
+     * @param opcodes The Opcodes to use if there are no shards
+     * @param shards The shards to merge. These must not be used afterwards.
+     * @param jobs The number of threads to use
+     * @return A DexBuilder containing all items and classes from all shards
+     */
+    @Nonnull
+    static DexBuilder mergeShards(@Nonnull Opcodes opcodes, @Nonnull Collection<? extends DexBuilder> shards,
+                                  int jobs) {
+        List<DexBuilder> remaining = Lists.newArrayList(shards);
+        if (remaining.isEmpty()) {
+            return new DexBuilder(opcodes);
+        }
+
+        while (remaining.size() > 1) {
+            List<ShardMerge> merges = Lists.newArrayList();
+            List<DexBuilder> merged = Lists.newArrayList();
+            for (int i=0; i+1<remaining.size(); i+=2) {
+                merges.add(new ShardMerge(remaining.get(i), remaining.get(i+1)));
+                merged.add(remaining.get(i));
+            }
+            if (remaining.size() % 2 != 0) {
+                merged.add(remaining.get(remaining.size() - 1));
+            }
+
+            new TaskScheduler<ShardMerge, Void>(jobs) {
+                @Override protected long estimateCost(@Nonnull ShardMerge merge) {
+                    return 0;
+                }
+
+                @Override protected Void process(@Nonnull ShardMerge merge) {
+                    merge.target.merge(merge.source);
+                    return null;
+                }
+
+                @Override protected void handleResult(@Nonnull ShardMerge merge, Void result) {
+                }
+            }.run(merges);
+
+            remaining = merged;
+        }
+        return remaining.get(0);
+    }
+
+    private static class ShardMerge {
+        @Nonnull public final DexBuilder target;
+        @Nonnull public final DexBuilder source;
+
+        public ShardMerge(@Nonnull DexBuilder target, @Nonnull DexBuilder source) {
+            this.target = target;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Interns the given classes into a new DexPool, in order of their type.
+     */
+    @Nonnull
+    private static DexPool mergeClasses(@Nonnull Opcodes opcodes, @Nonnull List<? extends ClassDef> classDefs) {
+        List<? extends ClassDef> sortedClassDefs = Ordering.natural().sortedCopy(classDefs);
+
+        DexPool dexPool = new DexPool(opcodes);
+        for (ClassDef classDef: sortedClassDefs) {
+            dexPool.internClass(classDef);
+        }
+        return dexPool;
     }
 
     /**
@@ -187,71 +377,114 @@ public class Smali {
         }
     }
 
-    private static boolean assembleSmaliFile(File smaliFile, DexBuilder dexBuilder, SmaliOptions options)
+    /**
+     * Assembles the given file, or loads its classes from the cache if the file hasn't changed.
+     *
+     * @return The classes from the given file, or null if errors were encountered
+     */
+    @Nullable
+    private static Iterable<? extends ClassDef> assembleSmaliFile(File smaliFile, CompiledClassCache cache,
+                                                                  SmaliOptions options) throws Exception {
+        byte[] contents = Files.toByteArray(smaliFile);
+        String key = cache.getKey(contents);
+
+        DexFile dexFile = cache.load(key);
+        if (dexFile != null) {
+            return dexFile.getClasses();
+        }
+
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(options.apiLevel));
+        ClassDef classDef = assembleSmaliFile(smaliFile, new ByteArrayInputStream(contents), dexBuilder, options);
+        if (classDef == null) {
+            return null;
+        }
+        // the builder is handed off to be written to the cache in the background, and reading it lazily updates its
+        // method implementations, so the class is copied here rather than being shared with that write
+        ClassDef immutableClassDef = ImmutableClassDef.of(classDef);
+        cache.save(key, dexBuilder);
+        return ImmutableList.of(immutableClassDef);
+    }
+
+    /**
+     * Assembles the given file into the given DexBuilder.
+     *
+     * @return The class that was assembled, or null if errors were encountered
+     */
+    @Nullable
+    private static ClassDef assembleSmaliFile(File smaliFile, DexBuilder dexBuilder, SmaliOptions options)
             throws Exception {
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(smaliFile);
-            InputStreamReader reader = new InputStreamReader(fis, "UTF-8");
+            return assembleSmaliFile(smaliFile, fis, dexBuilder, options);
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
+        }
+    }
 
-            LexerErrorInterface lexer = new smaliFlexLexer(reader, options.apiLevel);
-            ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
-            CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
+    @Nullable
+    private static ClassDef assembleSmaliFile(File smaliFile, InputStream inputStream, DexBuilder dexBuilder,
+                                              SmaliOptions options) throws Exception {
+        InputStreamReader reader = new InputStreamReader(inputStream, "UTF-8");
 
-            if (options.printTokens) {
-                tokens.getTokens();
+        LexerErrorInterface lexer = new smaliFlexLexer(reader, options.apiLevel);
+        ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
+        CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
 
-                for (int i=0; i<tokens.size(); i++) {
-                    Token token = tokens.get(i);
-                    if (token.getChannel() == smaliParser.HIDDEN) {
-                        continue;
-                    }
+        if (options.printTokens) {
+            tokens.getTokens();
 
-                    String tokenName;
-                    if (token.getType() == -1) {
-                        tokenName = "EOF";
-                    } else {
-                        tokenName = smaliParser.tokenNames[token.getType()];
-                    }
-                    System.out.println(tokenName + ": " + token.getText());
+            for (int i=0; i<tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (token.getChannel() == smaliParser.HIDDEN) {
+                    continue;
                 }
 
-                System.out.flush();
+                String tokenName;
+                if (token.getType() == -1) {
+                    tokenName = "EOF";
+                } else {
+                    tokenName = smaliParser.tokenNames[token.getType()];
+                }
+                System.out.println(tokenName + ": " + token.getText());
             }
 
-            smaliParser parser = new smaliParser(tokens);
-            parser.setVerboseErrors(options.verboseErrors);
-            parser.setAllowOdex(options.allowOdexOpcodes);
-            parser.setApiLevel(options.apiLevel);
+            System.out.flush();
+        }
 
-            smaliParser.smali_file_return result = parser.smali_file();
+        smaliParser parser = new smaliParser(tokens);
+        parser.setVerboseErrors(options.verboseErrors);
+        parser.setAllowOdex(options.allowOdexOpcodes);
+        parser.setApiLevel(options.apiLevel);
 
-            if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
-                return false;
-            }
+        smaliParser.smali_file_return result = parser.smali_file();
+
+        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+            return null;
+        }
 
-            CommonTree t = result.getTree();
+        CommonTree t = result.getTree();
 
-            CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-            treeStream.setTokenStream(tokens);
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
+        treeStream.setTokenStream(tokens);
 
-            if (options.printTokens) {
-                System.out.println(t.toStringTree());
-            }
+        if (options.printTokens) {
+            System.out.println(t.toStringTree());
+        }
 
-            smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
-            dexGen.setApiLevel(options.apiLevel);
+        smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
+        dexGen.setApiLevel(options.apiLevel);
 
-            dexGen.setVerboseErrors(options.verboseErrors);
-            dexGen.setDexBuilder(dexBuilder);
-            dexGen.smali_file();
+        dexGen.setVerboseErrors(options.verboseErrors);
+        dexGen.setDexBuilder(dexBuilder);
+        ClassDef classDef = dexGen.smali_file();
 
-            return dexGen.getNumberOfSyntaxErrors() == 0;
-        } finally {
-            if (fis != null) {
-                fis.close();
-            }
+        if (dexGen.getNumberOfSyntaxErrors() > 0) {
+            return null;
         }
+        return classDef;
     }
 
     private static boolean printTokensForSingleFile(File smaliFile, SmaliOptions options)
@@ -36,7 +36,19 @@ public class SmaliOptions {
     public String outputDexFile = "out.dex";
 
     public int jobs = Runtime.getRuntime().availableProcessors();
+    public boolean shardedInterning = false;
     public boolean allowOdexOpcodes = false;
     public boolean verboseErrors = false;
     public boolean printTokens = false;
+
+    /**
+     * If not null, assembled files are cached in this directory, and a file that hasn't changed since a previous run
+     * is loaded from the cache instead of being assembled again. See {@link CompiledClassCache}.
+     */
+    public String cacheDirectory = null;
+
+    /**
+     * If true, the per-file latency statistics are printed to stderr after assembling
+     */
+    public boolean printTaskStatistics = false;
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.smali;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.value.StringEncodedValue;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class CachedAssembleTest {
+    private static final int CLASS_COUNT = 8;
+
+    private File tempDir;
+    private File inputDir;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        inputDir = new File(tempDir, "input");
+        cacheDir = new File(tempDir, "cache");
+        Assert.assertTrue(inputDir.mkdir());
+        for (int i=0; i<CLASS_COUNT; i++) {
+            writeClass(i, "value" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testCachedMatchesUncached() throws IOException {
+        // the first run populates the cache, and the second run loads everything from it
+        byte[] firstRun = Files.toByteArray(assemble(cacheDir, false));
+        byte[] secondRun = Files.toByteArray(assemble(cacheDir, false));
+        Assert.assertTrue(Arrays.equals(firstRun, secondRun));
+
+        // a cached run writes its output with a DexPool rather than a DexBuilder, which lays out some items
+        // differently, so the uncached output is rewritten the same way before comparing
+        Opcodes opcodes = Opcodes.forApi(new SmaliOptions().apiLevel);
+        DexFile uncached = DexFileFactory.loadDexFile(assemble(null, true), opcodes);
+        DexPool dexPool = new DexPool(opcodes);
+        for (ClassDef classDef: uncached.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        Assert.assertTrue(Arrays.equals(dataStore.getData(), firstRun));
+    }
+
+    @Test
+    public void testChangedFileIsReassembled() throws IOException {
+        assemble(cacheDir, false);
+        writeClass(3, "changed");
+
+        DexFile dexFile = DexFileFactory.loadDexFile(assemble(cacheDir, false), Opcodes.getDefault());
+        List<? extends ClassDef> classDefs = Lists.newArrayList(dexFile.getClasses());
+        Assert.assertEquals(CLASS_COUNT, classDefs.size());
+        for (int i=0; i<CLASS_COUNT; i++) {
+            Field field = classDefs.get(i).getStaticFields().iterator().next();
+            Assert.assertEquals(i == 3 ? "changed" : "value" + i,
+                    ((StringEncodedValue)field.getInitialValue()).getValue());
+        }
+    }
+
+    @Test
+    public void testCacheHitsAndMisses() throws IOException {
+        SmaliOptions options = new SmaliOptions();
+        CompiledClassCache cache = new CompiledClassCache(cacheDir, options);
+
+        byte[] contents = "contents".getBytes(StandardCharsets.UTF_8);
+        String key = cache.getKey(contents);
+        Assert.assertNull(cache.load(key));
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.save(key, new DexBuilder(Opcodes.forApi(options.apiLevel)));
+        cache.finishWrites();
+        Assert.assertNotNull(cache.load(key));
+        Assert.assertEquals(1, cache.getHitCount());
+
+        // the key depends on the options that affect assembly
+        options.apiLevel = 28;
+        Assert.assertFalse(key.equals(new CompiledClassCache(cacheDir, options).getKey(contents)));
+    }
+
+    @Test
+    public void testCorruptEntryIsIgnored() throws IOException {
+        assemble(cacheDir, false);
+        corruptFiles(cacheDir);
+
+        DexFile dexFile = DexFileFactory.loadDexFile(assemble(cacheDir, false), Opcodes.getDefault());
+        Assert.assertEquals(CLASS_COUNT, Lists.newArrayList(dexFile.getClasses()).size());
+    }
+
+    @Test
+    public void testUnwritableCacheIsIgnored() throws IOException {
+        // the cache directory can't be created, since a file is in the way
+        Files.write(new byte[0], cacheDir);
+
+        DexFile dexFile = DexFileFactory.loadDexFile(assemble(cacheDir, false), Opcodes.getDefault());
+        Assert.assertEquals(CLASS_COUNT, Lists.newArrayList(dexFile.getClasses()).size());
+    }
+
+    @Test
+    public void testDuplicateClassIsReported() throws IOException {
+        Files.copy(new File(inputDir, "Class0.smali"), new File(inputDir, "Duplicate.smali"));
+
+        SmaliOptions options = new SmaliOptions();
+        options.outputDexFile = new File(tempDir, "duplicate.dex").getPath();
+        options.cacheDirectory = cacheDir.getPath();
+        Assert.assertFalse(Smali.assemble(options, inputDir.getPath()));
+    }
+
+    private File assemble(File cacheDir, boolean sharded) throws IOException {
+        File output = File.createTempFile("cached", ".dex", tempDir);
+
+        SmaliOptions options = new SmaliOptions();
+        options.jobs = 4;
+        options.shardedInterning = sharded;
+        options.outputDexFile = output.getPath();
+        options.cacheDirectory = cacheDir == null ? null : cacheDir.getPath();
+
+        Assert.assertTrue(Smali.assemble(options, inputDir.getPath()));
+        return output;
+    }
+
+    private void writeClass(int i, String value) throws IOException {
+        String smali = "" +
+                ".class public LClass" + i + ";\n" +
+                ".super Ljava/lang/Object;\n" +
+                ".field public static value:Ljava/lang/String; = \"" + value + "\"\n" +
+                ".method public run()Ljava/lang/String;\n" +
+                "    .registers 2\n" +
+                "    const-string v0, \"" + value + "\"\n" +
+                "    return-object v0\n" +
+                ".end method\n";
+        Files.write(smali, new File(inputDir, "Class" + i + ".smali"), StandardCharsets.UTF_8);
+    }
+
+    private static void corruptFiles(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                corruptFiles(child);
+            }
+        } else {
+            Files.write(new byte[] { 1, 2, 3 }, file);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.smali;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class ShardedAssembleTest {
+    private static final int CLASS_COUNT = 16;
+
+    @Test
+    public void testShardedMatchesShared() throws IOException {
+        File inputDir = createInput();
+
+        DexFile shared = DexFileFactory.loadDexFile(assemble(inputDir, false, 4), Opcodes.getDefault());
+        DexFile sharded = DexFileFactory.loadDexFile(assemble(inputDir, true, 4), Opcodes.getDefault());
+
+        List<? extends ClassDef> sharedClasses = Lists.newArrayList(shared.getClasses());
+        List<? extends ClassDef> shardedClasses = Lists.newArrayList(sharded.getClasses());
+        Assert.assertEquals(CLASS_COUNT, sharedClasses.size());
+        Assert.assertEquals(sharedClasses.size(), shardedClasses.size());
+
+        for (int i=0; i<sharedClasses.size(); i++) {
+            ClassDef sharedClass = sharedClasses.get(i);
+            ClassDef shardedClass = shardedClasses.get(i);
+            Assert.assertEquals(sharedClass.getType(), shardedClass.getType());
+            Assert.assertEquals(sharedClass.getSuperclass(), shardedClass.getSuperclass());
+
+            List<? extends Method> sharedMethods = Lists.newArrayList(sharedClass.getMethods());
+            List<? extends Method> shardedMethods = Lists.newArrayList(shardedClass.getMethods());
+            Assert.assertEquals(sharedMethods, shardedMethods);
+            for (int j=0; j<sharedMethods.size(); j++) {
+                Assert.assertEquals(
+                        Lists.newArrayList(sharedMethods.get(j).getImplementation().getInstructions()).size(),
+                        Lists.newArrayList(shardedMethods.get(j).getImplementation().getInstructions()).size());
+            }
+        }
+    }
+
+    @Test
+    public void testShardedIsDeterministic() throws IOException {
+        File inputDir = createInput();
+
+        byte[] singleThreaded = Files.toByteArray(assemble(inputDir, true, 1));
+        byte[] multiThreaded = Files.toByteArray(assemble(inputDir, true, 4));
+
+        Assert.assertTrue(Arrays.equals(singleThreaded, multiThreaded));
+    }
+
+    @Test
+    public void testDuplicateClassIsReported() throws IOException {
+        File inputDir = createInput();
+        File duplicate = new File(inputDir, "Duplicate.smali");
+        duplicate.deleteOnExit();
+        Files.copy(new File(inputDir, "Class0.smali"), duplicate);
+
+        File output = File.createTempFile("sharded", ".dex");
+        output.deleteOnExit();
+
+        // the two copies may be assembled into different shards, where neither shard would catch it
+        SmaliOptions options = new SmaliOptions();
+        options.jobs = 4;
+        options.shardedInterning = true;
+        options.outputDexFile = output.getPath();
+        Assert.assertFalse(Smali.assemble(options, inputDir.getPath()));
+    }
+
+    private static File assemble(File inputDir, boolean sharded, int jobs) throws IOException {
+        File output = File.createTempFile("sharded", ".dex");
+        output.deleteOnExit();
+
+        SmaliOptions options = new SmaliOptions();
+        options.jobs = jobs;
+        options.shardedInterning = sharded;
+        options.outputDexFile = output.getPath();
+
+        Assert.assertTrue(Smali.assemble(options, inputDir.getPath()));
+        return output;
+    }
+
+    private static File createInput() throws IOException {
+        File inputDir = Files.createTempDir();
+        inputDir.deleteOnExit();
+
+        for (int i=0; i<CLASS_COUNT; i++) {
+            String smali = "" +
+                    ".class public LClass" + i + ";\n" +
+                    ".super L" + (i == 0 ? "java/lang/Object" : "Class" + (i - 1)) + ";\n" +
+                    ".field public static value:Ljava/lang/String; = \"value" + i + "\"\n" +
+                    ".method public run(I)Ljava/lang/String;\n" +
+                    "    .registers 3\n" +
+                    "    const-string v0, \"shared\"\n" +
+                    "    if-eqz p1, :done\n" +
+                    "    const-string v0, \"string" + i + "\"\n" +
+                    "    :done\n" +
+                    "    return-object v0\n" +
+                    ".end method\n";
+            File file = new File(inputDir, "Class" + i + ".smali");
+            file.deleteOnExit();
+            Files.write(smali, file, StandardCharsets.UTF_8);
+        }
+        return inputDir;
+    }
+}
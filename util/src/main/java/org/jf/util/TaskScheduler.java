@@ -0,0 +1,296 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.Nonnull;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a set of independent tasks on a work-stealing pool, in order of decreasing estimated cost.
+ *
+ * Starting the most expensive tasks first means that a few very large tasks don't end up being started last, leaving
+ * the other threads idle while they finish. Only a bounded number of tasks are submitted to the pool at any one time,
+ * and the result of each task is passed to {@link #handleResult} on the calling thread as soon as it completes, so
+ * nothing needs to be held on to until every task is done.
+ *
+ * @param <T> The type of the items to process
+ * @param <R> The type of the result of processing an item
+ */
+public abstract class TaskScheduler<T, R> {
+    private final int jobs;
+    private final int maxInFlight;
+
+    /**
+     * @param jobs The number of threads to use
+     */
+    public TaskScheduler(int jobs) {
+        this(jobs, jobs * 4);
+    }
+
+    /**
+     * @param jobs The number of threads to use
+     * @param maxInFlight The maximum number of tasks that have been submitted, but whose results haven't been handled
+     */
+    public TaskScheduler(int jobs, int maxInFlight) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("jobs must be positive");
+        }
+        if (maxInFlight < jobs) {
+            throw new IllegalArgumentException("maxInFlight must be at least jobs");
+        }
+        this.jobs = jobs;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Estimates the relative cost of processing the given item. This is called on the calling thread, before any
+     * items are processed, so it should be cheap.
+     */
+    protected abstract long estimateCost(@Nonnull T item);
+
+    /**
+     * Processes the given item. This is called on one of the worker threads.
+     */
+    protected abstract R process(@Nonnull T item) throws Exception;
+
+    /**
+     * Handles the result of processing the given item. This is called on the calling thread, in the order that the
+     * items complete.
+     */
+    protected abstract void handleResult(@Nonnull T item, R result);
+
+    /**
+     * Gets a name for the given item, as used in the statistics
+     */
+    @Nonnull
+    protected String getName(@Nonnull T item) {
+        return item.toString();
+    }
+
+    /**
+     * Processes all of the given items.
+     *
+     * Items with the same estimated cost are started in the order they were given. If processing any item throws an
+     * exception, no further items are started and the exception is rethrown, wrapped in a RuntimeException. Likewise,
+     * if the calling thread is interrupted, the interrupt flag is restored and the InterruptedException is thrown,
+     * wrapped in a RuntimeException.
+     *
+     * @return The statistics for this run
+     */
+    @Nonnull
+    public TaskStatistics run(@Nonnull Collection<? extends T> items) {
+        List<ScheduledTask> tasks = Lists.newArrayListWithCapacity(items.size());
+        for (T item: items) {
+            tasks.add(new ScheduledTask(item, estimateCost(item)));
+        }
+        // this is a stable sort, so tasks with the same cost keep their original order
+        Collections.sort(tasks);
+
+        TaskStatistics statistics = new TaskStatistics(tasks.size());
+        long startTime = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        CompletionService<ScheduledTask> completionService = new ExecutorCompletionService<ScheduledTask>(pool);
+        try {
+            int nextTask = 0;
+            int inFlight = 0;
+            while (nextTask < tasks.size() || inFlight > 0) {
+                while (inFlight < maxInFlight && nextTask < tasks.size()) {
+                    completionService.submit(tasks.get(nextTask));
+                    // drop our reference, so that the item and result can be collected once they've been handled
+                    tasks.set(nextTask++, null);
+                    inFlight++;
+                }
+
+                Future<ScheduledTask> future;
+                try {
+                    future = completionService.take();
+                } catch (InterruptedException ex) {
+                    // the pool is shut down below, which interrupts any tasks that are still running
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+                inFlight--;
+
+                ScheduledTask task;
+                try {
+                    task = Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException(ex);
+                }
+                statistics.addTask(getName(task.item), task.latency);
+                handleResult(task.item, task.result);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        statistics.setWallTime(System.nanoTime() - startTime);
+        return statistics;
+    }
+
+    private class ScheduledTask implements Callable<ScheduledTask>, Comparable<ScheduledTask> {
+        @Nonnull public final T item;
+        public final long cost;
+        public R result;
+        public long latency;
+
+        public ScheduledTask(@Nonnull T item, long cost) {
+            this.item = item;
+            this.cost = cost;
+        }
+
+        @Override public ScheduledTask call() throws Exception {
+            long start = System.nanoTime();
+            result = process(item);
+            latency = System.nanoTime() - start;
+            return this;
+        }
+
+        @Override public int compareTo(@Nonnull ScheduledTask other) {
+            // most expensive first
+            return Long.compare(other.cost, cost);
+        }
+    }
+
+    /**
+     * The per-task latencies from a single run of a TaskScheduler.
+     */
+    public static class TaskStatistics {
+        private static final int SLOWEST_TASK_COUNT = 10;
+
+        @Nonnull private final long[] latencies;
+        private int taskCount = 0;
+        private long wallTime;
+        // a min-heap of the slowest tasks seen so far
+        @Nonnull private final PriorityQueue<TaskLatency> slowestTasks = new PriorityQueue<TaskLatency>();
+
+        TaskStatistics(int expectedTaskCount) {
+            latencies = new long[expectedTaskCount];
+        }
+
+        void addTask(@Nonnull String name, long latency) {
+            latencies[taskCount++] = latency;
+            if (slowestTasks.size() < SLOWEST_TASK_COUNT) {
+                slowestTasks.add(new TaskLatency(name, latency));
+            } else if (slowestTasks.peek().latency < latency) {
+                slowestTasks.poll();
+                slowestTasks.add(new TaskLatency(name, latency));
+            }
+        }
+
+        void setWallTime(long wallTime) {
+            this.wallTime = wallTime;
+        }
+
+        public int getTaskCount() {
+            return taskCount;
+        }
+
+        /**
+         * @return The elapsed time for the whole run, in nanoseconds
+         */
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * @return The sum of the latencies of all tasks, in nanoseconds
+         */
+        public long getTotalTaskTime() {
+            long total = 0;
+            for (int i=0; i<taskCount; i++) {
+                total += latencies[i];
+            }
+            return total;
+        }
+
+        /**
+         * @param percentile The percentile to get, between 0 and 100
+         * @return The latency at the given percentile, in nanoseconds
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (taskCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, taskCount);
+            Arrays.sort(sorted);
+            int index = (int)Math.ceil(percentile / 100 * taskCount) - 1;
+            return sorted[Math.max(0, Math.min(index, taskCount - 1))];
+        }
+
+        /**
+         * @return The slowest tasks, slowest first
+         */
+        @Nonnull
+        public List<TaskLatency> getSlowestTasks() {
+            List<TaskLatency> tasks = Lists.newArrayList(slowestTasks);
+            Collections.sort(tasks, Collections.reverseOrder());
+            return tasks;
+        }
+
+        public void print(@Nonnull PrintStream out) {
+            out.println(String.format("%d tasks in %dms, total task time %dms",
+                    taskCount, toMillis(wallTime), toMillis(getTotalTaskTime())));
+            out.println(String.format("task latency: p50 %dms, p90 %dms, p99 %dms, max %dms",
+                    toMillis(getLatencyPercentile(50)), toMillis(getLatencyPercentile(90)),
+                    toMillis(getLatencyPercentile(99)), toMillis(getLatencyPercentile(100))));
+            out.println("slowest tasks:");
+            for (TaskLatency task: getSlowestTasks()) {
+                out.println(String.format("  %6dms %s", toMillis(task.latency), task.name));
+            }
+        }
+
+        private static long toMillis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    public static class TaskLatency implements Comparable<TaskLatency> {
+        @Nonnull public final String name;
+        public final long latency;
+
+        public TaskLatency(@Nonnull String name, long latency) {
+            this.name = name;
+            this.latency = latency;
+        }
+
+        @Override public int compareTo(@Nonnull TaskLatency other) {
+            return Long.compare(latency, other.latency);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.util;
+
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TaskSchedulerTest {
+    @Test
+    public void testLargestFirst() {
+        final List<Integer> started = Collections.synchronizedList(Lists.<Integer>newArrayList());
+        final List<Integer> handled = Lists.newArrayList();
+
+        TaskScheduler.TaskStatistics statistics = new TaskScheduler<Integer, Integer>(1) {
+            @Override protected long estimateCost(@Nonnull Integer item) {
+                return item;
+            }
+
+            @Override protected Integer process(@Nonnull Integer item) {
+                started.add(item);
+                return item * 2;
+            }
+
+            @Override protected void handleResult(@Nonnull Integer item, Integer result) {
+                Assert.assertEquals(item * 2, result.intValue());
+                handled.add(item);
+            }
+        }.run(Lists.newArrayList(3, 10, 1, 7, 5));
+
+        Assert.assertEquals(Lists.newArrayList(10, 7, 5, 3, 1), started);
+        Assert.assertEquals(Lists.newArrayList(10, 7, 5, 3, 1), handled);
+        Assert.assertEquals(5, statistics.getTaskCount());
+        Assert.assertEquals(5, statistics.getSlowestTasks().size());
+    }
+
+    @Test
+    public void testStableOrderForEqualCosts() {
+        final List<String> started = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        new TaskScheduler<String, Object>(1) {
+            @Override protected long estimateCost(@Nonnull String item) {
+                return item.length();
+            }
+
+            @Override protected Object process(@Nonnull String item) {
+                started.add(item);
+                return null;
+            }
+
+            @Override protected void handleResult(@Nonnull String item, Object result) {
+            }
+        }.run(Lists.newArrayList("b", "aa", "a", "bb", "c"));
+
+        Assert.assertEquals(Lists.newArrayList("aa", "bb", "b", "a", "c"), started);
+    }
+
+    @Test
+    public void testBoundedInFlight() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger handledCount = new AtomicInteger();
+        final int maxInFlight = 6;
+
+        List<Integer> items = Lists.newArrayList();
+        for (int i=0; i<200; i++) {
+            items.add(i);
+        }
+
+        new TaskScheduler<Integer, Integer>(3, maxInFlight) {
+            @Override protected long estimateCost(@Nonnull Integer item) {
+                return 0;
+            }
+
+            @Override protected Integer process(@Nonnull Integer item) {
+                // the number of started tasks can't get ahead of the handled tasks by more than maxInFlight
+                int started = running.incrementAndGet();
+                Assert.assertTrue(started - handledCount.get() <= maxInFlight);
+                return item;
+            }
+
+            @Override protected void handleResult(@Nonnull Integer item, Integer result) {
+                handledCount.incrementAndGet();
+            }
+        }.run(items);
+
+        Assert.assertEquals(200, handledCount.get());
+    }
+
+    @Test
+    public void testException() {
+        try {
+            new TaskScheduler<Integer, Integer>(2) {
+                @Override protected long estimateCost(@Nonnull Integer item) {
+                    return item;
+                }
+
+                @Override protected Integer process(@Nonnull Integer item) {
+                    if (item == 5) {
+                        throw new IllegalStateException("failed");
+                    }
+                    return item;
+                }
+
+                @Override protected void handleResult(@Nonnull Integer item, Integer result) {
+                }
+            }.run(Lists.newArrayList(1, 2, 3, 4, 5));
+            Assert.fail();
+        } catch (RuntimeException ex) {
+            Assert.assertTrue(ex.getCause().getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testInterrupted() {
+        final AtomicInteger interruptedTasks = new AtomicInteger();
+        long start = System.nanoTime();
+
+        Thread.currentThread().interrupt();
+        try {
+            new TaskScheduler<Integer, Object>(2) {
+                @Override protected long estimateCost(@Nonnull Integer item) {
+                    return item;
+                }
+
+                @Override protected Object process(@Nonnull Integer item) throws Exception {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ex) {
+                        interruptedTasks.incrementAndGet();
+                        throw ex;
+                    }
+                    return null;
+                }
+
+                @Override protected void handleResult(@Nonnull Integer item, Object result) {
+                }
+            }.run(Lists.newArrayList(1, 2, 3, 4, 5, 6, 7, 8));
+            Assert.fail();
+        } catch (RuntimeException ex) {
+            Assert.assertTrue(ex.getCause() instanceof InterruptedException);
+            // the interrupt flag is restored
+            Assert.assertTrue(Thread.interrupted());
+        }
+
+        // none of the tasks ran to completion
+        Assert.assertTrue(System.nanoTime() - start < 5000000000L);
+    }
+
+    @Test
+    public void testStatistics() {
+        TaskScheduler.TaskStatistics statistics = new TaskScheduler<Integer, Object>(2) {
+            @Override protected long estimateCost(@Nonnull Integer item) {
+                return item;
+            }
+
+            @Override protected Object process(@Nonnull Integer item) throws Exception {
+                Thread.sleep(item);
+                return null;
+            }
+
+            @Override protected void handleResult(@Nonnull Integer item, Object result) {
+            }
+
+            @Nonnull @Override protected String getName(@Nonnull Integer item) {
+                return "task" + item;
+            }
+        }.run(Lists.newArrayList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 40));
+
+        Assert.assertEquals(15, statistics.getTaskCount());
+        List<TaskScheduler.TaskLatency> slowest = statistics.getSlowestTasks();
+        Assert.assertEquals(10, slowest.size());
+        Assert.assertEquals("task40", slowest.get(0).name);
+        Assert.assertTrue(slowest.get(0).latency >= 40000000L);
+        Assert.assertEquals(slowest.get(0).latency, statistics.getLatencyPercentile(100));
+        Assert.assertTrue(statistics.getLatencyPercentile(50) <= statistics.getLatencyPercentile(90));
+        Assert.assertTrue(statistics.getTotalTaskTime() >= slowest.get(0).latency);
+    }
+}